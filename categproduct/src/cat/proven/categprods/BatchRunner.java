@@ -0,0 +1,374 @@
+package cat.proven.categprods;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.server.JsonWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Store application: non-interactive interface. Reads commands, one per
+ * line, and runs them against the model without displaying menus. Commands
+ * are the action commands of the main menu followed by their arguments,
+ * separated by blanks (arguments containing blanks must be quoted):
+ * <pre>
+ * category/add C07 "category 07"
+ * category/add C08 "category 08" 1
+ * product/add P10 product10 5 9.99 1
+ * product/modify P10 product10 4 9.50
+ * product/remove P10
+ * product/code P01
+ * </pre>
+ * The optional last argument of category/add is the id of the parent
+ * category, which must exist before the batch the command is grouped in.
+ * Lines that are empty or start with # are ignored.
+ *
+ * Consecutive mutations of the same kind (product/add, product/modify,
+ * product/remove, category/add) are grouped and run as a single batched
+ * transaction. For each command a JSON object is written as a line, in input
+ * order, with its line number, action, status (ok, fail or error) and
+ * result.
+ *
+ * @author ProvenSoft
+ */
+public class BatchRunner {
+
+    /**
+     * maximum number of mutations grouped in one transaction
+     */
+    public static final int MAX_BATCH = 1000;
+
+    private final StoreModel model;
+    private final OutputStream out;
+    private final JsonWriter json;
+
+    /**
+     * pending mutations: all of them of the same action
+     */
+    private String pendingAction;
+    private final List<Object> pending;
+    private final List<Integer> pendingLines;
+
+    private int numOk;
+    private int numFailed;
+
+    public BatchRunner(StoreModel model, OutputStream out) {
+        this.model = model;
+        this.out = out;
+        this.json = new JsonWriter();
+        this.pending = new ArrayList<>();
+        this.pendingLines = new ArrayList<>();
+    }
+
+    /**
+     * runs all commands read from the given reader
+     *
+     * @param in the reader to read commands from
+     * @throws IOException on read or write error
+     */
+    public void run(BufferedReader in) throws IOException {
+        json.reset(out);
+        String line;
+        int lineNumber = 0;
+        boolean exit = false;
+        while (!exit && (line = in.readLine()) != null) {
+            lineNumber++;
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty() || tokens.get(0).startsWith("#")) {
+                continue;
+            }
+            if ("exit".equals(tokens.get(0))) {
+                exit = true;
+            } else {
+                process(lineNumber, tokens);
+            }
+        }
+        flushPending();
+        json.flush();
+        out.flush();
+    }
+
+    /**
+     * @return number of commands that succeeded
+     */
+    public int getNumOk() {
+        return numOk;
+    }
+
+    /**
+     * @return number of commands that failed or had errors
+     */
+    public int getNumFailed() {
+        return numFailed;
+    }
+
+    /* ==== Control methods ==== */
+
+    private void process(int lineNumber, List<String> tokens) throws IOException {
+        String action = tokens.get(0);
+        try {
+            switch (action) {
+                case "category/add":
+                    checkArgs(tokens, 2);
+                    addPending(lineNumber, action, new Category(0, tokens.get(1), tokens.get(2),
+                            (tokens.size() > 3) ? Long.parseLong(tokens.get(3)) : 0));
+                    break;
+                case "product/add":
+                    checkArgs(tokens, 5);
+                    addPending(lineNumber, action, new Product(0, tokens.get(1), tokens.get(2),
+                            Integer.parseInt(tokens.get(3)), Money.parse(tokens.get(4)),
+                            new Category(Long.parseLong(tokens.get(5)))));
+                    break;
+                case "product/modify":
+                    checkArgs(tokens, 4);
+                    addPending(lineNumber, action, new Product(0, tokens.get(1), tokens.get(2),
+                            Integer.parseInt(tokens.get(3)), Money.parse(tokens.get(4)), null));
+                    break;
+                case "product/remove":
+                    checkArgs(tokens, 1);
+                    addPending(lineNumber, action, new Product(0, tokens.get(1), null, 0, 0, null));
+                    break;
+                default:
+                    //any other command sees the effects of previous mutations
+                    flushPending();
+                    doSingle(lineNumber, action, tokens);
+                    break;
+            }
+        } catch (NumberFormatException ex) {
+            flushPending();
+            reportError(lineNumber, action, "Invalid number");
+        } catch (IllegalArgumentException ex) {
+            flushPending();
+            reportError(lineNumber, action, ex.getMessage());
+        }
+    }
+
+    private void doSingle(int lineNumber, String action, List<String> tokens) throws IOException {
+        switch (action) {
+            case "category/all":
+                reportCategories(lineNumber, action, model.findAllCategories());
+                break;
+            case "category/code":
+                checkArgs(tokens, 1);
+                reportCategory(lineNumber, action, model.findCategoryByCode(tokens.get(1)));
+                break;
+            case "category/name":
+                checkArgs(tokens, 1);
+                reportCategory(lineNumber, action, model.findCategoryByName(tokens.get(1)));
+                break;
+            case "category/modify": {
+                checkArgs(tokens, 3);
+                int result = 0;
+                Category oldC = model.findCategoryByCode(tokens.get(1));
+                if (oldC != null) {
+                    result = model.modifyCategory(oldC, new Category(oldC.getId(), tokens.get(2), tokens.get(3)));
+                }
+                reportResult(lineNumber, action, result);
+                break;
+            }
+            case "category/remove":
+                checkArgs(tokens, 1);
+                reportResult(lineNumber, action, model.dropCategory(model.findCategoryByCode(tokens.get(1))));
+                break;
+            case "product/all":
+                reportProducts(lineNumber, action, model.findAllProducts());
+                break;
+            case "product/code":
+                checkArgs(tokens, 1);
+                reportProduct(lineNumber, action, model.findProductByCode(tokens.get(1)));
+                break;
+            case "product/name":
+                checkArgs(tokens, 1);
+                reportProduct(lineNumber, action, model.findProductByName(tokens.get(1)));
+                break;
+            case "product/minstock":
+                checkArgs(tokens, 1);
+                reportProducts(lineNumber, action, model.findProductByMinStock(Integer.parseInt(tokens.get(1))));
+                break;
+            case "product/category":
+                checkArgs(tokens, 1);
+                reportProducts(lineNumber, action, model.findProductsByCategory(new Category(Long.parseLong(tokens.get(1)))));
+                break;
+            default:
+                reportError(lineNumber, action, "Unknown action");
+                break;
+        }
+    }
+
+    /**
+     * queues a mutation, running pending ones first if they are of a
+     * different action or the batch is full
+     */
+    private void addPending(int lineNumber, String action, Object data) throws IOException {
+        if ((pendingAction != null) && !pendingAction.equals(action)) {
+            flushPending();
+        }
+        pendingAction = action;
+        pending.add(data);
+        pendingLines.add(lineNumber);
+        if (pending.size() >= MAX_BATCH) {
+            flushPending();
+        }
+    }
+
+    /**
+     * runs pending mutations as a batch and reports their results
+     */
+    @SuppressWarnings("unchecked")
+    private void flushPending() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        int[] results;
+        switch (pendingAction) {
+            case "category/add":
+                results = model.addCategories((List<Category>) (List<?>) pending);
+                break;
+            case "product/add":
+                results = model.addProducts((List<Product>) (List<?>) pending);
+                break;
+            case "product/modify":
+                results = model.modifyProducts((List<Product>) (List<?>) pending);
+                break;
+            case "product/remove":
+                results = model.dropProducts((List<Product>) (List<?>) pending);
+                break;
+            default:
+                throw new IllegalStateException(pendingAction);
+        }
+        for (int i = 0; i < results.length; i++) {
+            reportResult(pendingLines.get(i), pendingAction, results[i]);
+        }
+        pendingAction = null;
+        pending.clear();
+        pendingLines.clear();
+    }
+
+    /* ==== View methods ==== */
+
+    private void beginReport(int lineNumber, String action, boolean ok) {
+        if (ok) {
+            numOk++;
+        } else {
+            numFailed++;
+        }
+        json.beginObject();
+        json.name("line").value(lineNumber);
+        json.name("action").value(action);
+        json.name("status").value(ok ? "ok" : "fail");
+    }
+
+    private void endReport() throws IOException {
+        //each report is a top level value on its own line
+        json.endObject().endLine().flushIfOver(8192);
+    }
+
+    private void reportResult(int lineNumber, String action, int result) throws IOException {
+        beginReport(lineNumber, action, result == 1);
+        json.name("result").value(result);
+        endReport();
+    }
+
+    private void reportError(int lineNumber, String action, String message) throws IOException {
+        numFailed++;
+        json.beginObject();
+        json.name("line").value(lineNumber);
+        json.name("action").value(action);
+        json.name("status").value("error");
+        json.name("message").value(message);
+        endReport();
+    }
+
+    private void reportProduct(int lineNumber, String action, Product p) throws IOException {
+        beginReport(lineNumber, action, p != null);
+        json.name("data").product(p);
+        endReport();
+    }
+
+    private void reportCategory(int lineNumber, String action, Category c) throws IOException {
+        beginReport(lineNumber, action, c != null);
+        json.name("data").category(c);
+        endReport();
+    }
+
+    private void reportProducts(int lineNumber, String action, List<Product> data) throws IOException {
+        beginReport(lineNumber, action, data != null);
+        json.name("data");
+        if (data != null) {
+            json.beginArray();
+            for (Product p : data) {
+                json.product(p);
+                json.flushIfOver(8192);
+            }
+            json.endArray();
+        } else {
+            json.value((String) null);
+        }
+        endReport();
+    }
+
+    private void reportCategories(int lineNumber, String action, List<Category> data) throws IOException {
+        beginReport(lineNumber, action, data != null);
+        json.name("data");
+        if (data != null) {
+            json.beginArray();
+            for (Category c : data) {
+                json.category(c);
+            }
+            json.endArray();
+        } else {
+            json.value((String) null);
+        }
+        endReport();
+    }
+
+    /* ==== Input parsing ==== */
+
+    /**
+     * checks that a command has at least the given number of arguments
+     */
+    private static void checkArgs(List<String> tokens, int numArgs) {
+        if (tokens.size() - 1 < numArgs) {
+            throw new IllegalArgumentException("Expected " + numArgs + " arguments");
+        }
+    }
+
+    /**
+     * splits a line in blank separated tokens. Double quotes group blanks in
+     * a single token.
+     *
+     * @param line the line to split
+     * @return list of tokens
+     */
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int n = line.length();
+        int i = 0;
+        while (i < n) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = n;
+                }
+                tokens.add(line.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+}
@@ -1,8 +1,39 @@
 package cat.proven.categprods;
 
+import cat.proven.categprods.io.CatalogExporter;
+import cat.proven.categprods.io.CatalogImporter;
+import cat.proven.categprods.model.CatalogSync;
 import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
 import cat.proven.categprods.model.Product;
 import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.model.cache.DiskProductCache;
+import cat.proven.categprods.model.cache.LruProductCache;
+import cat.proven.categprods.model.cache.MulticastTransport;
+import cat.proven.categprods.model.cache.OffHeapProductCache;
+import cat.proven.categprods.model.cache.ProductCache;
+import cat.proven.categprods.model.cache.TieredProductCache;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.persist.CategoryDao;
+import cat.proven.categprods.model.persist.DbConfig;
+import cat.proven.categprods.model.persist.DbConnect;
+import cat.proven.categprods.model.persist.MigrationRunner;
+import cat.proven.categprods.model.persist.ShardMap;
+import cat.proven.categprods.model.persist.ShardedProductDao;
+import cat.proven.categprods.server.StoreServer;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
@@ -13,6 +44,12 @@ import java.util.Scanner;
  */
 public class CategProdUI {
 
+    private static final long METRICS_PERIOD_SECONDS = 10;
+    /**
+     * products kept by the disk cache when no size is given
+     */
+    private static final int DISK_CACHE_SIZE = 1_000_000;
+
     private final Menu mainMenu;
     private final Scanner uiReader;
 
@@ -97,15 +134,407 @@ public class CategProdUI {
     /**
      * Main method
      *
-     * @param args argument for command line invocation (not necessari here)
+     * Usage: [--memory] [--metrics file] [--db-config file] [--shards file]
+     * [--product-cache size[:pinned]] [--off-heap-cache megabytes[:pinned]]
+     * [--disk-cache file[:size]] [--invalidation-bus port]
+     * [server [port] | batch [file]
+     * | import (products|categories) file [--resume]
+     * | export (csv|jsonl) target [--gzip] [--by-category]
+     * | sync-from file]
+     * <ul>
+     * <li>--memory: use an in-memory database with sample data instead of
+     * storedb</li>
+     * <li>--metrics: write operation counts and latencies to a file every
+     * few seconds and on exit</li>
+     * <li>--db-config: read database connection settings, such as the
+     * primary and replica servers, from a properties file</li>
+     * <li>--shards: keep products in several databases by category, as
+     * assigned in a properties file</li>
+     * <li>--product-cache: cache up to size products looked up by code,
+     * keeping the pinned most looked up ones always cached</li>
+     * <li>--off-heap-cache: same, but keeping products in megabytes of
+     * memory outside the heap</li>
+     * <li>--disk-cache: keep up to size products looked up by code in a
+     * file, behind the other cache if any, reused on next start if no
+     * product changed meanwhile</li>
+     * <li>--invalidation-bus: tell other processes on this host joined to
+     * the bus on the same port of changes, and drop from the cache the
+     * products they change</li>
+     * <li>server: serve the model as an HTTP/JSON API on loopback
+     * interface</li>
+     * <li>batch: run commands read from a file or from standard input</li>
+     * <li>import: import a CSV file; rejected rows are written to
+     * file.rejects.csv</li>
+     * <li>export: export all products to a file or, by category, to files in
+     * a target directory</li>
+     * <li>sync-from: bring the catalog up to date with the database whose
+     * connection settings are in a properties file, copying only what
+     * differs; that database must have all schema migrations applied</li>
+     * </ul>
+     * Without a mode, the interactive console interface is started. When
+     * using storedb, pending schema migrations are applied first, to each
+     * shard too, and the application does not start if they fail.
+     *
+     * @param args argument for command line invocation
      */
     public static void main(String[] args) {
+        List<String> params = new ArrayList<>(Arrays.asList(args));
+        boolean memory = params.remove("--memory");
+        int metricsIndex = params.indexOf("--metrics");
+        if ((metricsIndex >= 0) && (metricsIndex + 1 < params.size())) {
+            params.remove(metricsIndex);
+            startMetricsDump(Path.of(params.remove(metricsIndex)));
+        }
+        int configIndex = params.indexOf("--db-config");
+        if ((configIndex >= 0) && (configIndex + 1 < params.size())) {
+            params.remove(configIndex);
+            configureDatabase(Path.of(params.remove(configIndex)));
+        }
+        int shardsIndex = params.indexOf("--shards");
+        Path shards = null;
+        if ((shardsIndex >= 0) && (shardsIndex + 1 < params.size())) {
+            params.remove(shardsIndex);
+            shards = Path.of(params.remove(shardsIndex));
+        }
+        if (!memory) {
+            migrateDatabase();
+        }
         //instantiate model (data service)
-        StoreModel model = new StoreModel();
-        //instantiate presentation class (controller+view) and pass model to it
-        CategProdUI ap = new CategProdUI(model);
-        //start interacting with user
-        ap.start();
+        StoreModel model = memory ? StoreModel.inMemory()
+                : (shards != null) ? shardedModel(shards) : new StoreModel();
+        ProductCache cache = null;
+        int pinned = 0;
+        int cacheIndex = params.indexOf("--product-cache");
+        if ((cacheIndex >= 0) && (cacheIndex + 1 < params.size())) {
+            params.remove(cacheIndex);
+            String[] sizes = params.remove(cacheIndex).split(":");
+            cache = new LruProductCache(Integer.parseInt(sizes[0]));
+            pinned = (sizes.length > 1) ? Integer.parseInt(sizes[1]) : 0;
+        }
+        int offHeapIndex = params.indexOf("--off-heap-cache");
+        if ((offHeapIndex >= 0) && (offHeapIndex + 1 < params.size())) {
+            params.remove(offHeapIndex);
+            String[] sizes = params.remove(offHeapIndex).split(":");
+            cache = new OffHeapProductCache(Long.parseLong(sizes[0]) << 20);
+            pinned = (sizes.length > 1) ? Integer.parseInt(sizes[1]) : 0;
+        }
+        int diskIndex = params.indexOf("--disk-cache");
+        if ((diskIndex >= 0) && (diskIndex + 1 < params.size())) {
+            params.remove(diskIndex);
+            String spec = params.remove(diskIndex);
+            //the size is optional, and file names may hold colons
+            int colon = spec.lastIndexOf(':');
+            boolean sized = (colon > 0) && spec.substring(colon + 1).matches("\\d+");
+            DiskProductCache disk = openDiskCache(model, Path.of(sized ? spec.substring(0, colon) : spec),
+                    sized ? Integer.parseInt(spec.substring(colon + 1)) : DISK_CACHE_SIZE);
+            if (disk != null) {
+                cache = (cache != null) ? new TieredProductCache(cache, disk) : disk;
+            }
+        }
+        if (cache != null) {
+            model.setProductCache(cache, pinned);
+        }
+        int busIndex = params.indexOf("--invalidation-bus");
+        if ((busIndex >= 0) && (busIndex + 1 < params.size())) {
+            params.remove(busIndex);
+            joinInvalidationBus(model, Integer.parseInt(params.remove(busIndex)));
+        }
+        String mode = params.isEmpty() ? "console" : params.remove(0);
+        switch (mode) {
+            case "server":
+                runServer(model, params);
+                break;
+            case "batch":
+                runBatch(model, params);
+                break;
+            case "import":
+                runImport(model, params);
+                break;
+            case "export":
+                runExport(model, params);
+                break;
+            case "sync-from":
+                runSyncFrom(model, params);
+                break;
+            case "console":
+                //instantiate presentation class (controller+view) and pass model to it
+                CategProdUI ap = new CategProdUI(model);
+                //start interacting with user
+                ap.start();
+                break;
+            default:
+                System.err.println("Unknown mode: " + mode);
+                System.exit(2);
+        }
+    }
+
+    /**
+     * reads database connection settings; the process ends if they can not
+     * be read
+     *
+     * @param file the properties file
+     */
+    private static void configureDatabase(Path file) {
+        try {
+            DbConnect.configure(DbConfig.load(file));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Database settings not read: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * creates a model whose products are sharded, applying pending schema
+     * migrations to each shard first; the process ends if the shard map can
+     * not be read or a shard can not be migrated
+     *
+     * @param file the shard map file
+     * @return the model
+     */
+    private static StoreModel shardedModel(Path file) {
+        StoreModel model = null;
+        try {
+            ShardMap map = ShardMap.load(file);
+            for (int i = 0; i < map.size(); i++) {
+                migrateShard(map, i);
+            }
+            model = new StoreModel(new CategoryDao(), new ShardedProductDao(map));
+        } catch (IOException ex) {
+            System.err.println("Shard map not read: " + ex.getMessage());
+            System.exit(2);
+        }
+        return model;
+    }
+
+    /**
+     * applies pending schema migrations to a shard; the process ends if they
+     * fail
+     *
+     * @param map the shard map
+     * @param shard the number of the shard
+     */
+    private static void migrateShard(ShardMap map, int shard) {
+        try {
+            int applied = MigrationRunner.forShard(map.getShard(shard)).migrate();
+            if (applied > 0) {
+                System.err.println(applied + " schema migrations applied to shard " + shard);
+            }
+        } catch (SQLException | IOException ex) {
+            System.err.println("Shard " + shard + " not migrated: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * opens the disk cache of products, to be closed when the process ends;
+     * the application still starts without it if it can not be opened
+     *
+     * @param model the model whose catalog version the cache must match
+     * @param file the cache file
+     * @param size maximum number of products
+     * @return the cache, or null if not opened
+     */
+    private static DiskProductCache openDiskCache(StoreModel model, Path file, int size) {
+        DiskProductCache disk = null;
+        try {
+            DiskProductCache opened = DiskProductCache.open(file, size, model.findCatalogVersion());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> opened.close(model.findCatalogVersion())));
+            System.err.println(opened.wasReused()
+                    ? "Disk cache reused with " + opened.size() + " products" : "Disk cache started empty");
+            disk = opened;
+        } catch (IOException ex) {
+            System.err.println("Disk cache not opened: " + ex.getMessage());
+        }
+        return disk;
+    }
+
+    /**
+     * joins the model to the bus of invalidations on loopback interface, to
+     * be left when the process ends; the application still starts without it
+     * if it can not be joined
+     *
+     * @param model the model
+     * @param port the port of the bus
+     */
+    private static void joinInvalidationBus(StoreModel model, int port) {
+        try {
+            model.joinInvalidationBus(new MulticastTransport(port));
+            Runtime.getRuntime().addShutdownHook(new Thread(model::leaveInvalidationBus));
+        } catch (IOException ex) {
+            System.err.println("Invalidation bus not joined: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * applies pending schema migrations; the process ends if they fail, as
+     * the DAOs read and write columns and tables that migrations add
+     */
+    private static void migrateDatabase() {
+        try {
+            int applied = new MigrationRunner().migrate();
+            if (applied > 0) {
+                System.err.println(applied + " schema migrations applied");
+            }
+        } catch (SQLException | IOException ex) {
+            System.err.println("Schema not migrated: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * dumps metrics to a file periodically and when the process ends
+     *
+     * @param file the file to write
+     */
+    private static void startMetricsDump(Path file) {
+        Metrics.startDump(file, METRICS_PERIOD_SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Metrics.dump(file);
+            } catch (IOException ex) {
+                System.err.println("Metrics not written: " + ex.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * starts the HTTP server and waits until the process is stopped
+     *
+     * @param model the model to serve
+     * @param params optional port number
+     */
+    private static void runServer(StoreModel model, List<String> params) {
+        try {
+            int port = params.isEmpty() ? StoreServer.DEFAULT_PORT : Integer.parseInt(params.get(0));
+            StoreServer server = new StoreServer(model, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(1);
+                //stock of reservations confirmed lately
+                model.flushReservations();
+            }));
+            server.start();
+            System.out.println("Listening on http://127.0.0.1:" + server.getPort() + "/");
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid port");
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println("Server not started: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * runs commands in batch mode and exits with status 1 if any failed
+     *
+     * @param model the model to run commands against
+     * @param params optional file to read commands from
+     */
+    private static void runBatch(StoreModel model, List<String> params) {
+        try ( BufferedReader in = params.isEmpty()
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(params.get(0)), StandardCharsets.UTF_8)) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536);
+            BatchRunner runner = new BatchRunner(model, out);
+            runner.run(in);
+            System.err.format("%d ok, %d failed%n", runner.getNumOk(), runner.getNumFailed());
+            if (runner.getNumFailed() > 0) {
+                System.exit(1);
+            }
+        } catch (IOException ex) {
+            System.err.println("Batch aborted: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * imports a CSV file
+     *
+     * @param model the model to import to
+     * @param params kind of data, file and optional --resume flag
+     */
+    private static void runImport(StoreModel model, List<String> params) {
+        boolean resume = params.remove("--resume");
+        if (params.size() != 2) {
+            System.err.println("Usage: import (products|categories) file [--resume]");
+            System.exit(2);
+        }
+        try {
+            CatalogImporter.Kind kind = CatalogImporter.Kind.valueOf(params.get(0).toUpperCase());
+            Path csv = Path.of(params.get(1));
+            Path rejects = csv.resolveSibling(csv.getFileName() + ".rejects.csv");
+            CatalogImporter.Result result = new CatalogImporter(model).importFile(kind, csv, rejects, resume);
+            System.err.println(result);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown kind of data: " + params.get(0));
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println("Import aborted, run again with --resume to continue: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * exports products
+     *
+     * @param model the model to export from
+     * @param params format, target and optional --gzip and --by-category flags
+     */
+    private static void runExport(StoreModel model, List<String> params) {
+        boolean gzip = params.remove("--gzip");
+        boolean byCategory = params.remove("--by-category");
+        if (params.size() != 2) {
+            System.err.println("Usage: export (csv|jsonl) target [--gzip] [--by-category]");
+            System.exit(2);
+        }
+        try {
+            CatalogExporter.Format format = CatalogExporter.Format.valueOf(params.get(0).toUpperCase());
+            long count = new CatalogExporter(model).export(Path.of(params.get(1)), format, gzip, byCategory);
+            System.err.println(count + " products exported");
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown format: " + params.get(0));
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println("Export failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * synchronizes the catalog with another database; the process ends with
+     * status 1 if it fails
+     *
+     * @param model the model
+     * @param params the properties file of the other database
+     */
+    private static void runSyncFrom(StoreModel model, List<String> params) {
+        if (params.size() != 1) {
+            System.err.println("Usage: sync-from file");
+            System.exit(2);
+        }
+        DbConfig config = null;
+        try {
+            config = DbConfig.load(Path.of(params.get(0)));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Database settings not read: " + ex.getMessage());
+            System.exit(2);
+        }
+        //the daos select columns added by migrations, such as parent_id
+        try {
+            int pending = MigrationRunner.forDatabase(config).pending();
+            if (pending > 0) {
+                System.err.println("Source schema not migrated: " + pending + " migrations pending");
+                System.exit(1);
+            }
+        } catch (SQLException | IOException ex) {
+            System.err.println("Source schema not checked: " + ex.getMessage());
+            System.exit(1);
+        }
+        StoreModel source = StoreModel.forDatabase(config);
+        CatalogSync sync = model.syncCatalogFrom(source);
+        System.err.println(sync);
+        if (!sync.isDone()) {
+            System.exit(1);
+        }
     }
 
     /* ==== Control methods ==== */
@@ -284,7 +713,7 @@ public class CategProdUI {
             if (oldP != null) {
                 String newName = doInput("New name: ");
                 int newStock = doInputInt("New Stock: ");
-                double newPrice = doInputDouble("New Price: ");
+                long newPrice = doInputMoney("New Price: ");
                 Product newP = new Product(oldP.getId(), oldP.getCode(), newName, newStock, newPrice, oldP.getCategory());
                 result = model.modifyProduct(oldP, newP);
                 if (result == 1) {
@@ -368,6 +797,18 @@ public class CategProdUI {
         return uiReader.nextDouble();
     }
 
+    /**
+     * displays a message and reads a money amount, with up to two decimals
+     *
+     * @param message the message to display
+     * @return the amount in minor units
+     * @throws NumberFormatException if the answer is not a valid amount
+     */
+    public long doInputMoney(String message) {
+        System.out.print(message);
+        return Money.parse(uiReader.next());
+    }
+
     /**
      * displays a message to user and asks for confirmation
      *
@@ -440,7 +881,7 @@ public class CategProdUI {
             String sstock = doInput("stock: ");
             int stock = Integer.parseInt(sstock);
             String sprice = doInput("price: ");
-            double price = Double.parseDouble(sprice);
+            long price = Money.parse(sprice);
             String scatId = doInput("category id: ");
             long catId = Long.parseLong(scatId);
             Category cat = new Category(catId);
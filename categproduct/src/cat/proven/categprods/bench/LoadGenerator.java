@@ -0,0 +1,341 @@
+package cat.proven.categprods.bench;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.model.metrics.LatencyHistogram;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.persist.MemoryCategoryDao;
+import cat.proven.categprods.model.persist.MemoryDb;
+import cat.proven.categprods.model.persist.MemoryOrderDao;
+import cat.proven.categprods.model.persist.MemoryProductDao;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the StoreModel API. A number of concurrent clients run
+ * a weighted mix of operations simulating point of sale and back office
+ * traffic:
+ * <ul>
+ * <li>lookup: find a product by code</li>
+ * <li>basket: find several products by code and add up their prices</li>
+ * <li>stock: find a product and modify its stock</li>
+ * <li>listing: list the products of a category</li>
+ * <li>import: add a batch of new products</li>
+ * <li>checkout: place an order for several products, off by default</li>
+ * </ul>
+ * In the closed model each client starts an operation as soon as the
+ * previous one ends. In the open model operations are scheduled at a fixed
+ * total rate and latency is measured from the scheduled start, so that time
+ * spent waiting behind a slow operation is not hidden.
+ *
+ * After a warm-up phase whose measures are discarded, latencies are recorded
+ * per operation and written in HdrHistogram percentile format, one file per
+ * operation, in the output directory, followed by the per-operation metrics
+ * of the model layer.
+ *
+ * Usage: LoadGenerator [--clients N] [--duration s] [--warmup s]
+ * [--model closed|open] [--rate ops/s] [--mix lookup=60,basket=20,...]
+ * [--products N] [--categories N] [--out dir] [--jdbc]
+ *
+ * Without --jdbc the in-memory stand-in database is used.
+ *
+ * @author ProvenSoft
+ */
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = {"lookup", "basket", "stock", "listing", "import", "checkout"};
+    private static final int LOOKUP = 0;
+    private static final int BASKET = 1;
+    private static final int STOCK = 2;
+    private static final int LISTING = 3;
+    private static final int IMPORT = 4;
+    private static final int CHECKOUT = 5;
+
+    private static final int BASKET_SIZE = 5;
+    private static final int IMPORT_SIZE = 100;
+
+    private int numClients = 16;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private boolean openModel = false;
+    private double rate = 10_000;
+    private int[] weights = {60, 20, 10, 8, 2, 0};
+    private int numProducts = 100_000;
+    private int numCategories = 100;
+    private Path outDir = Path.of("loadgen-results");
+    private boolean jdbc = false;
+
+    private StoreModel model;
+    private final LatencyHistogram[] histograms;
+    private final AtomicLong[] errors;
+    private final AtomicLong importSequence;
+    private volatile boolean recording;
+    private volatile boolean running;
+
+    public LoadGenerator() {
+        this.histograms = new LatencyHistogram[OPERATIONS.length];
+        this.errors = new AtomicLong[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            errors[i] = new AtomicLong();
+        }
+        this.importSequence = new AtomicLong();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    numClients = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--model":
+                    openModel = "open".equals(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--mix":
+                    weights = parseMix(args[++i]);
+                    break;
+                case "--products":
+                    numProducts = Integer.parseInt(args[++i]);
+                    break;
+                case "--categories":
+                    numCategories = Integer.parseInt(args[++i]);
+                    break;
+                case "--out":
+                    outDir = Path.of(args[++i]);
+                    break;
+                case "--jdbc":
+                    jdbc = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * parses weights given as name=weight pairs; operations not given get 0
+     */
+    private static int[] parseMix(String mix) {
+        int[] w = new int[OPERATIONS.length];
+        for (String pair : mix.split(",")) {
+            String[] kv = pair.split("=");
+            int index = List.of(OPERATIONS).indexOf(kv[0].trim());
+            if (index < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("Invalid mix: " + pair);
+            }
+            w[index] = Integer.parseInt(kv[1].trim());
+        }
+        return w;
+    }
+
+    /**
+     * runs warm-up and measurement phases and writes results
+     *
+     * @throws Exception if results can not be written or a client fails
+     */
+    public void run() throws Exception {
+        if (jdbc) {
+            model = new StoreModel();
+        } else {
+            System.out.format("seeding %d products in %d categories%n", numProducts, numCategories);
+            MemoryDb db = MemoryDb.withGeneratedData(numCategories, numProducts);
+            model = new StoreModel(new MemoryCategoryDao(db), new MemoryProductDao(db), new MemoryOrderDao(db));
+        }
+        int totalWeight = 0;
+        for (int w : weights) {
+            totalWeight += w;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("Empty operation mix");
+        }
+        running = true;
+        recording = false;
+        List<Thread> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        //in the open model each client issues rate/numClients operations per second
+        long intervalNanos = openModel ? (long) (1e9 * numClients / rate) : 0;
+        for (int c = 0; c < numClients; c++) {
+            final int total = totalWeight;
+            Thread t = new Thread(() -> client(start, intervalNanos, total), "loadgen-" + c);
+            t.start();
+            clients.add(t);
+        }
+        System.out.format("warming up for %d s%n", warmupSeconds);
+        Thread.sleep(warmupSeconds * 1000L);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            histograms[i].reset();
+            errors[i].set(0);
+        }
+        Metrics.reset();
+        recording = true;
+        long measureStart = System.nanoTime();
+        System.out.format("measuring for %d s with %d %s clients%n", durationSeconds, numClients,
+                openModel ? "open" : "closed");
+        Thread.sleep(durationSeconds * 1000L);
+        recording = false;
+        long measureNanos = System.nanoTime() - measureStart;
+        running = false;
+        for (Thread t : clients) {
+            t.join();
+        }
+        report(measureNanos);
+        System.out.println();
+        Metrics.print(System.out);
+    }
+
+    /**
+     * client loop
+     */
+    private void client(long start, long intervalNanos, int totalWeight) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        //clients are staggered so that open model arrivals are spread
+        long next = start + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+        while (running) {
+            long begin;
+            if (intervalNanos > 0) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                begin = next;
+                next += intervalNanos;
+            } else {
+                begin = System.nanoTime();
+            }
+            int op = pickOperation(random.nextInt(totalWeight));
+            boolean ok = execute(op, random);
+            long latency = System.nanoTime() - begin;
+            if (recording) {
+                histograms[op].record(latency);
+                if (!ok) {
+                    errors[op].incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private int pickOperation(int r) {
+        int op = 0;
+        while (r >= weights[op]) {
+            r -= weights[op];
+            op++;
+        }
+        return op;
+    }
+
+    /**
+     * runs an operation
+     *
+     * @return false if the operation did not succeed
+     */
+    private boolean execute(int op, ThreadLocalRandom random) {
+        boolean ok = true;
+        switch (op) {
+            case LOOKUP:
+                ok = model.findProductByCode(randomCode(random)) != null;
+                break;
+            case BASKET: {
+                Map<String, Integer> basket = new HashMap<>();
+                for (int i = 0; i < BASKET_SIZE; i++) {
+                    basket.put(randomCode(random), 1 + random.nextInt(3));
+                }
+                ok = model.priceBasket(basket) >= 0;
+                break;
+            }
+            case STOCK: {
+                Product p = model.findProductByCode(randomCode(random));
+                if (p != null) {
+                    Product newP = new Product(p);
+                    newP.setStock(Math.max(0, p.getStock() + random.nextInt(-5, 6)));
+                    ok = model.modifyProduct(p, newP) == 1;
+                } else {
+                    ok = false;
+                }
+                break;
+            }
+            case LISTING:
+                ok = model.findProductsByCategory(new Category(1 + random.nextInt(numCategories))) != null;
+                break;
+            case IMPORT: {
+                List<Product> batch = new ArrayList<>(IMPORT_SIZE);
+                for (int i = 0; i < IMPORT_SIZE; i++) {
+                    long n = importSequence.incrementAndGet();
+                    batch.add(new Product(0, "L" + n, "load" + n, 10, 100, new Category(1 + random.nextInt(numCategories))));
+                }
+                for (int r : model.addProducts(batch)) {
+                    ok = ok && r == 1;
+                }
+                break;
+            }
+            case CHECKOUT: {
+                Map<String, Integer> basket = new HashMap<>();
+                for (int i = 0; i < BASKET_SIZE; i++) {
+                    basket.put(randomCode(random), 1);
+                }
+                ok = model.checkout(basket) != null;
+                break;
+            }
+            default:
+                break;
+        }
+        return ok;
+    }
+
+    private String randomCode(ThreadLocalRandom random) {
+        return "P" + (1 + random.nextInt(numProducts));
+    }
+
+    /**
+     * prints a summary and writes a histogram file per operation
+     */
+    private void report(long measureNanos) throws IOException {
+        Files.createDirectories(outDir);
+        double seconds = measureNanos / 1e9;
+        System.out.format("%-8s %10s %10s %10s %10s %10s %10s %8s%n",
+                "op", "count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        long total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram h = histograms[i];
+            total += h.getCount();
+            System.out.format(Locale.ROOT, "%-8s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d%n",
+                    OPERATIONS[i], h.getCount(), h.getCount() / seconds,
+                    h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6, errors[i].get());
+            if (h.getCount() > 0) {
+                try ( PrintStream out = new PrintStream(Files.newOutputStream(outDir.resolve(OPERATIONS[i] + ".hgrm")))) {
+                    h.outputPercentileDistribution(out, 1e6);
+                }
+            }
+        }
+        System.out.format(Locale.ROOT, "total %d ops, %.1f ops/s; histograms (ms) written to %s%n",
+                total, total / seconds, outDir);
+    }
+
+}
@@ -0,0 +1,142 @@
+package cat.proven.categprods.bench;
+
+import cat.proven.categprods.model.metrics.LatencyHistogram;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal micro-benchmark harness. Runs an operation in a loop for a warm-up
+ * period and then for a measurement period, timing every call. Reports
+ * throughput, latency percentiles and bytes allocated per operation.
+ *
+ * Each call is timed with System.nanoTime, which adds some tens of
+ * nanoseconds to each sample: very short operations should be compared
+ * between runs rather than read as absolute figures.
+ *
+ * @author ProvenSoft
+ */
+public final class MicroBench {
+
+    /**
+     * an operation to measure
+     */
+    @FunctionalInterface
+    public interface Op {
+
+        /**
+         * runs the operation once
+         *
+         * @param i iteration number
+         * @return any result, consumed so that the call is not optimized away
+         */
+        Object run(long i) throws Exception;
+    }
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    /**
+     * results are folded here so that the JIT can not discard them
+     */
+    private volatile int sink;
+
+    public MicroBench(long warmupMillis, long measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    /**
+     * measures an operation
+     *
+     * @param name the name to report
+     * @param op the operation
+     * @return the measures
+     * @throws Exception if the operation fails
+     */
+    public Result measure(String name, Op op) throws Exception {
+        long i = 0;
+        long end = System.nanoTime() + warmupMillis * 1_000_000;
+        int h = 0;
+        while (System.nanoTime() < end) {
+            h += consume(op.run(i++));
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        long start = System.nanoTime();
+        end = start + measureMillis * 1_000_000;
+        long ops = 0;
+        long now = start;
+        while (now < end) {
+            h += consume(op.run(i++));
+            long t = System.nanoTime();
+            histogram.record(t - now);
+            now = t;
+            ops++;
+        }
+        long elapsed = now - start;
+        long allocated = allocatedBytes(threads) - allocatedBefore;
+        sink += h;
+        return new Result(name, ops, elapsed, allocated, histogram);
+    }
+
+    private static int consume(Object o) {
+        return (o == null) ? 0 : System.identityHashCode(o);
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * measures of an operation
+     */
+    public static class Result {
+
+        private final String name;
+        private final long ops;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final LatencyHistogram histogram;
+
+        Result(String name, long ops, long elapsedNanos, long allocatedBytes, LatencyHistogram histogram) {
+            this.name = name;
+            this.ops = ops;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.histogram = histogram;
+        }
+
+        public double getOpsPerSecond() {
+            return ops * 1e9 / Math.max(elapsedNanos, 1);
+        }
+
+        public double getBytesPerOp() {
+            return (double) allocatedBytes / Math.max(ops, 1);
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * @return header line matching toString columns
+         */
+        public static String header() {
+            return String.format("%-34s %14s %9s %9s %9s %9s %11s %11s",
+                    "benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns", "B/op");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-34s %14.1f %9d %9d %9d %9d %11d %11.1f",
+                    name, getOpsPerSecond(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+                    histogram.getMax(), getBytesPerOp());
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package cat.proven.categprods.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the JDBC driver, so that the JDBC data access
+ * code, from getting a connection to mapping rows, runs without a database
+ * server. Connections to the host standin answer each query with a result
+ * set (see StandInResultSet) chosen by its SQL; parameters are ignored, and
+ * other calls of the code under test do nothing. As with StandInResultSet,
+ * the proxies add their own small cost to each call.
+ *
+ * @author ProvenSoft
+ */
+public final class StandInDriver implements Driver {
+
+    /**
+     * host to configure as the primary for connections to get here
+     */
+    public static final String HOST = "standin";
+    private static final String PREFIX = "jdbc:mysql://" + HOST + "/";
+
+    private final Function<String, ResultSet> results;
+
+    private StandInDriver(Function<String, ResultSet> results) {
+        this.results = results;
+    }
+
+    /**
+     * registers a stand-in driver
+     *
+     * @param results gives the result set of each query, from its SQL
+     * @throws SQLException if it can not be registered
+     */
+    public static void register(Function<String, ResultSet> results) throws SQLException {
+        DriverManager.registerDriver(new StandInDriver(results));
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new Handler(null));
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * handles a connection (sql null) or a statement
+     */
+    private final class Handler implements InvocationHandler {
+
+        /**
+         * sql of a prepared statement, or null
+         */
+        private final String sql;
+
+        Handler(String sql) {
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "createStatement":
+                    return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                            new Class<?>[]{Statement.class}, new Handler(null));
+                case "prepareStatement":
+                    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                            new Class<?>[]{PreparedStatement.class}, new Handler((String) args[0]));
+                case "executeQuery":
+                    return results.apply((args != null && args.length > 0) ? (String) args[0] : sql);
+                case "isClosed":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StandIn" + ((sql != null) ? "[" + sql + "]" : "");
+                default:
+                    if (method.getReturnType() == void.class) {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+
+}
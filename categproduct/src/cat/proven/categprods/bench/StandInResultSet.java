@@ -0,0 +1,81 @@
+package cat.proven.categprods.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process stand-in for a JDBC result set over rows held in arrays. Only
+ * the methods used by the DAO mapping code are supported: next, and getters
+ * by column label or index. The proxy adds its own small cost to each call,
+ * so results are meant to be compared between runs, not read as absolute
+ * driver costs.
+ *
+ * @author ProvenSoft
+ */
+public final class StandInResultSet implements InvocationHandler {
+
+    private final Map<String, Integer> columns;
+    private final Object[][] rows;
+    private int current;
+    /**
+     * when true, next() cycles over the rows forever
+     */
+    private final boolean cyclic;
+
+    private StandInResultSet(String[] labels, Object[][] rows, boolean cyclic) {
+        this.columns = new HashMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            columns.put(labels[i], i);
+        }
+        this.rows = rows;
+        this.current = -1;
+        this.cyclic = cyclic;
+    }
+
+    /**
+     * creates a result set
+     *
+     * @param labels column labels
+     * @param rows row values, in the order of labels
+     * @param cyclic true to restart from the first row after the last one
+     * @return the result set
+     */
+    public static ResultSet of(String[] labels, Object[][] rows, boolean cyclic) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, new StandInResultSet(labels, rows, cyclic));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("next".equals(name)) {
+            current++;
+            if (cyclic && current == rows.length) {
+                current = 0;
+            }
+            return current < rows.length;
+        }
+        if ("close".equals(name)) {
+            return null;
+        }
+        if (name.startsWith("get") && args != null && args.length == 1) {
+            int column = (args[0] instanceof String) ? columns.get((String) args[0]) : (Integer) args[0] - 1;
+            Object value = rows[current][column];
+            Class<?> type = method.getReturnType();
+            if (type == long.class) {
+                return ((Number) value).longValue();
+            } else if (type == int.class) {
+                return ((Number) value).intValue();
+            } else if (type == double.class) {
+                return ((Number) value).doubleValue();
+            }
+            return value;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+}
@@ -0,0 +1,173 @@
+package cat.proven.categprods.bench;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.model.persist.DbConfig;
+import cat.proven.categprods.model.persist.DbConnect;
+import cat.proven.categprods.model.persist.MemoryCategoryDao;
+import cat.proven.categprods.model.persist.MemoryDb;
+import cat.proven.categprods.model.persist.MemoryProductDao;
+import cat.proven.categprods.model.persist.ProductDao;
+import cat.proven.categprods.model.persist.ProductMapper;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the hot paths of the DAO and model layers, run against the
+ * in-memory stand-in database seeded with a configurable number of rows.
+ * Benchmarks named after ProductDao run the JDBC dao, from getting a
+ * connection to mapping rows, over a stand-in driver (see StandInDriver)
+ * serving those rows; those named after MemoryProductDao run the in-memory
+ * dao.
+ *
+ * Usage: StoreBench [--products N] [--categories N] [--warmup ms]
+ * [--time ms] [filter]
+ *
+ * Only benchmarks whose name contains filter are run. Typical sizes are
+ * 10000 and 1000000 products.
+ *
+ * @author ProvenSoft
+ */
+public class StoreBench {
+
+    private static final String[] LABELS = {"id", "code", "name", "stock", "price", "category_id", "version"};
+
+    private final int numProducts;
+    private final int numCategories;
+    private final MicroBench bench;
+
+    public StoreBench(int numProducts, int numCategories, long warmupMillis, long measureMillis) {
+        this.numProducts = numProducts;
+        this.numCategories = numCategories;
+        this.bench = new MicroBench(warmupMillis, measureMillis);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int products = 10_000;
+        int categories = 100;
+        long warmup = 1000;
+        long time = 2000;
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--products":
+                    products = Integer.parseInt(args[++i]);
+                    break;
+                case "--categories":
+                    categories = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Long.parseLong(args[++i]);
+                    break;
+                case "--time":
+                    time = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    filter = args[i];
+                    break;
+            }
+        }
+        new StoreBench(products, categories, warmup, time).run(filter);
+    }
+
+    /**
+     * runs benchmarks and prints a line of results for each one
+     *
+     * @param filter only benchmarks whose name contains it are run
+     * @throws Throwable if a benchmark fails
+     */
+    public void run(String filter) throws Throwable {
+        System.out.format("seeding %d products in %d categories%n", numProducts, numCategories);
+        MemoryDb db = MemoryDb.withGeneratedData(numCategories, numProducts);
+        MemoryProductDao productDao = new MemoryProductDao(db);
+        StoreModel model = new StoreModel(new MemoryCategoryDao(db), productDao);
+        List<MicroBench.Result> results = new ArrayList<>();
+
+        //entities
+        Product p1 = new Product(1, "P1", "product1", 10, 150, new Category(1));
+        Product p2 = new Product(p1);
+        Category c1 = new Category(1, "C1", "category1");
+        Category c2 = new Category(c1);
+        run(results, filter, "Product.toString", i -> p1.toString());
+        run(results, filter, "Product.equals", i -> p1.equals(p2));
+        run(results, filter, "Product.hashCode", i -> p1.hashCode());
+        run(results, filter, "Category.toString", i -> c1.toString());
+        run(results, filter, "Category.equals", i -> c1.equals(c2));
+        run(results, filter, "Category.hashCode", i -> c1.hashCode());
+
+        //mapping of jdbc rows
+        ResultSet rs = StandInResultSet.of(
+                LABELS,
+                new Object[][]{{1L, "P1", "product1", 10, new BigDecimal("1.50"), 1L, 0L},
+                {2L, "P2", "product2", 20, new BigDecimal("2.50"), 2L, 3L}},
+                true);
+        ProductMapper mapper = ProductMapper.all();
+        Product holder = new Product();
+        run(results, filter, "ProductMapper.map", i -> {
+            rs.next();
+            return mapper.map(rs, null);
+        });
+        run(results, filter, "ProductMapper.map(holder)", i -> {
+            rs.next();
+            return mapper.map(rs, holder);
+        });
+
+        //data access over jdbc, with the rows of the in-memory database
+        Object[][] rows = rows(productDao.selectAll());
+        Object[][] firstRow = {rows[0]};
+        StandInDriver.register(sql -> StandInResultSet.of(LABELS, sql.contains("where") ? firstRow : rows, false));
+        System.setProperty("categprods.db.primary", StandInDriver.HOST);
+        DbConnect.configure(DbConfig.fromSystemProperties());
+        ProductDao jdbcDao = new ProductDao();
+        run(results, filter, "ProductDao.selectWhereCode", i -> jdbcDao.selectWhereCode("P" + pick(i)));
+        run(results, filter, "ProductDao.selectAll", i -> jdbcDao.selectAll());
+
+        //data access and model
+        run(results, filter, "MemoryProductDao.selectWhereCode", i -> productDao.selectWhereCode("P" + pick(i)));
+        run(results, filter, "MemoryProductDao.selectAll", i -> productDao.selectAll());
+        run(results, filter, "StoreModel.findProductWithCategory",
+                i -> model.findProductWithCategory(new Product(pick(i))));
+        run(results, filter, "StoreModel.addProduct",
+                i -> model.addProduct(new Product(0, "B" + i, "bench", 1, 100, new Category(1 + i % numCategories))));
+
+        System.out.println(MicroBench.Result.header());
+        for (MicroBench.Result r : results) {
+            System.out.println(r);
+        }
+    }
+
+    private void run(List<MicroBench.Result> results, String filter, String name, MicroBench.Op op) throws Exception {
+        if (name.contains(filter)) {
+            MicroBench.Result r = bench.measure(name, op);
+            System.out.println(r);
+            results.add(r);
+        }
+    }
+
+    /**
+     * converts products to rows of the products table, in the order of
+     * LABELS
+     */
+    private static Object[][] rows(List<Product> products) {
+        Object[][] rows = new Object[products.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            Product p = products.get(i);
+            rows[i] = new Object[]{p.getId(), p.getCode(), p.getName(), p.getStock(),
+                Money.toBigDecimal(p.getPrice()), p.getCategory().getId(), p.getVersion()};
+        }
+        return rows;
+    }
+
+    /**
+     * spreads iterations over existing product numbers without calling a
+     * random generator
+     */
+    private int pick(long i) {
+        return 1 + (int) ((i * 2_654_435_761L) % numProducts);
+    }
+
+}
@@ -0,0 +1,161 @@
+package cat.proven.categprods.io;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.server.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the product catalog, joined with category codes and names, as CSV
+ * or as JSON lines. Rows are streamed from the database straight into a
+ * buffered file stream, so memory use stays the same whatever the size of
+ * the catalog.
+ *
+ * Output may be compressed with gzip and may be split into one file per
+ * category, named products-ID-CODE.csv (or .jsonl), in a target directory.
+ *
+ * @author ProvenSoft
+ */
+public class CatalogExporter {
+
+    public enum Format {
+        CSV("csv"), JSONL("jsonl");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StoreModel model;
+
+    public CatalogExporter(StoreModel model) {
+        this.model = model;
+    }
+
+    /**
+     * exports all products
+     *
+     * @param target file to write or, when partitioning, directory where
+     * files are written
+     * @param format output format
+     * @param gzip true to compress output
+     * @param byCategory true to write a file per category
+     * @return number of products exported
+     * @throws IOException on write error or if products could not be read
+     */
+    public long export(Path target, Format format, boolean gzip, boolean byCategory) throws IOException {
+        if (byCategory) {
+            Files.createDirectories(target);
+        }
+        RowWriter writer = new RowWriter(target, format, gzip, byCategory);
+        long count;
+        try ( writer) {
+            if (!byCategory) {
+                writer.open(target);
+            }
+            count = model.exportProducts(byCategory, p -> {
+                try {
+                    writer.write(p);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        if (count < 0) {
+            throw new IOException("Products could not be read");
+        }
+        return count;
+    }
+
+    /**
+     * writes rows to the current file, switching files when the category
+     * changes if partitioning
+     */
+    private static class RowWriter implements Closeable {
+
+        private final Path target;
+        private final Format format;
+        private final boolean gzip;
+        private final boolean byCategory;
+
+        private OutputStream out;
+        private CsvWriter csv;
+        private final JsonWriter json;
+        private long currentCategory;
+
+        RowWriter(Path target, Format format, boolean gzip, boolean byCategory) {
+            this.target = target;
+            this.format = format;
+            this.gzip = gzip;
+            this.byCategory = byCategory;
+            this.json = new JsonWriter();
+            this.currentCategory = -1;
+        }
+
+        void write(Product p) throws IOException {
+            Category c = p.getCategory();
+            if (byCategory && c.getId() != currentCategory) {
+                close();
+                currentCategory = c.getId();
+                //codes differing only in characters not allowed in file names are told apart by the id
+                String name = Long.toString(c.getId());
+                if (c.getCode() != null) {
+                    name += "-" + c.getCode().replaceAll("[^A-Za-z0-9_-]", "_");
+                }
+                open(target.resolve("products-" + name + "." + format.extension + (gzip ? ".gz" : "")));
+            }
+            if (format == Format.CSV) {
+                csv.field(p.getId()).field(p.getCode()).field(p.getName())
+                        .field(p.getStock()).field(Money.toString(p.getPrice()))
+                        .field(c.getId()).field(c.getCode()).field(c.getName());
+                csv.endRecord();
+            } else {
+                json.product(p).endLine().flushIfOver(BUFFER_SIZE);
+            }
+        }
+
+        void open(Path file) throws IOException {
+            OutputStream os = Files.newOutputStream(file);
+            out = gzip ? new GZIPOutputStream(os, BUFFER_SIZE) : new BufferedOutputStream(os, BUFFER_SIZE);
+            if (format == Format.CSV) {
+                csv = new CsvWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+                csv.field("id").field("code").field("name").field("stock").field("price")
+                        .field("category_id").field("category_code").field("category_name");
+                csv.endRecord();
+            } else {
+                json.reset(out);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (csv != null) {
+                csv.close();
+                csv = null;
+            } else if (out != null) {
+                json.flush();
+                out.close();
+            }
+            out = null;
+        }
+    }
+
+}
@@ -0,0 +1,617 @@
+package cat.proven.categprods.io;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.StoreModel;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Imports categories or products from CSV files. Work is split in three
+ * stages running in parallel and connected by bounded queues, so that a slow
+ * stage throttles the others instead of filling memory:
+ * <ol>
+ * <li>parse: records are read from the file and grouped in chunks</li>
+ * <li>validate: fields are checked and converted; code uniqueness is checked
+ * with one query per chunk and category existence against the categories
+ * loaded at start</li>
+ * <li>write: valid rows of each chunk are inserted in a single batched
+ * transaction</li>
+ * </ol>
+ * Rejected rows are written to a reject file with their line number and the
+ * reason. After each chunk is written a checkpoint file records where the
+ * next chunk starts, so that an interrupted import can be resumed.
+ *
+ * Files must have a header line. Product files need columns code, name,
+ * stock, price and category (id or code of the category); category files
+ * need columns code and name.
+ *
+ * @author ProvenSoft
+ */
+public class CatalogImporter {
+
+    public enum Kind {
+        CATEGORIES, PRODUCTS
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 100_000;
+
+    /**
+     * column sizes in storedb
+     */
+    private static final int CODE_LENGTH = 10;
+    private static final int NAME_LENGTH = 20;
+
+    private final StoreModel model;
+    private int batchSize;
+    private int queueCapacity;
+    private long progressInterval;
+
+    public CatalogImporter(StoreModel model) {
+        this.model = model;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        this.progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param progressInterval number of rows between progress reports
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * gets the checkpoint file used for a given input file
+     *
+     * @param csv the input file
+     * @return the checkpoint file
+     */
+    public static Path checkpointFile(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * imports a file
+     *
+     * @param kind the kind of rows in the file
+     * @param csv the file to import
+     * @param rejectFile the file where rejected rows are written
+     * @param resume true to continue from the last checkpoint, if any
+     * @return import counters
+     * @throws IOException on read or write error, or if the import is
+     * interrupted
+     */
+    public Result importFile(Kind kind, Path csv, Path rejectFile, boolean resume) throws IOException {
+        Path checkpoint = checkpointFile(csv);
+        Result result = new Result();
+        if (resume && Files.exists(checkpoint)) {
+            result.load(checkpoint);
+        } else {
+            Files.deleteIfExists(checkpoint);
+        }
+        long start = System.nanoTime();
+        BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Chunk> validated = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService stages = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "import-" + csv.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+        try ( BufferedWriter rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                (result.offset > 0) ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            Map<String, Integer> columns = new HashMap<>();
+            Future<?> parser = stages.submit(() -> {
+                parse(csv, result.offset, result.lineNumber, columns, parsed);
+                return null;
+            });
+            Future<?> validator = stages.submit(() -> {
+                validate(kind, columns, parsed, validated);
+                return null;
+            });
+            write(kind, validated, rejects, checkpoint, result, start);
+            //propagate failures of the other stages; if validation failed,
+            //shutting down the stages releases a parser blocked on its queue
+            validator.get();
+            parser.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } finally {
+            stages.shutdownNow();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        Files.deleteIfExists(checkpoint);
+        return result;
+    }
+
+    /* ==== Stages ==== */
+
+    /**
+     * parse stage: reads records and sends them in chunks
+     */
+    private void parse(Path csv, long offset, long lineNumber, Map<String, Integer> columns,
+            BlockingQueue<Chunk> out) throws IOException, InterruptedException {
+        try ( CsvReader reader = new CsvReader(csv, ',')) {
+            String[] header = reader.next();
+            if (header == null) {
+                throw new IOException("Missing header in " + csv);
+            }
+            //the queue publishes the columns to the validate stage
+            for (int i = 0; i < header.length; i++) {
+                columns.put(header[i].trim().toLowerCase(Locale.ROOT), i);
+            }
+            if (offset > reader.getOffset()) {
+                reader.seek(offset, lineNumber);
+            }
+            Chunk chunk = new Chunk(batchSize);
+            String[] record;
+            while ((record = reader.next()) != null) {
+                chunk.add(record, reader.getRecordLine());
+                if (chunk.size() == batchSize) {
+                    chunk.end(reader);
+                    out.put(chunk);
+                    chunk = new Chunk(batchSize);
+                }
+            }
+            chunk.end(reader);
+            out.put(chunk);
+        } finally {
+            out.put(Chunk.END);
+        }
+    }
+
+    /**
+     * validate stage: converts records and rejects invalid ones
+     */
+    private void validate(Kind kind, Map<String, Integer> columns, BlockingQueue<Chunk> in,
+            BlockingQueue<Chunk> out) throws IOException, InterruptedException {
+        try {
+            Chunk chunk = in.take();
+            if (chunk == Chunk.END) {
+                return;
+            }
+            RowValidator validator = (kind == Kind.PRODUCTS)
+                    ? new ProductValidator(columns, loadCategories())
+                    : new CategoryValidator(columns);
+            while (chunk != Chunk.END) {
+                validator.validate(chunk);
+                out.put(chunk);
+                chunk = in.take();
+            }
+        } finally {
+            out.put(Chunk.END);
+        }
+    }
+
+    /**
+     * write stage: inserts valid rows, writes rejects and saves checkpoint
+     */
+    @SuppressWarnings("unchecked")
+    private void write(Kind kind, BlockingQueue<Chunk> in, BufferedWriter rejects, Path checkpoint,
+            Result result, long start) throws IOException, InterruptedException {
+        long nextReport = result.read + progressInterval;
+        Chunk chunk = in.take();
+        while (chunk != Chunk.END) {
+            if (!chunk.valid.isEmpty()) {
+                int[] inserted = (kind == Kind.PRODUCTS)
+                        ? model.importProducts((List<Product>) (List<?>) chunk.valid)
+                        : model.importCategories((List<Category>) (List<?>) chunk.valid);
+                for (int i = 0; i < inserted.length; i++) {
+                    if (inserted[i] == 1) {
+                        result.imported++;
+                    } else {
+                        chunk.reject(chunk.validRecords.get(i), chunk.validLines.get(i), "insert failed");
+                    }
+                }
+            }
+            for (String reject : chunk.rejects) {
+                rejects.write(reject);
+                rejects.newLine();
+            }
+            rejects.flush();
+            result.read += chunk.size();
+            result.rejected += chunk.rejects.size();
+            result.offset = chunk.endOffset;
+            result.lineNumber = chunk.endLine;
+            result.save(checkpoint);
+            if (result.read >= nextReport) {
+                nextReport += progressInterval;
+                Logger.getLogger(this.getClass().getName()).info(
+                        result.progress(System.nanoTime() - start));
+            }
+            chunk = in.take();
+        }
+    }
+
+    private Map<String, Long> loadCategories() throws IOException {
+        List<Category> categories = model.findAllCategories();
+        if (categories == null) {
+            throw new IOException("Categories could not be loaded");
+        }
+        Map<String, Long> ids = new HashMap<>();
+        for (Category c : categories) {
+            ids.put(c.getCode(), c.getId());
+            ids.put(Long.toString(c.getId()), c.getId());
+        }
+        return ids;
+    }
+
+    /* ==== Validation ==== */
+
+    /**
+     * converts the records of a chunk and splits them into valid and rejected
+     */
+    private abstract class RowValidator {
+
+        /**
+         * codes found so far in the file
+         */
+        private final Set<String> seen = new HashSet<>();
+        private final int codeColumn;
+
+        RowValidator(Map<String, Integer> columns) throws IOException {
+            this.codeColumn = column(columns, "code");
+        }
+
+        /**
+         * converts a record
+         *
+         * @return the object or null if the record is not valid
+         */
+        abstract Object convert(String[] record, Chunk chunk, long line);
+
+        abstract Set<String> existingCodes(Set<String> codes);
+
+        void validate(Chunk chunk) throws IOException {
+            List<Object> candidates = new ArrayList<>(chunk.size());
+            Set<String> codes = new HashSet<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                String[] record = chunk.records.get(i);
+                long line = chunk.lines[i];
+                Object row = convert(record, chunk, line);
+                if (row != null) {
+                    String code = record[codeColumn];
+                    if (!seen.add(code)) {
+                        chunk.reject(record, line, "duplicate code in file");
+                        row = null;
+                    } else {
+                        codes.add(code);
+                    }
+                }
+                candidates.add(row);
+            }
+            //one query for the whole chunk
+            Set<String> existing = codes.isEmpty() ? codes : existingCodes(codes);
+            if (existing == null) {
+                throw new IOException("Existing codes could not be checked");
+            }
+            for (int i = 0; i < candidates.size(); i++) {
+                Object row = candidates.get(i);
+                if (row != null) {
+                    String[] record = chunk.records.get(i);
+                    if (existing.contains(record[codeColumn])) {
+                        chunk.reject(record, chunk.lines[i], "code already exists");
+                    } else {
+                        chunk.valid.add(row);
+                        chunk.validRecords.add(record);
+                        chunk.validLines.add(chunk.lines[i]);
+                    }
+                }
+            }
+        }
+
+        String code(String[] record, Chunk chunk, long line) {
+            String code = field(record, codeColumn);
+            if (code == null || code.isEmpty()) {
+                chunk.reject(record, line, "missing code");
+                code = null;
+            } else if (code.length() > CODE_LENGTH) {
+                chunk.reject(record, line, "code too long");
+                code = null;
+            }
+            return code;
+        }
+
+        String name(String[] record, int column, Chunk chunk, long line) {
+            String name = field(record, column);
+            if (name == null || name.isEmpty()) {
+                chunk.reject(record, line, "missing name");
+                name = null;
+            } else if (name.length() > NAME_LENGTH) {
+                chunk.reject(record, line, "name too long");
+                name = null;
+            }
+            return name;
+        }
+    }
+
+    private class CategoryValidator extends RowValidator {
+
+        private final int nameColumn;
+
+        CategoryValidator(Map<String, Integer> columns) throws IOException {
+            super(columns);
+            this.nameColumn = column(columns, "name");
+        }
+
+        @Override
+        Object convert(String[] record, Chunk chunk, long line) {
+            Category c = null;
+            String code = code(record, chunk, line);
+            if (code != null) {
+                String name = name(record, nameColumn, chunk, line);
+                if (name != null) {
+                    c = new Category(0, code, name);
+                }
+            }
+            return c;
+        }
+
+        @Override
+        Set<String> existingCodes(Set<String> codes) {
+            return model.findExistingCategoryCodes(codes);
+        }
+    }
+
+    private class ProductValidator extends RowValidator {
+
+        private final int nameColumn;
+        private final int stockColumn;
+        private final int priceColumn;
+        private final int categoryColumn;
+        /**
+         * category ids by code and by id as text
+         */
+        private final Map<String, Long> categories;
+
+        ProductValidator(Map<String, Integer> columns, Map<String, Long> categories) throws IOException {
+            super(columns);
+            this.nameColumn = column(columns, "name");
+            this.stockColumn = column(columns, "stock");
+            this.priceColumn = column(columns, "price");
+            this.categoryColumn = column(columns, "category");
+            this.categories = categories;
+        }
+
+        @Override
+        Object convert(String[] record, Chunk chunk, long line) {
+            String code = code(record, chunk, line);
+            if (code == null) {
+                return null;
+            }
+            String name = name(record, nameColumn, chunk, line);
+            if (name == null) {
+                return null;
+            }
+            int stock;
+            long price;
+            try {
+                stock = Integer.parseInt(field(record, stockColumn).trim());
+            } catch (NumberFormatException | NullPointerException ex) {
+                chunk.reject(record, line, "invalid stock");
+                return null;
+            }
+            try {
+                price = Money.parse(field(record, priceColumn));
+            } catch (NumberFormatException | NullPointerException ex) {
+                chunk.reject(record, line, "invalid price");
+                return null;
+            }
+            String category = field(record, categoryColumn);
+            Long categoryId = (category != null) ? categories.get(category.trim()) : null;
+            if (categoryId == null) {
+                chunk.reject(record, line, "unknown category");
+                return null;
+            }
+            return new Product(0, code, name, stock, price, new Category(categoryId));
+        }
+
+        @Override
+        Set<String> existingCodes(Set<String> codes) {
+            return model.findExistingProductCodes(codes);
+        }
+    }
+
+    /**
+     * finds the index of a column given its name in the header
+     */
+    private static int column(Map<String, Integer> columns, String name) throws IOException {
+        Integer index = columns.get(name);
+        if (index == null && "category".equals(name)) {
+            index = columns.containsKey("category_id") ? columns.get("category_id") : columns.get("category_code");
+        }
+        if (index == null) {
+            throw new IOException("Missing column: " + name);
+        }
+        return index;
+    }
+
+    private static String field(String[] record, int column) {
+        return (column < record.length) ? record[column] : null;
+    }
+
+    /* ==== Pipeline data ==== */
+
+    /**
+     * a group of consecutive records travelling through the stages
+     */
+    private static class Chunk {
+
+        static final Chunk END = new Chunk(0);
+
+        final List<String[]> records;
+        final long[] lines;
+        long endOffset;
+        long endLine;
+        final List<Object> valid;
+        final List<String[]> validRecords;
+        final List<Long> validLines;
+        final List<String> rejects;
+
+        Chunk(int capacity) {
+            this.records = new ArrayList<>(capacity);
+            this.lines = new long[capacity];
+            this.valid = new ArrayList<>(capacity);
+            this.validRecords = new ArrayList<>(capacity);
+            this.validLines = new ArrayList<>(capacity);
+            this.rejects = new ArrayList<>();
+        }
+
+        int size() {
+            return records.size();
+        }
+
+        void add(String[] record, long line) {
+            lines[records.size()] = line;
+            records.add(record);
+        }
+
+        /**
+         * records where the next chunk starts
+         */
+        void end(CsvReader reader) {
+            this.endOffset = reader.getOffset();
+            this.endLine = reader.getLineNumber();
+        }
+
+        /**
+         * adds a reject line: line number, reason and original fields
+         */
+        void reject(String[] record, long line, String reason) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(line).append(',');
+            CsvWriter.appendField(sb, reason);
+            for (String field : record) {
+                sb.append(',');
+                CsvWriter.appendField(sb, field);
+            }
+            rejects.add(sb.toString());
+        }
+    }
+
+    /**
+     * counters of an import, also saved as checkpoint
+     */
+    public static class Result {
+
+        private long read;
+        private long imported;
+        private long rejected;
+        private long offset;
+        private long lineNumber;
+        private long elapsedNanos;
+
+        /**
+         * @return number of rows read
+         */
+        public long getRead() {
+            return read;
+        }
+
+        /**
+         * @return number of rows inserted
+         */
+        public long getImported() {
+            return imported;
+        }
+
+        /**
+         * @return number of rows written to reject file
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return time spent, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        String progress(long nanos) {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("%d rows read, %d imported, %d rejected (%.0f rows/s)",
+                    read, imported, rejected, read / seconds);
+        }
+
+        void load(Path checkpoint) throws IOException {
+            Properties props = new Properties();
+            try ( InputStream in = Files.newInputStream(checkpoint)) {
+                props.load(in);
+            }
+            try {
+                read = Long.parseLong(props.getProperty("read", "0"));
+                imported = Long.parseLong(props.getProperty("imported", "0"));
+                rejected = Long.parseLong(props.getProperty("rejected", "0"));
+                offset = Long.parseLong(props.getProperty("offset", "0"));
+                lineNumber = Long.parseLong(props.getProperty("line", "0"));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid checkpoint " + checkpoint, ex);
+            }
+        }
+
+        /**
+         * saves counters to a temporary file which then replaces the
+         * checkpoint, so that a crash never leaves a partial checkpoint
+         */
+        void save(Path checkpoint) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("read", Long.toString(read));
+            props.setProperty("imported", Long.toString(imported));
+            props.setProperty("rejected", Long.toString(rejected));
+            props.setProperty("offset", Long.toString(offset));
+            props.setProperty("line", Long.toString(lineNumber));
+            Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            try ( OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, null);
+            }
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows read, %d imported, %d rejected in %d ms",
+                    read, imported, rejected, getElapsedMillis());
+        }
+    }
+
+}
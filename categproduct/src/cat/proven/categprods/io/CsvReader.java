@@ -0,0 +1,196 @@
+package cat.proven.categprods.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of UTF-8 CSV files. Reads the file through a channel into
+ * a fixed buffer and splits records and fields on the raw bytes, decoding
+ * each field once. Quoted fields may contain separators, doubled quotes and
+ * line breaks.
+ *
+ * The reader keeps track of the byte offset and line number where the next
+ * record starts, so that reading can be resumed from any record boundary.
+ *
+ * @author ProvenSoft
+ */
+public class CsvReader implements Closeable {
+
+    private static final int EOF = -1;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final char separator;
+
+    private byte[] field;
+    private int fieldLength;
+    private String[] fields;
+    private int numFields;
+
+    /**
+     * offset of the next byte to be consumed
+     */
+    private long offset;
+    /**
+     * number of lines consumed so far
+     */
+    private long lineNumber;
+    /**
+     * line where the last record returned started
+     */
+    private long recordLine;
+
+    /**
+     * opens a file for reading
+     *
+     * @param path the file to read
+     * @param separator field separator
+     * @throws IOException if the file can not be opened
+     */
+    public CsvReader(Path path, char separator) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocate(64 * 1024);
+        this.buffer.flip();  //starts empty
+        this.separator = separator;
+        this.field = new byte[256];
+        this.fields = new String[16];
+    }
+
+    /**
+     * moves to the given position, which must be a record boundary
+     *
+     * @param offset byte offset of the record
+     * @param lineNumber number of lines before that record
+     * @throws IOException on read error
+     */
+    public void seek(long offset, long lineNumber) throws IOException {
+        channel.position(offset);
+        buffer.clear().flip();
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * @return byte offset where the next record starts
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of lines consumed so far
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return line number (1-based) where the last record read started
+     */
+    public long getRecordLine() {
+        return recordLine;
+    }
+
+    /**
+     * reads the next record
+     *
+     * @return the fields of the record, or null at end of file
+     * @throws IOException on read error
+     */
+    public String[] next() throws IOException {
+        int b = read();
+        //skip empty lines
+        while (b == '\r' || b == '\n') {
+            if (b == '\n') {
+                lineNumber++;
+            }
+            b = read();
+        }
+        if (b == EOF) {
+            return null;
+        }
+        recordLine = lineNumber + 1;
+        numFields = 0;
+        boolean endOfRecord = false;
+        while (!endOfRecord) {
+            fieldLength = 0;
+            if (b == '"') {
+                //quoted field: ends at a quote not followed by another quote
+                b = read();
+                while (b != EOF) {
+                    if (b == '"') {
+                        b = read();
+                        if (b != '"') {
+                            break;
+                        }
+                    } else if (b == '\n') {
+                        lineNumber++;
+                    }
+                    append(b);
+                    b = read();
+                }
+                //ignore anything between closing quote and separator
+                while (b != EOF && b != separator && b != '\n') {
+                    b = read();
+                }
+            } else {
+                while (b != EOF && b != separator && b != '\n') {
+                    append(b);
+                    b = read();
+                }
+                if (fieldLength > 0 && field[fieldLength - 1] == '\r') {
+                    fieldLength--;
+                }
+            }
+            addField();
+            if (b == separator) {
+                b = read();
+            } else {
+                endOfRecord = true;
+                if (b == '\n') {
+                    lineNumber++;
+                }
+            }
+        }
+        return Arrays.copyOf(fields, numFields);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int read() throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n <= 0) {
+                return EOF;
+            }
+        }
+        offset++;
+        return buffer.get() & 0xff;
+    }
+
+    private void append(int b) {
+        if (fieldLength == field.length) {
+            field = Arrays.copyOf(field, field.length * 2);
+        }
+        field[fieldLength++] = (byte) b;
+    }
+
+    private void addField() {
+        if (numFields == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[numFields++] = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+    }
+
+}
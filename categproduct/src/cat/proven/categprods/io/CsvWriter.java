@@ -0,0 +1,118 @@
+package cat.proven.categprods.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes CSV records to a character stream, one field at a time, so that no
+ * line has to be built in memory.
+ *
+ * @author ProvenSoft
+ */
+public class CsvWriter implements Closeable {
+
+    private final Writer out;
+    private boolean firstField;
+
+    public CsvWriter(Writer out) {
+        this.out = out;
+        this.firstField = true;
+    }
+
+    public CsvWriter field(String value) throws IOException {
+        separate();
+        if (value != null) {
+            if (needsQuotes(value)) {
+                out.write('"');
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"') {
+                        out.write('"');
+                    }
+                    out.write(c);
+                }
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+        return this;
+    }
+
+    public CsvWriter field(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public CsvWriter field(double value) throws IOException {
+        separate();
+        out.write(Double.toString(value));
+        return this;
+    }
+
+    /**
+     * ends current record
+     *
+     * @throws IOException on write error
+     */
+    public void endRecord() throws IOException {
+        out.write('\n');
+        firstField = true;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void separate() throws IOException {
+        if (firstField) {
+            firstField = false;
+        } else {
+            out.write(',');
+        }
+    }
+
+    /**
+     * appends a field, quoting it if it contains separators, quotes or line
+     * breaks
+     *
+     * @param sb the builder to append to
+     * @param field the field to append, null is written as empty
+     */
+    public static void appendField(StringBuilder sb, String field) {
+        if (field == null) {
+            return;
+        }
+        if (needsQuotes(field)) {
+            sb.append('"');
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        } else {
+            sb.append(field);
+        }
+    }
+
+    static boolean needsQuotes(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,314 @@
+package cat.proven.categprods.model;
+
+import cat.proven.categprods.model.persist.CategoryDao;
+import cat.proven.categprods.model.persist.ProductDao;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Brings a replica of the catalog (target) up to date with another one
+ * (source), reading from both only what differs.
+ *
+ * Categories, being few, are compared in full, and written parents first.
+ * Products are compared through their digests (see ProductDigest), as a
+ * tree: the digests of all categories first; then, for each category that
+ * differs, the digests of 8 ranges of 2^24 buckets, then of 16 subranges of
+ * each range that differs, and so on down to single buckets. Once both sides
+ * of a range hold few rows, or a side holds none, the rows of the range are
+ * read and compared by hash; rows missing or different in the target are
+ * copied with their ids and versions, and rows missing in the source are
+ * removed. Changes are written a category at a time.
+ *
+ * Product ids are taken to be below 2^31, as the id column is an INT.
+ *
+ * @author ProvenSoft
+ */
+public class CatalogSync {
+
+    /**
+     * bits of bucket number that a level of the tree takes: each range is
+     * split in 16 subranges
+     */
+    private static final int FANOUT_BITS = 4;
+    private static final long MAX_BUCKET = 1L << (31 - ProductDigest.BUCKET_BITS);
+    private static final int TOP_SHIFT = 24;
+    /**
+     * ranges holding at most this many rows on both sides are compared row
+     * by row instead of split further
+     */
+    private static final int MAX_ROWS_COMPARED = 32;
+
+    private final CategoryDao sourceCategories;
+    private final ProductDao sourceProducts;
+    private final CategoryDao targetCategories;
+    private final ProductDao targetProducts;
+
+    private boolean failed;
+    private boolean done;
+    private int categoriesWritten;
+    private int categoriesRemoved;
+    private int categoriesDiffering;
+    private long digestsRead;
+    private long rowsRead;
+    private long rowsWritten;
+    private long rowsRemoved;
+    /**
+     * codes of the target products changed, for caches to drop them
+     */
+    private final Set<String> changedCodes;
+
+    /**
+     * @param sourceCategories dao of the categories of the source
+     * @param sourceProducts dao of the products of the source
+     * @param targetCategories dao of the categories of the target
+     * @param targetProducts dao of the products of the target
+     */
+    public CatalogSync(CategoryDao sourceCategories, ProductDao sourceProducts,
+            CategoryDao targetCategories, ProductDao targetProducts) {
+        this.sourceCategories = sourceCategories;
+        this.sourceProducts = sourceProducts;
+        this.targetCategories = targetCategories;
+        this.targetProducts = targetProducts;
+        this.changedCodes = new HashSet<>();
+    }
+
+    /**
+     * runs the synchronization; it stops at the first error, leaving the
+     * categories synchronized so far written
+     *
+     * @return true if done, false in case of error
+     */
+    public boolean run() {
+        List<Category> source = sourceCategories.selectAll();
+        List<Category> target = targetCategories.selectAll();
+        if (source == null || target == null) {
+            return false;
+        }
+        Map<Long, Category> targetById = new HashMap<>();
+        for (Category c : target) {
+            targetById.put(c.getId(), c);
+        }
+        List<Category> changed = new ArrayList<>();
+        Set<Long> sourceIds = new HashSet<>();
+        for (Category c : source) {
+            sourceIds.add(c.getId());
+            Category t = targetById.get(c.getId());
+            if (t == null || !Objects.equals(t.getCode(), c.getCode()) || !Objects.equals(t.getName(), c.getName())
+                    || t.getParentId() != c.getParentId()) {
+                changed.add(c);
+            }
+        }
+        //parents first, so that every parent is found when its children are written
+        CategoryTree sourceTree = new CategoryTree(source);
+        changed.sort(Comparator.comparingInt(c -> sourceTree.ancestors(c.getId()).size()));
+        if (!changed.isEmpty()) {
+            categoriesWritten = targetCategories.replicateBatch(changed);
+            if (categoriesWritten < 0) {
+                return false;
+            }
+        }
+        syncProducts();
+        if (failed) {
+            return false;
+        }
+        //removed after their products, which the source does not have either,
+        //and children first, so that no category removed has children left
+        CategoryTree targetTree = new CategoryTree(target);
+        List<Category> removed = new ArrayList<>();
+        for (Category c : target) {
+            if (!sourceIds.contains(c.getId())) {
+                removed.add(c);
+            }
+        }
+        removed.sort(Comparator.comparingInt((Category c) -> targetTree.ancestors(c.getId()).size()).reversed());
+        for (Category c : removed) {
+            categoriesRemoved += targetCategories.delete(c);
+        }
+        done = true;
+        return true;
+    }
+
+    private void syncProducts() {
+        Map<Long, ProductDigest> source = sourceProducts.selectCategoryDigests();
+        Map<Long, ProductDigest> target = targetProducts.selectCategoryDigests();
+        if (source == null || target == null) {
+            failed = true;
+            return;
+        }
+        digestsRead += source.size() + target.size();
+        Set<Long> ids = new HashSet<>(source.keySet());
+        ids.addAll(target.keySet());
+        for (long id : ids) {
+            ProductDigest s = source.get(id);
+            ProductDigest t = target.get(id);
+            if (!Objects.equals(s, t)) {
+                categoriesDiffering++;
+                List<Product> removed = new ArrayList<>();
+                List<Product> written = new ArrayList<>();
+                compareRange(id, 0, MAX_BUCKET, s, t, TOP_SHIFT, removed, written);
+                if (failed) {
+                    return;
+                }
+                int n = targetProducts.replicateBatch(removed, written);
+                if (n < 0) {
+                    failed = true;
+                    return;
+                }
+                rowsRemoved += removed.size();
+                rowsWritten += written.size();
+            }
+        }
+    }
+
+    /**
+     * compares a range of buckets of a category that differs
+     *
+     * @param s digest of the range in the source, or null if empty
+     * @param t digest of the range in the target, or null if empty
+     * @param shift bits of bucket number within the subranges to compare
+     */
+    private void compareRange(long categoryId, long fromBucket, long toBucket, ProductDigest s, ProductDigest t,
+            int shift, List<Product> removed, List<Product> written) {
+        if (s == null || t == null || shift < 0
+                || Math.max(s.getCount(), t.getCount()) <= MAX_ROWS_COMPARED) {
+            compareRows(categoryId, fromBucket, toBucket, removed, written);
+            return;
+        }
+        Map<Long, ProductDigest> source = sourceProducts.selectBucketDigests(categoryId, fromBucket, toBucket, shift);
+        Map<Long, ProductDigest> target = targetProducts.selectBucketDigests(categoryId, fromBucket, toBucket, shift);
+        if (source == null || target == null) {
+            failed = true;
+            return;
+        }
+        digestsRead += source.size() + target.size();
+        Set<Long> keys = new HashSet<>(source.keySet());
+        keys.addAll(target.keySet());
+        for (long key : keys) {
+            ProductDigest sub = source.get(key);
+            ProductDigest tub = target.get(key);
+            if (!Objects.equals(sub, tub)) {
+                compareRange(categoryId, key << shift, (key + 1) << shift, sub, tub, shift - FANOUT_BITS,
+                        removed, written);
+                if (failed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void compareRows(long categoryId, long fromBucket, long toBucket,
+            List<Product> removed, List<Product> written) {
+        List<Product> source = sourceProducts.selectBuckets(categoryId, fromBucket, toBucket);
+        List<Product> target = targetProducts.selectBuckets(categoryId, fromBucket, toBucket);
+        if (source == null || target == null) {
+            failed = true;
+            return;
+        }
+        rowsRead += source.size() + target.size();
+        Map<Long, Product> targetById = new HashMap<>();
+        for (Product p : target) {
+            targetById.put(p.getId(), p);
+        }
+        for (Product p : source) {
+            Product old = targetById.remove(p.getId());
+            if (old == null || ProductDigest.hashOf(old) != ProductDigest.hashOf(p)) {
+                written.add(p);
+                changedCodes.add(p.getCode());
+                if (old != null) {
+                    changedCodes.add(old.getCode());
+                }
+            }
+        }
+        for (Product old : targetById.values()) {
+            removed.add(old);
+            changedCodes.add(old.getCode());
+        }
+    }
+
+    /**
+     * @return true if the last run was done, false if it failed or was not
+     * run
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return codes of the target products changed
+     */
+    public Set<String> getChangedCodes() {
+        return changedCodes;
+    }
+
+    /**
+     * @return number of categories inserted or updated in the target
+     */
+    public int getCategoriesWritten() {
+        return categoriesWritten;
+    }
+
+    /**
+     * @return number of categories removed from the target
+     */
+    public int getCategoriesRemoved() {
+        return categoriesRemoved;
+    }
+
+    /**
+     * @return number of categories whose products differed
+     */
+    public int getCategoriesDiffering() {
+        return categoriesDiffering;
+    }
+
+    /**
+     * @return number of digests read from both sides
+     */
+    public long getDigestsRead() {
+        return digestsRead;
+    }
+
+    /**
+     * @return number of product rows read from both sides
+     */
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @return number of product rows copied to the target
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return number of product rows removed from the target
+     */
+    public long getRowsRemoved() {
+        return rowsRemoved;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("CatalogSync{");
+        sb.append("done=").append(done);
+        sb.append(", categoriesWritten=").append(categoriesWritten);
+        sb.append(", categoriesRemoved=").append(categoriesRemoved);
+        sb.append(", categoriesDiffering=").append(categoriesDiffering);
+        sb.append(", digestsRead=").append(digestsRead);
+        sb.append(", rowsRead=").append(rowsRead);
+        sb.append(", rowsWritten=").append(rowsWritten);
+        sb.append(", rowsRemoved=").append(rowsRemoved);
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
@@ -11,6 +11,10 @@ public class Category {
     private long id;
     private String code;
     private String name;
+    /**
+     * id of the parent category, 0 for a top level category
+     */
+    private long parentId;
 
     public Category(long id, String code, String name) {
         this.id = id;
@@ -18,6 +22,13 @@ public class Category {
         this.name = name;
     }
 
+    public Category(long id, String code, String name, long parentId) {
+        this.id = id;
+        this.code = code;
+        this.name = name;
+        this.parentId = parentId;
+    }
+
     public Category() {
     }
 
@@ -29,6 +40,7 @@ public class Category {
         this.id = other.id;
         this.code = other.code;
         this.name = other.name;
+        this.parentId = other.parentId;
     }
 
     public long getId() {
@@ -55,6 +67,14 @@ public class Category {
         this.name = name;
     }
 
+    public long getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(long parentId) {
+        this.parentId = parentId;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -84,6 +104,7 @@ public class Category {
         sb.append("id=").append(id);
         sb.append(", code=").append(code);
         sb.append(", name=").append(name);
+        sb.append(", parentId=").append(parentId);
         sb.append('}');
         return sb.toString();
     }
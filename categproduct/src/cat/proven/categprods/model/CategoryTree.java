@@ -0,0 +1,229 @@
+package cat.proven.categprods.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the tree of categories, to find the ancestors and the
+ * descendants of a category without querying the database.
+ *
+ * Categories are numbered in depth first order, children in id order, so
+ * that the subtree of a category is a range of numbers: from its own number
+ * to the number after its last descendant. Telling whether a category is in
+ * the subtree of another is then comparing numbers, and listing a subtree
+ * copying a range. Categories whose parent is not found are taken as top
+ * level ones.
+ *
+ * A tree is not changed once built: a new one is built when categories
+ * change.
+ *
+ * @author ProvenSoft
+ */
+public final class CategoryTree {
+
+    private final Map<Long, Integer> index;
+    private final Category[] categories;
+    /**
+     * position of the parent of each category, -1 for top level ones
+     */
+    private final int[] parents;
+    /**
+     * number of each category in depth first order, and number after its
+     * last descendant
+     */
+    private final int[] enter;
+    private final int[] exit;
+    /**
+     * positions of the categories in depth first order
+     */
+    private final int[] order;
+
+    /**
+     * builds the tree of some categories
+     *
+     * @param all the categories, copied
+     */
+    public CategoryTree(Collection<Category> all) {
+        int n = all.size();
+        this.index = new HashMap<>();
+        this.categories = new Category[n];
+        int i = 0;
+        for (Category c : all) {
+            categories[i] = new Category(c);
+            index.put(c.getId(), i);
+            i++;
+        }
+        this.parents = new int[n];
+        List<List<Integer>> children = new ArrayList<>(n);
+        for (i = 0; i < n; i++) {
+            children.add(new ArrayList<>());
+        }
+        for (i = 0; i < n; i++) {
+            Integer parent = index.get(categories[i].getParentId());
+            parents[i] = (parent != null && parent != i) ? parent : -1;
+            if (parents[i] >= 0) {
+                children.get(parents[i]).add(i);
+            }
+        }
+        for (List<Integer> list : children) {
+            list.sort((a, b) -> Long.compare(categories[a].getId(), categories[b].getId()));
+        }
+        this.enter = new int[n];
+        this.exit = new int[n];
+        this.order = new int[n];
+        boolean[] visited = new boolean[n];
+        int next = 0;
+        for (i = 0; i < n; i++) {
+            if (parents[i] < 0) {
+                next = number(i, children, visited, next);
+            }
+        }
+        //categories left are in a loop of parents, cut at the first one
+        for (i = 0; i < n; i++) {
+            if (!visited[i]) {
+                parents[i] = -1;
+                next = number(i, children, visited, next);
+            }
+        }
+    }
+
+    /**
+     * numbers a subtree in depth first order, without recursion
+     *
+     * @return the next number to give
+     */
+    private int number(int root, List<List<Integer>> children, boolean[] visited, int next) {
+        int[] stack = new int[categories.length];
+        int[] child = new int[categories.length];
+        int top = 0;
+        stack[top] = root;
+        child[top] = 0;
+        visited[root] = true;
+        order[next] = root;
+        enter[root] = next++;
+        while (top >= 0) {
+            int node = stack[top];
+            List<Integer> list = children.get(node);
+            if (child[top] < list.size()) {
+                int c = list.get(child[top]++);
+                if (!visited[c]) {
+                    visited[c] = true;
+                    order[next] = c;
+                    enter[c] = next++;
+                    stack[++top] = c;
+                    child[top] = 0;
+                }
+            } else {
+                exit[node] = next;
+                top--;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return number of categories
+     */
+    public int size() {
+        return categories.length;
+    }
+
+    /**
+     * @param id id of a category
+     * @return a copy of the category, or null if not found
+     */
+    public Category get(long id) {
+        Integer i = index.get(id);
+        return (i != null) ? new Category(categories[i]) : null;
+    }
+
+    /**
+     * @param id id of a category
+     * @return true if the category is in the tree
+     */
+    public boolean contains(long id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     * tells whether a category is another one or one of its descendants
+     *
+     * @param id id of the category
+     * @param rootId id of the root of the subtree
+     * @return true if the category is in the subtree, false if not or if any
+     * of them is not found
+     */
+    public boolean isInSubtree(long id, long rootId) {
+        Integer i = index.get(id);
+        Integer root = index.get(rootId);
+        return (i != null) && (root != null) && (enter[root] <= enter[i]) && (enter[i] < exit[root]);
+    }
+
+    /**
+     * @param id id of a category
+     * @return copies of its children, in id order, empty if none or not found
+     */
+    public List<Category> children(long id) {
+        List<Category> result = new ArrayList<>();
+        Integer i = index.get(id);
+        if (i != null) {
+            //children are next to their parent in depth first order
+            for (int k = enter[i] + 1; k < exit[i]; k = exit[order[k]]) {
+                result.add(new Category(categories[order[k]]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id id of a category
+     * @return copies of its ancestors, from the top level one to its parent,
+     * empty if none or not found
+     */
+    public List<Category> ancestors(long id) {
+        List<Category> result = new ArrayList<>();
+        Integer i = index.get(id);
+        if (i != null) {
+            for (int p = parents[i]; p >= 0; p = parents[p]) {
+                result.add(0, new Category(categories[p]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id id of a category
+     * @return copies of the category and its descendants, in depth first
+     * order, empty if not found
+     */
+    public List<Category> subtree(long id) {
+        List<Category> result = new ArrayList<>();
+        Integer i = index.get(id);
+        if (i != null) {
+            for (int k = enter[i]; k < exit[i]; k++) {
+                result.add(new Category(categories[order[k]]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id id of a category
+     * @return ids of the category and its descendants, in depth first order,
+     * empty if not found
+     */
+    public List<Long> subtreeIds(long id) {
+        List<Long> result = new ArrayList<>();
+        Integer i = index.get(id);
+        if (i != null) {
+            for (int k = enter[i]; k < exit[i]; k++) {
+                result.add(categories[order[k]].getId());
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,153 @@
+package cat.proven.categprods.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point money amounts. An amount is a plain long holding a number of
+ * minor units (cents), so arithmetic on amounts is exact and allocates
+ * nothing. This class only holds the conversions and checked operations on
+ * such longs.
+ *
+ * @author ProvenSoft
+ */
+public final class Money {
+
+    /**
+     * number of decimal digits of amounts
+     */
+    public static final int SCALE = 2;
+    /**
+     * minor units per major unit
+     */
+    public static final long UNIT = 100;
+
+    private Money() {
+    }
+
+    /**
+     * gets an amount from a number of major units and minor units
+     *
+     * @param major major units, e.g. euros
+     * @param minor minor units, e.g. cents, from 0 to 99
+     * @return the amount
+     */
+    public static long of(long major, int minor) {
+        return Math.addExact(Math.multiplyExact(major, UNIT), (major < 0) ? -minor : minor);
+    }
+
+    /**
+     * parses a decimal amount such as 12, 12.5 or -0.05. More than two
+     * decimals are not accepted, so that parsing never rounds.
+     *
+     * @param s the text to parse
+     * @return the amount
+     * @throws NumberFormatException if the text is not a valid amount
+     */
+    public static long parse(String s) {
+        String t = s.strip();
+        int dot = t.indexOf('.');
+        String major = (dot < 0) ? t : t.substring(0, dot);
+        String minor = (dot < 0) ? "" : t.substring(dot + 1);
+        if (minor.length() > SCALE || (dot >= 0 && minor.isEmpty()) || !minor.chars().allMatch(Character::isDigit)) {
+            throw new NumberFormatException("Invalid amount: " + s);
+        }
+        boolean negative = major.startsWith("-");
+        boolean noMajor = major.isEmpty() || major.equals("-") || major.equals("+");
+        if (noMajor && minor.isEmpty()) {
+            throw new NumberFormatException("Invalid amount: " + s);
+        }
+        if (noMajor) {
+            major = negative ? "-0" : "0";
+        }
+        long units = Long.parseLong(major);
+        int cents = minor.isEmpty() ? 0 : Integer.parseInt((minor + "0").substring(0, SCALE));
+        long amount = Math.addExact(Math.multiplyExact(Math.abs(units), UNIT), cents);
+        return negative ? -amount : amount;
+    }
+
+    /**
+     * formats an amount with two decimals, e.g. 1234 as 12.34
+     *
+     * @param amount the amount
+     * @return the formatted amount
+     */
+    public static String toString(long amount) {
+        return appendTo(new StringBuilder(24), amount).toString();
+    }
+
+    /**
+     * appends an amount with two decimals
+     *
+     * @param sb the builder to append to
+     * @param amount the amount
+     * @return the builder
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long amount) {
+        long abs = Math.abs(amount);
+        if (amount < 0) {
+            sb.append('-');
+        }
+        long cents = abs % UNIT;
+        sb.append(abs / UNIT).append('.');
+        if (cents < 10) {
+            sb.append('0');
+        }
+        return sb.append(cents);
+    }
+
+    /**
+     * converts a decimal, rounding half up to cents
+     *
+     * @param value the value to convert; null, as read from a null column,
+     * is taken as 0
+     * @return the amount
+     * @throws ArithmeticException if the value does not fit in a long
+     */
+    public static long fromBigDecimal(BigDecimal value) {
+        return (value == null) ? 0 : value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @param amount the amount
+     * @return the amount as a decimal with two digits of scale
+     */
+    public static BigDecimal toBigDecimal(long amount) {
+        return BigDecimal.valueOf(amount, SCALE);
+    }
+
+    /**
+     * converts a floating point value, rounding half up to cents
+     *
+     * @param value the value to convert
+     * @return the amount
+     */
+    public static long fromDouble(double value) {
+        return Math.round(value * UNIT);
+    }
+
+    /**
+     * @param amount the amount
+     * @return the nearest double, for display or statistics only
+     */
+    public static double toDouble(long amount) {
+        return (double) amount / UNIT;
+    }
+
+    /**
+     * @return a + b
+     * @throws ArithmeticException on overflow
+     */
+    public static long plus(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * @return amount * quantity
+     * @throws ArithmeticException on overflow
+     */
+    public static long times(long amount, long quantity) {
+        return Math.multiplyExact(amount, quantity);
+    }
+
+}
@@ -0,0 +1,92 @@
+package cat.proven.categprods.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An order placed at checkout, with its lines in product code order
+ *
+ * @author ProvenSoft
+ */
+public class Order {
+
+    private long id;
+    /**
+     * total in minor units (cents), see Money
+     */
+    private long total;
+    private List<OrderLine> lines;
+
+    public Order(long id, long total, List<OrderLine> lines) {
+        this.id = id;
+        this.total = total;
+        this.lines = lines;
+    }
+
+    public Order() {
+        this.lines = new ArrayList<>();
+    }
+
+    public Order(Order other) {
+        this.id = other.id;
+        this.total = other.total;
+        this.lines = new ArrayList<>(other.lines.size());
+        for (OrderLine line : other.lines) {
+            this.lines.add(new OrderLine(line));
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public List<OrderLine> getLines() {
+        return lines;
+    }
+
+    public void setLines(List<OrderLine> lines) {
+        this.lines = lines;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.id);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final Order other = (Order) obj;
+        return this.id == other.id;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Order{");
+        sb.append("id=").append(id);
+        sb.append(", total=");
+        Money.appendTo(sb, total);
+        sb.append(", lines=").append(lines);
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
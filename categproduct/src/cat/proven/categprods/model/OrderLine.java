@@ -0,0 +1,113 @@
+package cat.proven.categprods.model;
+
+import java.util.Objects;
+
+/**
+ * A line of an order: a quantity of a product sold at a unit price
+ *
+ * @author ProvenSoft
+ */
+public class OrderLine {
+
+    private long productId;
+    private String code;
+    private int quantity;
+    /**
+     * unit price in minor units (cents), see Money
+     */
+    private long price;
+
+    public OrderLine(long productId, String code, int quantity, long price) {
+        this.productId = productId;
+        this.code = code;
+        this.quantity = quantity;
+        this.price = price;
+    }
+
+    public OrderLine() {
+    }
+
+    public OrderLine(OrderLine other) {
+        this.productId = other.productId;
+        this.code = other.code;
+        this.quantity = other.quantity;
+        this.price = other.price;
+    }
+
+    public long getProductId() {
+        return productId;
+    }
+
+    public void setProductId(long productId) {
+        this.productId = productId;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public void setPrice(long price) {
+        this.price = price;
+    }
+
+    /**
+     * @return price times quantity
+     * @throws ArithmeticException on overflow
+     */
+    public long getAmount() {
+        return Money.times(price, quantity);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 41 * hash + Long.hashCode(this.productId);
+        hash = 41 * hash + Objects.hashCode(this.code);
+        hash = 41 * hash + this.quantity;
+        hash = 41 * hash + Long.hashCode(this.price);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final OrderLine other = (OrderLine) obj;
+        return this.productId == other.productId && this.quantity == other.quantity
+                && this.price == other.price && Objects.equals(this.code, other.code);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("OrderLine{");
+        sb.append("productId=").append(productId);
+        sb.append(", code=").append(code);
+        sb.append(", quantity=").append(quantity);
+        sb.append(", price=");
+        Money.appendTo(sb, price);
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
@@ -12,10 +12,17 @@ public class Product {
     private String code;
     private String name;
     private int stock;
-    private double price;
+    /**
+     * price in minor units (cents), see Money
+     */
+    private long price;
     private Category category;
+    /**
+     * version of the row, raised whenever it changes, see ProductDigest
+     */
+    private long version;
 
-    public Product(long id, String code, String name, int stock, double price, Category category) {
+    public Product(long id, String code, String name, int stock, long price, Category category) {
         this.id = id;
         this.code = code;
         this.name = name;
@@ -38,6 +45,7 @@ public class Product {
         this.stock = other.stock;
         this.price = other.price;
         this.category = other.category;
+        this.version = other.version;
     }
 
     public long getId() {
@@ -72,11 +80,17 @@ public class Product {
         this.stock = stock;
     }
 
-    public double getPrice() {
+    /**
+     * @return price in minor units (cents)
+     */
+    public long getPrice() {
         return price;
     }
 
-    public void setPrice(double price) {
+    /**
+     * @param price price in minor units (cents)
+     */
+    public void setPrice(long price) {
         this.price = price;
     }
 
@@ -88,6 +102,14 @@ public class Product {
         this.category = category;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -118,7 +140,8 @@ public class Product {
         sb.append(", code=").append(code);
         sb.append(", name=").append(name);
         sb.append(", stock=").append(stock);
-        sb.append(", price=").append(price);
+        sb.append(", price=");
+        Money.appendTo(sb, price);
         sb.append(", categoryId=").append(category.getId());
         sb.append('}');
         return sb.toString();
@@ -0,0 +1,204 @@
+package cat.proven.categprods.model;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Combination of filters on products, with an optional order and limit,
+ * for ProductDao.selectWhere and StoreModel.findProducts:
+ * <pre>
+ * new ProductCriteria().inCategories(List.of(1L, 3L)).stockBetween(1, null)
+ *         .nameStartsWith("lap").orderBy(SortKey.PRICE, true).limit(20)
+ * </pre>
+ * Filters not set match every product. Bounds are inclusive, and null
+ * bounds are open. Products are always sorted, by id if no other key is
+ * given, and by id within equal values of the key, so that results are
+ * deterministic whatever the backend.
+ *
+ * @author ProvenSoft
+ */
+public class ProductCriteria {
+
+    /**
+     * keys products can be sorted by
+     */
+    public enum SortKey {
+        ID, CODE, NAME, STOCK, PRICE
+    }
+
+    private Set<Long> categoryIds;
+    private Integer minStock;
+    private Integer maxStock;
+    private Long minPrice;
+    private Long maxPrice;
+    private String namePrefix;
+    private SortKey sortKey;
+    private boolean descending;
+    private int limit;
+
+    public ProductCriteria() {
+        this.sortKey = SortKey.ID;
+    }
+
+    public ProductCriteria(ProductCriteria other) {
+        this.categoryIds = (other.categoryIds != null) ? new LinkedHashSet<>(other.categoryIds) : null;
+        this.minStock = other.minStock;
+        this.maxStock = other.maxStock;
+        this.minPrice = other.minPrice;
+        this.maxPrice = other.maxPrice;
+        this.namePrefix = other.namePrefix;
+        this.sortKey = other.sortKey;
+        this.descending = other.descending;
+        this.limit = other.limit;
+    }
+
+    /**
+     * @param ids ids of the categories products must belong to, or null for
+     * any category; an empty collection matches no product
+     * @return this criteria
+     */
+    public ProductCriteria inCategories(Collection<Long> ids) {
+        this.categoryIds = (ids != null) ? new LinkedHashSet<>(ids) : null;
+        return this;
+    }
+
+    /**
+     * @param min lowest stock, or null
+     * @param max highest stock, or null
+     * @return this criteria
+     */
+    public ProductCriteria stockBetween(Integer min, Integer max) {
+        this.minStock = min;
+        this.maxStock = max;
+        return this;
+    }
+
+    /**
+     * @param min lowest price in minor units (cents), or null
+     * @param max highest price in minor units (cents), or null
+     * @return this criteria
+     */
+    public ProductCriteria priceBetween(Long min, Long max) {
+        this.minPrice = min;
+        this.maxPrice = max;
+        return this;
+    }
+
+    /**
+     * @param prefix the start of the name of products, case sensitive, or
+     * null
+     * @return this criteria
+     */
+    public ProductCriteria nameStartsWith(String prefix) {
+        this.namePrefix = (prefix != null && !prefix.isEmpty()) ? prefix : null;
+        return this;
+    }
+
+    /**
+     * @param key the key to sort by
+     * @param descending true for descending order
+     * @return this criteria
+     */
+    public ProductCriteria orderBy(SortKey key, boolean descending) {
+        this.sortKey = (key != null) ? key : SortKey.ID;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param limit maximum number of products, 0 for no limit
+     * @return this criteria
+     */
+    public ProductCriteria limit(int limit) {
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    public Set<Long> getCategoryIds() {
+        return categoryIds;
+    }
+
+    public Integer getMinStock() {
+        return minStock;
+    }
+
+    public Integer getMaxStock() {
+        return maxStock;
+    }
+
+    public Long getMinPrice() {
+        return minPrice;
+    }
+
+    public Long getMaxPrice() {
+        return maxPrice;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public SortKey getSortKey() {
+        return sortKey;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * tells whether a product passes the filters
+     *
+     * @param p the product
+     * @return true if it does
+     */
+    public boolean matches(Product p) {
+        return (categoryIds == null || categoryIds.contains(p.getCategory().getId()))
+                && (minStock == null || p.getStock() >= minStock)
+                && (maxStock == null || p.getStock() <= maxStock)
+                && (minPrice == null || p.getPrice() >= minPrice)
+                && (maxPrice == null || p.getPrice() <= maxPrice)
+                && (namePrefix == null || (p.getName() != null && p.getName().startsWith(namePrefix)));
+    }
+
+    /**
+     * @return the order of results; codes and names are compared as Java
+     * strings, case sensitive, as the database does for criteria
+     */
+    public Comparator<Product> comparator() {
+        Comparator<Product> byKey;
+        switch (sortKey) {
+            case CODE:
+                byKey = Comparator.comparing(Product::getCode);
+                break;
+            case NAME:
+                byKey = Comparator.comparing(Product::getName);
+                break;
+            case STOCK:
+                byKey = Comparator.comparingInt(Product::getStock);
+                break;
+            case PRICE:
+                byKey = Comparator.comparingLong(Product::getPrice);
+                break;
+            default:
+                byKey = Comparator.comparingLong(Product::getId);
+                break;
+        }
+        Comparator<Product> order = byKey.thenComparingLong(Product::getId);
+        return descending ? order.reversed() : order;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductCriteria{" + "categoryIds=" + categoryIds + ", stock=[" + minStock + ", " + maxStock
+                + "], price=[" + minPrice + ", " + maxPrice + "], namePrefix=" + namePrefix
+                + ", sortKey=" + sortKey + ", descending=" + descending + ", limit=" + limit + '}';
+    }
+
+}
@@ -0,0 +1,117 @@
+package cat.proven.categprods.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of a set of product rows: the exclusive or of the hashes of the
+ * rows, and their number. A row can be added or removed by xoring its hash
+ * again, so digests are kept up to date as rows change, without reading the
+ * other rows; two sets with the same digest hold the same rows but for
+ * astronomically unlikely collisions.
+ *
+ * Digests are kept per category and bucket of BUCKET_SIZE consecutive ids,
+ * by MemoryDb and by triggers of the product_digest table, which hash rows
+ * the same way as hashOf. Digests of larger ranges of buckets are combined
+ * from these, forming the tree that CatalogSync compares level by level.
+ *
+ * @author ProvenSoft
+ */
+public final class ProductDigest {
+
+    /**
+     * bits of product id within a bucket: buckets hold 16 ids
+     */
+    public static final int BUCKET_BITS = 4;
+    public static final int BUCKET_SIZE = 1 << BUCKET_BITS;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final long hash;
+    private final int count;
+
+    public ProductDigest(long hash, int count) {
+        this.hash = hash;
+        this.count = count;
+    }
+
+    /**
+     * @return exclusive or of the hashes of the rows
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param id id of a product
+     * @return the bucket of the id
+     */
+    public static long bucketOf(long id) {
+        return id >> BUCKET_BITS;
+    }
+
+    /**
+     * hashes the row of a product: the first 64 bits of the SHA-1 of its id,
+     * code, name, stock, price in cents and version, joined by '|', as the
+     * triggers of product_digest do
+     *
+     * @param p the product
+     * @return the hash
+     */
+    public static long hashOf(Product p) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(p.getId()).append('|');
+        if (p.getCode() != null) {
+            sb.append(p.getCode()).append('|');
+        }
+        if (p.getName() != null) {
+            sb.append(p.getName()).append('|');
+        }
+        sb.append(p.getStock()).append('|');
+        sb.append(p.getPrice()).append('|');
+        sb.append(p.getVersion());
+        byte[] sha = SHA1.get().digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (sha[i] & 0xff);
+        }
+        return h;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash) * 31 + count;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ProductDigest other = (ProductDigest) obj;
+        return this.hash == other.hash && this.count == other.count;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductDigest{" + "hash=" + Long.toHexString(hash) + ", count=" + count + '}';
+    }
+
+}
@@ -0,0 +1,89 @@
+package cat.proven.categprods.model;
+
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the
+ * load, and callers asking for the key while it runs wait for it and share
+ * its result instead of running their own. Nothing is kept once a load
+ * ends, so this is not a cache: a caller arriving after the load has ended
+ * runs a new one.
+ *
+ * Callers that joined a load get a copy of the result, so that no two
+ * callers share a mutable object; this costs a copy per load. The time
+ * they waited is recorded in the metrics as SingleFlight.name, whose count
+ * is the number of calls coalesced.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ * @author ProvenSoft
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight;
+    private final UnaryOperator<V> copier;
+    private final OpStats coalesced;
+
+    /**
+     * @param name name of the metric of coalesced calls
+     * @param copier makes the copy of a non-null result given to each caller
+     * that joined a load
+     */
+    public SingleFlight(String name, UnaryOperator<V> copier) {
+        this.inFlight = new ConcurrentHashMap<>();
+        this.copier = copier;
+        this.coalesced = Metrics.operation("SingleFlight." + name);
+    }
+
+    /**
+     * gets the value of a key, joining the load in flight for it if any
+     *
+     * @param key the key
+     * @param loader loads the value when no load is in flight
+     * @return the value
+     */
+    public V get(K key, Supplier<V> loader) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running == null) {
+            try {
+                V value = loader.get();
+                //callers that joined copy a snapshot nobody else gets, as the
+                //caller of the load may change its value at any time
+                mine.complete((value != null) ? copier.apply(value) : null);
+                return value;
+            } catch (RuntimeException | Error ex) {
+                mine.completeExceptionally(ex);
+                throw ex;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+        long start = coalesced.start();
+        try {
+            V value = running.join();
+            return (value != null) ? copier.apply(value) : null;
+        } catch (CompletionException ex) {
+            coalesced.error();
+            throw (ex.getCause() instanceof RuntimeException) ? (RuntimeException) ex.getCause() : ex;
+        } finally {
+            coalesced.stop(start);
+        }
+    }
+
+    /**
+     * makes callers from now on run new loads instead of joining the ones in
+     * flight, which may have read data older than a change just made.
+     * Callers already waiting still get the result of their load.
+     */
+    public void forgetAll() {
+        inFlight.clear();
+    }
+
+}
@@ -0,0 +1,424 @@
+package cat.proven.categprods.model;
+
+import cat.proven.categprods.model.persist.ProductDao;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds stock of products for a while, e.g. while a customer pays: a
+ * reservation takes stock from what is available to sell until it is
+ * confirmed, released or expired. Only confirmed reservations reach the
+ * database, as decrements of stock sent in batches.
+ *
+ * The stock of each product is read from the database on first use and kept
+ * with the quantity held, by reservations and by confirmed decrements not
+ * written yet, in a single atomic long, so reserving is a compare and set
+ * and available stock two reads of memory, without locks. Stock is read
+ * again after the product changes, and after decrements are written, always
+ * from the primary database, as a replica may not have the latest writes.
+ *
+ * Reservations expire through a timing wheel of slots by expiry time, which
+ * callers advance as time goes by, instead of a thread: expired reservations
+ * not seen yet still hold their stock, but they are seen before stock is
+ * reserved or looked up.
+ *
+ * @author ProvenSoft
+ */
+public class StockReservations implements Closeable {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SLOTS = 1024;
+    private static final long FLUSH_MILLIS = 50;
+
+    private static final int HELD = 0;
+    private static final int CONFIRMED = 1;
+    private static final int RELEASED = 2;
+    private static final int EXPIRED = 3;
+
+    /**
+     * a reservation of stock of a product
+     */
+    private static final class Reservation {
+
+        final long id;
+        final Stock stock;
+        final int quantity;
+        final long expiryTick;
+        final AtomicInteger state;
+
+        Reservation(long id, Stock stock, int quantity, long expiryTick) {
+            this.id = id;
+            this.stock = stock;
+            this.quantity = quantity;
+            this.expiryTick = expiryTick;
+            this.state = new AtomicInteger(HELD);
+        }
+    }
+
+    /**
+     * stock of a product: stock in the database in the high int, quantity
+     * held in the low int
+     */
+    private static final class Stock {
+
+        final String code;
+        final AtomicLong value;
+        /**
+         * confirmed quantity not written to the database yet
+         */
+        final AtomicInteger confirmed;
+        volatile boolean stale;
+
+        Stock(String code, int stock) {
+            this.code = code;
+            this.value = new AtomicLong(pack(stock, 0));
+            this.confirmed = new AtomicInteger();
+        }
+
+        static long pack(int stock, int held) {
+            return ((long) stock << 32) | (held & 0xffffffffL);
+        }
+
+        static int stockOf(long value) {
+            return (int) (value >> 32);
+        }
+
+        static int heldOf(long value) {
+            return (int) value;
+        }
+
+        boolean hold(int quantity) {
+            while (true) {
+                long v = value.get();
+                if (stockOf(v) - heldOf(v) < quantity) {
+                    return false;
+                }
+                if (value.compareAndSet(v, pack(stockOf(v), heldOf(v) + quantity))) {
+                    return true;
+                }
+            }
+        }
+
+        void unhold(int quantity) {
+            value.addAndGet(-quantity);
+        }
+
+        int available() {
+            long v = value.get();
+            return stockOf(v) - heldOf(v);
+        }
+    }
+
+    private final ProductDao productDao;
+    private final Consumer<Collection<String>> written;
+    private final ConcurrentHashMap<String, Stock> stocks;
+    private final ConcurrentHashMap<Long, Reservation> reservations;
+    private final AtomicLong sequence;
+    private final ConcurrentLinkedQueue<Reservation>[] wheel;
+    /**
+     * last tick whose slot has been expired
+     */
+    private volatile long lastTick;
+    private final ReentrantLock wheelLock;
+    /**
+     * taken to read stock from the database and to write decrements, so
+     * that stock read is never missing a decrement written but not yet
+     * subtracted, or the other way round
+     */
+    private final ReentrantLock stockLock;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param productDao the dao to read stock from and write decrements to
+     * @param written told of the codes of the products whose stock has been
+     * written, e.g. to drop them from caches
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StockReservations(ProductDao productDao, Consumer<Collection<String>> written) {
+        this.productDao = productDao;
+        this.written = written;
+        this.stocks = new ConcurrentHashMap<>();
+        this.reservations = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+        this.wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.lastTick = tick();
+        this.wheelLock = new ReentrantLock();
+        this.stockLock = new ReentrantLock();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static long tick() {
+        return System.nanoTime() / TICK_NANOS;
+    }
+
+    /**
+     * gets the stock of a product, reading it from the database the first
+     * time or if stale
+     *
+     * @return the stock, or null if the product does not exist
+     */
+    private Stock stockOf(String code) {
+        Stock s = stocks.get(code);
+        if (s == null || s.stale) {
+            stockLock.lock();
+            try {
+                s = stocks.get(code);
+                if (s == null || s.stale) {
+                    Product p = productDao.selectWhereCodeOnPrimary(code);
+                    if (p == null) {
+                        return null;
+                    }
+                    if (s == null) {
+                        s = new Stock(code, p.getStock());
+                        stocks.put(code, s);
+                    } else {
+                        while (true) {
+                            long v = s.value.get();
+                            if (s.value.compareAndSet(v, Stock.pack(p.getStock(), Stock.heldOf(v)))) {
+                                break;
+                            }
+                        }
+                        s.stale = false;
+                    }
+                }
+            } finally {
+                stockLock.unlock();
+            }
+        }
+        return s;
+    }
+
+    /**
+     * reserves stock of a product
+     *
+     * @param code code of the product
+     * @param quantity quantity to reserve, greater than 0
+     * @param ttlMillis time after which the reservation expires, in
+     * milliseconds
+     * @return id of the reservation, or -1 if the product does not exist or
+     * not enough stock is available
+     */
+    public long reserve(String code, int quantity, long ttlMillis) {
+        expire();
+        Stock s = (quantity > 0) ? stockOf(code) : null;
+        if (s == null || !s.hold(quantity)) {
+            return -1;
+        }
+        long expiry = tick() + Math.max(1, TimeUnit.MILLISECONDS.toNanos(ttlMillis) / TICK_NANOS);
+        Reservation r = new Reservation(sequence.incrementAndGet(), s, quantity, expiry);
+        reservations.put(r.id, r);
+        wheel[(int) (expiry & (WHEEL_SLOTS - 1))].add(r);
+        return r.id;
+    }
+
+    /**
+     * confirms a reservation: its stock is sold, and will be subtracted from
+     * the stock in the database shortly
+     *
+     * @param id id of the reservation
+     * @return true if confirmed, false if not found, expired, released or
+     * already confirmed
+     */
+    public boolean confirm(long id) {
+        expire();
+        Reservation r = reservations.get(id);
+        if (r == null || r.expiryTick <= tick()) {
+            return false;
+        }
+        if (!r.state.compareAndSet(HELD, CONFIRMED)) {
+            return false;
+        }
+        reservations.remove(id);
+        //the quantity stays held until written
+        r.stock.confirmed.addAndGet(r.quantity);
+        return true;
+    }
+
+    /**
+     * releases a reservation, making its stock available again
+     *
+     * @param id id of the reservation
+     * @return true if released, false if not found, expired, confirmed or
+     * already released
+     */
+    public boolean release(long id) {
+        return end(id, RELEASED);
+    }
+
+    private boolean end(long id, int state) {
+        Reservation r = reservations.get(id);
+        if (r == null || !r.state.compareAndSet(HELD, state)) {
+            return false;
+        }
+        reservations.remove(id);
+        r.stock.unhold(r.quantity);
+        return true;
+    }
+
+    /**
+     * gets the stock of a product available to sell: stock in the database
+     * less held by reservations and by confirmed decrements not written yet
+     *
+     * @param code code of the product
+     * @return available stock, or -1 if the product does not exist
+     */
+    public int available(String code) {
+        expire();
+        Stock s = stockOf(code);
+        return (s != null) ? s.available() : -1;
+    }
+
+    /**
+     * @return number of reservations held
+     */
+    public int size() {
+        return reservations.size();
+    }
+
+    /**
+     * marks the stock of products as stale, to be read again from the
+     * database when next used
+     *
+     * @param codes codes of the products, or null for all
+     */
+    public void refresh(Collection<String> codes) {
+        if (codes == null) {
+            for (Stock s : stocks.values()) {
+                s.stale = true;
+            }
+        } else {
+            for (String code : codes) {
+                Stock s = stocks.get(code);
+                if (s != null) {
+                    s.stale = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * expires the reservations of the slots of the wheel passed since last
+     * time, unless another thread is doing it
+     */
+    private void expire() {
+        long now = tick();
+        if (now <= lastTick || !wheelLock.tryLock()) {
+            return;
+        }
+        try {
+            long from = lastTick + 1;
+            //a full turn visits every slot
+            long to = Math.min(now, lastTick + WHEEL_SLOTS);
+            for (long t = from; t <= to; t++) {
+                ConcurrentLinkedQueue<Reservation> slot = wheel[(int) (t & (WHEEL_SLOTS - 1))];
+                List<Reservation> later = new ArrayList<>();
+                for (Reservation r = slot.poll(); r != null; r = slot.poll()) {
+                    if (r.state.get() != HELD) {
+                        continue;
+                    }
+                    if (r.expiryTick <= now) {
+                        end(r.id, EXPIRED);
+                    } else {
+                        later.add(r);
+                    }
+                }
+                slot.addAll(later);
+            }
+            lastTick = now;
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * writes confirmed decrements of stock to the database, in a single
+     * batch; decrements not written are retried next time while their
+     * product has the stock, and dropped otherwise, the stock being read
+     * again
+     */
+    public void flush() {
+        expire();
+        stockLock.lock();
+        try {
+            //in code order, so that concurrent writers lock rows in the same order
+            Map<String, Integer> quantities = new TreeMap<>();
+            for (Stock s : stocks.values()) {
+                int q = s.confirmed.getAndSet(0);
+                if (q > 0) {
+                    quantities.put(s.code, q);
+                }
+            }
+            if (quantities.isEmpty()) {
+                return;
+            }
+            Set<String> done = productDao.decrementStock(quantities);
+            for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+                Stock s = stocks.get(e.getKey());
+                int q = e.getValue();
+                if (done == null) {
+                    s.confirmed.addAndGet(q);
+                    continue;
+                }
+                if (!done.contains(e.getKey())) {
+                    //no row updated: not found, short of stock or a failed shard
+                    Product p = productDao.selectWhereCodeOnPrimary(e.getKey());
+                    if (p != null && p.getStock() >= q) {
+                        s.confirmed.addAndGet(q);
+                    } else {
+                        Logger.getLogger(this.getClass().getName()).log(Level.WARNING,
+                                "Stock of {0} not decremented by {1}", new Object[]{e.getKey(), q});
+                        s.unhold(q);
+                        s.stale = true;
+                    }
+                    continue;
+                }
+                while (true) {
+                    long v = s.value.get();
+                    if (s.value.compareAndSet(v, Stock.pack(Stock.stockOf(v) - q, Stock.heldOf(v) - q))) {
+                        break;
+                    }
+                }
+            }
+            if (done == null || done.isEmpty()) {
+                return;
+            }
+            written.accept(done);
+        } finally {
+            stockLock.unlock();
+        }
+    }
+
+    /**
+     * writes confirmed decrements and stops writing them in the background
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+}
@@ -1,9 +1,30 @@
 package cat.proven.categprods.model;
 
+import cat.proven.categprods.model.cache.HeavyHitters;
+import cat.proven.categprods.model.cache.InvalidationBus;
+import cat.proven.categprods.model.cache.InvalidationTransport;
+import cat.proven.categprods.model.cache.ProductCache;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
 import cat.proven.categprods.model.persist.CategoryDao;
+import cat.proven.categprods.model.persist.DbConfig;
+import cat.proven.categprods.model.persist.DbConnect;
+import cat.proven.categprods.model.persist.MemoryCategoryDao;
+import cat.proven.categprods.model.persist.MemoryDb;
+import cat.proven.categprods.model.persist.MemoryOrderDao;
+import cat.proven.categprods.model.persist.MemoryProductDao;
+import cat.proven.categprods.model.persist.OrderDao;
 import cat.proven.categprods.model.persist.ProductDao;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Model for store application. Provides data services.
@@ -12,12 +33,432 @@ import java.util.List;
  */
 public class StoreModel {
 
+    private static final OpStats ADD_CATEGORY_STATS = Metrics.operation("StoreModel.addCategory");
+    private static final OpStats MODIFY_CATEGORY_STATS = Metrics.operation("StoreModel.modifyCategory");
+    private static final OpStats MODIFY_PRODUCT_STATS = Metrics.operation("StoreModel.modifyProduct");
+    private static final OpStats DROP_CATEGORY_STATS = Metrics.operation("StoreModel.dropCategory");
+    private static final OpStats DROP_PRODUCT_STATS = Metrics.operation("StoreModel.dropProduct");
+    private static final OpStats FIND_ALL_CATEGORIES_STATS = Metrics.operation("StoreModel.findAllCategories");
+    private static final OpStats FIND_CATEGORY_BY_CODE_STATS = Metrics.operation("StoreModel.findCategoryByCode");
+    private static final OpStats FIND_CATEGORY_BY_NAME_STATS = Metrics.operation("StoreModel.findCategoryByName");
+    private static final OpStats ADD_PRODUCT_STATS = Metrics.operation("StoreModel.addProduct");
+    private static final OpStats FIND_ALL_PRODUCTS_STATS = Metrics.operation("StoreModel.findAllProducts");
+    private static final OpStats FIND_PRODUCT_BY_CODE_STATS = Metrics.operation("StoreModel.findProductByCode");
+    private static final OpStats FIND_PRODUCT_BY_NAME_STATS = Metrics.operation("StoreModel.findProductByName");
+    private static final OpStats FIND_PRODUCT_BY_MIN_STOCK_STATS = Metrics.operation("StoreModel.findProductByMinStock");
+    private static final OpStats FIND_PRODUCTS_STATS = Metrics.operation("StoreModel.findProducts");
+    private static final OpStats FIND_PRODUCTS_BY_CATEGORY_STATS = Metrics.operation("StoreModel.findProductsByCategory");
+    private static final OpStats FIND_PRODUCT_WITH_CATEGORY_STATS = Metrics.operation("StoreModel.findProductWithCategory");
+    private static final OpStats PRICE_BASKET_STATS = Metrics.operation("StoreModel.priceBasket");
+    private static final OpStats EXPORT_PRODUCTS_STATS = Metrics.operation("StoreModel.exportProducts");
+    private static final OpStats ADD_CATEGORIES_STATS = Metrics.operation("StoreModel.addCategories");
+    private static final OpStats ADD_PRODUCTS_STATS = Metrics.operation("StoreModel.addProducts");
+    private static final OpStats MODIFY_PRODUCTS_STATS = Metrics.operation("StoreModel.modifyProducts");
+    private static final OpStats DROP_PRODUCTS_STATS = Metrics.operation("StoreModel.dropProducts");
+    private static final OpStats SYNC_CATEGORIES_STATS = Metrics.operation("StoreModel.syncCategories");
+    private static final OpStats SYNC_PRODUCTS_STATS = Metrics.operation("StoreModel.syncProducts");
+    private static final OpStats IMPORT_CATEGORIES_STATS = Metrics.operation("StoreModel.importCategories");
+    private static final OpStats IMPORT_PRODUCTS_STATS = Metrics.operation("StoreModel.importProducts");
+    private static final OpStats FIND_EXISTING_CATEGORY_CODES_STATS = Metrics.operation("StoreModel.findExistingCategoryCodes");
+    private static final OpStats FIND_EXISTING_PRODUCT_CODES_STATS = Metrics.operation("StoreModel.findExistingProductCodes");
+    private static final OpStats SYNC_CATALOG_FROM_STATS = Metrics.operation("StoreModel.syncCatalogFrom");
+    private static final OpStats RESERVE_STOCK_STATS = Metrics.operation("StoreModel.reserveStock");
+    private static final OpStats CONFIRM_RESERVATION_STATS = Metrics.operation("StoreModel.confirmReservation");
+    private static final OpStats RELEASE_RESERVATION_STATS = Metrics.operation("StoreModel.releaseReservation");
+    private static final OpStats FIND_AVAILABLE_STOCK_STATS = Metrics.operation("StoreModel.findAvailableStock");
+    private static final OpStats CHECKOUT_STATS = Metrics.operation("StoreModel.checkout");
+    private static final OpStats FIND_ORDER_STATS = Metrics.operation("StoreModel.findOrder");
+    private static final OpStats MOVE_CATEGORY_STATS = Metrics.operation("StoreModel.moveCategory");
+    private static final OpStats FIND_CATEGORY_ANCESTORS_STATS = Metrics.operation("StoreModel.findCategoryAncestors");
+    private static final OpStats FIND_CATEGORY_SUBTREE_STATS = Metrics.operation("StoreModel.findCategorySubtree");
+    private static final OpStats FIND_PRODUCTS_IN_SUBTREE_STATS = Metrics.operation("StoreModel.findProductsInSubtree");
+
+    /**
+     * number of hot product codes tracked, counters per row of their sketch
+     * and lookups between two halvings of their counts
+     */
+    private static final int HOT_PRODUCTS = 100;
+    private static final int HOT_SKETCH_WIDTH = 4096;
+    private static final long HOT_WINDOW = 100_000;
+    /**
+     * milliseconds the stock of a basket is held among reservations while
+     * its order is placed
+     */
+    private static final long CHECKOUT_HOLD_MILLIS = 60_000;
+
     private final CategoryDao categoryDao;
     private final ProductDao productDao;
+    private final OrderDao orderDao;
+
+    /**
+     * loads in flight, shared by concurrent callers asking for the same key
+     */
+    private final SingleFlight<String, Product> productsByCode = new SingleFlight<>("productByCode", StoreModel::copyOf);
+    private final SingleFlight<Long, Product> productsById = new SingleFlight<>("productById", StoreModel::copyOf);
+    private final SingleFlight<String, Category> categoriesByCode = new SingleFlight<>("categoryByCode", Category::new);
+    private final SingleFlight<Long, Category> categoriesById = new SingleFlight<>("categoryById", Category::new);
+    private final SingleFlight<Long, List<Product>> productsByCategory = new SingleFlight<>("productsByCategory", StoreModel::copyOf);
+
+    /**
+     * most looked up product codes
+     */
+    private final HeavyHitters<String> hotProducts = new HeavyHitters<>(HOT_PRODUCTS, HOT_SKETCH_WIDTH, HOT_WINDOW);
+    private volatile ProductCache productCache;
+    private volatile int pinnedProducts;
+    /**
+     * changes of products so far; a product read while it changes is not
+     * cached
+     */
+    private volatile long productChanges;
+    /**
+     * bus telling other processes of changes, or null for none
+     */
+    private volatile InvalidationBus invalidationBus;
+    /**
+     * stock held for checkout, created on first use
+     */
+    private volatile StockReservations stockReservations;
+    /**
+     * tree of categories, loaded on first use and dropped when categories
+     * change; a tree loaded while they change is not kept
+     */
+    private volatile CategoryTree categoryTree;
+    private long categoryChanges;
+    private final Object categoryTreeLock = new Object();
 
     public StoreModel() {
         this.categoryDao = new CategoryDao();
         this.productDao = new ProductDao();
+        this.orderDao = new OrderDao();
+    }
+
+    /**
+     * creates a model over the given data access objects, placing orders in
+     * storedb
+     *
+     * @param categoryDao dao for categories
+     * @param productDao dao for products
+     */
+    public StoreModel(CategoryDao categoryDao, ProductDao productDao) {
+        this(categoryDao, productDao, new OrderDao());
+    }
+
+    /**
+     * creates a model over the given data access objects
+     *
+     * @param categoryDao dao for categories
+     * @param productDao dao for products
+     * @param orderDao dao for orders
+     */
+    public StoreModel(CategoryDao categoryDao, ProductDao productDao, OrderDao orderDao) {
+        this.categoryDao = categoryDao;
+        this.productDao = productDao;
+        this.orderDao = orderDao;
+    }
+
+    /**
+     * creates a model backed by an in-memory database loaded with sample data
+     *
+     * @return the model
+     */
+    public static StoreModel inMemory() {
+        MemoryDb db = MemoryDb.withSampleData();
+        return new StoreModel(new MemoryCategoryDao(db), new MemoryProductDao(db), new MemoryOrderDao(db));
+    }
+
+    /**
+     * creates a model over another database than storedb, such as a replica
+     * to synchronize with
+     *
+     * @param config connection settings of the database
+     * @return the model
+     */
+    public static StoreModel forDatabase(DbConfig config) {
+        return new StoreModel(new CategoryDao(config), new ProductDao(config), new OrderDao(config));
+    }
+
+    /**
+     * ends the read your writes window of the calling thread (see
+     * DbConnect), to be resumed by the next call of the same client,
+     * whatever thread runs it
+     *
+     * @return the window, or 0 if there is none
+     */
+    public static long takeReadWindow() {
+        long until = DbConnect.pinnedUntil();
+        DbConnect.pinUntil(0);
+        return until;
+    }
+
+    /**
+     * gives the calling thread the read your writes window of a client
+     *
+     * @param until value got from takeReadWindow, or 0 for none
+     */
+    public static void resumeReadWindow(long until) {
+        DbConnect.pinUntil(until);
+    }
+
+    private static Product copyOf(Product p) {
+        Product copy = new Product(p);
+        if (p.getCategory() != null) {
+            copy.setCategory(new Category(p.getCategory()));
+        }
+        return copy;
+    }
+
+    private static List<Product> copyOf(List<Product> list) {
+        List<Product> copy = new ArrayList<>(list.size());
+        for (Product p : list) {
+            copy.add(copyOf(p));
+        }
+        return copy;
+    }
+
+    /**
+     * keeps callers from joining loads started before a change
+     */
+    private void forgetInFlight() {
+        productsByCode.forgetAll();
+        productsById.forgetAll();
+        categoriesByCode.forgetAll();
+        categoriesById.forgetAll();
+        productsByCategory.forgetAll();
+    }
+
+    /**
+     * looks up a product in the cache, if any, or in the database, and
+     * tracks how often each code is looked up
+     */
+    private Product productByCode(String code) {
+        if (hotProducts.record(code)) {
+            pinHotProducts();
+        }
+        ProductCache cache = productCache;
+        Product p = (cache != null) ? cache.get(code) : null;
+        if (p == null) {
+            long changes = productChanges;
+            p = productsByCode.get(code, () -> productDao.selectWhereCode(code));
+            if (p != null && cache != null) {
+                synchronized (cache) {
+                    if (productChanges == changes) {
+                        cache.put(p);
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * drops changed products from the cache, and tells other processes
+     *
+     * @param products the products changed, or null if unknown
+     */
+    private void productsChanged(Collection<Product> products) {
+        List<String> codes = null;
+        if (products != null) {
+            codes = new ArrayList<>(products.size());
+            for (Product p : products) {
+                if (p == null || p.getCode() == null) {
+                    codes = null;
+                    break;
+                }
+                codes.add(p.getCode());
+            }
+        }
+        codesChanged(codes);
+    }
+
+    /**
+     * drops changed products from the cache, and tells other processes
+     *
+     * @param codes the codes of the products changed, or null if unknown
+     */
+    private void codesChanged(Collection<String> codes) {
+        invalidateProducts(codes);
+        InvalidationBus bus = invalidationBus;
+        if (bus != null) {
+            if (codes == null) {
+                bus.publishAllProducts();
+            } else {
+                bus.publishProducts(codes);
+            }
+        }
+    }
+
+    /**
+     * drops the tree of categories, and tells other processes of changed
+     * categories
+     *
+     * @param categories the categories changed, or null if unknown
+     */
+    private void categoriesChanged(Collection<Category> categories) {
+        invalidateCategoryTree();
+        InvalidationBus bus = invalidationBus;
+        if (bus != null) {
+            List<Long> ids = null;
+            if (categories != null) {
+                ids = new ArrayList<>(categories.size());
+                for (Category c : categories) {
+                    ids.add(c.getId());
+                }
+            }
+            bus.publishCategories(ids);
+        }
+    }
+
+    /**
+     * drops products from the cache
+     *
+     * @param codes the codes of the products, or null for all
+     */
+    private void invalidateProducts(Collection<String> codes) {
+        StockReservations reservations = stockReservations;
+        if (reservations != null) {
+            reservations.refresh(codes);
+        }
+        ProductCache cache = productCache;
+        if (cache != null) {
+            synchronized (cache) {
+                productChanges++;
+                if (codes == null) {
+                    cache.clear();
+                } else {
+                    for (String code : codes) {
+                        cache.invalidate(code);
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidateCategoryTree() {
+        synchronized (categoryTreeLock) {
+            categoryChanges++;
+            categoryTree = null;
+        }
+    }
+
+    /**
+     * gets the tree of categories, loading it if not loaded yet
+     *
+     * @return the tree, empty if there are no categories or in case of error
+     */
+    private CategoryTree categoryTree() {
+        CategoryTree tree = categoryTree;
+        if (tree == null) {
+            long changes;
+            synchronized (categoryTreeLock) {
+                changes = categoryChanges;
+            }
+            List<Category> all = categoryDao.selectAll();
+            tree = new CategoryTree(all);
+            //an empty list may be an error, so it is not kept
+            synchronized (categoryTreeLock) {
+                if (categoryChanges == changes && !all.isEmpty()) {
+                    categoryTree = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    private void pinHotProducts() {
+        ProductCache cache = productCache;
+        int n = pinnedProducts;
+        if (cache != null && n > 0) {
+            List<String> codes = new ArrayList<>();
+            for (HeavyHitters.Entry<String> e : hotProducts.top(n)) {
+                codes.add(e.getKey());
+            }
+            cache.pin(codes);
+        }
+    }
+
+    /**
+     * sets the cache of products looked up by code
+     *
+     * @param cache the cache, or null for none
+     * @param pinned number of most looked up products to keep pinned in the
+     * cache, refreshed every HOT_WINDOW lookups; 0 for none
+     */
+    public void setProductCache(ProductCache cache, int pinned) {
+        this.productCache = cache;
+        this.pinnedProducts = Math.min(pinned, HOT_PRODUCTS);
+        pinHotProducts();
+    }
+
+    /**
+     * joins a bus of processes sharing the database: changes made here are
+     * told to the others, and changes made by the others are dropped from
+     * the cache; lost messages drop the whole cache
+     *
+     * @param transport the transport of the bus
+     * @throws IOException if the transport can not be started
+     */
+    public void joinInvalidationBus(InvalidationTransport transport) throws IOException {
+        InvalidationBus old = invalidationBus;
+        invalidationBus = new InvalidationBus(transport, new InvalidationBus.Listener() {
+            @Override
+            public void productsInvalidated(Collection<String> codes) {
+                invalidateProducts(codes);
+                forgetInFlight();
+            }
+
+            @Override
+            public void categoriesInvalidated(Collection<Long> ids) {
+                invalidateCategoryTree();
+                forgetInFlight();
+            }
+
+            @Override
+            public void allInvalidated() {
+                invalidateProducts(null);
+                invalidateCategoryTree();
+                forgetInFlight();
+            }
+        });
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * leaves the bus of processes sharing the database, if joined, after
+     * telling them of pending changes
+     */
+    public void leaveInvalidationBus() {
+        InvalidationBus bus = invalidationBus;
+        invalidationBus = null;
+        if (bus != null) {
+            bus.close();
+        }
+    }
+
+    /**
+     * gets the product codes looked up most often lately
+     *
+     * @param n maximum number of codes
+     * @return codes and estimated lookup counts, most frequent first
+     */
+    public List<HeavyHitters.Entry<String>> findHotProducts(int n) {
+        return hotProducts.top(n);
+    }
+
+    /**
+     * gets the change counter of products, which changes whenever a product
+     * is added, modified or removed, e.g. to tell whether a saved cache is
+     * still current
+     *
+     * @return the counter, or -1 if it can not be read
+     */
+    public long findCatalogVersion() {
+        return productDao.selectCatalogVersion();
+    }
+
+    private Category categoryById(Category category) {
+        return categoriesById.get(category.getId(), () -> categoryDao.select(category));
     }
 
     /**
@@ -26,27 +467,36 @@ public class StoreModel {
     
     /**
      * adds a category to data source, preventing duplicates in unique keys and
-     * null values
+     * null values; its parent, if any, must exist
      *
      * @param category the category to add
      * @return result code: 1 for success, 0 if fail (change as necessary)
      */
     public int addCategory(Category category) {
-        int result = 0;
-        if (category != null) { 
-            //perform proper validations before attempting insertion
-            boolean dataValid = true;
-            String code = category.getCode();
-            if (code==null) dataValid = false; //code must not be null
-            else { //assess that code does not exist
-                Category c = categoryDao.selectWhereCode(code);
-                if (c != null) dataValid = false;
-            }
-            if (dataValid) {  //perform insertion
-                result = categoryDao.insert(category);
+        long start = ADD_CATEGORY_STATS.start();
+        try {
+            int result = 0;
+            if (category != null) { 
+                //perform proper validations before attempting insertion
+                boolean dataValid = true;
+                String code = category.getCode();
+                if (code==null) dataValid = false; //code must not be null
+                else { //assess that code does not exist
+                    Category c = categoryDao.selectWhereCode(code);
+                    if (c != null) dataValid = false;
+                }
+                long parentId = category.getParentId();
+                if ((parentId != 0) && !categoryTree().contains(parentId)) dataValid = false;
+                if (dataValid) {  //perform insertion
+                    result = categoryDao.insert(category);
+                    categoriesChanged(null);
+                }
             }
+            forgetInFlight();
+            return result;
+        } finally {
+            ADD_CATEGORY_STATS.stop(start);
         }
-        return result;
     }
 
     /**
@@ -57,32 +507,94 @@ public class StoreModel {
      * @return result code: 1 for success, 0 if fail (change as necessary)
      */
     public int modifyCategory(Category oldC, Category newC) {
-        int result = 0;
-        if ((oldC != null) && (newC != null)) { //perform proper validations before attempting insertion
-            result = categoryDao.update(oldC, newC);
+        long start = MODIFY_CATEGORY_STATS.start();
+        try {
+            int result = 0;
+            if ((oldC != null) && (newC != null)) { //perform proper validations before attempting insertion
+                result = categoryDao.update(oldC, newC);
+                categoriesChanged(List.of(oldC));
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            MODIFY_CATEGORY_STATS.stop(start);
         }
-        return result;
     }
     public int modifyProduct(Product oldP, Product newP) {
-        int result = 0;
-        if ((oldP != null) && (newP != null)) { //perform proper validations before attempting insertion
-            result = productDao.update(oldP, newP);
+        long start = MODIFY_PRODUCT_STATS.start();
+        try {
+            int result = 0;
+            if ((oldP != null) && (newP != null)) { //perform proper validations before attempting insertion
+                result = productDao.update(oldP, newP);
+                productsChanged(List.of(oldP));
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            MODIFY_PRODUCT_STATS.stop(start);
         }
-        return result;
     }
     public int dropCategory(Category cat) {
-        int result = 0;
-        if (cat != null) { //perform proper validations before attempting insertion
-            result = categoryDao.delete(cat);
+        long start = DROP_CATEGORY_STATS.start();
+        try {
+            int result = 0;
+            //categories with children are not dropped
+            if ((cat != null) && categoryTree().children(cat.getId()).isEmpty()) {
+                //products may be kept in other databases than categories, when sharded
+                if (productDao.deleteWhereCategory(cat) >= 0) {
+                    result = categoryDao.delete(cat);
+                }
+                productsChanged(null);
+                categoriesChanged(List.of(cat));
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            DROP_CATEGORY_STATS.stop(start);
+        }
+    }
+
+    /**
+     * moves a category, with its subtree, under another parent
+     *
+     * @param category the category to move
+     * @param parent the new parent, or null to make it a top level category;
+     * it must not be in the subtree of the category
+     * @return result code: 1 for success, 0 if fail
+     */
+    public int moveCategory(Category category, Category parent) {
+        long start = MOVE_CATEGORY_STATS.start();
+        try {
+            int result = 0;
+            if (category != null) {
+                CategoryTree tree = categoryTree();
+                long parentId = (parent != null) ? parent.getId() : 0;
+                boolean dataValid = tree.contains(category.getId())
+                        && ((parentId == 0) || (tree.contains(parentId) && !tree.isInSubtree(parentId, category.getId())));
+                if (dataValid) {
+                    result = Math.max(categoryDao.updateParent(category, parentId), 0);
+                    categoriesChanged(List.of(category));
+                }
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            MOVE_CATEGORY_STATS.stop(start);
         }
-        return result;
     }
     public int dropProduct(Product p) {
-        int result = 0;
-        if (p != null) { //perform proper validations before attempting insertion
-            result = productDao.delete(p);
+        long start = DROP_PRODUCT_STATS.start();
+        try {
+            int result = 0;
+            if (p != null) { //perform proper validations before attempting insertion
+                result = productDao.delete(p);
+                productsChanged(List.of(p));
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            DROP_PRODUCT_STATS.stop(start);
         }
-        return result;
     }
 
     /**
@@ -91,7 +603,13 @@ public class StoreModel {
      * @return list with all categories or null in case of error
      */
     public List<Category> findAllCategories() {
-        return categoryDao.selectAll();
+        long start = FIND_ALL_CATEGORIES_STATS.start();
+        try {
+            List<Category> result = categoryDao.selectAll();
+            return result;
+        } finally {
+            FIND_ALL_CATEGORIES_STATS.stop(start);
+        }
     }
 
     /**
@@ -101,18 +619,69 @@ public class StoreModel {
      * @return category found or null if not found or in case of error
      */
     public Category findCategoryByCode(String code) {
-        Category c = null;
-        if (code != null) {
-            c = categoryDao.selectWhereCode(code);
+        long start = FIND_CATEGORY_BY_CODE_STATS.start();
+        try {
+            Category c = null;
+            if (code != null) {
+                c = categoriesByCode.get(code, () -> categoryDao.selectWhereCode(code));
+            }
+            return c;
+        } finally {
+            FIND_CATEGORY_BY_CODE_STATS.stop(start);
         }
-        return c;
     }
+
+    /**
+     * finds the ancestors of a category, from the tree of categories
+     *
+     * @param category the category
+     * @return list of ancestors, from the top level one to the parent, empty
+     * if none or not found
+     */
+    public List<Category> findCategoryAncestors(Category category) {
+        long start = FIND_CATEGORY_ANCESTORS_STATS.start();
+        try {
+            List<Category> result = null;
+            if (category != null) {
+                result = categoryTree().ancestors(category.getId());
+            }
+            return result;
+        } finally {
+            FIND_CATEGORY_ANCESTORS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds a category and its descendants, from the tree of categories
+     *
+     * @param category the root of the subtree
+     * @return list of categories, parents before children, empty if not
+     * found
+     */
+    public List<Category> findCategorySubtree(Category category) {
+        long start = FIND_CATEGORY_SUBTREE_STATS.start();
+        try {
+            List<Category> result = null;
+            if (category != null) {
+                result = categoryTree().subtree(category.getId());
+            }
+            return result;
+        } finally {
+            FIND_CATEGORY_SUBTREE_STATS.stop(start);
+        }
+    }
+
     public Category findCategoryByName(String name) {
-        Category c = null;
-        if (name != null) {
-            c = categoryDao.selectWhereName(name);
+        long start = FIND_CATEGORY_BY_NAME_STATS.start();
+        try {
+            Category c = null;
+            if (name != null) {
+                c = categoryDao.selectWhereName(name);
+            }
+            return c;
+        } finally {
+            FIND_CATEGORY_BY_NAME_STATS.stop(start);
         }
-        return c;
     }
 
     /**
@@ -125,25 +694,31 @@ public class StoreModel {
      * @param product the category to add
      * @return result code: 1 for success, 0 if fail (change as necessary)
      */
-    public int addProduct(Product product) throws SQLException {
-        int result = 0;
-        if (product != null) {
-            //perform proper validations before attempting insertion
-            boolean dataValid = true;
-            String code = product.getCode();
-            if (code==null) dataValid = false; //code must not be null
-            else { //assess that code does not exist
-                Product p = productDao.selectWhereCode(code);
-                if (p != null) dataValid = false;
-            }
-            //get category from database
-            Category cat = categoryDao.select(product.getCategory());
-            if (cat == null) dataValid = false;  //category must exist
-            if (dataValid) {  //perform insertion
-                result = productDao.insert(product);
+    public int addProduct(Product product) {
+        long start = ADD_PRODUCT_STATS.start();
+        try {
+            int result = 0;
+            if (product != null) {
+                //perform proper validations before attempting insertion
+                boolean dataValid = true;
+                String code = product.getCode();
+                if (code==null) dataValid = false; //code must not be null
+                else { //assess that code does not exist
+                    Product p = productByCode(code);
+                    if (p != null) dataValid = false;
+                }
+                //get category from database
+                Category cat = categoryById(product.getCategory());
+                if (cat == null) dataValid = false;  //category must exist
+                if (dataValid) {  //perform insertion
+                    result = productDao.insert(product);
+                }
             }
+            forgetInFlight();
+            return result;
+        } finally {
+            ADD_PRODUCT_STATS.stop(start);
         }
-        return result;
     }
 
     /**
@@ -152,7 +727,13 @@ public class StoreModel {
      * @return list of all products or null in case of error
      */
     public List<Product> findAllProducts() {
-        return productDao.selectAll();
+        long start = FIND_ALL_PRODUCTS_STATS.start();
+        try {
+            List<Product> result = productDao.selectAll();
+            return result;
+        } finally {
+            FIND_ALL_PRODUCTS_STATS.stop(start);
+        }
     }
 
     /**
@@ -162,25 +743,60 @@ public class StoreModel {
      * @return category found or null if not found or in case of error
      */
     public Product findProductByCode(String code) {
-        Product c = null;
-        if (code != null) {
-            c = productDao.selectWhereCode(code);
+        long start = FIND_PRODUCT_BY_CODE_STATS.start();
+        try {
+            Product c = null;
+            if (code != null) {
+                c = productByCode(code);
+            }
+            return c;
+        } finally {
+            FIND_PRODUCT_BY_CODE_STATS.stop(start);
         }
-        return c;
     }
     public Product findProductByName(String name) {
-        Product c = null;
-        if (name != null) {
-            c = productDao.selectWhereName(name);
+        long start = FIND_PRODUCT_BY_NAME_STATS.start();
+        try {
+            Product c = null;
+            if (name != null) {
+                c = productDao.selectWhereName(name);
+            }
+            return c;
+        } finally {
+            FIND_PRODUCT_BY_NAME_STATS.stop(start);
         }
-        return c;
     }
     public List<Product> findProductByMinStock(int minStock) {
-        List<Product> result = null;
-        if (minStock > 0) {
-            result = productDao.selectWhereMinStock(minStock);
+        long start = FIND_PRODUCT_BY_MIN_STOCK_STATS.start();
+        try {
+            List<Product> result = null;
+            if (minStock > 0) {
+                result = productDao.selectWhereMinStock(minStock);
+            }
+            return result;
+        } finally {
+            FIND_PRODUCT_BY_MIN_STOCK_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds products that meet some criteria, filtering, sorting and limiting
+     * them in the data source rather than here
+     *
+     * @param criteria the filters, order and limit
+     * @return the products found, or null if criteria is null
+     */
+    public List<Product> findProducts(ProductCriteria criteria) {
+        long start = FIND_PRODUCTS_STATS.start();
+        try {
+            List<Product> result = null;
+            if (criteria != null) {
+                result = productDao.selectWhere(criteria);
+            }
+            return result;
+        } finally {
+            FIND_PRODUCTS_STATS.stop(start);
         }
-        return result;
     }
 
     /**
@@ -193,11 +809,41 @@ public class StoreModel {
      * @return list of products of given category or null in case of error
      */
     public List<Product> findProductsByCategory(Category category) {
-        List<Product> result = null;
-        if (category != null) {
-            result = productDao.selectWhereCategory(category);
+        long start = FIND_PRODUCTS_BY_CATEGORY_STATS.start();
+        try {
+            List<Product> result = null;
+            if (category != null) {
+                result = productsByCategory.get(category.getId(), () -> productDao.selectWhereCategory(category));
+            }
+            return result;
+        } finally {
+            FIND_PRODUCTS_BY_CATEGORY_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds all products belonging to given category or to any of its
+     * descendants, in a single query; categories not in the tree of
+     * categories have none, without querying
+     *
+     * @param category the root of the subtree
+     * @return list of products of the subtree or null in case of error
+     */
+    public List<Product> findProductsInSubtree(Category category) {
+        long start = FIND_PRODUCTS_IN_SUBTREE_STATS.start();
+        try {
+            List<Product> result = null;
+            if (category != null) {
+                if (categoryTree().contains(category.getId())) {
+                    result = productDao.selectWhereSubtree(category);
+                } else {
+                    result = new ArrayList<>();
+                }
+            }
+            return result;
+        } finally {
+            FIND_PRODUCTS_IN_SUBTREE_STATS.stop(start);
         }
-        return result;
     }
 
     /**
@@ -208,16 +854,562 @@ public class StoreModel {
      * @return product found or null in case of error
      */
     public Product findProductWithCategory(Product product) {
-        Product p = null;
-        if (product != null) {
-            p = productDao.select(product);
-            if (p != null) {
-                Category c = categoryDao.select(p.getCategory());
-                if (c != null) {
-                    p.setCategory(c);
+        long start = FIND_PRODUCT_WITH_CATEGORY_STATS.start();
+        try {
+            Product p = null;
+            if (product != null) {
+                p = productsById.get(product.getId(), () -> productDao.select(product));
+                if (p != null) {
+                    Category c = categoryById(p.getCategory());
+                    if (c != null) {
+                        p.setCategory(c);
+                    }
                 }
             }
+            return p;
+        } finally {
+            FIND_PRODUCT_WITH_CATEGORY_STATS.stop(start);
         }
-        return p;
+    }
+
+    /**
+     * prices a basket, adding up the price of each product times its
+     * quantity with exact fixed-point arithmetic
+     *
+     * @param basket quantities by product code, not negative
+     * @return total in minor units (see Money), or -1 if a product is not
+     * found, a quantity is missing or negative, the total overflows or in
+     * case of error
+     */
+    public long priceBasket(Map<String, Integer> basket) {
+        long start = PRICE_BASKET_STATS.start();
+        try {
+            long total = (basket != null) ? 0 : -1;
+            Iterator<Map.Entry<String, Integer>> items = (basket != null) ? basket.entrySet().iterator() : null;
+            try {
+                while (total >= 0 && items.hasNext()) {
+                    Map.Entry<String, Integer> item = items.next();
+                    Integer quantity = item.getValue();
+                    Product p = (item.getKey() != null && quantity != null && quantity >= 0)
+                            ? productByCode(item.getKey()) : null;
+                    if (p != null) {
+                        total = Money.plus(total, Money.times(p.getPrice(), quantity));
+                    } else {
+                        total = -1;
+                    }
+                }
+            } catch (ArithmeticException ex) {
+                //the total does not fit in a long
+                total = -1;
+            }
+            return total;
+        } finally {
+            PRICE_BASKET_STATS.stop(start);
+        }
+    }
+
+    /**
+     * places an order for a basket: in a single transaction, all of its
+     * products are read at once and, if found with enough stock, their
+     * stock is decremented and the order is inserted. Stock held by
+     * reservations is not sold: the quantities of the basket are held as
+     * reservations while the order is placed, so that reservations made
+     * meanwhile do not take them too.
+     *
+     * @param basket quantities by product code, greater than 0
+     * @return the order placed, or null if the basket is empty, a product is
+     * not found or its stock is not enough, or in case of error
+     */
+    public Order checkout(Map<String, Integer> basket) {
+        long start = CHECKOUT_STATS.start();
+        try {
+            Order order = null;
+            //perform proper validations before attempting the order
+            boolean dataValid = (basket != null) && !basket.isEmpty();
+            if (dataValid) {
+                for (Map.Entry<String, Integer> item : basket.entrySet()) {
+                    if (item.getKey() == null || item.getValue() == null || item.getValue() <= 0) {
+                        dataValid = false;
+                    }
+                }
+            }
+            //hold the stock to sell, unless no reservations are made
+            StockReservations reservations = stockReservations;
+            List<Long> holds = new ArrayList<>();
+            if (dataValid && reservations != null) {
+                for (Map.Entry<String, Integer> item : basket.entrySet()) {
+                    long id = reservations.reserve(item.getKey(), item.getValue(), CHECKOUT_HOLD_MILLIS);
+                    if (id < 0) {
+                        dataValid = false;
+                        break;
+                    }
+                    holds.add(id);
+                }
+            }
+            try {
+                if (dataValid) {
+                    order = orderDao.insert(basket);
+                }
+                if (order != null) {
+                    List<String> codes = new ArrayList<>(order.getLines().size());
+                    for (OrderLine line : order.getLines()) {
+                        codes.add(line.getCode());
+                    }
+                    //stock sold is read again before the holds go
+                    codesChanged(codes);
+                    forgetInFlight();
+                }
+            } finally {
+                for (long id : holds) {
+                    reservations.release(id);
+                }
+            }
+            return order;
+        } finally {
+            CHECKOUT_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds an order with its lines
+     *
+     * @param id id of the order
+     * @return the order, or null if not found or in case of error
+     */
+    public Order findOrder(long id) {
+        long start = FIND_ORDER_STATS.start();
+        try {
+            Order order = orderDao.select(id);
+            return order;
+        } finally {
+            FIND_ORDER_STATS.stop(start);
+        }
+    }
+
+    /**
+     * Stock reservations: stock held while a customer checks out, see
+     * StockReservations
+     */
+    private StockReservations stockReservations() {
+        StockReservations reservations = stockReservations;
+        if (reservations == null) {
+            synchronized (this) {
+                reservations = stockReservations;
+                if (reservations == null) {
+                    reservations = new StockReservations(productDao, this::codesChanged);
+                    stockReservations = reservations;
+                }
+            }
+        }
+        return reservations;
+    }
+
+    /**
+     * reserves stock of a product for a while
+     *
+     * @param code code of the product
+     * @param quantity quantity to reserve
+     * @param ttlMillis milliseconds after which the reservation expires
+     * @return id of the reservation, or -1 if the product is not found or
+     * not enough stock is available
+     */
+    public long reserveStock(String code, int quantity, long ttlMillis) {
+        long start = RESERVE_STOCK_STATS.start();
+        try {
+            long result = (code != null) ? stockReservations().reserve(code, quantity, ttlMillis) : -1;
+            return result;
+        } finally {
+            RESERVE_STOCK_STATS.stop(start);
+        }
+    }
+
+    /**
+     * confirms a reservation: its stock is sold, and subtracted from the
+     * stock of the product shortly after
+     *
+     * @param id id of the reservation
+     * @return true if confirmed, false if not found, expired or released
+     */
+    public boolean confirmReservation(long id) {
+        long start = CONFIRM_RESERVATION_STATS.start();
+        try {
+            boolean result = stockReservations().confirm(id);
+            return result;
+        } finally {
+            CONFIRM_RESERVATION_STATS.stop(start);
+        }
+    }
+
+    /**
+     * releases a reservation, making its stock available again
+     *
+     * @param id id of the reservation
+     * @return true if released, false if not found, expired or confirmed
+     */
+    public boolean releaseReservation(long id) {
+        long start = RELEASE_RESERVATION_STATS.start();
+        try {
+            boolean result = stockReservations().release(id);
+            return result;
+        } finally {
+            RELEASE_RESERVATION_STATS.stop(start);
+        }
+    }
+
+    /**
+     * gets the stock of a product available to sell, less stock reserved
+     *
+     * @param code code of the product
+     * @return available stock, or -1 if the product is not found
+     */
+    public int findAvailableStock(String code) {
+        long start = FIND_AVAILABLE_STOCK_STATS.start();
+        try {
+            int result = (code != null) ? stockReservations().available(code) : -1;
+            return result;
+        } finally {
+            FIND_AVAILABLE_STOCK_STATS.stop(start);
+        }
+    }
+
+    /**
+     * writes the stock of confirmed reservations now, e.g. before exit
+     */
+    public void flushReservations() {
+        StockReservations reservations = stockReservations;
+        if (reservations != null) {
+            reservations.flush();
+        }
+    }
+
+    /**
+     * streams all products, with their category data loaded, to a consumer.
+     * The same product instance is reused for every row.
+     *
+     * @param groupByCategory true to get products grouped by category
+     * @param consumer the consumer of each product
+     * @return number of products, or -1 in case of error
+     */
+    public long exportProducts(boolean groupByCategory, Consumer<Product> consumer) {
+        long start = EXPORT_PRODUCTS_STATS.start();
+        try {
+            long result = productDao.scanAll(groupByCategory, consumer);
+            return result;
+        } finally {
+            EXPORT_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * Batch data services: each call runs its writes in a single transaction
+     */
+    /**
+     * adds a list of categories to data source, with the same validations as
+     * addCategory
+     *
+     * @param categories the categories to add
+     * @return for each category, 1 for success or 0 if fail
+     */
+    public int[] addCategories(List<Category> categories) {
+        long start = ADD_CATEGORIES_STATS.start();
+        try {
+            int[] result = new int[categories.size()];
+            Set<String> codes = new HashSet<>();
+            for (Category c : categories) {
+                if ((c != null) && (c.getCode() != null)) {
+                    codes.add(c.getCode());
+                }
+            }
+            //assess with a single query which codes already exist
+            Set<String> existing = categoryDao.selectExistingCodes(codes);
+            CategoryTree tree = categoryTree();
+            if (existing != null) {
+                List<Category> valid = new ArrayList<>();
+                int[] positions = new int[categories.size()];
+                Set<String> seen = new HashSet<>();
+                for (int i = 0; i < categories.size(); i++) {
+                    Category c = categories.get(i);
+                    boolean dataValid = (c != null) && (c.getCode() != null)
+                            && !existing.contains(c.getCode())
+                            && ((c.getParentId() == 0) || tree.contains(c.getParentId()))
+                            && seen.add(c.getCode());  //no duplicates within the batch
+                    if (dataValid) {
+                        positions[valid.size()] = i;
+                        valid.add(c);
+                    }
+                }
+                int[] inserted = categoryDao.insertBatch(valid);
+                for (int j = 0; j < inserted.length; j++) {
+                    result[positions[j]] = inserted[j];
+                }
+                categoriesChanged(null);
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            ADD_CATEGORIES_STATS.stop(start);
+        }
+    }
+
+    /**
+     * adds a list of products to data source, with the same validations as
+     * addProduct
+     *
+     * @param products the products to add
+     * @return for each product, 1 for success or 0 if fail
+     */
+    public int[] addProducts(List<Product> products) {
+        long start = ADD_PRODUCTS_STATS.start();
+        try {
+            int[] result = new int[products.size()];
+            Set<String> codes = new HashSet<>();
+            for (Product p : products) {
+                if ((p != null) && (p.getCode() != null)) {
+                    codes.add(p.getCode());
+                }
+            }
+            //assess with a single query which codes already exist
+            Set<String> existing = productDao.selectExistingCodes(codes);
+            //categories are few: check their existence against all ids
+            Set<Long> categoryIds = categoryDao.selectAllIds();
+            if ((existing != null) && (categoryIds != null)) {
+                List<Product> valid = new ArrayList<>();
+                int[] positions = new int[products.size()];
+                Set<String> seen = new HashSet<>();
+                for (int i = 0; i < products.size(); i++) {
+                    Product p = products.get(i);
+                    boolean dataValid = (p != null) && (p.getCode() != null)
+                            && !existing.contains(p.getCode())
+                            && (p.getCategory() != null)
+                            && categoryIds.contains(p.getCategory().getId())
+                            && seen.add(p.getCode());  //no duplicates within the batch
+                    if (dataValid) {
+                        positions[valid.size()] = i;
+                        valid.add(p);
+                    }
+                }
+                int[] inserted = productDao.insertBatch(valid);
+                for (int j = 0; j < inserted.length; j++) {
+                    result[positions[j]] = inserted[j];
+                }
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            ADD_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * modifies name, stock and price of a list of products identified by
+     * their code
+     *
+     * @param products the products with their new values
+     * @return for each product, 1 for success or 0 if fail
+     */
+    public int[] modifyProducts(List<Product> products) {
+        long start = MODIFY_PRODUCTS_STATS.start();
+        try {
+            List<Product> valid = withoutNulls(products);
+            int[] result = productDao.updateBatch(valid);
+            productsChanged(valid);
+            forgetInFlight();
+            return result;
+        } finally {
+            MODIFY_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * removes a list of products identified by their code
+     *
+     * @param products the products to remove
+     * @return for each product, 1 for success or 0 if fail
+     */
+    public int[] dropProducts(List<Product> products) {
+        long start = DROP_PRODUCTS_STATS.start();
+        try {
+            List<Product> valid = withoutNulls(products);
+            int[] result = productDao.deleteBatch(valid);
+            productsChanged(valid);
+            forgetInFlight();
+            return result;
+        } finally {
+            DROP_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * synchronizes categories with the given list: categories whose code
+     * does not exist are inserted, the others are updated
+     *
+     * @param categories the categories to write
+     * @return counters of inserted, updated, unchanged and rejected
+     * categories; categories without code, and all but the last occurrence
+     * of repeated codes, are rejected
+     */
+    public SyncResult syncCategories(List<Category> categories) {
+        long start = SYNC_CATEGORIES_STATS.start();
+        try {
+            Map<String, Category> byCode = new LinkedHashMap<>();
+            int rejected = 0;
+            for (Category c : categories) {
+                boolean dataValid = (c != null) && (c.getCode() != null) && (c.getName() != null);
+                if (!dataValid || (byCode.put(c.getCode(), c) != null)) {
+                    rejected++;
+                }
+            }
+            SyncResult result = categoryDao.upsertBatch(new ArrayList<>(byCode.values()));
+            result.add(new SyncResult(0, 0, 0, rejected));
+            //ids of updated categories are not known here
+            categoriesChanged(null);
+            forgetInFlight();
+            return result;
+        } finally {
+            SYNC_CATEGORIES_STATS.stop(start);
+        }
+    }
+
+    /**
+     * synchronizes products with the given list: products whose code does
+     * not exist are inserted, the others are updated, in batched statements
+     * within a single transaction
+     *
+     * @param products the products to write
+     * @return counters of inserted, updated, unchanged and rejected products;
+     * products without code or whose category does not exist, and all but
+     * the last occurrence of repeated codes, are rejected
+     */
+    public SyncResult syncProducts(List<Product> products) {
+        long start = SYNC_PRODUCTS_STATS.start();
+        try {
+            SyncResult result = new SyncResult(0, 0, 0, products.size());
+            Set<Long> categoryIds = categoryDao.selectAllIds();
+            if (categoryIds != null) {
+                Map<String, Product> byCode = new LinkedHashMap<>();
+                int rejected = 0;
+                for (Product p : products) {
+                    boolean dataValid = (p != null) && (p.getCode() != null) && (p.getName() != null)
+                            && (p.getCategory() != null) && categoryIds.contains(p.getCategory().getId());
+                    if (!dataValid || (byCode.put(p.getCode(), p) != null)) {
+                        rejected++;
+                    }
+                }
+                result = productDao.upsertBatch(new ArrayList<>(byCode.values()));
+                result.add(new SyncResult(0, 0, 0, rejected));
+                productsChanged(byCode.values());
+            }
+            forgetInFlight();
+            return result;
+        } finally {
+            SYNC_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * inserts a list of categories that have already been validated by the
+     * caller, in a single transaction
+     *
+     * @param categories the categories to insert
+     * @return for each category, 1 for success or 0 if fail
+     */
+    public int[] importCategories(List<Category> categories) {
+        long start = IMPORT_CATEGORIES_STATS.start();
+        try {
+            int[] result = categoryDao.insertBatch(categories);
+            categoriesChanged(null);
+            forgetInFlight();
+            return result;
+        } finally {
+            IMPORT_CATEGORIES_STATS.stop(start);
+        }
+    }
+
+    /**
+     * inserts a list of products that have already been validated by the
+     * caller, in a single transaction
+     *
+     * @param products the products to insert
+     * @return for each product, 1 for success or 0 if fail
+     */
+    public int[] importProducts(List<Product> products) {
+        long start = IMPORT_PRODUCTS_STATS.start();
+        try {
+            int[] result = productDao.insertBatch(products);
+            forgetInFlight();
+            return result;
+        } finally {
+            IMPORT_PRODUCTS_STATS.stop(start);
+        }
+    }
+
+    /**
+     * brings the catalog of this model up to date with the catalog of
+     * another one, such as the primary database, copying only the
+     * categories and product rows that differ, found by comparing digests
+     *
+     * @param source the model to copy from
+     * @return the synchronization run, with its counters
+     */
+    public CatalogSync syncCatalogFrom(StoreModel source) {
+        long start = SYNC_CATALOG_FROM_STATS.start();
+        try {
+            CatalogSync sync = new CatalogSync(source.categoryDao, source.productDao, categoryDao, productDao);
+            if (!sync.run()) {
+                SYNC_CATALOG_FROM_STATS.error();
+            }
+            codesChanged(sync.getChangedCodes());
+            if (sync.getCategoriesWritten() > 0 || sync.getCategoriesRemoved() > 0) {
+                categoriesChanged(null);
+            }
+            forgetInFlight();
+            return sync;
+        } finally {
+            SYNC_CATALOG_FROM_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds which of the given category codes already exist
+     *
+     * @param codes the codes to find
+     * @return existing codes or null in case of error
+     */
+    public Set<String> findExistingCategoryCodes(Collection<String> codes) {
+        long start = FIND_EXISTING_CATEGORY_CODES_STATS.start();
+        try {
+            Set<String> result = categoryDao.selectExistingCodes(codes);
+            return result;
+        } finally {
+            FIND_EXISTING_CATEGORY_CODES_STATS.stop(start);
+        }
+    }
+
+    /**
+     * finds which of the given product codes already exist
+     *
+     * @param codes the codes to find
+     * @return existing codes or null in case of error
+     */
+    public Set<String> findExistingProductCodes(Collection<String> codes) {
+        long start = FIND_EXISTING_PRODUCT_CODES_STATS.start();
+        try {
+            Set<String> result = productDao.selectExistingCodes(codes);
+            return result;
+        } finally {
+            FIND_EXISTING_PRODUCT_CODES_STATS.stop(start);
+        }
+    }
+
+    /**
+     * replaces null elements or elements without code with a product that
+     * matches no row, so that results keep the positions of the input list
+     */
+    private static List<Product> withoutNulls(List<Product> products) {
+        List<Product> list = new ArrayList<>(products.size());
+        for (Product p : products) {
+            list.add(((p != null) && (p.getCode() != null)) ? p : new Product(0, "", "", 0, 0, null));
+        }
+        return list;
     }
 }
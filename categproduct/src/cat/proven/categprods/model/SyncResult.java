@@ -0,0 +1,78 @@
+package cat.proven.categprods.model;
+
+/**
+ * Counters of a synchronization (upsert) operation
+ *
+ * @author ProvenSoft
+ */
+public class SyncResult {
+
+    private int inserted;
+    private int updated;
+    private int unchanged;
+    private int rejected;
+
+    public SyncResult() {
+    }
+
+    public SyncResult(int inserted, int updated, int unchanged, int rejected) {
+        this.inserted = inserted;
+        this.updated = updated;
+        this.unchanged = unchanged;
+        this.rejected = rejected;
+    }
+
+    /**
+     * adds the counters of another result to this one
+     *
+     * @param other the result to add
+     */
+    public void add(SyncResult other) {
+        this.inserted += other.inserted;
+        this.updated += other.updated;
+        this.unchanged += other.unchanged;
+        this.rejected += other.rejected;
+    }
+
+    /**
+     * @return number of rows that did not exist and have been inserted
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    /**
+     * @return number of existing rows whose values have changed
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return number of existing rows that already had the given values
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return number of rows not written because they were not valid or
+     * because of an error
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SyncResult{");
+        sb.append("inserted=").append(inserted);
+        sb.append(", updated=").append(updated);
+        sb.append(", unchanged=").append(unchanged);
+        sb.append(", rejected=").append(rejected);
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,344 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.metrics.CacheLookupEvent;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Product cache kept in a memory-mapped file, so that it outlives the
+ * process: a restarted process finds the products cached before, as fast
+ * as memory once the pages of the file are loaded, which open does in the
+ * background.
+ *
+ * The file is a hash table of fixed-size slots with linear probing, after a
+ * header holding the version of the catalog its content matches (epoch) and
+ * whether it was closed cleanly. Open discards the content unless both the
+ * file was closed cleanly and its epoch is the current version of the
+ * catalog; close writes the version given. This trusts the cache to have
+ * been told of every change made while it was open, which holds for a
+ * single process, or for processes that share invalidations.
+ *
+ * Slots fit the record of any product the schema allows; products whose
+ * record does not fit, with longer strings, are not cached. When the
+ * table is three quarters full, the entry under a clock hand going round
+ * the table is evicted for each new one. Pinning is ignored: the file is
+ * meant to hold the whole working set.
+ *
+ * @author ProvenSoft
+ */
+public class DiskProductCache implements ProductCache, Closeable {
+
+    private static final String NAME = "products.disk";
+
+    private static final long MAGIC = 0x4350_4C32_4341_4348L;
+    private static final int FORMAT = 2;
+    /**
+     * fits the longest record of a product whose code, name, category code
+     * and category name fit the columns of storedb.sql (10, 20, 10 and 20
+     * chars): 52 bytes plus 2 per char, 172 bytes
+     */
+    private static final int SLOT_SIZE = 192;
+    private static final int HEADER_SIZE = 4096;
+    /*
+     * header layout
+     */
+    private static final int MAGIC_AT = 0;
+    private static final int FORMAT_AT = 8;
+    private static final int SLOT_SIZE_AT = 12;
+    private static final int SLOTS_AT = 16;
+    private static final int CLEAN_AT = 20;
+    private static final int EPOCH_AT = 24;
+    private static final int ENTRIES_AT = 32;
+    private static final int HAND_AT = 36;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slots;
+    private final int maxEntries;
+    private final boolean reused;
+    private final ReadWriteLock lock;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    private DiskProductCache(Path file, FileChannel channel, MappedByteBuffer map, int slots, boolean reused) {
+        this.file = file;
+        this.channel = channel;
+        this.map = map;
+        this.slots = slots;
+        this.maxEntries = slots / 4 * 3;
+        this.reused = reused;
+        this.lock = new ReentrantReadWriteLock();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * opens a cache file, creating it if it does not exist, and starts
+     * loading its pages in the background
+     *
+     * @param file the file
+     * @param capacity number of products the file can hold; a file of
+     * another capacity is recreated
+     * @param version current version of the catalog
+     * @return the cache
+     * @throws IOException if the file can not be opened or mapped
+     */
+    public static DiskProductCache open(Path file, int capacity, long version) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(2, capacity * 4 / 3)) << 1;
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Cache file too large for " + capacity + " products");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean sameShape = (channel.size() == size);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            boolean valid = sameShape && map.getLong(MAGIC_AT) == MAGIC && map.getInt(FORMAT_AT) == FORMAT
+                    && map.getInt(SLOT_SIZE_AT) == SLOT_SIZE && map.getInt(SLOTS_AT) == slots
+                    && map.getInt(CLEAN_AT) == 1 && map.getLong(EPOCH_AT) == version;
+            DiskProductCache cache = new DiskProductCache(file, channel, map, slots, valid);
+            if (!valid) {
+                cache.reset(version);
+            }
+            //until closed, a crash leaves the content unknown
+            map.putInt(CLEAN_AT, 0);
+            map.force();
+            Thread loader = new Thread(map::load, "disk-cache-load");
+            loader.setDaemon(true);
+            loader.start();
+            return cache;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void reset(long version) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < slots; i++) {
+                map.putInt(offset(i), 0);
+            }
+            map.putLong(MAGIC_AT, MAGIC);
+            map.putInt(FORMAT_AT, FORMAT);
+            map.putInt(SLOT_SIZE_AT, SLOT_SIZE);
+            map.putInt(SLOTS_AT, slots);
+            map.putLong(EPOCH_AT, version);
+            map.putInt(ENTRIES_AT, 0);
+            map.putInt(HAND_AT, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * @return the slot holding a code, or -1 if not found
+     */
+    private int find(int hash, String code) {
+        for (int i = hash & (slots - 1);; i = (i + 1) & (slots - 1)) {
+            int at = offset(i);
+            if (map.getInt(at) == 0) {
+                return -1;
+            }
+            if (map.getInt(at + ProductRecords.HASH_AT) == hash && ProductRecords.hasCode(map, at, code)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * empties a slot, shifting back the records after it that would not be
+     * found otherwise
+     */
+    private void removeSlot(int i) {
+        int mask = slots - 1;
+        for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+            int at = offset(j);
+            if (map.getInt(at) == 0) {
+                break;
+            }
+            int home = map.getInt(at + ProductRecords.HASH_AT) & mask;
+            //records whose home is cyclically in (i, j] stay where they are
+            boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                map.put(offset(i), map, at, SLOT_SIZE);
+                i = j;
+            }
+        }
+        map.putInt(offset(i), 0);
+        map.putInt(ENTRIES_AT, map.getInt(ENTRIES_AT) - 1);
+    }
+
+    /**
+     * evicts the next record under the clock hand
+     */
+    private void evictOne() {
+        int hand = map.getInt(HAND_AT);
+        while (map.getInt(offset(hand)) == 0) {
+            hand = (hand + 1) & (slots - 1);
+        }
+        removeSlot(hand);
+        map.putInt(HAND_AT, (hand + 1) & (slots - 1));
+    }
+
+    /**
+     * @return true if the content of the file was kept when opened
+     */
+    public boolean wasReused() {
+        return reused;
+    }
+
+    @Override
+    public Product get(String code) {
+        Product p = null;
+        int hash = ProductRecords.hash(code);
+        lock.readLock().lock();
+        try {
+            int i = find(hash, code);
+            if (i >= 0) {
+                p = ProductRecords.decode(map, offset(i));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (p != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        CacheLookupEvent.emit(NAME, p != null);
+        return p;
+    }
+
+    @Override
+    public void put(Product product) {
+        int length = ProductRecords.length(product);
+        int hash = ProductRecords.hash(product.getCode());
+        lock.writeLock().lock();
+        try {
+            int i = find(hash, product.getCode());
+            if (length < 0 || length > SLOT_SIZE) {
+                if (i >= 0) {
+                    removeSlot(i);
+                }
+                return;
+            }
+            if (i < 0) {
+                if (map.getInt(ENTRIES_AT) >= maxEntries) {
+                    evictOne();
+                }
+                for (i = hash & (slots - 1); map.getInt(offset(i)) != 0; i = (i + 1) & (slots - 1)) {
+                }
+                map.putInt(ENTRIES_AT, map.getInt(ENTRIES_AT) + 1);
+            }
+            ProductRecords.encode(map, offset(i), length, hash, product);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(String code) {
+        int hash = ProductRecords.hash(code);
+        lock.writeLock().lock();
+        try {
+            int i = find(hash, code);
+            if (i >= 0) {
+                removeSlot(i);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        reset(map.getLong(EPOCH_AT));
+    }
+
+    @Override
+    public void pin(Collection<String> codes) {
+    }
+
+    /**
+     * @return number of products cached
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return map.getInt(ENTRIES_AT);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * flushes the file and marks it as matching a version of the catalog
+     *
+     * @param version current version of the catalog, or a negative number if
+     * unknown, to have the content discarded on next open
+     */
+    public void close(long version) {
+        lock.writeLock().lock();
+        try {
+            if (version >= 0) {
+                map.putLong(EPOCH_AT, version);
+                map.putInt(CLEAN_AT, 1);
+            }
+            map.force();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * flushes the file leaving it marked as not clean
+     */
+    @Override
+    public void close() {
+        close(-1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DiskProductCache{");
+        sb.append("file=").append(file);
+        sb.append(", size=").append(size());
+        sb.append(", slots=").append(slots);
+        sb.append(", reused=").append(reused);
+        sb.append(", hits=").append(hits.sum());
+        sb.append(", misses=").append(misses.sum());
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
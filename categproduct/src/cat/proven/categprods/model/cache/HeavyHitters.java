@@ -0,0 +1,196 @@
+package cat.proven.categprods.model.cache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streaming tracker of the most frequent keys (heavy hitters) in a fixed
+ * amount of memory. Frequencies are estimated with a Count-Min sketch: each
+ * key increments one counter in each of DEPTH rows, chosen by a different
+ * hash per row, and its estimate is the smallest of those counters, which
+ * may exceed the true count but never falls below it. Keys whose estimate
+ * reaches the smallest count of the current top candidates become
+ * candidates themselves; candidates are pruned back to the top capacity
+ * when they double.
+ *
+ * Recording a key takes a few atomic increments and no lock; pruning and
+ * halving are done now and then by the recording thread that triggers
+ * them. Every window keys all counts are halved, so that keys that were hot
+ * long ago fade out.
+ *
+ * @param <K> type of keys
+ * @author ProvenSoft
+ */
+public final class HeavyHitters<K> {
+
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    /**
+     * a key and its estimated count
+     *
+     * @param <K> type of keys
+     */
+    public static final class Entry<K> {
+
+        private final K key;
+        private final long count;
+
+        Entry(K key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + count;
+        }
+    }
+
+    private final int capacity;
+    private final int widthMask;
+    private final AtomicLongArray counters;
+    private final Set<K> candidates;
+    /**
+     * smallest count of the candidates kept at the last pruning
+     */
+    private volatile long threshold;
+    private final long window;
+    private final AtomicLong seen;
+    private final ReentrantLock maintenance;
+
+    /**
+     * @param capacity number of top keys tracked
+     * @param width counters per row of the sketch, rounded up to a power of
+     * two; the error of estimates is about total count * 2 / width
+     * @param window number of keys recorded between two halvings of counts
+     */
+    public HeavyHitters(int capacity, int width, long window) {
+        this.capacity = capacity;
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.widthMask = w - 1;
+        this.counters = new AtomicLongArray(DEPTH * w);
+        this.candidates = ConcurrentHashMap.newKeySet();
+        this.threshold = 0;
+        this.window = window;
+        this.seen = new AtomicLong();
+        this.maintenance = new ReentrantLock();
+    }
+
+    private int index(int row, int hash) {
+        long h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return row * (widthMask + 1) + (int) ((h ^ (h >>> 32)) & widthMask);
+    }
+
+    /**
+     * records an occurrence of a key
+     *
+     * @param key the key
+     * @return true if this call ended a window, e.g. to refresh anything
+     * derived from the top keys
+     */
+    public boolean record(K key) {
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(row, hash)));
+        }
+        if (estimate >= threshold && !candidates.contains(key) && candidates.size() < 4 * capacity) {
+            candidates.add(key);
+            if (candidates.size() > 2 * capacity && maintenance.tryLock()) {
+                try {
+                    prune();
+                } finally {
+                    maintenance.unlock();
+                }
+            }
+        }
+        boolean windowEnded = (seen.incrementAndGet() % window == 0);
+        if (windowEnded) {
+            maintenance.lock();
+            try {
+                halve();
+            } finally {
+                maintenance.unlock();
+            }
+        }
+        return windowEnded;
+    }
+
+    /**
+     * gets the estimated count of a key
+     *
+     * @param key the key
+     * @return the estimate, never below the count since the last halving
+     */
+    public long estimate(K key) {
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(index(row, hash)));
+        }
+        return estimate;
+    }
+
+    /**
+     * gets the current top keys
+     *
+     * @param n maximum number of keys, up to the capacity
+     * @return the keys, most frequent first
+     */
+    public List<Entry<K>> top(int n) {
+        List<Entry<K>> all = new ArrayList<>();
+        for (K key : candidates) {
+            all.add(new Entry<>(key, estimate(key)));
+        }
+        all.sort((a, b) -> Long.compare(b.count, a.count));
+        return new ArrayList<>(all.subList(0, Math.min(Math.min(n, capacity), all.size())));
+    }
+
+    /**
+     * keeps the top candidates only and raises the threshold to the smallest
+     * of their counts
+     */
+    private void prune() {
+        List<Entry<K>> top = top(capacity);
+        Set<K> keep = new HashSet<>();
+        for (Entry<K> e : top) {
+            keep.add(e.key);
+        }
+        candidates.retainAll(keep);
+        threshold = top.isEmpty() ? 0 : top.get(top.size() - 1).count;
+    }
+
+    /**
+     * halves all counts; concurrent increments may be halved or not
+     */
+    private void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            long c = counters.get(i);
+            while (c != 0 && !counters.compareAndSet(i, c, c >> 1)) {
+                c = counters.get(i);
+            }
+        }
+        prune();
+    }
+
+    @Override
+    public String toString() {
+        return "HeavyHitters" + top(10);
+    }
+
+}
@@ -0,0 +1,327 @@
+package cat.proven.categprods.model.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Broadcasts invalidations of cached products and categories to the other
+ * processes sharing a transport, and delivers theirs to a listener.
+ *
+ * Invalidations published are not sent at once but gathered for a few
+ * milliseconds, repeated keys sent once, and then sent in a single
+ * message; too many keys are sent as an invalidation of everything.
+ *
+ * Each process numbers its messages, and sends its last number in a
+ * heartbeat every second when idle. A receiver that finds a number
+ * skipped, in a message or a heartbeat, may have lost invalidations, so it
+ * invalidates everything; messages numbered below the last one received,
+ * which arrived late or twice, are ignored, as that invalidation of
+ * everything covered them. Processes heard of for the first time in the
+ * first seconds after start are taken as they are, as their earlier
+ * messages were sent before this process cached anything; processes heard
+ * of later must start at their first message.
+ *
+ * @author ProvenSoft
+ */
+public class InvalidationBus implements Closeable {
+
+    /**
+     * receives the invalidations of other processes, from a thread of the
+     * transport
+     */
+    public interface Listener {
+
+        /**
+         * @param codes codes of the products changed
+         */
+        void productsInvalidated(Collection<String> codes);
+
+        /**
+         * @param ids ids of the categories changed, or null if unknown
+         */
+        void categoriesInvalidated(Collection<Long> ids);
+
+        /**
+         * anything may have changed
+         */
+        void allInvalidated();
+    }
+
+    private static final int MAGIC = 0x43504942;
+    private static final byte INVALIDATION = 1;
+    private static final byte HEARTBEAT = 2;
+    private static final byte ALL_PRODUCTS = 1;
+    private static final byte ALL_CATEGORIES = 2;
+
+    private static final long FLUSH_MILLIS = 10;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    /**
+     * time after start during which new processes are taken as they are
+     */
+    private static final long JOIN_MILLIS = 3 * HEARTBEAT_MILLIS;
+    /**
+     * processes not heard of for this long are forgotten
+     */
+    private static final long FORGET_MILLIS = 30 * HEARTBEAT_MILLIS;
+    /**
+     * keys beyond which an invalidation of everything is sent instead
+     */
+    private static final int MAX_KEYS = 1000;
+
+    private final InvalidationTransport transport;
+    private final Listener listener;
+    private final long node;
+    private final long started;
+    private final ScheduledExecutorService timer;
+
+    /*
+     * outgoing state, guarded by this
+     */
+    private final Set<String> pendingProducts;
+    private final Set<Long> pendingCategories;
+    private byte pendingFlags;
+    private long sequence;
+    private long lastSent;
+
+    /*
+     * incoming state, guarded by peers
+     */
+    private final Map<Long, long[]> peers;
+
+    /**
+     * creates a bus and starts its transport
+     *
+     * @param transport the transport
+     * @param listener the listener of invalidations from other processes
+     * @throws IOException if the transport can not be started
+     */
+    public InvalidationBus(InvalidationTransport transport, Listener listener) throws IOException {
+        this.transport = transport;
+        this.listener = listener;
+        this.node = ThreadLocalRandom.current().nextLong();
+        this.started = System.currentTimeMillis();
+        this.pendingProducts = new LinkedHashSet<>();
+        this.pendingCategories = new LinkedHashSet<>();
+        this.peers = new HashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "invalidation-bus");
+            t.setDaemon(true);
+            return t;
+        });
+        transport.start(this::receive);
+        timer.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /* ==== Publishing ==== */
+
+    /**
+     * publishes changes of products
+     *
+     * @param codes the codes of the products
+     */
+    public synchronized void publishProducts(Collection<String> codes) {
+        if ((pendingFlags & ALL_PRODUCTS) == 0) {
+            pendingProducts.addAll(codes);
+            if (pendingProducts.size() + pendingCategories.size() > MAX_KEYS) {
+                pendingProducts.clear();
+                pendingFlags |= ALL_PRODUCTS;
+            }
+        }
+    }
+
+    /**
+     * publishes a change of all products
+     */
+    public synchronized void publishAllProducts() {
+        pendingProducts.clear();
+        pendingFlags |= ALL_PRODUCTS;
+    }
+
+    /**
+     * publishes changes of categories
+     *
+     * @param ids the ids of the categories, or null if unknown
+     */
+    public synchronized void publishCategories(Collection<Long> ids) {
+        if (ids == null) {
+            pendingCategories.clear();
+            pendingFlags |= ALL_CATEGORIES;
+        } else if ((pendingFlags & ALL_CATEGORIES) == 0) {
+            pendingCategories.addAll(ids);
+            if (pendingProducts.size() + pendingCategories.size() > MAX_KEYS) {
+                pendingCategories.clear();
+                pendingFlags |= ALL_CATEGORIES;
+            }
+        }
+    }
+
+    /**
+     * sends the invalidations gathered, if any
+     */
+    void flush() {
+        byte[] message;
+        synchronized (this) {
+            if (pendingFlags == 0 && pendingProducts.isEmpty() && pendingCategories.isEmpty()) {
+                return;
+            }
+            message = encode(INVALIDATION, ++sequence, pendingFlags, pendingProducts, pendingCategories);
+            if (message.length > transport.maxMessageSize()) {
+                message = encode(INVALIDATION, sequence, (byte) (ALL_PRODUCTS | ALL_CATEGORIES), List.of(), List.of());
+            }
+            pendingProducts.clear();
+            pendingCategories.clear();
+            pendingFlags = 0;
+            lastSent = System.currentTimeMillis();
+        }
+        send(message);
+    }
+
+    private void heartbeat() {
+        byte[] message;
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastSent < HEARTBEAT_MILLIS) {
+                return;
+            }
+            message = encode(HEARTBEAT, sequence, (byte) 0, List.of(), List.of());
+            lastSent = System.currentTimeMillis();
+        }
+        send(message);
+        forgetSilentPeers();
+    }
+
+    private void send(byte[] message) {
+        try {
+            transport.send(message);
+        } catch (IOException ex) {
+            //receivers will find the number skipped
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private byte[] encode(byte type, long seq, byte flags, Collection<String> codes, Collection<Long> ids) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(type);
+            out.writeLong(node);
+            out.writeLong(seq);
+            out.writeByte(flags);
+            out.writeInt(codes.size());
+            for (String code : codes) {
+                out.writeUTF(code);
+            }
+            out.writeInt(ids.size());
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* ==== Receiving ==== */
+
+    private void receive(byte[] message) {
+        byte type;
+        long sender;
+        long seq;
+        byte flags;
+        List<String> codes = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        try ( DataInputStream in = new DataInputStream(new ByteArrayInputStream(message))) {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            type = in.readByte();
+            sender = in.readLong();
+            seq = in.readLong();
+            flags = in.readByte();
+            for (int n = in.readInt(); n > 0; n--) {
+                codes.add(in.readUTF());
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                ids.add(in.readLong());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Invalid invalidation message", ex);
+            return;
+        }
+        if (sender == node) {
+            return;
+        }
+        boolean gap;
+        long now = System.currentTimeMillis();
+        synchronized (peers) {
+            //per peer: last number received and time it was heard of
+            long[] peer = peers.get(sender);
+            if (peer == null) {
+                long expected = (type == HEARTBEAT) ? 0 : 1;
+                gap = (seq != expected) && (now - started > JOIN_MILLIS);
+                peer = new long[]{(type == HEARTBEAT) ? seq : seq - 1, now};
+                peers.put(sender, peer);
+            } else {
+                gap = (type == HEARTBEAT) ? (seq > peer[0]) : (seq > peer[0] + 1);
+            }
+            peer[1] = now;
+            if (type == INVALIDATION && seq <= peer[0]) {
+                return;
+            }
+            peer[0] = Math.max(peer[0], seq);
+        }
+        if (gap) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO,
+                    "Invalidations from {0} lost, invalidating all", Long.toHexString(sender));
+            listener.allInvalidated();
+        } else if (type == INVALIDATION) {
+            if ((flags & ALL_PRODUCTS) != 0) {
+                listener.allInvalidated();
+                return;
+            }
+            if (!codes.isEmpty()) {
+                listener.productsInvalidated(codes);
+            }
+            if ((flags & ALL_CATEGORIES) != 0) {
+                listener.categoriesInvalidated(null);
+            } else if (!ids.isEmpty()) {
+                listener.categoriesInvalidated(ids);
+            }
+        }
+    }
+
+    private void forgetSilentPeers() {
+        long now = System.currentTimeMillis();
+        synchronized (peers) {
+            peers.values().removeIf(peer -> now - peer[1] > FORGET_MILLIS);
+        }
+    }
+
+    /**
+     * sends pending invalidations and stops the bus
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        flush();
+        transport.close();
+    }
+
+}
@@ -0,0 +1,43 @@
+package cat.proven.categprods.model.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries the messages of an invalidation bus between processes. Messages
+ * may be lost, duplicated or reordered: the bus copes with that.
+ *
+ * @author ProvenSoft
+ */
+public interface InvalidationTransport extends Closeable {
+
+    /**
+     * starts receiving messages, including those sent by this process
+     *
+     * @param receiver called with each message received, from a thread of
+     * the transport
+     * @throws IOException if the transport can not be started
+     */
+    void start(Consumer<byte[]> receiver) throws IOException;
+
+    /**
+     * sends a message to all processes on the bus
+     *
+     * @param message the message
+     * @throws IOException if the message can not be sent
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * @return the largest message that can be sent
+     */
+    int maxMessageSize();
+
+    /**
+     * stops receiving and releases the transport
+     */
+    @Override
+    void close();
+
+}
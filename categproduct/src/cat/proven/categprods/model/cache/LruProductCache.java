@@ -0,0 +1,148 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.metrics.CacheLookupEvent;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Product cache that evicts the least recently used product when full.
+ * Pinned products are kept apart and never evicted; they do not count
+ * towards the size limit.
+ *
+ * @author ProvenSoft
+ */
+public class LruProductCache implements ProductCache {
+
+    private static final String NAME = "products";
+
+    private final int maxSize;
+    private final LinkedHashMap<String, Product> lru;
+    private final Map<String, Product> pinned;
+    private Set<String> pinnedCodes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param maxSize maximum number of products, besides pinned ones
+     */
+    public LruProductCache(int maxSize) {
+        this.maxSize = maxSize;
+        //access order: iteration starts at the least recently used entry
+        this.lru = new LinkedHashMap<>(16, 0.75f, true);
+        this.pinned = new HashMap<>();
+        this.pinnedCodes = new HashSet<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    private static Product copyOf(Product p) {
+        Product copy = new Product(p);
+        if (p.getCategory() != null) {
+            copy.setCategory(new Category(p.getCategory()));
+        }
+        return copy;
+    }
+
+    @Override
+    public Product get(String code) {
+        Product p;
+        synchronized (this) {
+            p = pinned.get(code);
+            if (p == null) {
+                p = lru.get(code);
+            }
+        }
+        if (p != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        CacheLookupEvent.emit(NAME, p != null);
+        //stored products are never changed, so they can be copied unlocked
+        return (p != null) ? copyOf(p) : null;
+    }
+
+    @Override
+    public void put(Product product) {
+        Product copy = copyOf(product);
+        synchronized (this) {
+            if (pinnedCodes.contains(copy.getCode())) {
+                pinned.put(copy.getCode(), copy);
+            } else {
+                lru.put(copy.getCode(), copy);
+                if (lru.size() > maxSize) {
+                    Iterator<String> eldest = lru.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(String code) {
+        pinned.remove(code);
+        lru.remove(code);
+    }
+
+    @Override
+    public synchronized void clear() {
+        pinned.clear();
+        lru.clear();
+    }
+
+    @Override
+    public synchronized void pin(Collection<String> codes) {
+        Set<String> newCodes = new HashSet<>(codes);
+        //unpinned products go back to the lru part, pinned ones leave it
+        for (Iterator<Map.Entry<String, Product>> it = pinned.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Product> e = it.next();
+            if (!newCodes.contains(e.getKey())) {
+                it.remove();
+                lru.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String code : newCodes) {
+            Product p = lru.remove(code);
+            if (p != null) {
+                pinned.put(code, p);
+            }
+        }
+        while (lru.size() > maxSize) {
+            Iterator<String> eldest = lru.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        pinnedCodes = newCodes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LruProductCache{");
+        sb.append("size=").append(lru.size());
+        sb.append(", pinned=").append(pinned.size());
+        sb.append(", maxSize=").append(maxSize);
+        sb.append(", hits=").append(hits.sum());
+        sb.append(", misses=").append(misses.sum());
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,118 @@
+package cat.proven.categprods.model.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Invalidation transport over UDP multicast. By default datagrams stay on
+ * the loopback interface (time to live 0), so the processes of a single
+ * machine form the bus; give another interface and a time to live to span
+ * machines.
+ *
+ * @author ProvenSoft
+ */
+public class MulticastTransport implements InvalidationTransport {
+
+    public static final String DEFAULT_GROUP = "239.255.42.99";
+    public static final int DEFAULT_PORT = 4446;
+
+    /**
+     * largest UDP payload
+     */
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final int timeToLive;
+    private volatile MulticastSocket socket;
+
+    /**
+     * creates a transport on the loopback interface
+     *
+     * @param port the port of the bus
+     * @throws IOException if the group address can not be resolved
+     */
+    public MulticastTransport(int port) throws IOException {
+        this(InetAddress.getByName(DEFAULT_GROUP), port,
+                NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()), 0);
+    }
+
+    /**
+     * @param group multicast group address
+     * @param port the port of the bus
+     * @param networkInterface the interface to send and receive on
+     * @param timeToLive hops datagrams may travel; 0 keeps them on this host
+     */
+    public MulticastTransport(InetAddress group, int port, NetworkInterface networkInterface, int timeToLive) {
+        this.group = new InetSocketAddress(group, port);
+        this.networkInterface = networkInterface;
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public synchronized void start(Consumer<byte[]> receiver) throws IOException {
+        MulticastSocket s = new MulticastSocket(null);
+        try {
+            //several processes of the same host listen on the port
+            s.setReuseAddress(true);
+            s.bind(new InetSocketAddress(group.getPort()));
+            s.setNetworkInterface(networkInterface);
+            s.setTimeToLive(timeToLive);
+            s.joinGroup(group, networkInterface);
+        } catch (IOException ex) {
+            s.close();
+            throw ex;
+        }
+        socket = s;
+        Thread t = new Thread(() -> receive(s, receiver), "invalidation-receiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void receive(MulticastSocket s, Consumer<byte[]> receiver) {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        while (!s.isClosed()) {
+            try {
+                s.receive(packet);
+                receiver.accept(Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                        packet.getOffset() + packet.getLength()));
+            } catch (IOException ex) {
+                if (!s.isClosed()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.WARNING, null, ex);
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        MulticastSocket s = socket;
+        if (s == null) {
+            throw new IOException("Transport not started");
+        }
+        s.send(new DatagramPacket(message, message.length, group));
+    }
+
+    @Override
+    public int maxMessageSize() {
+        return MAX_DATAGRAM;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.metrics.CacheLookupEvent;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Product cache that keeps products serialized in memory outside the heap,
+ * so that caching millions of products adds no objects for the garbage
+ * collector to trace. Products are decoded into new objects only when
+ * read.
+ *
+ * The cache is split into segments by hash of code, each with its own lock.
+ * A segment is a log of records in a direct buffer, written in a circle:
+ * when it is full the oldest records are evicted to make room, first in
+ * first out. Records are found through an open addressing table (linear
+ * probing) in another direct buffer, holding the hash of the code and the
+ * offset of the record of each entry. A replaced or invalidated record
+ * stays in the log, unreachable, until it is evicted.
+ *
+ * Pinned products are kept apart, serialized in byte arrays on the heap,
+ * and never evicted; they do not count towards the capacity.
+ *
+ * @author ProvenSoft
+ */
+public class OffHeapProductCache implements ProductCache {
+
+    private static final String NAME = "products";
+
+    /**
+     * maximum bytes of the log of a segment, so that offsets fit in an int
+     */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+    private static final int MIN_SEGMENTS = 16;
+
+    /**
+     * bytes of log per slot of the index
+     */
+    private static final int BYTES_PER_SLOT = 32;
+    /**
+     * length written at the end of the log when a record does not fit there
+     * and the log goes on from the start
+     */
+    private static final int WRAP = -1;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final Map<String, byte[]> pinned;
+    private volatile Set<String> pinnedCodes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param capacityBytes maximum bytes of serialized products, besides
+     * pinned ones; the index takes from a quarter to a half more
+     */
+    public OffHeapProductCache(long capacityBytes) {
+        int n = MIN_SEGMENTS;
+        while (capacityBytes / n > MAX_SEGMENT_BYTES) {
+            n <<= 1;
+        }
+        this.segments = new Segment[n];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment((int) Math.max(ProductRecords.MIN_LENGTH, capacityBytes / n));
+        }
+        this.pinned = new ConcurrentHashMap<>();
+        this.pinnedCodes = Set.of();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    private Segment segmentFor(int hash) {
+        //the high bits choose the segment, the low bits the slot within it
+        return segments[hash >>> segmentShift];
+    }
+
+    /* ==== Segments ==== */
+
+    /**
+     * a log of records and its index
+     */
+    private static final class Segment {
+
+        private final ByteBuffer log;
+        private final int capacity;
+        /**
+         * entries: hash of code in the high int, offset of record plus one in
+         * the low int; 0 for empty slots
+         */
+        private final ByteBuffer index;
+        private final int mask;
+        /**
+         * entries beyond which the oldest records are evicted, so that the
+         * index never gets too full for probing
+         */
+        private final int maxEntries;
+        /**
+         * where the next record is written
+         */
+        private int head;
+        /**
+         * where the oldest record starts
+         */
+        private int tail;
+        /**
+         * true if the log goes on from the start: records lie from tail to
+         * the end and from the start to head
+         */
+        private boolean wrapped;
+        private int records;
+        private int entries;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.log = ByteBuffer.allocateDirect(capacity);
+            int slots = Integer.highestOneBit(Math.max(2, capacity / BYTES_PER_SLOT - 1)) << 1;
+            this.index = ByteBuffer.allocateDirect(8 * slots);
+            this.mask = slots - 1;
+            this.maxEntries = slots / 4 * 3;
+        }
+
+        private long slot(int i) {
+            return index.getLong(8 * i);
+        }
+
+        private void setSlot(int i, long entry) {
+            index.putLong(8 * i, entry);
+        }
+
+        private static long entry(int hash, int offset) {
+            return ((long) hash << 32) | (offset + 1L);
+        }
+
+        private static int offsetOf(long entry) {
+            return (int) entry - 1;
+        }
+
+        /**
+         * @return the slot of the entry of a code, or -1 if not found
+         */
+        private int find(int hash, String code) {
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                long e = slot(i);
+                if (e == 0) {
+                    return -1;
+                }
+                if ((int) (e >>> 32) == hash && ProductRecords.hasCode(log, offsetOf(e), code)) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * empties a slot, shifting back the entries after it that would not
+         * be found otherwise
+         */
+        private void removeSlot(int i) {
+            for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+                long e = slot(j);
+                if (e == 0) {
+                    break;
+                }
+                int home = (int) (e >>> 32) & mask;
+                //entries whose home is cyclically in (i, j] stay where they are
+                boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    setSlot(i, e);
+                    i = j;
+                }
+            }
+            setSlot(i, 0);
+            entries--;
+        }
+
+        synchronized Product get(int hash, String code) {
+            int i = find(hash, code);
+            return (i >= 0) ? ProductRecords.decode(log, offsetOf(slot(i))) : null;
+        }
+
+        synchronized void put(int hash, Product p, int length) {
+            if (length > capacity) {
+                invalidate(hash, p.getCode());
+                return;
+            }
+            int at = allocate(length);
+            ProductRecords.encode(log, at, length, hash, p);
+            records++;
+            int i = find(hash, p.getCode());
+            if (i < 0) {
+                while (entries >= maxEntries) {
+                    evictOldest();
+                }
+                for (i = hash & mask; slot(i) != 0; i = (i + 1) & mask) {
+                }
+                entries++;
+            }
+            setSlot(i, entry(hash, at));
+        }
+
+        synchronized void invalidate(int hash, String code) {
+            int i = find(hash, code);
+            if (i >= 0) {
+                removeSlot(i);
+            }
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i <= mask; i++) {
+                setSlot(i, 0);
+            }
+            head = 0;
+            tail = 0;
+            wrapped = false;
+            records = 0;
+            entries = 0;
+        }
+
+        /**
+         * makes room for a record at head, evicting the oldest records as
+         * needed
+         *
+         * @return the offset of the room
+         */
+        private int allocate(int length) {
+            while (true) {
+                if (!wrapped) {
+                    if (capacity - head >= length) {
+                        break;
+                    }
+                    //go on from the start; the tail of the log is left unused
+                    if (capacity - head >= 4) {
+                        log.putInt(head, WRAP);
+                    }
+                    head = 0;
+                    wrapped = true;
+                } else if (tail - head >= length) {
+                    break;
+                } else {
+                    evictOldest();
+                }
+            }
+            int at = head;
+            head += length;
+            return at;
+        }
+
+        private void evictOldest() {
+            if (capacity - tail < 4 || log.getInt(tail) == WRAP) {
+                tail = 0;
+                wrapped = false;
+                return;
+            }
+            int length = log.getInt(tail);
+            int hash = log.getInt(tail + ProductRecords.HASH_AT);
+            //the record may have been replaced or invalidated already
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                long e = slot(i);
+                if (e == 0) {
+                    break;
+                }
+                if (offsetOf(e) == tail) {
+                    removeSlot(i);
+                    break;
+                }
+            }
+            tail += length;
+            records--;
+            if (records == 0) {
+                head = 0;
+                tail = 0;
+                wrapped = false;
+            }
+        }
+
+        synchronized int size() {
+            return entries;
+        }
+
+        synchronized long usedBytes() {
+            return wrapped ? (capacity - tail) + head : head - tail;
+        }
+    }
+
+    /* ==== ProductCache ==== */
+
+    @Override
+    public Product get(String code) {
+        Product p;
+        byte[] record = pinned.get(code);
+        if (record != null) {
+            p = ProductRecords.decode(ByteBuffer.wrap(record), 0);
+        } else {
+            int hash = ProductRecords.hash(code);
+            p = segmentFor(hash).get(hash, code);
+        }
+        if (p != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        CacheLookupEvent.emit(NAME, p != null);
+        return p;
+    }
+
+    @Override
+    public void put(Product product) {
+        int length = ProductRecords.length(product);
+        int hash = ProductRecords.hash(product.getCode());
+        if (length < 0) {
+            invalidate(product.getCode());
+            return;
+        }
+        if (pinnedCodes.contains(product.getCode())) {
+            byte[] record = new byte[length];
+            ProductRecords.encode(ByteBuffer.wrap(record), 0, length, hash, product);
+            pinned.put(product.getCode(), record);
+        } else {
+            segmentFor(hash).put(hash, product, length);
+        }
+    }
+
+    @Override
+    public void invalidate(String code) {
+        pinned.remove(code);
+        int hash = ProductRecords.hash(code);
+        segmentFor(hash).invalidate(hash, code);
+    }
+
+    @Override
+    public void clear() {
+        pinned.clear();
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public synchronized void pin(Collection<String> codes) {
+        Set<String> newCodes = Set.copyOf(codes);
+        //unpinned products go back to the segments, pinned ones leave them
+        for (String code : pinned.keySet()) {
+            if (!newCodes.contains(code)) {
+                byte[] record = pinned.remove(code);
+                if (record != null) {
+                    Product p = ProductRecords.decode(ByteBuffer.wrap(record), 0);
+                    int hash = ProductRecords.hash(code);
+                    segmentFor(hash).put(hash, p, record.length);
+                }
+            }
+        }
+        for (String code : newCodes) {
+            int hash = ProductRecords.hash(code);
+            Segment s = segmentFor(hash);
+            Product p = s.get(hash, code);
+            if (p != null) {
+                byte[] record = new byte[ProductRecords.length(p)];
+                ProductRecords.encode(ByteBuffer.wrap(record), 0, record.length, hash, p);
+                pinned.put(code, record);
+                s.invalidate(hash, code);
+            }
+        }
+        pinnedCodes = newCodes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of products cached, besides pinned ones
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return bytes taken by the logs, including replaced and invalidated
+     * records not evicted yet
+     */
+    public long usedBytes() {
+        long used = 0;
+        for (Segment s : segments) {
+            used += s.usedBytes();
+        }
+        return used;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("OffHeapProductCache{");
+        sb.append("size=").append(size());
+        sb.append(", pinned=").append(pinned.size());
+        sb.append(", usedBytes=").append(usedBytes());
+        sb.append(", segments=").append(segments.length);
+        sb.append(", hits=").append(hits.sum());
+        sb.append(", misses=").append(misses.sum());
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
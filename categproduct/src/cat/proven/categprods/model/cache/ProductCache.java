@@ -0,0 +1,48 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Product;
+import java.util.Collection;
+
+/**
+ * Cache of products by code. Implementations keep their own copies of the
+ * products put in them and return copies, so that callers can change what
+ * they get.
+ *
+ * @author ProvenSoft
+ */
+public interface ProductCache {
+
+    /**
+     * @param code the code of a product
+     * @return a copy of the cached product, or null if not cached
+     */
+    Product get(String code);
+
+    /**
+     * caches a product, keyed by its code
+     *
+     * @param product the product
+     */
+    void put(Product product);
+
+    /**
+     * removes a product
+     *
+     * @param code the code of the product
+     */
+    void invalidate(String code);
+
+    /**
+     * removes all products
+     */
+    void clear();
+
+    /**
+     * sets the codes that must never be evicted; codes pinned before and not
+     * given any more can be evicted again
+     *
+     * @param codes the codes to pin
+     */
+    void pin(Collection<String> codes);
+
+}
@@ -0,0 +1,185 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Product;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary records of products, for caches that keep them outside the heap.
+ * A record is: length (int), hash of code (int), id (long), stock (int),
+ * price (long), category id (long), version (long), then code, name, category code and
+ * category name, each as a length in chars (short) followed by the chars.
+ *
+ * @author ProvenSoft
+ */
+final class ProductRecords {
+
+    static final int HASH_AT = 4;
+    private static final int ID_AT = 8;
+    private static final int STOCK_AT = 16;
+    private static final int PRICE_AT = 20;
+    private static final int CATEGORY_ID_AT = 28;
+    private static final int VERSION_AT = 36;
+    private static final int CODE_AT = 44;
+    /**
+     * length of the shortest record
+     */
+    static final int MIN_LENGTH = CODE_AT + 4 * 2;
+    /**
+     * length of a null string
+     */
+    private static final short NULL = -1;
+    /**
+     * length of the category code of a product without category
+     */
+    private static final short NO_CATEGORY = -2;
+
+    private ProductRecords() {
+    }
+
+    /**
+     * spreads the hash of a code: hashes of short codes leave the high bits
+     * empty
+     *
+     * @param code the code
+     * @return the hash of the code in records
+     */
+    static int hash(String code) {
+        int h = code.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int charsLength(String s) {
+        return 2 + ((s != null) ? 2 * s.length() : 0);
+    }
+
+    /**
+     * @param p a product
+     * @return the length of its record, or -1 if some string is too long to
+     * be encoded
+     */
+    static int length(Product p) {
+        Category c = p.getCategory();
+        String[] strings = {p.getCode(), p.getName(), (c != null) ? c.getCode() : null, (c != null) ? c.getName() : null};
+        int length = CODE_AT;
+        for (String s : strings) {
+            if (s != null && s.length() > Short.MAX_VALUE) {
+                return -1;
+            }
+            length += charsLength(s);
+        }
+        return length;
+    }
+
+    private static int putChars(ByteBuffer buf, int at, String s) {
+        if (s == null) {
+            buf.putShort(at, NULL);
+            return at + 2;
+        }
+        buf.putShort(at, (short) s.length());
+        at += 2;
+        for (int i = 0; i < s.length(); i++, at += 2) {
+            buf.putChar(at, s.charAt(i));
+        }
+        return at;
+    }
+
+    /**
+     * writes the record of a product
+     *
+     * @param buf the buffer
+     * @param at offset of the record
+     * @param length length of the record, as given by length
+     * @param hash hash of the code
+     * @param p the product
+     */
+    static void encode(ByteBuffer buf, int at, int length, int hash, Product p) {
+        Category c = p.getCategory();
+        buf.putInt(at, length);
+        buf.putInt(at + HASH_AT, hash);
+        buf.putLong(at + ID_AT, p.getId());
+        buf.putInt(at + STOCK_AT, p.getStock());
+        buf.putLong(at + PRICE_AT, p.getPrice());
+        buf.putLong(at + CATEGORY_ID_AT, (c != null) ? c.getId() : 0);
+        buf.putLong(at + VERSION_AT, p.getVersion());
+        int pos = putChars(buf, at + CODE_AT, p.getCode());
+        pos = putChars(buf, pos, p.getName());
+        if (c != null) {
+            pos = putChars(buf, pos, c.getCode());
+            putChars(buf, pos, c.getName());
+        } else {
+            buf.putShort(pos, NO_CATEGORY);
+            buf.putShort(pos + 2, NULL);
+        }
+    }
+
+    /**
+     * @return the string whose length is at an offset, or null
+     */
+    private static String getChars(ByteBuffer buf, int at) {
+        short length = buf.getShort(at);
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buf.getChar(at + 2 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the offset after the string whose length is at an offset
+     */
+    private static int skipChars(ByteBuffer buf, int at) {
+        return at + 2 + 2 * Math.max(0, buf.getShort(at));
+    }
+
+    /**
+     * reads a record into a new product
+     *
+     * @param buf the buffer
+     * @param at offset of the record
+     * @return the product
+     */
+    static Product decode(ByteBuffer buf, int at) {
+        int pos = at + CODE_AT;
+        String code = getChars(buf, pos);
+        pos = skipChars(buf, pos);
+        String name = getChars(buf, pos);
+        pos = skipChars(buf, pos);
+        Category c = null;
+        if (buf.getShort(pos) != NO_CATEGORY) {
+            String categoryCode = getChars(buf, pos);
+            pos = skipChars(buf, pos);
+            c = new Category(buf.getLong(at + CATEGORY_ID_AT), categoryCode, getChars(buf, pos));
+        }
+        Product p = new Product(buf.getLong(at + ID_AT), code, name, buf.getInt(at + STOCK_AT),
+                buf.getLong(at + PRICE_AT), c);
+        p.setVersion(buf.getLong(at + VERSION_AT));
+        return p;
+    }
+
+    /**
+     * tells whether a record has the given code, without decoding it
+     *
+     * @param buf the buffer
+     * @param at offset of the record
+     * @param code the code
+     * @return true if it has
+     */
+    static boolean hasCode(ByteBuffer buf, int at, String code) {
+        int pos = at + CODE_AT;
+        if (buf.getShort(pos) != code.length()) {
+            return false;
+        }
+        pos += 2;
+        for (int i = 0; i < code.length(); i++, pos += 2) {
+            if (buf.getChar(pos) != code.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,81 @@
+package cat.proven.categprods.model.cache;
+
+import cat.proven.categprods.model.Product;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two product caches in front of each other: lookups missing the first
+ * level are looked up in the second one, and products found there are
+ * copied to the first level. Products put are put in both levels, and
+ * invalidations apply to both. Pinning applies to the first level only.
+ *
+ * @author ProvenSoft
+ */
+public class TieredProductCache implements ProductCache {
+
+    private final ProductCache first;
+    private final ProductCache second;
+    /**
+     * number of invalidations, to tell whether one happened while copying a
+     * product to the first level
+     */
+    private final AtomicLong changes;
+
+    /**
+     * @param first the first level, usually small and fast
+     * @param second the second level, usually large, e.g. on disk
+     */
+    public TieredProductCache(ProductCache first, ProductCache second) {
+        this.first = first;
+        this.second = second;
+        this.changes = new AtomicLong();
+    }
+
+    @Override
+    public Product get(String code) {
+        Product p = first.get(code);
+        if (p == null) {
+            long seen = changes.get();
+            p = second.get(code);
+            if (p != null) {
+                first.put(p);
+                if (changes.get() != seen) {
+                    first.invalidate(code);
+                }
+            }
+        }
+        return p;
+    }
+
+    @Override
+    public void put(Product product) {
+        second.put(product);
+        first.put(product);
+    }
+
+    @Override
+    public void invalidate(String code) {
+        changes.incrementAndGet();
+        first.invalidate(code);
+        second.invalidate(code);
+    }
+
+    @Override
+    public void clear() {
+        changes.incrementAndGet();
+        first.clear();
+        second.clear();
+    }
+
+    @Override
+    public void pin(Collection<String> codes) {
+        first.pin(codes);
+    }
+
+    @Override
+    public String toString() {
+        return "TieredProductCache{" + "first=" + first + ", second=" + second + '}';
+    }
+
+}
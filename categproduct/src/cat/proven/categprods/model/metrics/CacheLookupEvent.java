@@ -0,0 +1,43 @@
+package cat.proven.categprods.model.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a cache lookup, either a hit or a miss.
+ *
+ * @author ProvenSoft
+ */
+@Name("cat.proven.categprods.CacheLookup")
+@Label("Cache Lookup")
+@Description("A lookup in a store cache")
+@Category({"Store", "Cache"})
+@StackTrace(false)
+public class CacheLookupEvent extends Event {
+
+    @Label("Cache")
+    String cache;
+
+    @Label("Hit")
+    boolean hit;
+
+    /**
+     * records a lookup, if the event is enabled
+     *
+     * @param cache the name of the cache
+     * @param hit true if the value was found
+     */
+    public static void emit(String cache, boolean hit) {
+        CacheLookupEvent event = new CacheLookupEvent();
+        if (event.shouldCommit()) {
+            event.cache = cache;
+            event.hit = hit;
+            event.commit();
+        }
+    }
+
+}
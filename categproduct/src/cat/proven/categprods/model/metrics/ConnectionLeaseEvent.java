@@ -0,0 +1,26 @@
+package cat.proven.categprods.model.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the time a database connection is held,
+ * from open to close.
+ *
+ * @author ProvenSoft
+ */
+@Name("cat.proven.categprods.ConnectionLease")
+@Label("Connection Lease")
+@Description("Time a database connection is held, from open to close")
+@Category({"Store", "Database"})
+@StackTrace(false)
+public class ConnectionLeaseEvent extends Event {
+
+    @Label("Statements")
+    public int statements;
+
+}
@@ -0,0 +1,31 @@
+package cat.proven.categprods.model.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for opening a database connection.
+ *
+ * @author ProvenSoft
+ */
+@Name("cat.proven.categprods.ConnectionOpen")
+@Label("Connection Open")
+@Description("Opening of a database connection")
+@Category({"Store", "Database"})
+@StackTrace(false)
+public class ConnectionOpenEvent extends Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Options")
+    public String options;
+
+    @Label("Success")
+    public boolean success;
+
+}
@@ -0,0 +1,204 @@
+package cat.proven.categprods.model.metrics;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets: each power of two is split in 32 sub-buckets, so that
+ * any recorded value is reported with a relative error below 3.2%. Recording
+ * is a couple of atomic increments, and can be done concurrently from any
+ * number of threads: totals are kept in striped adders so that threads
+ * recording at the same time do not contend on a single counter.
+ *
+ * @author ProvenSoft
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount;
+    private final LongAdder totalValue;
+    private final AtomicLong maxValue;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(NUM_BUCKETS);
+        this.totalCount = new LongAdder();
+        this.totalValue = new LongAdder();
+        this.maxValue = new AtomicLong();
+    }
+
+    /**
+     * records a value
+     *
+     * @param nanos the value, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long v = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(v));
+        totalCount.increment();
+        totalValue.add(v);
+        long max = maxValue.get();
+        while (v > max && !maxValue.compareAndSet(max, v)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * adds all values recorded in another histogram
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        totalValue.add(other.totalValue.sum());
+        long v = other.maxValue.get();
+        long max = maxValue.get();
+        while (v > max && !maxValue.compareAndSet(max, v)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * clears all recorded values. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.set(0);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long n = totalCount.sum();
+        return (n == 0) ? 0.0 : (double) totalValue.sum() / n;
+    }
+
+    /**
+     * gets the value below which the given percentage of recorded values
+     * fall
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the highest value of the bucket where the percentile falls
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = totalCount.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * writes the percentile distribution in the text format of
+     * HdrHistogram's outputPercentileDistribution, so that it can be plotted
+     * with the usual HdrHistogram tools
+     *
+     * @param out the stream to write to
+     * @param scale divisor applied to values, e.g. 1e6 to report
+     * milliseconds
+     */
+    public void outputPercentileDistribution(PrintStream out, double scale) {
+        final int ticksPerHalfDistance = 5;
+        long n = getCount();
+        out.format("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        if (n > 0) {
+            //ticks get closer as percentiles approach 100, as in HdrHistogram
+            double percentile = 0;
+            long target = 1;
+            while (target < n) {
+                out.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f%n",
+                        getValueAtPercentile(percentile) / scale, percentile / 100,
+                        target, 100 / (100 - percentile));
+                int halvings = (int) (Math.log(100 / (100 - percentile)) / Math.log(2));
+                percentile += 100.0 / (ticksPerHalfDistance * (1L << (halvings + 1)));
+                target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            }
+            out.format(Locale.ROOT, "%12.3f %2.12f %10d%n", getMax() / scale, 1.0, n);
+        }
+        double mean = getMean();
+        double variance = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c != 0) {
+                double d = highestValueOf(i) - mean;
+                variance += d * d * c;
+            }
+        }
+        double stdDev = (n > 0) ? Math.sqrt(variance / n) : 0;
+        out.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / scale, stdDev / scale);
+        out.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]%n", getMax() / scale, n);
+        out.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]%n", NUM_BUCKETS / SUB_BUCKETS, SUB_BUCKETS);
+    }
+
+    /**
+     * finds the bucket of a value: values below 32 have a bucket each, above
+     * that the 5 bits after the highest one select the sub-bucket
+     */
+    static int indexOf(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * gets the highest value counted in a bucket
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS | sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LatencyHistogram{");
+        sb.append("count=").append(getCount());
+        sb.append(", mean=").append((long) getMean());
+        sb.append(", p50=").append(getValueAtPercentile(50));
+        sb.append(", p99=").append(getValueAtPercentile(99));
+        sb.append(", max=").append(getMax());
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
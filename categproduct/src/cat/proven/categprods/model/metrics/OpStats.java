@@ -0,0 +1,270 @@
+package cat.proven.categprods.model.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+/**
+ * Call count, error count and latency histogram of a single operation.
+ * Instances are obtained from Metrics and are meant to be kept in static
+ * final fields of the instrumented class:
+ * <pre>
+ * long start = STATS.start();
+ * try {
+ *     ...
+ * } finally {
+ *     STATS.stop(start);
+ * }
+ * </pre>
+ * When metrics are disabled start() returns 0 and stop() does nothing.
+ *
+ * A call that starts right after another one ends on the same thread, such
+ * as a query after its connection is opened, may be started with startAt()
+ * at the clock read returned by stop(), so that each call reads the clock
+ * once; time before the start, such as getting the connection, is then not
+ * counted in the call.
+ *
+ * Operations registered as model operations or queries also emit a flight
+ * recorder event per call, while the event is enabled in a recording. The
+ * event is begun by start() and kept in a per-thread stack until stop(), so
+ * that calls nested in other calls get their own events. Calls must stop
+ * in a finally block; frames of nested calls that did not are dropped when
+ * an enclosing call stops.
+ *
+ * @author ProvenSoft
+ */
+public final class OpStats {
+
+    static final EventType OPERATION_EVENT = EventType.getEventType(OperationEvent.class);
+    static final EventType QUERY_EVENT = EventType.getEventType(QueryEvent.class);
+
+    /**
+     * events begun and not yet committed by the current thread
+     */
+    private static final ThreadLocal<ArrayDeque<Frame>> FRAMES = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final String name;
+    /**
+     * type of event emitted per call, or null for none
+     */
+    private final EventType eventType;
+    private final LatencyHistogram latency;
+    private final LongAdder errors;
+
+    OpStats(String name, EventType eventType) {
+        this.name = name;
+        this.eventType = eventType;
+        this.latency = new LatencyHistogram();
+        this.errors = new LongAdder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * starts timing a call
+     *
+     * @return start time, or 0 if metrics are disabled
+     */
+    public long start() {
+        if (eventType != null && eventType.isEnabled()) {
+            beginEvent();
+        }
+        return Metrics.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * starts timing a call at a clock read already taken
+     *
+     * @param now a value of System.nanoTime(), such as the one returned by
+     * the stop() of the call ended just before, or 0 if none
+     * @return start time, or 0 if metrics are disabled or now is 0
+     */
+    public long startAt(long now) {
+        if (eventType != null && eventType.isEnabled()) {
+            beginEvent();
+        }
+        return Metrics.isEnabled() ? now : 0L;
+    }
+
+    /**
+     * ends timing a call and records its latency
+     *
+     * @param start the value returned by start()
+     * @return the clock read at the end of the call, or 0 if not timed
+     */
+    public long stop(long start) {
+        return stop(start, -1);
+    }
+
+    /**
+     * ends timing a call that read or wrote a number of rows
+     *
+     * @param start the value returned by start()
+     * @param rows rows read or written, or -1 if unknown
+     * @return the clock read at the end of the call, or 0 if not timed
+     */
+    public long stop(long start, long rows) {
+        long now = 0L;
+        if (start != 0L) {
+            now = System.nanoTime();
+            latency.record(now - start);
+        }
+        if (eventType != null && eventType.isEnabled()) {
+            endEvent(rows);
+        }
+        return now;
+    }
+
+    private void beginEvent() {
+        Event event;
+        if (eventType == QUERY_EVENT) {
+            QueryEvent e = new QueryEvent();
+            e.query = name;
+            event = e;
+        } else {
+            OperationEvent e = new OperationEvent();
+            e.operation = name;
+            event = e;
+        }
+        event.begin();
+        FRAMES.get().push(new Frame(this, event));
+    }
+
+    private void endEvent(long rows) {
+        ArrayDeque<Frame> frames = FRAMES.get();
+        //a call started before the event was enabled has no frame
+        boolean owned = false;
+        for (Frame f : frames) {
+            if (f.owner == this) {
+                owned = true;
+                break;
+            }
+        }
+        if (owned) {
+            //frames above the own one belong to nested calls that never stopped
+            Frame frame = frames.pop();
+            while (frame.owner != this) {
+                frame = frames.pop();
+            }
+            Event event = frame.event;
+            if (event instanceof QueryEvent) {
+                ((QueryEvent) event).rows = rows;
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * counts a failed call. The call must still be stopped.
+     */
+    public void error() {
+        errors.increment();
+    }
+
+    void reset() {
+        latency.reset();
+        errors.reset();
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    private static final class Frame {
+
+        private final OpStats owner;
+        private final Event event;
+
+        Frame(OpStats owner, Event event) {
+            this.owner = owner;
+            this.event = event;
+        }
+    }
+
+    /**
+     * values of an OpStats at a given time; latencies are in nanoseconds
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final long count;
+        private final long errors;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        private Snapshot(OpStats stats) {
+            LatencyHistogram h = stats.latency;
+            this.name = stats.name;
+            this.count = h.getCount();
+            this.errors = stats.errors.sum();
+            this.mean = h.getMean();
+            this.p50 = h.getValueAtPercentile(50);
+            this.p90 = h.getValueAtPercentile(90);
+            this.p99 = h.getValueAtPercentile(99);
+            this.p999 = h.getValueAtPercentile(99.9);
+            this.max = h.getMax();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return column titles matching toString()
+         */
+        public static String header() {
+            return String.format("%-44s %10s %8s %10s %10s %10s %10s %10s %10s",
+                    "operation", "count", "errors", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-44s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                    name, count, errors, mean / 1e3, p50 / 1e3, p90 / 1e3, p99 / 1e3, p999 / 1e3, max / 1e3);
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package cat.proven.categprods.model.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a call to a StoreModel operation.
+ *
+ * @author ProvenSoft
+ */
+@Name("cat.proven.categprods.Operation")
+@Label("Store Operation")
+@Description("A call to a data service of the store model")
+@Category({"Store", "Model"})
+@StackTrace(false)
+public class OperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+}
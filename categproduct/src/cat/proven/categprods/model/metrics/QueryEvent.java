@@ -0,0 +1,30 @@
+package cat.proven.categprods.model.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a call to a data access method, identified by
+ * Dao.method, with the number of rows it read or wrote. Getting the
+ * connection is left out, and recorded as a ConnectionOpenEvent.
+ *
+ * @author ProvenSoft
+ */
+@Name("cat.proven.categprods.Query")
+@Label("Store Query")
+@Description("A data access call, from the end of getting its connection to reading the results")
+@Category({"Store", "Database"})
+@StackTrace(false)
+public class QueryEvent extends Event {
+
+    @Label("Query")
+    String query;
+
+    @Label("Rows")
+    long rows;
+
+}
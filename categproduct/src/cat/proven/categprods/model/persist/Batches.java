@@ -0,0 +1,66 @@
+package cat.proven.categprods.model.persist;
+
+import java.sql.Statement;
+
+/**
+ * helpers for batched statements
+ *
+ * @author ProvenSoft
+ */
+final class Batches {
+
+    /**
+     * maximum number of parameters in a generated "in" list
+     */
+    static final int MAX_IN_LIST = 500;
+
+    private Batches() {
+    }
+
+    /**
+     * converts update counts returned by a batch into per-row results: the
+     * driver may report SUCCESS_NO_INFO when it rewrites a batch into a
+     * multi-row statement
+     *
+     * @param counts update counts returned by executeBatch
+     * @return 1 for each row that succeeded, 0 otherwise
+     */
+    static int[] toResults(int[] counts) {
+        int[] results = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            results[i] = (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) ? 1 : 0;
+        }
+        return results;
+    }
+
+    /**
+     * counts the rows that succeeded in a result of toResults
+     *
+     * @param results per-row results
+     * @return number of ones
+     */
+    static int count(int[] results) {
+        int n = 0;
+        for (int r : results) {
+            n += r;
+        }
+        return n;
+    }
+
+    /**
+     * builds a list of n placeholders: (?,?,...,?)
+     *
+     * @param n number of placeholders
+     * @return the list
+     */
+    static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder(2 * n + 2);
+        sb.append('(');
+        for (int i = 0; i < n; i++) {
+            sb.append((i == 0) ? "?" : ",?");
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+}
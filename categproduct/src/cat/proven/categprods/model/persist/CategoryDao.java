@@ -1,13 +1,20 @@
 package cat.proven.categprods.model.persist;
 
 import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.SyncResult;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.sql.PreparedStatement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,40 +25,64 @@ import java.util.logging.Logger;
  */
 public class CategoryDao {
 
+    private static final OpStats INSERT_STATS = Metrics.query("CategoryDao.insert");
+    private static final OpStats UPDATE_STATS = Metrics.query("CategoryDao.update");
+    private static final OpStats DELETE_STATS = Metrics.query("CategoryDao.delete");
+    private static final OpStats SELECT_STATS = Metrics.query("CategoryDao.select");
+    private static final OpStats SELECT_WHERE_CODE_STATS = Metrics.query("CategoryDao.selectWhereCode");
+    private static final OpStats SELECT_WHERE_NAME_STATS = Metrics.query("CategoryDao.selectWhereName");
+    private static final OpStats SELECT_ALL_STATS = Metrics.query("CategoryDao.selectAll");
+    private static final OpStats INSERT_BATCH_STATS = Metrics.query("CategoryDao.insertBatch");
+    private static final OpStats SELECT_EXISTING_CODES_STATS = Metrics.query("CategoryDao.selectExistingCodes");
+    private static final OpStats SELECT_ALL_IDS_STATS = Metrics.query("CategoryDao.selectAllIds");
+    private static final OpStats UPSERT_BATCH_STATS = Metrics.query("CategoryDao.upsertBatch");
+    private static final OpStats REPLICATE_BATCH_STATS = Metrics.query("CategoryDao.replicateBatch");
+    private static final OpStats UPDATE_PARENT_STATS = Metrics.query("CategoryDao.updateParent");
+    private static final OpStats SELECT_SUBTREE_IDS_STATS = Metrics.query("CategoryDao.selectSubtreeIds");
+
     private final DbConnect dbConnect;
 
     public CategoryDao() {
         this.dbConnect = new DbConnect();
     }
 
-    private Category fromResultSet(ResultSet rs) throws SQLException {
-        Category cat;
-        long id = rs.getLong("id");
-        String code = rs.getString("code");
-        String name = rs.getString("name");
-        cat = new Category(id, code, name);
-        return cat;
+    /**
+     * creates a dao for another database than storedb, such as a replica to
+     * synchronize with
+     *
+     * @param config connection settings of the database
+     */
+    public CategoryDao(DbConfig config) {
+        this.dbConnect = new DbConnect(config);
     }
 
     public int insert(Category category) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
-            String query = "insert into categories values (null, ?, ?)";
+            start = INSERT_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into categories (code, name, parent_id) values (?, ?, ?)";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, category.getCode());
             st.setString(2, category.getName());
+            setParentId(st, 3, category.getParentId());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            INSERT_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            INSERT_STATS.stop(start, result);
         }
         return result;
     }
 
     public int update(Category currentCategory, Category updatedCategory) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
+            start = UPDATE_STATS.startAt(dbConnect.connectedAt());
             String query = """
                            update categories set 
                            code=?, name=?  
@@ -63,15 +94,20 @@ public class CategoryDao {
             st.setLong(3, currentCategory.getId());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            UPDATE_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPDATE_STATS.stop(start, result);
         }
         return result;
     }
 
     public int delete(Category deleteCategory) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
+            start = DELETE_STATS.startAt(dbConnect.connectedAt());
             String query2 = "delete from products where category_id =?";
             PreparedStatement st2 = conn.prepareStatement(query2);
             st2.setLong(1, deleteCategory.getId());
@@ -81,86 +117,393 @@ public class CategoryDao {
             st.setLong(1, deleteCategory.getId());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            DELETE_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            DELETE_STATS.stop(start, result);
+        }
+        return result;
+    }
+
+    /**
+     * moves a category, with its subtree, under another parent
+     *
+     * @param category the category to move
+     * @param parentId id of the new parent, 0 to make it a top level one
+     * @return 1 if moved, 0 if not found, -1 in case of error, such as a
+     * parent in the subtree of the category
+     */
+    public int updateParent(Category category, long parentId) {
+        int result = 0;
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = UPDATE_PARENT_STATS.startAt(dbConnect.connectedAt());
+            String query = "update categories set parent_id=? where id=?";
+            PreparedStatement st = conn.prepareStatement(query);
+            setParentId(st, 1, parentId);
+            st.setLong(2, category.getId());
+            result = st.executeUpdate();
+        } catch (SQLException ex) {
+            UPDATE_PARENT_STATS.error();
+            result = -1;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPDATE_PARENT_STATS.stop(start, Math.max(result, 0));
+        }
+        return result;
+    }
+
+    /**
+     * gets the ids of a category and its descendants, from the closure
+     * table
+     *
+     * @param category the root of the subtree
+     * @return list of ids, empty if not found, or null in case of error
+     */
+    public List<Long> selectSubtreeIds(Category category) {
+        List<Long> result = new ArrayList<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_SUBTREE_IDS_STATS.startAt(dbConnect.connectedAt());
+            String query = "select descendant_id from category_tree where ancestor_id=?";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setLong(1, category.getId());
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                result.add(rs.getLong(1));
+            }
+        } catch (SQLException ex) {
+            SELECT_SUBTREE_IDS_STATS.error();
+            result = null;
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_SUBTREE_IDS_STATS.stop(start, (result != null) ? result.size() : 0);
         }
         return result;
     }
 
+    /**
+     * sets a parent id parameter, null for top level categories
+     */
+    private static void setParentId(PreparedStatement st, int index, long parentId) throws SQLException {
+        if (parentId > 0) {
+            st.setLong(index, parentId);
+        } else {
+            st.setNull(index, Types.INTEGER);
+        }
+    }
+
     public Category select(Category category) {
         Category cat = null;
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from categories where id=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + CategoryMapper.COLUMNS + " from categories where id=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setLong(1, category.getId());
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                cat = fromResultSet(rs);
+                cat = CategoryMapper.ALL.map(rs, null);
 
             } else {
                 cat = null;
             }
         } catch (SQLException ex) {
+            SELECT_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_STATS.stop(start, (cat != null) ? 1 : 0);
         }
         return cat;
     }
 
     public Category selectWhereCode(String code) {
         Category cat = null;
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from categories where code=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_CODE_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + CategoryMapper.COLUMNS + " from categories where code=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, code);
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                cat = fromResultSet(rs);
+                cat = CategoryMapper.ALL.map(rs, null);
 
             } else {
                 cat = null;
             }
         } catch (SQLException ex) {
+            SELECT_WHERE_CODE_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_CODE_STATS.stop(start, (cat != null) ? 1 : 0);
         }
         return cat;
     }
 
     public Category selectWhereName(String name) {
         Category cat = null;
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from categories where name=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_NAME_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + CategoryMapper.COLUMNS + " from categories where name=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, name);
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                cat = fromResultSet(rs);
+                cat = CategoryMapper.ALL.map(rs, null);
 
             } else {
                 cat = null;
             }
         } catch (SQLException ex) {
+            SELECT_WHERE_NAME_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_NAME_STATS.stop(start, (cat != null) ? 1 : 0);
         }
         return cat;
     }
 
     public List<Category> selectAll() {
         List<Category> result = new ArrayList<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_ALL_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + CategoryMapper.COLUMNS + " from categories";
+            Statement st = conn.createStatement();
+            ResultSet rs = st.executeQuery(query);
+            while (rs.next()) {
+                result.add(CategoryMapper.ALL.map(rs, null));
+            }
+        } catch (SQLException ex) {
+            SELECT_ALL_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_ALL_STATS.stop(start, result.size());
+        }
+        return result;
+    }
+
+    /**
+     * inserts a list of categories in a single transaction
+     *
+     * @param categories the categories to insert
+     * @return for each category, 1 if inserted or 0 otherwise
+     */
+    public int[] insertBatch(List<Category> categories) {
+        int[] result = new int[categories.size()];
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = INSERT_BATCH_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into categories (code, name, parent_id) values (?, ?, ?)";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Category category : categories) {
+                    st.setString(1, category.getCode());
+                    st.setString(2, category.getName());
+                    setParentId(st, 3, category.getParentId());
+                    st.addBatch();
+                }
+                result = Batches.toResults(st.executeBatch());
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            INSERT_BATCH_STATS.error();
+            result = new int[categories.size()];
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            INSERT_BATCH_STATS.stop(start, Batches.count(result));
+        }
+        return result;
+    }
+
+    /**
+     * writes categories copied from another replica, by id, in a single
+     * transaction: categories are inserted keeping their ids, or updated if
+     * their id exists. Parents must come before their children.
+     *
+     * @param categories the categories to write
+     * @return number of categories written, or -1 in case of error
+     */
+    public int replicateBatch(List<Category> categories) {
+        int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from categories";
+            start = REPLICATE_BATCH_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into categories (id, code, name, parent_id) values (?, ?, ?, ?)"
+                    + " on duplicate key update code=values(code), name=values(name), parent_id=values(parent_id)";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Category category : categories) {
+                    st.setLong(1, category.getId());
+                    st.setString(2, category.getCode());
+                    st.setString(3, category.getName());
+                    setParentId(st, 4, category.getParentId());
+                    st.addBatch();
+                }
+                result = Batches.count(Batches.toResults(st.executeBatch()));
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            REPLICATE_BATCH_STATS.error();
+            result = -1;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            REPLICATE_BATCH_STATS.stop(start, Math.max(result, 0));
+        }
+        return result;
+    }
+
+    /**
+     * finds which of the given codes already exist
+     *
+     * @param codes the codes to look for
+     * @return the existing codes, or null in case of error
+     */
+    public Set<String> selectExistingCodes(Collection<String> codes) {
+        Set<String> result = new HashSet<>();
+        List<String> list = new ArrayList<>(codes);
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_EXISTING_CODES_STATS.startAt(dbConnect.connectedAt());
+            for (int from = 0; from < list.size(); from += Batches.MAX_IN_LIST) {
+                List<String> chunk = list.subList(from, Math.min(list.size(), from + Batches.MAX_IN_LIST));
+                String query = "select code from categories where code in " + Batches.placeholders(chunk.size());
+                try ( PreparedStatement st = conn.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        st.setString(i + 1, chunk.get(i));
+                    }
+                    ResultSet rs = st.executeQuery();
+                    while (rs.next()) {
+                        result.add(rs.getString(1));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            SELECT_EXISTING_CODES_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_EXISTING_CODES_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * gets the ids of all categories
+     *
+     * @return set of ids, or null in case of error
+     */
+    public Set<Long> selectAllIds() {
+        Set<Long> result = new HashSet<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_ALL_IDS_STATS.startAt(dbConnect.connectedAt());
+            String query = "select id from categories";
             Statement st = conn.createStatement();
             ResultSet rs = st.executeQuery(query);
             while (rs.next()) {
-                Category cat = fromResultSet(rs);
-                if (cat != null) {
-                    result.add(cat);
+                result.add(rs.getLong(1));
+            }
+        } catch (SQLException ex) {
+            SELECT_ALL_IDS_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_ALL_IDS_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * inserts a category or, if its code already exists, updates its name
+     *
+     * @param category the category to write
+     * @return 1 if inserted, 2 if updated, 0 if unchanged, -1 in case of error
+     */
+    public int upsert(Category category) {
+        SyncResult r = upsertBatch(List.of(category));
+        return (r.getInserted() == 1) ? 1 : (r.getUpdated() == 1) ? 2 : (r.getUnchanged() == 1) ? 0 : -1;
+    }
+
+    /**
+     * inserts or updates (by code) a list of categories in a single
+     * transaction, the same way as ProductDao.upsertBatch; the parent of
+     * categories updated is kept
+     *
+     * @param categories the categories to write, with distinct codes
+     * @return counters of inserted, updated and unchanged rows; in case of
+     * error all rows are counted as rejected
+     */
+    public SyncResult upsertBatch(List<Category> categories) {
+        SyncResult result = new SyncResult();
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getConnection(DbConnect.AFFECTED_ROWS_OPTIONS)) {
+            start = UPSERT_BATCH_STATS.startAt(dbConnect.connectedAt());
+            conn.setAutoCommit(false);
+            try {
+                for (int from = 0; from < categories.size(); from += Batches.MAX_IN_LIST) {
+                    List<Category> chunk = categories.subList(from, Math.min(categories.size(), from + Batches.MAX_IN_LIST));
+                    int n = chunk.size();
+                    int existing = 0;
+                    String count = "select count(*) from categories where code in " + Batches.placeholders(n) + " for update";
+                    try ( PreparedStatement st = conn.prepareStatement(count)) {
+                        for (int i = 0; i < n; i++) {
+                            st.setString(i + 1, chunk.get(i).getCode());
+                        }
+                        ResultSet rs = st.executeQuery();
+                        if (rs.next()) {
+                            existing = rs.getInt(1);
+                        }
+                    }
+                    StringBuilder query = new StringBuilder("insert into categories (code, name, parent_id) values ");
+                    for (int i = 0; i < n; i++) {
+                        query.append((i == 0) ? "(?, ?, ?)" : ", (?, ?, ?)");
+                    }
+                    query.append(" on duplicate key update name=values(name)");
+                    try ( PreparedStatement st = conn.prepareStatement(query.toString())) {
+                        int p = 1;
+                        for (Category category : chunk) {
+                            st.setString(p++, category.getCode());
+                            st.setString(p++, category.getName());
+                            setParentId(st, p++, category.getParentId());
+                        }
+                        //affected rows: 1 per inserted row, 2 per updated row
+                        int affected = st.executeUpdate();
+                        int inserted = n - existing;
+                        int updated = (affected - inserted) / 2;
+                        result.add(new SyncResult(inserted, updated, existing - updated, 0));
+                    }
                 }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
             }
         } catch (SQLException ex) {
+            UPSERT_BATCH_STATS.error();
+            result = new SyncResult(0, 0, 0, categories.size());
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPSERT_BATCH_STATS.stop(start, result.getInserted() + result.getUpdated());
         }
         return result;
     }
@@ -0,0 +1,45 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps rows of the categories table. The mapper has no state, so the shared
+ * instance can be used from any thread.
+ *
+ * @author ProvenSoft
+ */
+public final class CategoryMapper implements RowMapper<Category> {
+
+    /**
+     * select list of all columns; parent_id is added by migration V008, so
+     * the database must be migrated before categories are read (see
+     * MigrationRunner)
+     */
+    public static final String COLUMNS = "id, code, name, parent_id";
+    /**
+     * mapper of all columns
+     */
+    public static final CategoryMapper ALL = new CategoryMapper();
+
+    private CategoryMapper() {
+    }
+
+    @Override
+    public String columns() {
+        return COLUMNS;
+    }
+
+    @Override
+    public Category map(ResultSet rs, Category into) throws SQLException {
+        Category cat = (into != null) ? into : new Category();
+        cat.setId(rs.getLong(1));
+        cat.setCode(rs.getString(2));
+        cat.setName(rs.getString(3));
+        //null for top level categories, read as 0
+        cat.setParentId(rs.getLong(4));
+        return cat;
+    }
+
+}
@@ -0,0 +1,186 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Global directory of product codes and the shard holding each product,
+ * kept in the product_directory table of the main database and cached in
+ * memory. The directory is only a hint: an entry may be missing or
+ * outdated, so a product not found where the directory says must be looked
+ * for in all shards.
+ *
+ * @author ProvenSoft
+ */
+final class CodeDirectory {
+
+    private static final OpStats LOOKUP_STATS = Metrics.query("CodeDirectory.lookup");
+    private static final OpStats PUT_STATS = Metrics.query("CodeDirectory.put");
+    private static final OpStats REMOVE_STATS = Metrics.query("CodeDirectory.remove");
+
+    /**
+     * the cache is cleared when it grows beyond this number of codes
+     */
+    private static final int MAX_CACHED = 100_000;
+
+    private final DbConnect dbConnect;
+    private final Map<String, Integer> cache;
+
+    CodeDirectory(DbConnect dbConnect) {
+        this.dbConnect = dbConnect;
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * finds the shards of some codes
+     *
+     * @param codes the codes to look for
+     * @return the shard of each code found
+     */
+    Map<String, Integer> lookup(Collection<String> codes) {
+        Map<String, Integer> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String code : codes) {
+            Integer shard = cache.get(code);
+            if (shard != null) {
+                result.put(code, shard);
+            } else {
+                missing.add(code);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = LOOKUP_STATS.startAt(dbConnect.connectedAt());
+            for (int from = 0; from < missing.size(); from += Batches.MAX_IN_LIST) {
+                List<String> chunk = missing.subList(from, Math.min(missing.size(), from + Batches.MAX_IN_LIST));
+                String query = "select code, shard from product_directory where code in " + Batches.placeholders(chunk.size());
+                try ( PreparedStatement st = conn.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        st.setString(i + 1, chunk.get(i));
+                    }
+                    ResultSet rs = st.executeQuery();
+                    while (rs.next()) {
+                        result.put(rs.getString(1), rs.getInt(2));
+                        remember(rs.getString(1), rs.getInt(2));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            LOOKUP_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            LOOKUP_STATS.stop(start, result.size());
+        }
+        return result;
+    }
+
+    /**
+     * finds the shard of a code
+     *
+     * @param code the code
+     * @return the shard, or null if the code is not in the directory
+     */
+    Integer lookup(String code) {
+        Integer shard = cache.get(code);
+        return (shard != null) ? shard : lookup(List.of(code)).get(code);
+    }
+
+    /**
+     * adds or replaces entries
+     *
+     * @param shards the shard of each code
+     */
+    void put(Map<String, Integer> shards) {
+        if (shards.isEmpty()) {
+            return;
+        }
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = PUT_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into product_directory (code, shard) values (?, ?) on duplicate key update shard=values(shard)";
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Map.Entry<String, Integer> e : shards.entrySet()) {
+                    st.setString(1, e.getKey());
+                    st.setInt(2, e.getValue());
+                    st.addBatch();
+                }
+                st.executeBatch();
+            }
+            shards.forEach(this::remember);
+        } catch (SQLException ex) {
+            PUT_STATS.error();
+            shards.keySet().forEach(cache::remove);
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            PUT_STATS.stop(start, shards.size());
+        }
+    }
+
+    /**
+     * removes entries
+     *
+     * @param codes the codes to remove
+     */
+    void remove(Collection<String> codes) {
+        if (codes.isEmpty()) {
+            return;
+        }
+        List<String> list = new ArrayList<>(codes);
+        list.forEach(cache::remove);
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = REMOVE_STATS.startAt(dbConnect.connectedAt());
+            for (int from = 0; from < list.size(); from += Batches.MAX_IN_LIST) {
+                List<String> chunk = list.subList(from, Math.min(list.size(), from + Batches.MAX_IN_LIST));
+                String query = "delete from product_directory where code in " + Batches.placeholders(chunk.size());
+                try ( PreparedStatement st = conn.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        st.setString(i + 1, chunk.get(i));
+                    }
+                    st.executeUpdate();
+                }
+            }
+        } catch (SQLException ex) {
+            REMOVE_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            REMOVE_STATS.stop(start, list.size());
+        }
+    }
+
+    /**
+     * caches the shard of a code found outside the directory
+     */
+    void remember(String code, int shard) {
+        if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+        }
+        cache.put(code, shard);
+    }
+
+    /**
+     * drops a cached entry found to be wrong
+     */
+    void forget(String code) {
+        cache.remove(code);
+    }
+
+}
@@ -0,0 +1,180 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.ProductCriteria;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles product criteria to a parameterized select on the products
+ * table. Criteria that use the same filters, order and limit (whatever
+ * their values) have the same shape and get the same SQL text, which is
+ * built once and cached, so that the server and the driver see a small set
+ * of distinct statements. Category lists are padded to a power of two by
+ * repeating their last id, so that their length does not multiply shapes.
+ *
+ * Names and codes are compared as binary strings, case sensitive, rather
+ * than by the case insensitive collation of storedb, so that results are
+ * those of ProductCriteria.matches in the order of its comparator, as in
+ * the in-memory database; utf8 bytes sort as Java strings do.
+ *
+ * @author ProvenSoft
+ */
+final class CriteriaSql {
+
+    private static final int MIN_STOCK = 1;
+    private static final int MAX_STOCK = 1 << 1;
+    private static final int MIN_PRICE = 1 << 2;
+    private static final int MAX_PRICE = 1 << 3;
+    private static final int NAME_PREFIX = 1 << 4;
+    private static final int DESCENDING = 1 << 5;
+    private static final int LIMIT = 1 << 6;
+    private static final int SORT_SHIFT = 7;
+    private static final int IN_LIST_SHIFT = 10;
+
+    private static final String[] SORT_COLUMNS = {"id", "binary code", "binary name", "stock", "price"};
+
+    private static final ConcurrentHashMap<Integer, String> SHAPES = new ConcurrentHashMap<>();
+
+    private CriteriaSql() {
+    }
+
+    /**
+     * @param n number of categories
+     * @return length of the padded list, a power of two, or 0 for no list
+     */
+    private static int inListLength(int n) {
+        return (n == 0) ? 0 : (n == 1) ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * computes the shape of criteria: which filters are set, the order, and
+     * the length of the padded category list
+     */
+    static int shape(ProductCriteria c) {
+        int shape = c.getSortKey().ordinal() << SORT_SHIFT;
+        if (c.getCategoryIds() != null) {
+            //log2 of the padded length plus one, so that 0 means no list
+            shape |= (Integer.numberOfTrailingZeros(inListLength(c.getCategoryIds().size())) + 1) << IN_LIST_SHIFT;
+        }
+        shape |= (c.getMinStock() != null) ? MIN_STOCK : 0;
+        shape |= (c.getMaxStock() != null) ? MAX_STOCK : 0;
+        shape |= (c.getMinPrice() != null) ? MIN_PRICE : 0;
+        shape |= (c.getMaxPrice() != null) ? MAX_PRICE : 0;
+        shape |= (c.getNamePrefix() != null) ? NAME_PREFIX : 0;
+        shape |= c.isDescending() ? DESCENDING : 0;
+        shape |= (c.getLimit() > 0) ? LIMIT : 0;
+        return shape;
+    }
+
+    /**
+     * gets the select for criteria, from the cache if its shape was seen
+     * before. Criteria with an empty category list match nothing and must
+     * not be compiled.
+     *
+     * @param c the criteria
+     * @return the query
+     */
+    static String sql(ProductCriteria c) {
+        return SHAPES.computeIfAbsent(shape(c), CriteriaSql::build);
+    }
+
+    private static String build(int shape) {
+        List<String> where = new ArrayList<>();
+        int inList = (shape >>> IN_LIST_SHIFT);
+        if (inList != 0) {
+            where.add("category_id in " + Batches.placeholders(1 << (inList - 1)));
+        }
+        if ((shape & MIN_STOCK) != 0) {
+            where.add("stock>=?");
+        }
+        if ((shape & MAX_STOCK) != 0) {
+            where.add("stock<=?");
+        }
+        if ((shape & MIN_PRICE) != 0) {
+            where.add("price>=?");
+        }
+        if ((shape & MAX_PRICE) != 0) {
+            where.add("price<=?");
+        }
+        if ((shape & NAME_PREFIX) != 0) {
+            where.add("name like binary ?");
+        }
+        StringBuilder sb = new StringBuilder("select ").append(ProductMapper.COLUMNS).append(" from products");
+        if (!where.isEmpty()) {
+            sb.append(" where ").append(String.join(" and ", where));
+        }
+        String dir = ((shape & DESCENDING) != 0) ? " desc" : "";
+        String key = SORT_COLUMNS[(shape >>> SORT_SHIFT) & 7];
+        sb.append(" order by ").append(key).append(dir);
+        if (!key.equals("id")) {
+            sb.append(", id").append(dir);
+        }
+        if ((shape & LIMIT) != 0) {
+            sb.append(" limit ?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * sets the parameters of the select for criteria, in the order build
+     * lays them out
+     *
+     * @param st the statement
+     * @param c the criteria
+     * @throws SQLException if a parameter can not be set
+     */
+    static void bind(PreparedStatement st, ProductCriteria c) throws SQLException {
+        int p = 1;
+        if (c.getCategoryIds() != null) {
+            int length = inListLength(c.getCategoryIds().size());
+            long last = 0;
+            for (long id : c.getCategoryIds()) {
+                st.setLong(p++, id);
+                last = id;
+                length--;
+            }
+            for (; length > 0; length--) {
+                st.setLong(p++, last);
+            }
+        }
+        if (c.getMinStock() != null) {
+            st.setInt(p++, c.getMinStock());
+        }
+        if (c.getMaxStock() != null) {
+            st.setInt(p++, c.getMaxStock());
+        }
+        if (c.getMinPrice() != null) {
+            st.setBigDecimal(p++, Money.toBigDecimal(c.getMinPrice()));
+        }
+        if (c.getMaxPrice() != null) {
+            st.setBigDecimal(p++, Money.toBigDecimal(c.getMaxPrice()));
+        }
+        if (c.getNamePrefix() != null) {
+            st.setString(p++, likePrefix(c.getNamePrefix()));
+        }
+        if (c.getLimit() > 0) {
+            st.setInt(p++, c.getLimit());
+        }
+    }
+
+    /**
+     * turns a prefix into a like pattern, escaping its wildcards with the
+     * default escape character
+     */
+    static String likePrefix(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix.length() + 4);
+        for (int i = 0; i < prefix.length(); i++) {
+            char ch = prefix.charAt(i);
+            if (ch == '%' || ch == '_' || ch == '\\') {
+                sb.append('\\');
+            }
+            sb.append(ch);
+        }
+        return sb.append('%').toString();
+    }
+
+}
@@ -0,0 +1,199 @@
+package cat.proven.categprods.model.persist;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Database connection settings, read from a properties file:
+ * <pre>
+ * primary=127.0.0.1:3306
+ * replicas=127.0.0.1:3307,127.0.0.1:3308
+ * name=storedb
+ * user=storeusr
+ * password=storepsw
+ * options=rewriteBatchedStatements=true
+ * readYourWritesMillis=2000
+ * healthCheckSeconds=5
+ * </pre>
+ * Each key can also be given as a system property prefixed with
+ * categprods.db., which takes precedence over the file. The file is the
+ * one named by the categprods.db.config system property; missing keys, or
+ * all of them if there is no file, get the defaults above except replicas,
+ * which defaults to none, so that reads go to the primary.
+ *
+ * @author ProvenSoft
+ */
+public final class DbConfig {
+
+    /**
+     * system property with the path of the configuration file
+     */
+    public static final String FILE_PROPERTY = "categprods.db.config";
+    private static final String PREFIX = "categprods.db.";
+
+    private final String primary;
+    private final List<String> replicas;
+    private final String name;
+    private final String user;
+    private final String password;
+    private final String options;
+    private final long readYourWritesMillis;
+    private final int healthCheckSeconds;
+    /**
+     * true if system properties take precedence over the file
+     */
+    private final boolean overridable;
+
+    private DbConfig(Properties props, boolean overridable) {
+        this.overridable = overridable;
+        this.primary = value(props, "primary", "127.0.0.1");
+        List<String> list = new ArrayList<>();
+        for (String host : value(props, "replicas", "").split(",")) {
+            if (!host.isBlank()) {
+                list.add(host.strip());
+            }
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.name = value(props, "name", "storedb");
+        this.user = value(props, "user", "storeusr");
+        this.password = value(props, "password", "storepsw");
+        this.options = value(props, "options", DbConnect.OPTIONS);
+        this.readYourWritesMillis = Long.parseLong(value(props, "readYourWritesMillis", "2000"));
+        this.healthCheckSeconds = Integer.parseInt(value(props, "healthCheckSeconds", "5"));
+    }
+
+    private String value(Properties props, String key, String defaultValue) {
+        String v = overridable ? System.getProperty(PREFIX + key) : null;
+        if (v == null) {
+            v = props.getProperty(key, defaultValue);
+        }
+        return v.strip();
+    }
+
+    /**
+     * reads the settings from a file, with system property overrides
+     *
+     * @param file the file to read
+     * @return the settings
+     * @throws IOException if the file can not be read
+     */
+    public static DbConfig load(Path file) throws IOException {
+        return load(file, true);
+    }
+
+    /**
+     * reads the settings from a file
+     *
+     * @param file the file to read
+     * @param overridable true to let system properties take precedence, false
+     * for settings of other servers than the main ones, such as shards
+     * @return the settings
+     * @throws IOException if the file can not be read
+     */
+    static DbConfig load(Path file, boolean overridable) throws IOException {
+        Properties props = new Properties();
+        try ( Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        return new DbConfig(props, overridable);
+    }
+
+    /**
+     * reads the settings from the file named by FILE_PROPERTY, if any; if it
+     * can not be read the error is logged and defaults are used
+     *
+     * @return the settings
+     */
+    public static DbConfig fromSystemProperties() {
+        String path = System.getProperty(FILE_PROPERTY);
+        if (path != null && !path.isEmpty()) {
+            try {
+                return load(Path.of(path));
+            } catch (IOException ex) {
+                Logger.getLogger(DbConfig.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return new DbConfig(new Properties(), true);
+    }
+
+    /**
+     * builds the url of a database server
+     *
+     * @param host host and optional port of the server
+     * @param extraOptions options added to the configured ones, or null
+     * @return the url
+     */
+    String url(String host, String extraOptions) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(DbConnect.PROTOCOL).append("//").append(host).append('/').append(name);
+        String all = allOptions(extraOptions);
+        if (!all.isEmpty()) {
+            sb.append('?').append(all);
+        }
+        return sb.toString();
+    }
+
+    String allOptions(String extraOptions) {
+        if (extraOptions == null || extraOptions.isEmpty()) {
+            return options;
+        }
+        return options.isEmpty() ? extraOptions : options + "&" + extraOptions;
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    public List<String> getReplicas() {
+        return replicas;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    public String getOptions() {
+        return options;
+    }
+
+    public long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    public int getHealthCheckSeconds() {
+        return healthCheckSeconds;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DbConfig{");
+        sb.append("primary=").append(primary);
+        sb.append(", replicas=").append(replicas);
+        sb.append(", name=").append(name);
+        sb.append(", user=").append(user);
+        sb.append(", options=").append(options);
+        sb.append(", readYourWritesMillis=").append(readYourWritesMillis);
+        sb.append(", healthCheckSeconds=").append(healthCheckSeconds);
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
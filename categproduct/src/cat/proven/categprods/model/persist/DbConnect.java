@@ -1,5 +1,8 @@
 package cat.proven.categprods.model.persist;
 
+import cat.proven.categprods.model.metrics.ConnectionOpenEvent;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
@@ -7,33 +10,221 @@ import java.sql.SQLException;
 /**
  * encapsulates data for database connection.
  *
+ * Connections for changes go to the primary server. Connections for reads
+ * go to a read replica, picked in turn among the healthy ones, or to the
+ * primary if there are none. After a thread gets a connection to the
+ * primary, its reads also go to the primary for a while (the read your
+ * writes window), so that it does not miss its own changes while they are
+ * being copied to replicas; the window covers the connections of all
+ * instances. The window belongs to the thread: work for a client whose
+ * calls run on different threads, such as the requests of a session of
+ * the HTTP server, must carry it from one to the next with pinnedUntil and
+ * pinUntil (see StoreServer). Settings are taken from DbConfig.
+ *
  * @author ProvenSoft
  */
 public final class DbConnect {
 
     static final String DRIVER = "com.mysql.cj.jdbc.Driver";
     static final String PROTOCOL = "jdbc:mysql:";
-    static final String HOST = "127.0.0.1";
-    static final String BD_NAME = "storedb";
-    static final String USER = "storeusr";
-    static final String PASSWORD = "storepsw";
+    /**
+     * lets the driver send batches as multi-row statements
+     */
+    static final String OPTIONS = "rewriteBatchedStatements=true";
+    /**
+     * makes the driver report changed rows instead of matched rows, which
+     * upserts need to tell updated rows from unchanged ones
+     */
+    static final String AFFECTED_ROWS_OPTIONS = "useAffectedRows=true";
+    /**
+     * time to open connections, kept apart from the time of the queries
+     * that use them
+     */
+    private static final OpStats CONNECT_STATS = Metrics.get("DbConnect.getConnection");
+    /**
+     * clock read at the end of the last connection opened by each thread, or
+     * 0 if not timed
+     */
+    private static final ThreadLocal<long[]> CONNECTED = ThreadLocal.withInitial(() -> new long[1]);
+
+    private static volatile ReplicaSet replicaSet;
+    /**
+     * servers of this instance, or null to use the configured ones
+     */
+    private final ReplicaSet servers;
+    /**
+     * end of the read your writes window of each thread, in nanoTime, or 0
+     */
+    private static final ThreadLocal<long[]> PRIMARY_UNTIL = ThreadLocal.withInitial(() -> new long[1]);
+
+    public DbConnect() {
+        this.servers = null;
+    }
+
+    /**
+     * creates an instance that connects to other servers than the configured
+     * ones, such as a shard
+     *
+     * @param config the settings of the servers
+     */
+    public DbConnect(DbConfig config) {
+        this.servers = new ReplicaSet(config);
+    }
 
     public static void loadDriver() throws ClassNotFoundException {
-        //getConnectionProperties(); better if connection properties are read from a configuration file
         Class.forName(DRIVER);
     }
-    
+
     /**
-     * gets and returns a connection to database
+     * sets the settings used for connections opened from now on
+     *
+     * @param config the settings
+     */
+    public static synchronized void configure(DbConfig config) {
+        ReplicaSet old = replicaSet;
+        replicaSet = new ReplicaSet(config);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * @return the settings in use
+     */
+    public static DbConfig getConfig() {
+        return replicas().getConfig();
+    }
+
+    private static ReplicaSet replicas() {
+        ReplicaSet rs = replicaSet;
+        if (rs == null) {
+            synchronized (DbConnect.class) {
+                if (replicaSet == null) {
+                    replicaSet = new ReplicaSet(DbConfig.fromSystemProperties());
+                }
+                rs = replicaSet;
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * sends the reads of the current thread to the primary during the read
+     * your writes window
+     */
+    public static void pinToPrimary() {
+        long window = replicas().getConfig().getReadYourWritesMillis();
+        if (window > 0) {
+            long until = System.nanoTime() + window * 1_000_000L;
+            PRIMARY_UNTIL.get()[0] = (until == 0) ? 1 : until;
+        }
+    }
+
+    /**
+     * @return end of the read your writes window of the current thread, to
+     * be passed to pinUntil in threads working for the same client, or 0 if
+     * there is none
+     */
+    public static long pinnedUntil() {
+        return isPinned() ? PRIMARY_UNTIL.get()[0] : 0;
+    }
+
+    /**
+     * sets the read your writes window of the current thread
+     *
+     * @param until value got from pinnedUntil, or 0 for none
+     */
+    public static void pinUntil(long until) {
+        PRIMARY_UNTIL.get()[0] = until;
+    }
+
+    private ReplicaSet servers() {
+        return (servers != null) ? servers : replicas();
+    }
+
+    private static boolean isPinned() {
+        long[] until = PRIMARY_UNTIL.get();
+        if (until[0] != 0 && System.nanoTime() - until[0] >= 0) {
+            until[0] = 0;
+        }
+        return until[0] != 0;
+    }
+
+    /**
+     * gets and returns a connection to the primary database server, for
+     * changes or reads that must see them
      *
      * @return connection
      * @throws java.sql.SQLException
      */
     public Connection getConnection() throws SQLException {
-        final String BD_URL = String.format("%s//%s/%s", PROTOCOL, HOST, BD_NAME);
-        Connection conn;
-        conn = DriverManager.getConnection(BD_URL, USER, PASSWORD);
-        return conn;
+        return getConnection(null);
+    }
+
+    /**
+     * gets a connection to the primary with additional driver options
+     *
+     * @param options options to append to the connection url, or null
+     * @return connection
+     * @throws java.sql.SQLException
+     */
+    Connection getConnection(String options) throws SQLException {
+        DbConfig config = servers().getConfig();
+        pinToPrimary();
+        return open(config, config.getPrimary(), options);
+    }
+
+    /**
+     * gets a connection for reads only: to a healthy replica if there is one
+     * and the thread is not in its read your writes window, otherwise to
+     * the primary
+     *
+     * @return connection
+     * @throws java.sql.SQLException
+     */
+    public Connection getReadConnection() throws SQLException {
+        ReplicaSet rs = servers();
+        DbConfig config = rs.getConfig();
+        if (!isPinned()) {
+            for (ReplicaSet.Replica r = rs.pick(); r != null; r = rs.pick()) {
+                try {
+                    return open(config, r.host, null);
+                } catch (SQLException ex) {
+                    rs.markDown(r, ex);
+                }
+            }
+        }
+        return open(config, config.getPrimary(), null);
+    }
+
+    private Connection open(DbConfig config, String host, String options) throws SQLException {
+        long start = CONNECT_STATS.start();
+        ConnectionOpenEvent event = new ConnectionOpenEvent();
+        event.begin();
+        event.host = host;
+        event.options = config.allOptions(options);
+        try {
+            Connection conn = DriverManager.getConnection(config.url(host, options), config.getUser(), config.getPassword());
+            event.success = true;
+            return LeaseTracker.track(SlowQueryLog.wrap(conn));
+        } catch (SQLException ex) {
+            CONNECT_STATS.error();
+            throw ex;
+        } finally {
+            event.commit();
+            CONNECTED.get()[0] = CONNECT_STATS.stop(start);
+        }
+    }
+
+    /**
+     * gets the time the last connection of the current thread was opened,
+     * for daos to start timing their queries without reading the clock
+     * again, and without counting the time to get the connection
+     *
+     * @return a value of System.nanoTime(), or 0 if not timed
+     */
+    long connectedAt() {
+        return CONNECTED.get()[0];
     }
 
 }
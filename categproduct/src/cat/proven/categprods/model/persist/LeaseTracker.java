@@ -0,0 +1,60 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.metrics.ConnectionLeaseEvent;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import jdk.jfr.EventType;
+
+/**
+ * Emits a ConnectionLeaseEvent spanning the time a connection is held. The
+ * connection is only wrapped while the event is enabled in a flight
+ * recording.
+ *
+ * @author ProvenSoft
+ */
+final class LeaseTracker implements InvocationHandler {
+
+    private static final EventType LEASE_EVENT = EventType.getEventType(ConnectionLeaseEvent.class);
+
+    private final Connection conn;
+    private final ConnectionLeaseEvent event;
+
+    private LeaseTracker(Connection conn) {
+        this.conn = conn;
+        this.event = new ConnectionLeaseEvent();
+        this.event.begin();
+    }
+
+    /**
+     * starts tracking a connection that has just been opened
+     *
+     * @param conn the connection
+     * @return the connection to hand out
+     */
+    static Connection track(Connection conn) {
+        if (!LEASE_EVENT.isEnabled()) {
+            return conn;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new LeaseTracker(conn));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("prepareStatement".equals(name) || "createStatement".equals(name)) {
+            event.statements++;
+        } else if ("close".equals(name) && !conn.isClosed()) {
+            event.commit();
+        }
+        try {
+            return method.invoke(conn, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+}
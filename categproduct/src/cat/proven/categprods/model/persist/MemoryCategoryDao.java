@@ -0,0 +1,193 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.SyncResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Data Access Object for category table backed by an in-memory database
+ *
+ * @author ProvenSoft
+ */
+public class MemoryCategoryDao extends CategoryDao {
+
+    private final MemoryDb db;
+
+    public MemoryCategoryDao(MemoryDb db) {
+        this.db = db;
+    }
+
+    @Override
+    public int insert(Category category) {
+        return (db.putCategory(category) != null) ? 1 : 0;
+    }
+
+    @Override
+    public int update(Category currentCategory, Category updatedCategory) {
+        int result = 0;
+        synchronized (db) {
+            Category stored = db.categories.get(currentCategory.getId());
+            if (stored != null) {
+                String newCode = updatedCategory.getCode();
+                Long owner = db.categoryCodes.get(newCode);
+                if ((owner == null) || (owner == stored.getId())) {
+                    db.categoryCodes.remove(stored.getCode());
+                    Category updated = new Category(stored.getId(), newCode, updatedCategory.getName(),
+                            stored.getParentId());
+                    db.categories.put(updated.getId(), updated);
+                    db.categoryCodes.put(newCode, updated.getId());
+                    result = 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int delete(Category deleteCategory) {
+        int result = 0;
+        synchronized (db) {
+            //same as the jdbc dao: products of the category are removed first
+            long id = deleteCategory.getId();
+            //but categories with children are not removed, as the parent_id key refuses it
+            if (db.subtreeIds(id).size() > 1) {
+                return 0;
+            }
+            Set<Long> ids = db.categoryIndex.get(id);
+            for (Long productId : (ids != null) ? new ArrayList<>(ids) : List.<Long>of()) {
+                db.removeProduct(productId);
+            }
+            Category removed = db.categories.remove(id);
+            if (removed != null) {
+                db.categoryCodes.remove(removed.getCode());
+                result = 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int updateParent(Category category, long parentId) {
+        int result = 0;
+        synchronized (db) {
+            Category stored = db.categories.get(category.getId());
+            if (stored != null) {
+                //same as the triggers of category_tree: no moves into the own subtree
+                if (parentId != 0 && (!db.categories.containsKey(parentId)
+                        || db.subtreeIds(stored.getId()).contains(parentId))) {
+                    return -1;
+                }
+                db.categories.put(stored.getId(),
+                        new Category(stored.getId(), stored.getCode(), stored.getName(), parentId));
+                result = 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Long> selectSubtreeIds(Category category) {
+        return db.subtreeIds(category.getId());
+    }
+
+    @Override
+    public Category select(Category category) {
+        Category cat = db.categories.get(category.getId());
+        return (cat != null) ? new Category(cat) : null;
+    }
+
+    @Override
+    public Category selectWhereCode(String code) {
+        Long id = db.categoryCodes.get(code);
+        return (id != null) ? select(new Category(id)) : null;
+    }
+
+    @Override
+    public Category selectWhereName(String name) {
+        Category cat = null;
+        for (Category c : db.categories.values()) {
+            if (c.getName().equals(name)) {
+                cat = new Category(c);
+                break;
+            }
+        }
+        return cat;
+    }
+
+    @Override
+    public List<Category> selectAll() {
+        List<Category> result = new ArrayList<>();
+        for (Category c : db.categories.values()) {
+            result.add(new Category(c));
+        }
+        return result;
+    }
+
+    @Override
+    public int[] insertBatch(List<Category> categories) {
+        int[] result = new int[categories.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = insert(categories.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public int replicateBatch(List<Category> categories) {
+        int result = 0;
+        for (Category c : categories) {
+            if (db.storeCategory(c)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> selectExistingCodes(Collection<String> codes) {
+        Set<String> result = new HashSet<>();
+        for (String code : codes) {
+            if (db.categoryCodes.containsKey(code)) {
+                result.add(code);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Long> selectAllIds() {
+        return new HashSet<>(db.categories.keySet());
+    }
+
+    @Override
+    public int upsert(Category category) {
+        int result;
+        synchronized (db) {
+            Long id = db.categoryCodes.get(category.getCode());
+            if (id == null) {
+                result = insert(category);
+            } else if (db.categories.get(id).getName().equals(category.getName())) {
+                result = 0;
+            } else {
+                db.categories.put(id, new Category(id, category.getCode(), category.getName(),
+                        db.categories.get(id).getParentId()));
+                result = 2;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public SyncResult upsertBatch(List<Category> categories) {
+        int[] counts = new int[3];
+        for (Category c : categories) {
+            counts[upsert(c)]++;
+        }
+        return new SyncResult(counts[1], counts[2], counts[0], 0);
+    }
+
+}
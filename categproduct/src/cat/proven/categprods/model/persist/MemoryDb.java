@@ -0,0 +1,355 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Order;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.ProductDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for storedb. Holds categories and products in memory,
+ * so that the application can be run and tested without a database server.
+ *
+ * Besides products by id and by code, products are indexed by category and
+ * by name, as the products table is. Indexes are changed along with the
+ * products map, under the lock of the database; readers do not lock, so
+ * they may find index entries of products just changed or removed, and
+ * must check them against the products map.
+ *
+ * Versions and digests of products are kept as storedb triggers keep them:
+ * a stored product that differs from the one it replaces gets the next
+ * version unless it was given another one, and the digests of its category
+ * and bucket are updated.
+ *
+ * @author ProvenSoft
+ */
+public final class MemoryDb {
+
+    final ConcurrentSkipListMap<Long, Category> categories;
+    final ConcurrentSkipListMap<Long, Product> products;
+    final ConcurrentHashMap<String, Long> categoryCodes;
+    final ConcurrentHashMap<String, Long> productCodes;
+    /**
+     * ids of the products of each category
+     */
+    final ConcurrentHashMap<Long, Set<Long>> categoryIndex;
+    /**
+     * stored products, by name and then id
+     */
+    final ConcurrentSkipListSet<Product> nameIndex;
+    /**
+     * change counter of products, as the catalog_version table
+     */
+    final AtomicLong productVersion;
+    /**
+     * hash and count of the products of each category, in total and by
+     * bucket, as the product_digest table; guarded by this
+     */
+    private final Map<Long, long[]> categoryDigests;
+    private final Map<Long, TreeMap<Long, long[]>> bucketDigests;
+    /**
+     * orders placed, with their lines, as the orders and order_lines tables
+     */
+    final ConcurrentSkipListMap<Long, Order> orders;
+    final AtomicLong categorySeq;
+    final AtomicLong productSeq;
+    final AtomicLong orderSeq;
+
+    public MemoryDb() {
+        this.categories = new ConcurrentSkipListMap<>();
+        this.products = new ConcurrentSkipListMap<>();
+        this.categoryCodes = new ConcurrentHashMap<>();
+        this.productCodes = new ConcurrentHashMap<>();
+        this.categoryIndex = new ConcurrentHashMap<>();
+        this.nameIndex = new ConcurrentSkipListSet<>(Comparator.comparing(Product::getName,
+                Comparator.nullsFirst(Comparator.<String>naturalOrder())).thenComparingLong(Product::getId));
+        this.productVersion = new AtomicLong();
+        this.categoryDigests = new HashMap<>();
+        this.bucketDigests = new HashMap<>();
+        this.categorySeq = new AtomicLong();
+        this.productSeq = new AtomicLong();
+        this.orders = new ConcurrentSkipListMap<>();
+        this.orderSeq = new AtomicLong();
+    }
+
+    /**
+     * creates a database loaded with the same sample data as storedb.sql
+     *
+     * @return the seeded database
+     */
+    public static MemoryDb withSampleData() {
+        MemoryDb db = new MemoryDb();
+        for (int i = 1; i <= 6; i++) {
+            db.putCategory(new Category(0, String.format("C%02d", i), String.format("category%02d", i)));
+        }
+        long[] categoryIds = {1, 2, 3, 4, 5, 1, 1, 2, 3};
+        for (int i = 1; i <= 9; i++) {
+            db.putProduct(new Product(0, String.format("P%02d", i), String.format("product%02d", i),
+                    100 + i, Money.of(1000 + i, 0), new Category(categoryIds[i - 1])));
+        }
+        return db;
+    }
+
+    /**
+     * creates a database with the given number of categories and products,
+     * products being evenly spread among categories
+     *
+     * @param numCategories number of categories to generate
+     * @param numProducts number of products to generate
+     * @return the seeded database
+     */
+    public static MemoryDb withGeneratedData(int numCategories, int numProducts) {
+        MemoryDb db = new MemoryDb();
+        for (int i = 1; i <= numCategories; i++) {
+            db.putCategory(new Category(0, "C" + i, "category" + i));
+        }
+        for (int i = 1; i <= numProducts; i++) {
+            long catId = 1 + (i % numCategories);
+            db.putProduct(new Product(0, "P" + i, "product" + i, i % 1000, 100 + i % 10000, new Category(catId)));
+        }
+        return db;
+    }
+
+    /**
+     * stores a category assigning it a new id
+     *
+     * @param category the category to store
+     * @return the stored copy or null if code already exists or its parent
+     * is not found
+     */
+    synchronized Category putCategory(Category category) {
+        Category stored = null;
+        long parentId = category.getParentId();
+        if (!categoryCodes.containsKey(category.getCode())
+                && (parentId == 0 || categories.containsKey(parentId))) {
+            long id = categorySeq.incrementAndGet();
+            stored = new Category(id, category.getCode(), category.getName(), parentId);
+            categories.put(id, stored);
+            categoryCodes.put(stored.getCode(), id);
+        }
+        return stored;
+    }
+
+    /**
+     * stores a product assigning it a new id
+     *
+     * @param product the product to store
+     * @return the stored copy or null if code already exists
+     */
+    synchronized Product putProduct(Product product) {
+        Product stored = null;
+        if (!productCodes.containsKey(product.getCode())) {
+            long id = productSeq.incrementAndGet();
+            stored = new Product(product);
+            stored.setId(id);
+            stored.setCategory(new Category(product.getCategory().getId()));
+            stored.setVersion(0);
+            storeProduct(stored);
+            productCodes.put(stored.getCode(), id);
+        }
+        return stored;
+    }
+
+    /**
+     * stores a product under its id, replacing the one with the same id if
+     * any, and updates the indexes. The product must not be changed once
+     * stored.
+     *
+     * @param stored the product to store
+     */
+    synchronized void storeProduct(Product stored) {
+        Product old = products.get(stored.getId());
+        if (old != null && old.getVersion() == stored.getVersion() && !sameRow(old, stored)) {
+            stored.setVersion(old.getVersion() + 1);
+        }
+        products.put(stored.getId(), stored);
+        if (old != null) {
+            unindex(old);
+            digest(old, -1);
+        }
+        digest(stored, 1);
+        categoryIndex.computeIfAbsent(stored.getCategory().getId(), k -> ConcurrentHashMap.newKeySet()).add(stored.getId());
+        nameIndex.add(stored);
+        productVersion.incrementAndGet();
+    }
+
+    /**
+     * removes a product, with its code and index entries
+     *
+     * @param id id of the product
+     * @return the removed product, or null if not found
+     */
+    synchronized Product removeProduct(long id) {
+        Product old = products.remove(id);
+        if (old != null) {
+            productCodes.remove(old.getCode(), id);
+            unindex(old);
+            digest(old, -1);
+            productVersion.incrementAndGet();
+        }
+        return old;
+    }
+
+    private void unindex(Product old) {
+        Set<Long> ids = categoryIndex.get(old.getCategory().getId());
+        if (ids != null) {
+            ids.remove(old.getId());
+        }
+        nameIndex.remove(old);
+    }
+
+    /**
+     * stores a category under its id, replacing the one with the same id if
+     * any, as replicas copying categories do
+     *
+     * @param category the category to store
+     * @return true if stored, false if another category has its code
+     */
+    synchronized boolean storeCategory(Category category) {
+        Long owner = categoryCodes.get(category.getCode());
+        if (owner != null && owner != category.getId()) {
+            return false;
+        }
+        Category old = categories.put(category.getId(), new Category(category));
+        if (old != null) {
+            categoryCodes.remove(old.getCode());
+        }
+        categoryCodes.put(category.getCode(), category.getId());
+        categorySeq.accumulateAndGet(category.getId(), Math::max);
+        return true;
+    }
+
+    /**
+     * gets the ids of a category and its descendants, as the category_tree
+     * table of storedb does
+     *
+     * @param id id of the category
+     * @return the ids, parents before children, empty if not found
+     */
+    synchronized List<Long> subtreeIds(long id) {
+        List<Long> result = new ArrayList<>();
+        if (categories.containsKey(id)) {
+            Map<Long, List<Long>> children = new HashMap<>();
+            for (Category c : categories.values()) {
+                if (c.getParentId() != 0) {
+                    children.computeIfAbsent(c.getParentId(), k -> new ArrayList<>()).add(c.getId());
+                }
+            }
+            Set<Long> seen = new HashSet<>();
+            result.add(id);
+            seen.add(id);
+            for (int i = 0; i < result.size(); i++) {
+                for (long child : children.getOrDefault(result.get(i), List.of())) {
+                    //a loop of parents, only possible when copied from a replica, is cut
+                    if (seen.add(child)) {
+                        result.add(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean sameRow(Product a, Product b) {
+        return Objects.equals(a.getCode(), b.getCode()) && Objects.equals(a.getName(), b.getName())
+                && a.getStock() == b.getStock() && a.getPrice() == b.getPrice()
+                && a.getCategory().getId() == b.getCategory().getId();
+    }
+
+    /**
+     * adds a product to the digests of its category and bucket, or removes
+     * it
+     *
+     * @param p the product
+     * @param sign 1 to add, -1 to remove
+     */
+    private void digest(Product p, int sign) {
+        long hash = ProductDigest.hashOf(p);
+        long category = p.getCategory().getId();
+        long[] total = categoryDigests.computeIfAbsent(category, k -> new long[2]);
+        total[0] ^= hash;
+        total[1] += sign;
+        TreeMap<Long, long[]> buckets = bucketDigests.computeIfAbsent(category, k -> new TreeMap<>());
+        long[] bucket = buckets.computeIfAbsent(ProductDigest.bucketOf(p.getId()), k -> new long[2]);
+        bucket[0] ^= hash;
+        bucket[1] += sign;
+        if (bucket[1] == 0) {
+            buckets.remove(ProductDigest.bucketOf(p.getId()));
+        }
+        if (total[1] == 0) {
+            categoryDigests.remove(category);
+            bucketDigests.remove(category);
+        }
+    }
+
+    /**
+     * @return digests of the products of each category with products
+     */
+    synchronized Map<Long, ProductDigest> categoryDigests() {
+        Map<Long, ProductDigest> result = new HashMap<>();
+        for (Map.Entry<Long, long[]> e : categoryDigests.entrySet()) {
+            result.put(e.getKey(), new ProductDigest(e.getValue()[0], (int) e.getValue()[1]));
+        }
+        return result;
+    }
+
+    /**
+     * combines the digests of the buckets of a category in a range into
+     * digests of groups of 2^shift buckets
+     *
+     * @param categoryId the category
+     * @param fromBucket first bucket
+     * @param toBucket bucket after the last one
+     * @param shift bits of bucket number within a group
+     * @return digest of each group with products, by bucket number shifted
+     */
+    synchronized Map<Long, ProductDigest> bucketDigests(long categoryId, long fromBucket, long toBucket, int shift) {
+        Map<Long, long[]> groups = new HashMap<>();
+        TreeMap<Long, long[]> buckets = bucketDigests.get(categoryId);
+        if (buckets != null) {
+            for (Map.Entry<Long, long[]> e : buckets.subMap(fromBucket, toBucket).entrySet()) {
+                long[] group = groups.computeIfAbsent(e.getKey() >> shift, k -> new long[2]);
+                group[0] ^= e.getValue()[0];
+                group[1] += e.getValue()[1];
+            }
+        }
+        Map<Long, ProductDigest> result = new HashMap<>();
+        for (Map.Entry<Long, long[]> e : groups.entrySet()) {
+            result.put(e.getKey(), new ProductDigest(e.getValue()[0], (int) e.getValue()[1]));
+        }
+        return result;
+    }
+
+    /**
+     * gets the stored products whose name starts with a prefix, from the
+     * name index
+     *
+     * @param prefix the prefix
+     * @return a view of the index, by name and then id
+     */
+    NavigableSet<Product> productsNamed(String prefix) {
+        Product from = new Product(Long.MIN_VALUE, null, prefix, 0, 0, null);
+        int last = prefix.length() - 1;
+        if (prefix.charAt(last) == Character.MAX_VALUE) {
+            return nameIndex.tailSet(from, true);
+        }
+        //the smallest name greater than all those starting with the prefix
+        String next = prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+        return nameIndex.subSet(from, true, new Product(Long.MIN_VALUE, null, next, 0, 0, null), false);
+    }
+
+}
@@ -0,0 +1,64 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Order;
+import cat.proven.categprods.model.OrderLine;
+import cat.proven.categprods.model.Product;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * OrderDao backed by a MemoryDb instead of storedb. Orders are placed under
+ * the lock of the database, which makes them atomic.
+ *
+ * @author ProvenSoft
+ */
+public class MemoryOrderDao extends OrderDao {
+
+    private final MemoryDb db;
+
+    public MemoryOrderDao(MemoryDb db) {
+        this.db = db;
+    }
+
+    @Override
+    public Order insert(Map<String, Integer> quantities) {
+        synchronized (db) {
+            List<Product> products = new ArrayList<>(quantities.size());
+            List<OrderLine> lines = new ArrayList<>(quantities.size());
+            long total = 0;
+            for (Map.Entry<String, Integer> e : new TreeMap<>(quantities).entrySet()) {
+                Long id = db.productCodes.get(e.getKey());
+                Product stored = (id != null) ? db.products.get(id) : null;
+                if (stored == null || stored.getStock() < e.getValue()) {
+                    return null;
+                }
+                OrderLine line = new OrderLine(stored.getId(), stored.getCode(), e.getValue(), stored.getPrice());
+                try {
+                    total = Money.plus(total, line.getAmount());
+                } catch (ArithmeticException ex) {
+                    return null;
+                }
+                products.add(stored);
+                lines.add(line);
+            }
+            for (int i = 0; i < products.size(); i++) {
+                Product updated = new Product(products.get(i));
+                updated.setStock(updated.getStock() - lines.get(i).getQuantity());
+                db.storeProduct(updated);
+            }
+            Order order = new Order(db.orderSeq.incrementAndGet(), total, lines);
+            db.orders.put(order.getId(), new Order(order));
+            return order;
+        }
+    }
+
+    @Override
+    public Order select(long id) {
+        Order order = db.orders.get(id);
+        return (order != null) ? new Order(order) : null;
+    }
+
+}
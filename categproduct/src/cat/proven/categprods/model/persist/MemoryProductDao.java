@@ -0,0 +1,414 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.ProductCriteria;
+import cat.proven.categprods.model.ProductDigest;
+import cat.proven.categprods.model.SyncResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Data Access Object for product table backed by an in-memory database
+ *
+ * @author ProvenSoft
+ */
+public class MemoryProductDao extends ProductDao {
+
+    private final MemoryDb db;
+
+    public MemoryProductDao(MemoryDb db) {
+        this.db = db;
+    }
+
+    /**
+     * returns a detached copy of a stored product, as a query would do
+     */
+    private static Product copyOf(Product stored) {
+        Product prod = new Product(stored);
+        prod.setCategory(new Category(stored.getCategory().getId()));
+        return prod;
+    }
+
+    @Override
+    public int insert(Product product) {
+        return (db.putProduct(product) != null) ? 1 : 0;
+    }
+
+    @Override
+    public int delete(Product p) {
+        int result = 0;
+        synchronized (db) {
+            Long id = db.productCodes.get(p.getCode());
+            if (id != null && db.removeProduct(id) != null) {
+                result = 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int deleteWhereCategory(Category category) {
+        int result = 0;
+        synchronized (db) {
+            Set<Long> ids = db.categoryIndex.get(category.getId());
+            for (Long id : (ids != null) ? new ArrayList<>(ids) : List.<Long>of()) {
+                if (db.removeProduct(id) != null) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Product select(Product product) {
+        Product prod = db.products.get(product.getId());
+        return (prod != null) ? copyOf(prod) : null;
+    }
+
+    @Override
+    public int update(Product oldP, Product newP) {
+        int result = 0;
+        synchronized (db) {
+            Product stored = db.products.get(oldP.getId());
+            if (stored != null) {
+                Product updated = new Product(stored);
+                updated.setName(newP.getName());
+                updated.setStock(newP.getStock());
+                updated.setPrice(newP.getPrice());
+                db.storeProduct(updated);
+                result = 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Product selectWhereCode(String code) {
+        Long id = db.productCodes.get(code);
+        return (id != null) ? select(new Product(id)) : null;
+    }
+
+    @Override
+    public Product selectWhereCodeOnPrimary(String code) {
+        return selectWhereCode(code);
+    }
+
+    @Override
+    public Product selectWhereName(String name) {
+        Product prod = null;
+        for (Product p : db.products.values()) {
+            if (p.getName().equals(name)) {
+                prod = copyOf(p);
+                break;
+            }
+        }
+        return prod;
+    }
+
+    @Override
+    public List<Product> selectWhereMinStock(int minStock) {
+        List<Product> result = new ArrayList<>();
+        for (Product p : db.products.values()) {
+            if (p.getStock() < minStock) {
+                result.add(copyOf(p));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Product> selectAll() {
+        List<Product> result = new ArrayList<>();
+        for (Product p : db.products.values()) {
+            result.add(copyOf(p));
+        }
+        return result;
+    }
+
+    @Override
+    public List<Product> selectWhereCategory(Category category) {
+        List<Product> result = new ArrayList<>();
+        for (Product p : db.products.values()) {
+            if (p.getCategory().getId() == category.getId()) {
+                result.add(copyOf(p));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Product> selectWhereSubtree(Category category) {
+        List<Product> result = new ArrayList<>();
+        for (long id : db.subtreeIds(category.getId())) {
+            Set<Long> ids = db.categoryIndex.get(id);
+            if (ids != null) {
+                for (Long productId : ids) {
+                    Product p = db.products.get(productId);
+                    if (p != null) {
+                        result.add(copyOf(p));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * finds the products that meet some criteria. The rows read are those of
+     * the listed categories, from the category index, or else those named
+     * with the prefix, from the name index, or else all of them. When they
+     * are read in the order asked for (by id from the products map, by name
+     * from the name index) reading stops at the limit; otherwise the first
+     * rows are kept in a heap of the size of the limit.
+     */
+    @Override
+    public List<Product> selectWhere(ProductCriteria criteria) {
+        Iterable<Product> rows;
+        boolean ordered = false;
+        boolean desc = criteria.isDescending();
+        ProductCriteria.SortKey key = criteria.getSortKey();
+        if (criteria.getCategoryIds() != null) {
+            List<Product> inCategories = new ArrayList<>();
+            for (long categoryId : criteria.getCategoryIds()) {
+                for (Long id : db.categoryIndex.getOrDefault(categoryId, Set.of())) {
+                    Product p = db.products.get(id);
+                    if (p != null) {
+                        inCategories.add(p);
+                    }
+                }
+            }
+            rows = inCategories;
+        } else if (criteria.getNamePrefix() != null) {
+            rows = desc ? db.productsNamed(criteria.getNamePrefix()).descendingSet() : db.productsNamed(criteria.getNamePrefix());
+            ordered = (key == ProductCriteria.SortKey.NAME);
+        } else if (key == ProductCriteria.SortKey.NAME) {
+            rows = desc ? db.nameIndex.descendingSet() : db.nameIndex;
+            ordered = true;
+        } else {
+            rows = desc ? db.products.descendingMap().values() : db.products.values();
+            ordered = (key == ProductCriteria.SortKey.ID);
+        }
+        int limit = criteria.getLimit();
+        Comparator<Product> order = criteria.comparator();
+        List<Product> result = new ArrayList<>();
+        PriorityQueue<Product> top = (limit > 0 && !ordered) ? new PriorityQueue<>(order.reversed()) : null;
+        for (Product p : rows) {
+            //index entries may be of products changed since
+            if (db.products.get(p.getId()) != p || !criteria.matches(p)) {
+                continue;
+            }
+            if (top != null) {
+                top.add(p);
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            } else {
+                result.add(p);
+                if (ordered && result.size() == limit) {
+                    break;
+                }
+            }
+        }
+        if (top != null) {
+            result.addAll(top);
+        }
+        if (!ordered) {
+            result.sort(order);
+        }
+        result.replaceAll(MemoryProductDao::copyOf);
+        return result;
+    }
+
+    @Override
+    public long selectCatalogVersion() {
+        return db.productVersion.get();
+    }
+
+    @Override
+    public Map<Long, ProductDigest> selectCategoryDigests() {
+        return db.categoryDigests();
+    }
+
+    @Override
+    public Map<Long, ProductDigest> selectBucketDigests(long categoryId, long fromBucket, long toBucket, int shift) {
+        return db.bucketDigests(categoryId, fromBucket, toBucket, shift);
+    }
+
+    @Override
+    public List<Product> selectBuckets(long categoryId, long fromBucket, long toBucket) {
+        List<Product> result = new ArrayList<>();
+        long from = fromBucket << ProductDigest.BUCKET_BITS;
+        long to = toBucket << ProductDigest.BUCKET_BITS;
+        for (Product p : db.products.subMap(from, to).values()) {
+            if (p.getCategory().getId() == categoryId) {
+                result.add(copyOf(p));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int replicateBatch(List<Product> removed, List<Product> written) {
+        int result = 0;
+        synchronized (db) {
+            for (Product p : removed) {
+                if (db.removeProduct(p.getId()) != null) {
+                    result++;
+                }
+            }
+            for (Product p : written) {
+                if (db.removeProduct(p.getId()) != null) {
+                    result++;
+                }
+                //a code may have moved to another id, in a category not synchronized yet
+                Long other = db.productCodes.get(p.getCode());
+                if (other != null && db.removeProduct(other) != null) {
+                    result++;
+                }
+            }
+            for (Product p : written) {
+                if (!db.productCodes.containsKey(p.getCode())) {
+                    Product stored = new Product(p);
+                    stored.setCategory(new Category(p.getCategory().getId()));
+                    db.storeProduct(stored);
+                    db.productCodes.put(stored.getCode(), stored.getId());
+                    db.productSeq.accumulateAndGet(stored.getId(), Math::max);
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] insertBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = insert(products.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public int[] updateBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        for (int i = 0; i < result.length; i++) {
+            Long id = db.productCodes.get(products.get(i).getCode());
+            result[i] = (id != null) ? update(new Product(id), products.get(i)) : 0;
+        }
+        return result;
+    }
+
+    @Override
+    public int[] deleteBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = delete(products.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> decrementStock(Map<String, Integer> quantities) {
+        Set<String> result = new HashSet<>();
+        synchronized (db) {
+            for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+                Long id = db.productCodes.get(e.getKey());
+                Product stored = (id != null) ? db.products.get(id) : null;
+                if (stored != null && stored.getStock() >= e.getValue()) {
+                    Product updated = new Product(stored);
+                    updated.setStock(stored.getStock() - e.getValue());
+                    db.storeProduct(updated);
+                    result.add(e.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> selectExistingCodes(Collection<String> codes) {
+        Set<String> result = new HashSet<>();
+        for (String code : codes) {
+            if (db.productCodes.containsKey(code)) {
+                result.add(code);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long scanAll(boolean orderByCategory, Consumer<Product> consumer) {
+        long count = 0;
+        Category cat = new Category();
+        Product prod = new Product(0, null, null, 0, 0, cat);
+        Iterable<Product> rows = db.products.values();
+        if (orderByCategory) {
+            List<Product> sorted = new ArrayList<>(db.products.values());
+            sorted.sort(Comparator.comparingLong((Product p) -> p.getCategory().getId()).thenComparingLong(Product::getId));
+            rows = sorted;
+        }
+        for (Product p : rows) {
+            Category c = db.categories.get(p.getCategory().getId());
+            prod.setId(p.getId());
+            prod.setCode(p.getCode());
+            prod.setName(p.getName());
+            prod.setStock(p.getStock());
+            prod.setPrice(p.getPrice());
+            prod.setVersion(p.getVersion());
+            cat.setId(p.getCategory().getId());
+            cat.setCode((c != null) ? c.getCode() : null);
+            cat.setName((c != null) ? c.getName() : null);
+            consumer.accept(prod);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int upsert(Product product) {
+        int result;
+        synchronized (db) {
+            Long id = db.productCodes.get(product.getCode());
+            if (id == null) {
+                result = insert(product);
+            } else {
+                Product stored = db.products.get(id);
+                boolean same = stored.getName().equals(product.getName())
+                        && stored.getStock() == product.getStock()
+                        && stored.getPrice() == product.getPrice()
+                        && stored.getCategory().getId() == product.getCategory().getId();
+                if (same) {
+                    result = 0;
+                } else {
+                    Product updated = new Product(product);
+                    updated.setId(id);
+                    updated.setVersion(stored.getVersion());
+                    updated.setCategory(new Category(product.getCategory().getId()));
+                    db.storeProduct(updated);
+                    result = 2;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public SyncResult upsertBatch(List<Product> products) {
+        int[] counts = new int[3];
+        for (Product p : products) {
+            counts[upsert(p)]++;
+        }
+        return new SyncResult(counts[1], counts[2], counts[0], 0);
+    }
+
+}
@@ -0,0 +1,329 @@
+package cat.proven.categprods.model.persist;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Applies versioned migration scripts to the database. Scripts are
+ * resources in the migrations package, listed in order in
+ * migrations.list and named Vnnn__description.sql. Applied versions are
+ * recorded in the schema_version table, so each script runs once.
+ *
+ * DDL statements are not transactional in MySQL, so a script interrupted
+ * halfway is run again from the start: errors meaning that an index, column
+ * or table already exists (or is already gone) are ignored to make this
+ * safe. A named lock keeps two processes from migrating at the same time.
+ *
+ * Shards of the products table (see ShardedProductDao) get only the
+ * scripts on that table, listed in shard-migrations.list, and record them
+ * in a schema_version table of their own.
+ *
+ * @author ProvenSoft
+ */
+public class MigrationRunner {
+
+    private static final String RESOURCE_DIR = "migrations/";
+    private static final String LIST = "migrations.list";
+    private static final String SHARD_LIST = "shard-migrations.list";
+    private static final String LOCK_NAME = "storedb.migrations";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    /**
+     * MySQL errors for objects that already exist or are already dropped
+     */
+    private static final int ER_TABLE_EXISTS = 1050;
+    private static final int ER_DUP_FIELDNAME = 1060;
+    private static final int ER_DUP_KEYNAME = 1061;
+    private static final int ER_CANT_DROP_FIELD_OR_KEY = 1091;
+    private static final int ER_TRG_ALREADY_EXISTS = 1359;
+    /**
+     * MySQL error for a missing table
+     */
+    private static final int ER_NO_SUCH_TABLE = 1146;
+
+    private final DbConnect dbConnect;
+    private final String list;
+
+    public MigrationRunner() {
+        this(new DbConnect(), LIST);
+    }
+
+    private MigrationRunner(DbConnect dbConnect, String list) {
+        this.dbConnect = dbConnect;
+        this.list = list;
+    }
+
+    /**
+     * creates a runner of the migrations of a shard of the products table
+     *
+     * @param config connection settings of the shard
+     * @return the runner
+     */
+    public static MigrationRunner forShard(DbConfig config) {
+        return new MigrationRunner(new DbConnect(config), SHARD_LIST);
+    }
+
+    /**
+     * creates a runner of the migrations of another database than storedb,
+     * such as a replica to synchronize with
+     *
+     * @param config connection settings of the database
+     * @return the runner
+     */
+    public static MigrationRunner forDatabase(DbConfig config) {
+        return new MigrationRunner(new DbConnect(config), LIST);
+    }
+
+    /**
+     * a migration script
+     */
+    static final class Migration {
+
+        final int version;
+        final String name;
+        final String script;
+
+        Migration(int version, String name, String script) {
+            this.version = version;
+            this.name = name;
+            this.script = script;
+        }
+
+        long checksum() {
+            CRC32 crc = new CRC32();
+            crc.update(script.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * applies pending migrations
+     *
+     * @return number of migrations applied
+     * @throws SQLException if a migration fails
+     * @throws IOException if scripts can not be read
+     */
+    public int migrate() throws SQLException, IOException {
+        List<Migration> migrations = loadMigrations(list);
+        int applied = 0;
+        try ( Connection conn = dbConnect.getConnection()) {
+            lock(conn);
+            try {
+                createVersionTable(conn);
+                Map<Integer, Long> done = appliedVersions(conn);
+                for (Migration m : migrations) {
+                    Long checksum = done.get(m.version);
+                    if (checksum == null) {
+                        apply(conn, m);
+                        applied++;
+                    } else if (checksum != m.checksum()) {
+                        Logger.getLogger(this.getClass().getName()).log(Level.WARNING,
+                                "Migration {0} has changed since it was applied", m.name);
+                    }
+                }
+            } finally {
+                unlock(conn);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * counts the migrations not applied yet, without changing the database
+     *
+     * @return number of pending migrations
+     * @throws SQLException on database error
+     * @throws IOException if scripts can not be read
+     */
+    public int pending() throws SQLException, IOException {
+        List<Migration> migrations = loadMigrations(list);
+        Map<Integer, Long> done;
+        try ( Connection conn = dbConnect.getConnection()) {
+            done = appliedVersions(conn);
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() != ER_NO_SUCH_TABLE) {
+                throw ex;
+            }
+            //never migrated
+            done = new HashMap<>();
+        }
+        int pending = 0;
+        for (Migration m : migrations) {
+            if (!done.containsKey(m.version)) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return the highest applied version, or 0 if none
+     * @throws SQLException on database error
+     */
+    public int currentVersion() throws SQLException {
+        try ( Connection conn = dbConnect.getConnection()) {
+            createVersionTable(conn);
+            int version = 0;
+            for (int v : appliedVersions(conn).keySet()) {
+                version = Math.max(version, v);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * reads a list of scripts and their contents
+     */
+    static List<Migration> loadMigrations(String list) throws IOException {
+        List<Migration> result = new ArrayList<>();
+        for (String name : readLines(RESOURCE_DIR + list)) {
+            String line = name.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int sep = line.indexOf("__");
+            if (!line.startsWith("V") || sep < 0) {
+                throw new IOException("Invalid migration name: " + line);
+            }
+            int version = Integer.parseInt(line.substring(1, sep));
+            if (!result.isEmpty() && version <= result.get(result.size() - 1).version) {
+                throw new IOException("Migration out of order: " + line);
+            }
+            result.add(new Migration(version, line, String.join("\n", readLines(RESOURCE_DIR + line))));
+        }
+        return result;
+    }
+
+    private static List<String> readLines(String resource) throws IOException {
+        InputStream in = MigrationRunner.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Resource not found: " + resource);
+        }
+        List<String> lines = new ArrayList<>();
+        try ( BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * splits a script into statements ended by ; at the end of a line,
+     * skipping comment lines. As in the mysql client, a line DELIMITER xx
+     * makes xx end statements instead of ;, for statements with ; inside,
+     * such as compound triggers.
+     */
+    static List<String> statements(String script) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        String delimiter = ";";
+        for (String line : script.split("\n")) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            if (trimmed.regionMatches(true, 0, "DELIMITER ", 0, 10)) {
+                delimiter = trimmed.substring(10).strip();
+                continue;
+            }
+            current.append(line).append('\n');
+            if (trimmed.endsWith(delimiter)) {
+                current.setLength(current.lastIndexOf(delimiter));
+                result.add(current.toString().strip());
+                current.setLength(0);
+            }
+        }
+        if (current.toString().strip().length() > 0) {
+            result.add(current.toString().strip());
+        }
+        return result;
+    }
+
+    private void apply(Connection conn, Migration m) throws SQLException {
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Applying migration {0}", m.name);
+        try ( Statement st = conn.createStatement()) {
+            for (String sql : statements(m.script)) {
+                try {
+                    st.execute(sql);
+                } catch (SQLException ex) {
+                    if (!isAlreadyDone(ex)) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+        String query = "insert into schema_version (version, name, checksum) values (?, ?, ?)";
+        try ( PreparedStatement st = conn.prepareStatement(query)) {
+            st.setInt(1, m.version);
+            st.setString(2, m.name);
+            st.setLong(3, m.checksum());
+            st.executeUpdate();
+        }
+    }
+
+    private static boolean isAlreadyDone(SQLException ex) {
+        int code = ex.getErrorCode();
+        return code == ER_TABLE_EXISTS || code == ER_DUP_FIELDNAME || code == ER_DUP_KEYNAME
+                || code == ER_CANT_DROP_FIELD_OR_KEY || code == ER_TRG_ALREADY_EXISTS;
+    }
+
+    private static void createVersionTable(Connection conn) throws SQLException {
+        String query = """
+                       create table if not exists schema_version (
+                       version INT NOT NULL PRIMARY KEY,
+                       name VARCHAR(100) NOT NULL,
+                       checksum BIGINT NOT NULL,
+                       applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)
+                       """;
+        try ( Statement st = conn.createStatement()) {
+            st.execute(query);
+        }
+    }
+
+    private static Map<Integer, Long> appliedVersions(Connection conn) throws SQLException {
+        Map<Integer, Long> result = new HashMap<>();
+        try ( Statement st = conn.createStatement()) {
+            ResultSet rs = st.executeQuery("select version, checksum from schema_version");
+            while (rs.next()) {
+                result.put(rs.getInt(1), rs.getLong(2));
+            }
+        }
+        return result;
+    }
+
+    private static void lock(Connection conn) throws SQLException {
+        try ( PreparedStatement st = conn.prepareStatement("select get_lock(?, ?)")) {
+            st.setString(1, LOCK_NAME);
+            st.setInt(2, LOCK_TIMEOUT_SECONDS);
+            ResultSet rs = st.executeQuery();
+            if (!rs.next() || rs.getInt(1) != 1) {
+                throw new SQLException("Timeout waiting for migration lock");
+            }
+        }
+    }
+
+    private static void unlock(Connection conn) throws SQLException {
+        try ( PreparedStatement st = conn.prepareStatement("select release_lock(?)")) {
+            st.setString(1, LOCK_NAME);
+            st.executeQuery();
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Order;
+import cat.proven.categprods.model.OrderLine;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Data Access Object for orders and order_lines tables. Placing an order
+ * also subtracts the quantities sold from the stock of the products.
+ *
+ * @author ProvenSoft
+ */
+public class OrderDao {
+
+    private static final OpStats INSERT_STATS = Metrics.query("OrderDao.insert");
+    private static final OpStats SELECT_STATS = Metrics.query("OrderDao.select");
+
+    private final DbConnect dbConnect;
+
+    public OrderDao() {
+        this.dbConnect = new DbConnect();
+    }
+
+    /**
+     * creates a dao for another database than storedb
+     *
+     * @param config connection settings of the database
+     */
+    public OrderDao(DbConfig config) {
+        this.dbConnect = new DbConnect(config);
+    }
+
+    /**
+     * places an order in a single transaction. The products are read and
+     * locked with one query, in code order, so that concurrent orders lock
+     * them in the same order and never deadlock each other; if all of them
+     * are found with enough stock, their stock is decremented and the order
+     * and its lines are inserted, lines in a batch.
+     *
+     * @param quantities quantity of each product by code, greater than 0
+     * @return the order placed, with its lines in code order, or null if a
+     * product is not found or has not enough stock, or in case of error
+     */
+    public Order insert(Map<String, Integer> quantities) {
+        Order order = null;
+        long start = 0;
+        //get a connection and perform queries
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = INSERT_STATS.startAt(dbConnect.connectedAt());
+            conn.setAutoCommit(false);
+            try {
+                order = place(conn, new TreeMap<>(quantities));
+                if (order != null) {
+                    conn.commit();
+                } else {
+                    conn.rollback();
+                }
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            INSERT_STATS.error();
+            order = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            INSERT_STATS.stop(start, (order != null) ? order.getLines().size() : 0);
+        }
+        return order;
+    }
+
+    private Order place(Connection conn, TreeMap<String, Integer> quantities) throws SQLException {
+        List<String> codes = new ArrayList<>(quantities.keySet());
+        List<OrderLine> lines = new ArrayList<>(codes.size());
+        long total = 0;
+        for (int from = 0; from < codes.size(); from += Batches.MAX_IN_LIST) {
+            List<String> chunk = codes.subList(from, Math.min(codes.size(), from + Batches.MAX_IN_LIST));
+            String query = "select id, code, stock, price from products where code in "
+                    + Batches.placeholders(chunk.size()) + " order by code for update";
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    st.setString(i + 1, chunk.get(i));
+                }
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    Integer quantity = quantities.get(rs.getString(2));
+                    if (quantity == null || rs.getInt(3) < quantity) {
+                        return null;
+                    }
+                    OrderLine line = new OrderLine(rs.getLong(1), rs.getString(2), quantity,
+                            Money.fromBigDecimal(rs.getBigDecimal(4)));
+                    try {
+                        total = Money.plus(total, line.getAmount());
+                    } catch (ArithmeticException ex) {
+                        return null;
+                    }
+                    lines.add(line);
+                }
+            }
+        }
+        if (lines.size() < codes.size()) {
+            return null;
+        }
+        try ( PreparedStatement st = conn.prepareStatement("update products set stock=stock-? where id=?")) {
+            for (OrderLine line : lines) {
+                st.setInt(1, line.getQuantity());
+                st.setLong(2, line.getProductId());
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+        long id;
+        String query = "insert into orders (total) values (?)";
+        try ( PreparedStatement st = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+            st.setBigDecimal(1, Money.toBigDecimal(total));
+            st.executeUpdate();
+            ResultSet keys = st.getGeneratedKeys();
+            if (!keys.next()) {
+                throw new SQLException("No id generated for order");
+            }
+            id = keys.getLong(1);
+        }
+        query = "insert into order_lines (order_id, line, product_id, code, quantity, price) values (?, ?, ?, ?, ?, ?)";
+        try ( PreparedStatement st = conn.prepareStatement(query)) {
+            for (int i = 0; i < lines.size(); i++) {
+                OrderLine line = lines.get(i);
+                st.setLong(1, id);
+                st.setInt(2, i + 1);
+                st.setLong(3, line.getProductId());
+                st.setString(4, line.getCode());
+                st.setInt(5, line.getQuantity());
+                st.setBigDecimal(6, Money.toBigDecimal(line.getPrice()));
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+        return new Order(id, total, lines);
+    }
+
+    /**
+     * selects an order with its lines
+     *
+     * @param id id of the order
+     * @return the order, or null if not found or in case of error
+     */
+    public Order select(long id) {
+        Order order = null;
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_STATS.startAt(dbConnect.connectedAt());
+            String query = "select o.total, l.product_id, l.code, l.quantity, l.price"
+                    + " from orders o left join order_lines l on l.order_id = o.id"
+                    + " where o.id=? order by l.line";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setLong(1, id);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                if (order == null) {
+                    order = new Order(id, Money.fromBigDecimal(rs.getBigDecimal(1)), new ArrayList<>());
+                }
+                if (rs.getString(3) != null) {
+                    order.getLines().add(new OrderLine(rs.getLong(2), rs.getString(3), rs.getInt(4),
+                            Money.fromBigDecimal(rs.getBigDecimal(5))));
+                }
+            }
+        } catch (SQLException ex) {
+            SELECT_STATS.error();
+            order = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_STATS.stop(start, (order != null) ? 1 : 0);
+        }
+        return order;
+    }
+
+}
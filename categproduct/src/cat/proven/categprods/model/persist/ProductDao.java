@@ -1,14 +1,26 @@
 package cat.proven.categprods.model.persist;
 
 import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
 import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.ProductCriteria;
+import cat.proven.categprods.model.ProductDigest;
+import cat.proven.categprods.model.SyncResult;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,80 +31,156 @@ import java.util.logging.Logger;
  */
 public class ProductDao {
 
+    private static final OpStats INSERT_STATS = Metrics.query("ProductDao.insert");
+    private static final OpStats DELETE_STATS = Metrics.query("ProductDao.delete");
+    private static final OpStats DELETE_WHERE_CATEGORY_STATS = Metrics.query("ProductDao.deleteWhereCategory");
+    private static final OpStats SELECT_STATS = Metrics.query("ProductDao.select");
+    private static final OpStats UPDATE_STATS = Metrics.query("ProductDao.update");
+    private static final OpStats SELECT_WHERE_CODE_STATS = Metrics.query("ProductDao.selectWhereCode");
+    private static final OpStats SELECT_WHERE_CODE_ON_PRIMARY_STATS = Metrics.query("ProductDao.selectWhereCodeOnPrimary");
+    private static final OpStats SELECT_WHERE_NAME_STATS = Metrics.query("ProductDao.selectWhereName");
+    private static final OpStats SELECT_WHERE_MIN_STOCK_STATS = Metrics.query("ProductDao.selectWhereMinStock");
+    private static final OpStats SELECT_ALL_STATS = Metrics.query("ProductDao.selectAll");
+    private static final OpStats SELECT_WHERE_CATEGORY_STATS = Metrics.query("ProductDao.selectWhereCategory");
+    private static final OpStats SELECT_WHERE_SUBTREE_STATS = Metrics.query("ProductDao.selectWhereSubtree");
+    private static final OpStats SELECT_WHERE_STATS = Metrics.query("ProductDao.selectWhere");
+    private static final OpStats SELECT_CATALOG_VERSION_STATS = Metrics.query("ProductDao.selectCatalogVersion");
+    private static final OpStats INSERT_BATCH_STATS = Metrics.query("ProductDao.insertBatch");
+    private static final OpStats UPDATE_BATCH_STATS = Metrics.query("ProductDao.updateBatch");
+    private static final OpStats DELETE_BATCH_STATS = Metrics.query("ProductDao.deleteBatch");
+    private static final OpStats SELECT_EXISTING_CODES_STATS = Metrics.query("ProductDao.selectExistingCodes");
+    private static final OpStats SCAN_ALL_STATS = Metrics.query("ProductDao.scanAll");
+    private static final OpStats UPSERT_BATCH_STATS = Metrics.query("ProductDao.upsertBatch");
+    private static final OpStats SELECT_CATEGORY_DIGESTS_STATS = Metrics.query("ProductDao.selectCategoryDigests");
+    private static final OpStats SELECT_BUCKET_DIGESTS_STATS = Metrics.query("ProductDao.selectBucketDigests");
+    private static final OpStats SELECT_BUCKETS_STATS = Metrics.query("ProductDao.selectBuckets");
+    private static final OpStats REPLICATE_BATCH_STATS = Metrics.query("ProductDao.replicateBatch");
+    private static final OpStats DECREMENT_STOCK_STATS = Metrics.query("ProductDao.decrementStock");
+
     private final DbConnect dbConnect;
 
     public ProductDao() {
         this.dbConnect = new DbConnect();
     }
 
-    private Product fromResultSet(ResultSet rs) throws SQLException {
-        Product prod;
-        long id = rs.getLong("id");
-        String code = rs.getString("code");
-        String name = rs.getString("name");
-        int stock = rs.getInt("stock");
-        double price = rs.getDouble("price");
-        long categoryId = rs.getLong("category_id");
-        prod = new Product(id, code, name, stock, price, new Category(categoryId));
-        return prod;
+    /**
+     * creates a dao for the database of a connection factory
+     *
+     * @param dbConnect the connection factory
+     */
+    ProductDao(DbConnect dbConnect) {
+        this.dbConnect = dbConnect;
+    }
+
+    /**
+     * creates a dao for another database than storedb, such as a replica to
+     * synchronize with
+     *
+     * @param config connection settings of the database
+     */
+    public ProductDao(DbConfig config) {
+        this(new DbConnect(config));
     }
 
-    public int insert(Product product) throws SQLException {
+    public int insert(Product product) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
-            String query = "insert into products values (null, ?, ?, ?, ?, ?)";
+            start = INSERT_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into products (code, name, stock, price, category_id) values (?, ?, ?, ?, ?)";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, product.getCode());
             st.setString(2, product.getName());
             st.setInt(3, product.getStock());
-            st.setDouble(4, product.getPrice());
+            st.setBigDecimal(4, Money.toBigDecimal(product.getPrice()));
             st.setLong(5, product.getCategory().getId());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            INSERT_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            INSERT_STATS.stop(start, result);
         }
         return result;
     }
 
     public int delete(Product p) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
+            start = DELETE_STATS.startAt(dbConnect.connectedAt());
             String query = "delete from products where code=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, p.getCode());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            DELETE_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            DELETE_STATS.stop(start, result);
+        }
+        return result;
+    }
+
+    /**
+     * deletes all products of a category
+     *
+     * @param category the category
+     * @return number of products deleted, or -1 in case of error
+     */
+    public int deleteWhereCategory(Category category) {
+        int result = 0;
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = DELETE_WHERE_CATEGORY_STATS.startAt(dbConnect.connectedAt());
+            String query = "delete from products where category_id=?";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setLong(1, category.getId());
+            result = st.executeUpdate();
+        } catch (SQLException ex) {
+            DELETE_WHERE_CATEGORY_STATS.error();
+            result = -1;
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            DELETE_WHERE_CATEGORY_STATS.stop(start, Math.max(result, 0));
         }
         return result;
     }
 
     public Product select(Product product) {
         Product prod = null;
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products where id=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where id=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setLong(1, product.getId());
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                prod = fromResultSet(rs);
+                prod = ProductMapper.all().map(rs, null);
 
             } else {
                 prod = null;
             }
         } catch (SQLException ex) {
+            SELECT_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_STATS.stop(start, (prod != null) ? 1 : 0);
         }
         return prod;
     }
 
     public int update(Product oldP, Product newP) {
         int result = 0;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
+            start = UPDATE_STATS.startAt(dbConnect.connectedAt());
             String query = """
                            update products set 
                            name=?, stock=?, price=? 
@@ -101,110 +189,772 @@ public class ProductDao {
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, newP.getName());
             st.setInt(2, newP.getStock());
-            st.setDouble(3, newP.getPrice());
+            st.setBigDecimal(3, Money.toBigDecimal(newP.getPrice()));
             st.setLong(4, oldP.getId());
             result = st.executeUpdate();
         } catch (SQLException ex) {
+            UPDATE_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPDATE_STATS.stop(start, result);
         }
         return result;
     }
 
     public Product selectWhereCode(String code) {
         Product prod = null;
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products where code=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_CODE_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where code=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, code);
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                prod = fromResultSet(rs);
+                prod = ProductMapper.all().map(rs, null);
 
             } else {
                 prod = null;
             }
         } catch (SQLException ex) {
+            SELECT_WHERE_CODE_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_CODE_STATS.stop(start, (prod != null) ? 1 : 0);
         }
         return prod;
     }
 
-    public Product selectWhereName(String name) {
+    /**
+     * finds a product by code on the primary database, never on a replica,
+     * for reads that must see every write made so far, such as stock to be
+     * reserved
+     *
+     * @param code the code of the product
+     * @return the product, or null if not found or in case of error
+     */
+    public Product selectWhereCodeOnPrimary(String code) {
         Product prod = null;
+        long start = 0;
         //get a connection and perform query
         try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products where name=?";
+            start = SELECT_WHERE_CODE_ON_PRIMARY_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where code=?";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setString(1, code);
+            ResultSet rs = st.executeQuery();
+            if (rs.next()) {
+                prod = ProductMapper.all().map(rs, null);
+            }
+        } catch (SQLException ex) {
+            SELECT_WHERE_CODE_ON_PRIMARY_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_CODE_ON_PRIMARY_STATS.stop(start, (prod != null) ? 1 : 0);
+        }
+        return prod;
+    }
+
+    public Product selectWhereName(String name) {
+        Product prod = null;
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_NAME_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where name=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setString(1, name);
             ResultSet rs = st.executeQuery();
             if (rs.next()) {
-                prod = fromResultSet(rs);
+                prod = ProductMapper.all().map(rs, null);
 
             } else {
                 prod = null;
             }
         } catch (SQLException ex) {
+            SELECT_WHERE_NAME_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_NAME_STATS.stop(start, (prod != null) ? 1 : 0);
         }
         return prod;
     }
 
     public List<Product> selectWhereMinStock(int minStock) {
         List<Product> result = new ArrayList<>();
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products where stock<?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_MIN_STOCK_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where stock<?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setInt(1, minStock);
             ResultSet rs = st.executeQuery();
+            ProductMapper mapper = ProductMapper.all();
             while (rs.next()) {
-                Product prod = fromResultSet(rs);
-                if (prod != null) {
-                    result.add(prod);
-                }
+                result.add(mapper.map(rs, null));
             }
         } catch (SQLException ex) {
+            SELECT_WHERE_MIN_STOCK_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_MIN_STOCK_STATS.stop(start, result.size());
         }
         return result;
     }
 
     public List<Product> selectAll() {
         List<Product> result = new ArrayList<>();
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_ALL_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products";
             Statement st = conn.createStatement();
             ResultSet rs = st.executeQuery(query);
+            ProductMapper mapper = ProductMapper.all();
             while (rs.next()) {
-                Product prod = fromResultSet(rs);
-                if (prod != null) {
-                    result.add(prod);
-                }
+                result.add(mapper.map(rs, null));
             }
         } catch (SQLException ex) {
+            SELECT_ALL_STATS.error();
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_ALL_STATS.stop(start, result.size());
         }
         return result;
     }
 
     public List<Product> selectWhereCategory(Category category) {
         List<Product> result = new ArrayList<>();
+        long start = 0;
         //get a connection and perform query
-        try ( Connection conn = dbConnect.getConnection()) {
-            String query = "select * from products where category_id=?";
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_CATEGORY_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products where category_id=?";
             PreparedStatement st = conn.prepareStatement(query);
             st.setLong(1, category.getId());
             ResultSet rs = st.executeQuery();
+            ProductMapper mapper = ProductMapper.all();
+            while (rs.next()) {
+                result.add(mapper.map(rs, null));
+            }
+        } catch (SQLException ex) {
+            SELECT_WHERE_CATEGORY_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_CATEGORY_STATS.stop(start, result.size());
+        }
+        return result;
+    }
+
+    /**
+     * gets the products of a category and of its descendants, in a single
+     * query joining the closure table of categories on its ancestor key
+     *
+     * @param category the root of the subtree
+     * @return list of products, empty if none or in case of error
+     */
+    public List<Product> selectWhereSubtree(Category category) {
+        List<Product> result = new ArrayList<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_SUBTREE_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from category_tree"
+                    + " join products on products.category_id = category_tree.descendant_id"
+                    + " where category_tree.ancestor_id=?";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setLong(1, category.getId());
+            ResultSet rs = st.executeQuery();
+            ProductMapper mapper = ProductMapper.all();
+            while (rs.next()) {
+                result.add(mapper.map(rs, null));
+            }
+        } catch (SQLException ex) {
+            SELECT_WHERE_SUBTREE_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_SUBTREE_STATS.stop(start, result.size());
+        }
+        return result;
+    }
+
+    /**
+     * finds the products that meet some criteria, with a single query
+     *
+     * @param criteria the filters, order and limit
+     * @return the products found, in the order of the criteria
+     */
+    public List<Product> selectWhere(ProductCriteria criteria) {
+        List<Product> result = new ArrayList<>();
+        if (criteria.getCategoryIds() != null && criteria.getCategoryIds().isEmpty()) {
+            return result;
+        }
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_WHERE_STATS.startAt(dbConnect.connectedAt());
+            try ( PreparedStatement st = conn.prepareStatement(CriteriaSql.sql(criteria))) {
+                CriteriaSql.bind(st, criteria);
+                ResultSet rs = st.executeQuery();
+                ProductMapper mapper = ProductMapper.all();
+                while (rs.next()) {
+                    result.add(mapper.map(rs, null));
+                }
+            }
+        } catch (SQLException ex) {
+            SELECT_WHERE_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_WHERE_STATS.stop(start, result.size());
+        }
+        return result;
+    }
+
+    /**
+     * reads the change counter of the products table, which triggers raise
+     * on every row inserted, updated or deleted. The counter is split in
+     * rows so that concurrent writers do not wait for each other; its value
+     * is their sum.
+     *
+     * @return the counter, or -1 in case of error
+     */
+    public long selectCatalogVersion() {
+        long result = -1;
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_CATALOG_VERSION_STATS.startAt(dbConnect.connectedAt());
+            String query = "select count(*), sum(version) from catalog_version";
+            Statement st = conn.createStatement();
+            ResultSet rs = st.executeQuery(query);
+            if (rs.next() && rs.getInt(1) > 0) {
+                result = rs.getLong(2);
+            }
+        } catch (SQLException ex) {
+            SELECT_CATALOG_VERSION_STATS.error();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_CATALOG_VERSION_STATS.stop(start, (result >= 0) ? 1 : 0);
+        }
+        return result;
+    }
+
+    /**
+     * reads the digest of the products of each category, combining the
+     * digests of its buckets
+     *
+     * @return digests by category id, for categories with products, or null
+     * in case of error
+     */
+    public Map<Long, ProductDigest> selectCategoryDigests() {
+        Map<Long, ProductDigest> result = new HashMap<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_CATEGORY_DIGESTS_STATS.startAt(dbConnect.connectedAt());
+            String query = "select category_id, bit_xor(hash), sum(row_count) from product_digest"
+                    + " group by category_id having sum(row_count) > 0";
+            Statement st = conn.createStatement();
+            ResultSet rs = st.executeQuery(query);
+            while (rs.next()) {
+                result.put(rs.getLong(1), digest(rs));
+            }
+        } catch (SQLException ex) {
+            SELECT_CATEGORY_DIGESTS_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_CATEGORY_DIGESTS_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * reads the digests of the buckets of a category in a range, combined
+     * into digests of groups of 2^shift buckets
+     *
+     * @param categoryId the category
+     * @param fromBucket first bucket
+     * @param toBucket bucket after the last one
+     * @param shift bits of bucket number within a group
+     * @return digests of the groups with products, by bucket number shifted,
+     * or null in case of error
+     */
+    public Map<Long, ProductDigest> selectBucketDigests(long categoryId, long fromBucket, long toBucket, int shift) {
+        Map<Long, ProductDigest> result = new HashMap<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_BUCKET_DIGESTS_STATS.startAt(dbConnect.connectedAt());
+            String query = "select bucket >> ?, bit_xor(hash), sum(row_count) from product_digest"
+                    + " where category_id=? and bucket>=? and bucket<?"
+                    + " group by 1 having sum(row_count) > 0";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setInt(1, shift);
+            st.setLong(2, categoryId);
+            st.setLong(3, fromBucket);
+            st.setLong(4, toBucket);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                result.put(rs.getLong(1), digest(rs));
+            }
+        } catch (SQLException ex) {
+            SELECT_BUCKET_DIGESTS_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_BUCKET_DIGESTS_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * maps the hash and count of a digest row; hashes are unsigned, their 64
+     * bits are kept in a long
+     */
+    private static ProductDigest digest(ResultSet rs) throws SQLException {
+        return new ProductDigest(rs.getBigDecimal(2).toBigInteger().longValue(), rs.getInt(3));
+    }
+
+    /**
+     * gets the products of a category in a range of buckets, with their
+     * versions
+     *
+     * @param categoryId the category
+     * @param fromBucket first bucket
+     * @param toBucket bucket after the last one
+     * @return the products by id, or null in case of error
+     */
+    public List<Product> selectBuckets(long categoryId, long fromBucket, long toBucket) {
+        List<Product> result = new ArrayList<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_BUCKETS_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + ProductMapper.COLUMNS + " from products"
+                    + " where category_id=? and id>=? and id<? order by id";
+            PreparedStatement st = conn.prepareStatement(query);
+            st.setLong(1, categoryId);
+            st.setLong(2, fromBucket << ProductDigest.BUCKET_BITS);
+            st.setLong(3, toBucket << ProductDigest.BUCKET_BITS);
+            ResultSet rs = st.executeQuery();
+            ProductMapper mapper = ProductMapper.all();
             while (rs.next()) {
-                Product prod = fromResultSet(rs);
-                if (prod != null) {
-                    result.add(prod);
+                result.add(mapper.map(rs, null));
+            }
+        } catch (SQLException ex) {
+            SELECT_BUCKETS_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_BUCKETS_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * writes rows copied from another replica, in a single transaction:
+     * deletes the removed rows by id, and the rows to be replaced by id or
+     * code, and then inserts the new rows keeping their ids and versions
+     *
+     * @param removed the rows to delete
+     * @param written the rows to insert or replace
+     * @return number of rows deleted and inserted, or -1 in case of error
+     */
+    public int replicateBatch(List<Product> removed, List<Product> written) {
+        int result = 0;
+        long start = 0;
+        //get a connection and perform queries
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = REPLICATE_BATCH_STATS.startAt(dbConnect.connectedAt());
+            conn.setAutoCommit(false);
+            try {
+                try ( PreparedStatement st = conn.prepareStatement("delete from products where id=?")) {
+                    for (Product product : removed) {
+                        st.setLong(1, product.getId());
+                        st.addBatch();
+                    }
+                    result += Batches.count(Batches.toResults(st.executeBatch()));
+                }
+                //a code may have moved to another id, in a category not synchronized yet
+                try ( PreparedStatement st = conn.prepareStatement("delete from products where id=? or code=?")) {
+                    for (Product product : written) {
+                        st.setLong(1, product.getId());
+                        st.setString(2, product.getCode());
+                        st.addBatch();
+                    }
+                    result += Batches.count(Batches.toResults(st.executeBatch()));
+                }
+                String query = "insert into products (id, code, name, stock, price, category_id, version)"
+                        + " values (?, ?, ?, ?, ?, ?, ?)";
+                try ( PreparedStatement st = conn.prepareStatement(query)) {
+                    for (Product product : written) {
+                        st.setLong(1, product.getId());
+                        st.setString(2, product.getCode());
+                        st.setString(3, product.getName());
+                        st.setInt(4, product.getStock());
+                        st.setBigDecimal(5, Money.toBigDecimal(product.getPrice()));
+                        st.setLong(6, product.getCategory().getId());
+                        st.setLong(7, product.getVersion());
+                        st.addBatch();
+                    }
+                    result += Batches.count(Batches.toResults(st.executeBatch()));
+                }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            REPLICATE_BATCH_STATS.error();
+            result = -1;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            REPLICATE_BATCH_STATS.stop(start, Math.max(result, 0));
+        }
+        return result;
+    }
+
+    /**
+     * inserts a list of products in a single transaction
+     *
+     * @param products the products to insert
+     * @return for each product, 1 if inserted or 0 otherwise
+     */
+    public int[] insertBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = INSERT_BATCH_STATS.startAt(dbConnect.connectedAt());
+            String query = "insert into products (code, name, stock, price, category_id) values (?, ?, ?, ?, ?)";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Product product : products) {
+                    st.setString(1, product.getCode());
+                    st.setString(2, product.getName());
+                    st.setInt(3, product.getStock());
+                    st.setBigDecimal(4, Money.toBigDecimal(product.getPrice()));
+                    st.setLong(5, product.getCategory().getId());
+                    st.addBatch();
+                }
+                result = Batches.toResults(st.executeBatch());
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            INSERT_BATCH_STATS.error();
+            result = new int[products.size()];
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            INSERT_BATCH_STATS.stop(start, Batches.count(result));
+        }
+        return result;
+    }
+
+    /**
+     * updates name, stock and price of a list of products, identified by
+     * their code, in a single transaction
+     *
+     * @param products the products with the new values
+     * @return for each product, 1 if updated or 0 otherwise
+     */
+    public int[] updateBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = UPDATE_BATCH_STATS.startAt(dbConnect.connectedAt());
+            String query = "update products set name=?, stock=?, price=? where code=?";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Product product : products) {
+                    st.setString(1, product.getName());
+                    st.setInt(2, product.getStock());
+                    st.setBigDecimal(3, Money.toBigDecimal(product.getPrice()));
+                    st.setString(4, product.getCode());
+                    st.addBatch();
+                }
+                result = Batches.toResults(st.executeBatch());
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            UPDATE_BATCH_STATS.error();
+            result = new int[products.size()];
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPDATE_BATCH_STATS.stop(start, Batches.count(result));
+        }
+        return result;
+    }
+
+    /**
+     * deletes a list of products, identified by their code, in a single
+     * transaction
+     *
+     * @param products the products to delete
+     * @return for each product, 1 if deleted or 0 otherwise
+     */
+    public int[] deleteBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = DELETE_BATCH_STATS.startAt(dbConnect.connectedAt());
+            String query = "delete from products where code=?";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                for (Product product : products) {
+                    st.setString(1, product.getCode());
+                    st.addBatch();
+                }
+                result = Batches.toResults(st.executeBatch());
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            DELETE_BATCH_STATS.error();
+            result = new int[products.size()];
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            DELETE_BATCH_STATS.stop(start, Batches.count(result));
+        }
+        return result;
+    }
+
+    /**
+     * subtracts quantities from the stock of products, identified by their
+     * code, in a single transaction; rows are updated in the order of the
+     * map, which should be sorted so that concurrent transactions lock them
+     * in the same order. Stock is never taken below 0: a product whose stock
+     * is short is left as it is.
+     *
+     * @param quantities quantity to subtract by product code
+     * @return codes whose product has been updated, those left out being
+     * not found or short of stock, or null in case of error
+     */
+    public Set<String> decrementStock(Map<String, Integer> quantities) {
+        Set<String> result = new HashSet<>();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getConnection()) {
+            start = DECREMENT_STOCK_STATS.startAt(dbConnect.connectedAt());
+            String query = "update products set stock=stock-? where code=? and stock>=?";
+            conn.setAutoCommit(false);
+            try ( PreparedStatement st = conn.prepareStatement(query)) {
+                List<String> codes = new ArrayList<>(quantities.size());
+                for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+                    st.setInt(1, e.getValue());
+                    st.setString(2, e.getKey());
+                    st.setInt(3, e.getValue());
+                    st.addBatch();
+                    codes.add(e.getKey());
+                }
+                int[] updated = Batches.toResults(st.executeBatch());
+                conn.commit();
+                //no row updated: not found or short of stock
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] > 0) {
+                        result.add(codes.get(i));
+                    }
+                }
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            }
+        } catch (SQLException ex) {
+            DECREMENT_STOCK_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            DECREMENT_STOCK_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * finds which of the given codes already exist
+     *
+     * @param codes the codes to look for
+     * @return the existing codes, or null in case of error
+     */
+    public Set<String> selectExistingCodes(Collection<String> codes) {
+        Set<String> result = new HashSet<>();
+        List<String> list = new ArrayList<>(codes);
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SELECT_EXISTING_CODES_STATS.startAt(dbConnect.connectedAt());
+            for (int from = 0; from < list.size(); from += Batches.MAX_IN_LIST) {
+                List<String> chunk = list.subList(from, Math.min(list.size(), from + Batches.MAX_IN_LIST));
+                String query = "select code from products where code in " + Batches.placeholders(chunk.size());
+                try ( PreparedStatement st = conn.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        st.setString(i + 1, chunk.get(i));
+                    }
+                    ResultSet rs = st.executeQuery();
+                    while (rs.next()) {
+                        result.add(rs.getString(1));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            SELECT_EXISTING_CODES_STATS.error();
+            result = null;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SELECT_EXISTING_CODES_STATS.stop(start, (result != null) ? result.size() : 0);
+        }
+        return result;
+    }
+
+    /**
+     * streams all products, with the code and name of their category, to a
+     * consumer. Rows are fetched through a server-side cursor and mapped into
+     * a single product instance that is reused for every row, so memory use
+     * does not depend on the size of the table: the consumer must copy
+     * whatever it needs to keep.
+     *
+     * @param orderByCategory true to get products grouped by category
+     * @param consumer the consumer of each row
+     * @return number of rows read, or -1 in case of error
+     */
+    public long scanAll(boolean orderByCategory, Consumer<Product> consumer) {
+        return scanAll(orderByCategory, true, consumer);
+    }
+
+    /**
+     * streams all products to a consumer, as scanAll does
+     *
+     * @param orderByCategory true to get products grouped by category
+     * @param withCategories true to read code and name of categories, false
+     * to get categories with their id only, for databases without the
+     * categories table
+     * @param consumer the consumer of each row
+     * @return number of rows read, or -1 in case of error
+     */
+    long scanAll(boolean orderByCategory, boolean withCategories, Consumer<Product> consumer) {
+        long count = 0;
+        Product prod = new Product();
+        ProductMapper mapper = withCategories ? ProductMapper.joined("p", "c") : ProductMapper.all();
+        long start = 0;
+        //get a connection and perform query
+        try ( Connection conn = dbConnect.getReadConnection()) {
+            start = SCAN_ALL_STATS.startAt(dbConnect.connectedAt());
+            String query = "select " + mapper.columns() + (withCategories
+                    ? " from products p left join categories c on p.category_id=c.id"
+                    : " from products p");
+            if (orderByCategory) {
+                query += " order by p.category_id, p.id";
+            }
+            try ( PreparedStatement st = conn.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                //tells the driver to stream rows instead of loading them all
+                st.setFetchSize(Integer.MIN_VALUE);
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    mapper.map(rs, prod);
+                    consumer.accept(prod);
+                    count++;
+                }
+            }
+        } catch (SQLException ex) {
+            SCAN_ALL_STATS.error();
+            count = -1;
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            SCAN_ALL_STATS.stop(start, count);
+        }
+        return count;
+    }
+
+    /**
+     * inserts a product or, if its code already exists, updates its name,
+     * stock, price and category
+     *
+     * @param product the product to write
+     * @return 1 if inserted, 2 if updated, 0 if unchanged, -1 in case of error
+     */
+    public int upsert(Product product) {
+        SyncResult r = upsertBatch(List.of(product));
+        return (r.getInserted() == 1) ? 1 : (r.getUpdated() == 1) ? 2 : (r.getUnchanged() == 1) ? 0 : -1;
+    }
+
+    /**
+     * inserts or updates (by code) a list of products in a single
+     * transaction. Products are sent in multi-row insert ... on duplicate key
+     * update statements; the rows that existed are counted beforehand, in
+     * the same transaction, to tell insertions from updates.
+     *
+     * @param products the products to write, with distinct codes
+     * @return counters of inserted, updated and unchanged rows; in case of
+     * error all rows are counted as rejected
+     */
+    public SyncResult upsertBatch(List<Product> products) {
+        SyncResult result = new SyncResult();
+        long start = 0;
+        //get a connection and perform queries, in chunks of limited size
+        try ( Connection conn = dbConnect.getConnection(DbConnect.AFFECTED_ROWS_OPTIONS)) {
+            start = UPSERT_BATCH_STATS.startAt(dbConnect.connectedAt());
+            conn.setAutoCommit(false);
+            try {
+                for (int from = 0; from < products.size(); from += Batches.MAX_IN_LIST) {
+                    List<Product> chunk = products.subList(from, Math.min(products.size(), from + Batches.MAX_IN_LIST));
+                    int n = chunk.size();
+                    int existing = 0;
+                    String count = "select count(*) from products where code in " + Batches.placeholders(n) + " for update";
+                    try ( PreparedStatement st = conn.prepareStatement(count)) {
+                        for (int i = 0; i < n; i++) {
+                            st.setString(i + 1, chunk.get(i).getCode());
+                        }
+                        ResultSet rs = st.executeQuery();
+                        if (rs.next()) {
+                            existing = rs.getInt(1);
+                        }
+                    }
+                    StringBuilder query = new StringBuilder("insert into products (code, name, stock, price, category_id) values ");
+                    for (int i = 0; i < n; i++) {
+                        query.append((i == 0) ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+                    }
+                    query.append(" on duplicate key update name=values(name), stock=values(stock),")
+                            .append(" price=values(price), category_id=values(category_id)");
+                    try ( PreparedStatement st = conn.prepareStatement(query.toString())) {
+                        int p = 1;
+                        for (Product product : chunk) {
+                            st.setString(p++, product.getCode());
+                            st.setString(p++, product.getName());
+                            st.setInt(p++, product.getStock());
+                            st.setBigDecimal(p++, Money.toBigDecimal(product.getPrice()));
+                            st.setLong(p++, product.getCategory().getId());
+                        }
+                        //affected rows: 1 per inserted row, 2 per updated row
+                        int affected = st.executeUpdate();
+                        int inserted = n - existing;
+                        int updated = (affected - inserted) / 2;
+                        result.add(new SyncResult(inserted, updated, existing - updated, 0));
+                    }
                 }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
             }
         } catch (SQLException ex) {
+            UPSERT_BATCH_STATS.error();
+            result = new SyncResult(0, 0, 0, products.size());
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            UPSERT_BATCH_STATS.stop(start, result.getInserted() + result.getUpdated());
         }
         return result;
     }
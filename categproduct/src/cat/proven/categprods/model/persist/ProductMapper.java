@@ -0,0 +1,211 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Product;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps rows of the products table, optionally joined with the categories
+ * table. The position of each column is fixed when the mapper is built, from
+ * the columns it was asked to read, so mapping a row is a sequence of getters
+ * by index.
+ *
+ * Products mapped by the same mapper share one category object per category
+ * id, created the first time the id is seen, instead of getting a category of
+ * their own per row. Those categories must be taken as read-only: to change
+ * the category of a product, set a new one. A mapper keeps these categories,
+ * so it is meant to be used for one query in one thread and then dropped.
+ *
+ * With a holder passed to map, only the new categories are allocated, so
+ * scanning a large result set into a single reused product allocates almost
+ * nothing per row besides the strings read by the driver.
+ *
+ * @author ProvenSoft
+ */
+public final class ProductMapper implements RowMapper<Product> {
+
+    /**
+     * columns of the products table
+     */
+    public enum Column {
+        ID("id"), CODE("code"), NAME("name"), STOCK("stock"), PRICE("price"), CATEGORY_ID("category_id"),
+        VERSION("version");
+
+        private final String label;
+
+        Column(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * select list of all columns of the products table, as read by all()
+     */
+    public static final String COLUMNS = "id, code, name, stock, price, category_id, version";
+
+    /**
+     * category ids below this are kept in an array, others in a map
+     */
+    private static final int MAX_DIRECT_ID = 4096;
+
+    private final String columns;
+    /**
+     * position of each column by ordinal, 0 when not read
+     */
+    private final int[] positions;
+    /**
+     * positions of the category code and name, 0 when not joined
+     */
+    private final int categoryCodePosition;
+    private final int categoryNamePosition;
+
+    private Category[] directCategories;
+    private Map<Long, Category> otherCategories;
+
+    private ProductMapper(String productAlias, String categoryAlias, Column... read) {
+        this.positions = new int[Column.values().length];
+        String prefix = (productAlias != null) ? productAlias + "." : "";
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (Column c : read) {
+            if (positions[c.ordinal()] == 0) {
+                sb.append((n == 0) ? "" : ", ").append(prefix).append(c.label);
+                positions[c.ordinal()] = ++n;
+            }
+        }
+        if (categoryAlias != null) {
+            if (positions[Column.CATEGORY_ID.ordinal()] == 0) {
+                throw new IllegalArgumentException("category columns need category_id");
+            }
+            sb.append(", ").append(categoryAlias).append(".code, ").append(categoryAlias).append(".name");
+            this.categoryCodePosition = ++n;
+            this.categoryNamePosition = ++n;
+        } else {
+            this.categoryCodePosition = 0;
+            this.categoryNamePosition = 0;
+        }
+        this.columns = sb.toString();
+    }
+
+    /**
+     * @return a mapper of all columns, with select list COLUMNS
+     */
+    public static ProductMapper all() {
+        return new ProductMapper(null, null, Column.values());
+    }
+
+    /**
+     * gets a mapper of some columns only; fields of unread columns are left
+     * as they are in the target product
+     *
+     * @param read the columns to read
+     * @return the mapper
+     */
+    public static ProductMapper of(Column... read) {
+        return new ProductMapper(null, null, read);
+    }
+
+    /**
+     * gets a mapper of all columns of products joined with the code and name
+     * of their category
+     *
+     * @param productAlias alias of the products table in the query
+     * @param categoryAlias alias of the categories table in the query
+     * @return the mapper
+     */
+    public static ProductMapper joined(String productAlias, String categoryAlias) {
+        return new ProductMapper(productAlias, categoryAlias, Column.values());
+    }
+
+    @Override
+    public String columns() {
+        return columns;
+    }
+
+    @Override
+    public Product map(ResultSet rs, Product into) throws SQLException {
+        Product prod = (into != null) ? into : new Product();
+        int i;
+        if ((i = positions[Column.ID.ordinal()]) > 0) {
+            prod.setId(rs.getLong(i));
+        }
+        if ((i = positions[Column.CODE.ordinal()]) > 0) {
+            prod.setCode(rs.getString(i));
+        }
+        if ((i = positions[Column.NAME.ordinal()]) > 0) {
+            prod.setName(rs.getString(i));
+        }
+        if ((i = positions[Column.STOCK.ordinal()]) > 0) {
+            prod.setStock(rs.getInt(i));
+        }
+        if ((i = positions[Column.PRICE.ordinal()]) > 0) {
+            prod.setPrice(Money.fromBigDecimal(rs.getBigDecimal(i)));
+        }
+        if ((i = positions[Column.CATEGORY_ID.ordinal()]) > 0) {
+            prod.setCategory(category(rs, rs.getLong(i)));
+        }
+        if ((i = positions[Column.VERSION.ordinal()]) > 0) {
+            prod.setVersion(rs.getLong(i));
+        }
+        return prod;
+    }
+
+    /**
+     * gets the shared category of an id, reading its code and name from the
+     * current row the first time if the mapper is joined
+     */
+    private Category category(ResultSet rs, long id) throws SQLException {
+        Category cat;
+        if (id >= 0 && id < MAX_DIRECT_ID) {
+            int index = (int) id;
+            if (directCategories == null || index >= directCategories.length) {
+                growDirect(index);
+            }
+            cat = directCategories[index];
+            if (cat == null) {
+                cat = newCategory(rs, id);
+                directCategories[index] = cat;
+            }
+        } else {
+            if (otherCategories == null) {
+                otherCategories = new HashMap<>();
+            }
+            cat = otherCategories.get(id);
+            if (cat == null) {
+                cat = newCategory(rs, id);
+                otherCategories.put(id, cat);
+            }
+        }
+        return cat;
+    }
+
+    private void growDirect(int index) {
+        int size = (directCategories == null) ? 64 : directCategories.length;
+        while (size <= index) {
+            size *= 2;
+        }
+        Category[] grown = new Category[Math.min(size, MAX_DIRECT_ID)];
+        if (directCategories != null) {
+            System.arraycopy(directCategories, 0, grown, 0, directCategories.length);
+        }
+        directCategories = grown;
+    }
+
+    private Category newCategory(ResultSet rs, long id) throws SQLException {
+        Category cat = new Category(id);
+        if (categoryCodePosition > 0) {
+            cat.setCode(rs.getString(categoryCodePosition));
+            cat.setName(rs.getString(categoryNamePosition));
+        }
+        return cat;
+    }
+
+}
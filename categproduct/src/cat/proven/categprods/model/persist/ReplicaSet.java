@@ -0,0 +1,141 @@
+package cat.proven.categprods.model.persist;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The read replicas of a configuration. Replicas are picked in turn among
+ * the healthy ones. A replica is taken out of the rotation as soon as a
+ * connection to it fails, and a background thread checks all replicas
+ * every few seconds to put them back when they answer again.
+ *
+ * @author ProvenSoft
+ */
+final class ReplicaSet {
+
+    /**
+     * time a health check waits for a replica
+     */
+    private static final int CHECK_TIMEOUT_SECONDS = 2;
+
+    /**
+     * a read replica
+     */
+    static final class Replica {
+
+        final String host;
+        volatile boolean healthy;
+
+        Replica(String host) {
+            this.host = host;
+            this.healthy = true;
+        }
+    }
+
+    private final DbConfig config;
+    private final Replica[] replicas;
+    private final AtomicInteger next;
+    private final ScheduledExecutorService checker;
+
+    ReplicaSet(DbConfig config) {
+        this.config = config;
+        this.replicas = new Replica[config.getReplicas().size()];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new Replica(config.getReplicas().get(i));
+        }
+        this.next = new AtomicInteger();
+        if (replicas.length > 0 && config.getHealthCheckSeconds() > 0) {
+            this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica-health-check");
+                t.setDaemon(true);
+                return t;
+            });
+            checker.scheduleWithFixedDelay(this::check, config.getHealthCheckSeconds(),
+                    config.getHealthCheckSeconds(), TimeUnit.SECONDS);
+        } else {
+            this.checker = null;
+        }
+    }
+
+    DbConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * picks the next healthy replica
+     *
+     * @return the replica, or null if there are none
+     */
+    Replica pick() {
+        int start = next.getAndIncrement();
+        for (int k = 0; k < replicas.length; k++) {
+            Replica r = replicas[Math.floorMod(start + k, replicas.length)];
+            if (r.healthy) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * takes a replica out of the rotation until a health check succeeds
+     *
+     * @param r the replica
+     * @param cause the error found
+     */
+    void markDown(Replica r, SQLException cause) {
+        if (r.healthy) {
+            r.healthy = false;
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING,
+                    "Replica " + r.host + " is down: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * checks every replica with a new connection
+     */
+    void check() {
+        for (Replica r : replicas) {
+            String url = config.url(r.host, "connectTimeout=" + (CHECK_TIMEOUT_SECONDS * 1000));
+            try ( Connection conn = DriverManager.getConnection(url, config.getUser(), config.getPassword())) {
+                if (!conn.isValid(CHECK_TIMEOUT_SECONDS)) {
+                    throw new SQLException("Connection not valid");
+                }
+                if (!r.healthy) {
+                    r.healthy = true;
+                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Replica {0} is up", r.host);
+                }
+            } catch (SQLException ex) {
+                markDown(r, ex);
+            }
+        }
+    }
+
+    /**
+     * stops health checks
+     */
+    void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ReplicaSet{");
+        for (int i = 0; i < replicas.length; i++) {
+            sb.append((i == 0) ? "" : ", ").append(replicas[i].host).append(replicas[i].healthy ? " up" : " down");
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,31 @@
+package cat.proven.categprods.model.persist;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps rows of a result set to objects. A mapper reads only the columns of
+ * its own select list, by position, so queries built with columns() need no
+ * lookup of columns by label.
+ *
+ * @param <T> type of the mapped objects
+ * @author ProvenSoft
+ */
+public interface RowMapper<T> {
+
+    /**
+     * @return the select list, in the order the mapper reads it
+     */
+    String columns();
+
+    /**
+     * maps the current row
+     *
+     * @param rs the result set, positioned on a row
+     * @param into an object to fill, or null to get a new one
+     * @return the mapped object: into if not null
+     * @throws SQLException if a column can not be read
+     */
+    T map(ResultSet rs, T into) throws SQLException;
+
+}
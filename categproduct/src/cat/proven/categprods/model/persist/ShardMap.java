@@ -0,0 +1,102 @@
+package cat.proven.categprods.model.persist;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Assignment of categories to the shards holding their products, read from
+ * a properties file:
+ * <pre>
+ * shard.0=shard0.properties
+ * shard.1=shard1.properties
+ * category.1=0
+ * category.7=1
+ * </pre>
+ * Each shard.n key names the DbConfig file of a shard, relative to the
+ * file of the map; shards are numbered from 0 without gaps. Each category.id
+ * key assigns a category to a shard; categories not listed go to shard
+ * (id mod number of shards).
+ *
+ * @author ProvenSoft
+ */
+public final class ShardMap {
+
+    private final List<DbConfig> shards;
+    private final Map<Long, Integer> categories;
+
+    private ShardMap(List<DbConfig> shards, Map<Long, Integer> categories) {
+        this.shards = shards;
+        this.categories = categories;
+    }
+
+    /**
+     * reads a map from a file
+     *
+     * @param file the file to read
+     * @return the map
+     * @throws IOException if the file or a shard file can not be read or are
+     * not valid
+     */
+    public static ShardMap load(Path file) throws IOException {
+        Properties props = new Properties();
+        try ( Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        List<DbConfig> shards = new ArrayList<>();
+        for (int i = 0; props.getProperty("shard." + i) != null; i++) {
+            shards.add(DbConfig.load(file.resolveSibling(props.getProperty("shard." + i).strip()), false));
+        }
+        if (shards.isEmpty()) {
+            throw new IOException("No shards in " + file);
+        }
+        Map<Long, Integer> categories = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith("category.")) {
+                try {
+                    long id = Long.parseLong(key.substring("category.".length()));
+                    int shard = Integer.parseInt(props.getProperty(key).strip());
+                    if (shard < 0 || shard >= shards.size()) {
+                        throw new IOException("No such shard for " + key + ": " + shard);
+                    }
+                    categories.put(id, shard);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid entry " + key + " in " + file, ex);
+                }
+            }
+        }
+        return new ShardMap(shards, categories);
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * @param shard number of a shard
+     * @return the settings of the shard
+     */
+    public DbConfig getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * @param categoryId id of a category
+     * @return number of the shard holding the products of the category
+     */
+    public int shardOf(long categoryId) {
+        Integer shard = categories.get(categoryId);
+        return (shard != null) ? shard : (int) Math.floorMod(categoryId, (long) shards.size());
+    }
+
+}
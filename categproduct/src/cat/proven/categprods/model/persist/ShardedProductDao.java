@@ -0,0 +1,594 @@
+package cat.proven.categprods.model.persist;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.ProductCriteria;
+import cat.proven.categprods.model.ProductDigest;
+import cat.proven.categprods.model.SyncResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Data Access Object for a products table split by category across several
+ * databases (shards), as given by a ShardMap. Categories stay in the main
+ * database.
+ *
+ * Queries on one category go to the shard of the category. Queries by code
+ * go to the shard named by the global code directory, or to all shards if
+ * the code is not there. Other queries are sent to all shards in parallel
+ * and their results merged, in shard order.
+ *
+ * Shards hold the products table of storedb.sql without its foreign key to
+ * categories, brought up to date by the migrations of the products table
+ * (see MigrationRunner.forShard), which the application applies at startup.
+ * Ids must be unique across shards, e.g. by giving shard n of N
+ * auto_increment_increment=N and auto_increment_offset=n+1.
+ *
+ * @author ProvenSoft
+ */
+public class ShardedProductDao extends ProductDao {
+
+    private final ShardMap map;
+    private final ProductDao[] shards;
+    private final CodeDirectory directory;
+    private final CategoryDao categoryDao;
+    private final ExecutorService executor;
+
+    public ShardedProductDao(ShardMap map) {
+        this.map = map;
+        this.shards = new ProductDao[map.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ProductDao(new DbConnect(map.getShard(i)));
+        }
+        this.directory = new CodeDirectory(new DbConnect());
+        this.categoryDao = new CategoryDao();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-query");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private int shardOf(Product product) {
+        return map.shardOf(product.getCategory().getId());
+    }
+
+    /**
+     * runs a call for each shard in parallel, the first one in the calling
+     * thread
+     *
+     * @param call the call, given the number of a shard
+     * @return the result of each shard, null for failed calls
+     */
+    private <T> List<T> onAll(IntFunction<T> call) {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            all.add(i);
+        }
+        return onShards(all, call);
+    }
+
+    /**
+     * runs a call for some shards in parallel, the first one in the calling
+     * thread. Worker threads get the read your writes window of the caller.
+     *
+     * @param ids the shards
+     * @param call the call, given the number of a shard
+     * @return the result of each shard, in the order of ids, null for failed
+     * calls
+     */
+    private <T> List<T> onShards(List<Integer> ids, IntFunction<T> call) {
+        long pin = DbConnect.pinnedUntil();
+        List<Future<T>> futures = new ArrayList<>();
+        for (int k = 1; k < ids.size(); k++) {
+            int shard = ids.get(k);
+            Callable<T> task = () -> {
+                DbConnect.pinUntil(pin);
+                return call.apply(shard);
+            };
+            futures.add(executor.submit(task));
+        }
+        List<T> result = new ArrayList<>();
+        if (!ids.isEmpty()) {
+            result.add(call.apply(ids.get(0)));
+        }
+        for (Future<T> f : futures) {
+            T value = null;
+            try {
+                value = f.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex.getCause());
+            }
+            result.add(value);
+        }
+        return result;
+    }
+
+    private static <T> T firstNonNull(List<T> values) {
+        for (T v : values) {
+            if (v != null) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    private static <T> List<T> concat(List<List<T>> lists) {
+        List<T> result = new ArrayList<>();
+        for (List<T> list : lists) {
+            if (list != null) {
+                result.addAll(list);
+            }
+        }
+        return result;
+    }
+
+    private static int sum(List<Integer> values) {
+        int result = 0;
+        for (Integer v : values) {
+            result += (v != null) ? v : 0;
+        }
+        return result;
+    }
+
+    @Override
+    public int insert(Product product) {
+        int shard = shardOf(product);
+        int result = shards[shard].insert(product);
+        if (result == 1) {
+            directory.put(Map.of(product.getCode(), shard));
+        }
+        return result;
+    }
+
+    @Override
+    public int delete(Product p) {
+        Integer shard = directory.lookup(p.getCode());
+        int result = (shard != null) ? shards[shard].delete(p) : 0;
+        if (result == 0) {
+            result = sum(onAll(i -> shards[i].delete(p)));
+        }
+        if (result > 0) {
+            directory.remove(List.of(p.getCode()));
+        }
+        return result;
+    }
+
+    @Override
+    public int deleteWhereCategory(Category category) {
+        return shards[map.shardOf(category.getId())].deleteWhereCategory(category);
+    }
+
+    @Override
+    public Product select(Product product) {
+        return firstNonNull(onAll(i -> shards[i].select(product)));
+    }
+
+    @Override
+    public int update(Product oldP, Product newP) {
+        if (oldP.getCategory() != null && newP.getCategory() != null && shardOf(oldP) != shardOf(newP)) {
+            return move(oldP, newP);
+        }
+        if (oldP.getCategory() != null) {
+            int result = shards[shardOf(oldP)].update(oldP, newP);
+            if (result > 0) {
+                return result;
+            }
+        }
+        return sum(onAll(i -> shards[i].update(oldP, newP)));
+    }
+
+    /**
+     * moves a product whose category goes to another shard, as upsertBatch
+     * does: it is deleted from the shard of its old category and inserted,
+     * keeping its id, with the new values in the shard of the new one, and
+     * the directory is updated. The row is put back if it can not be
+     * inserted.
+     *
+     * @return 1 if moved, 0 if not found or in case of error
+     */
+    private int move(Product oldP, Product newP) {
+        int from = shardOf(oldP);
+        int to = shardOf(newP);
+        Product stored = shards[from].selectWhereCodeOnPrimary(oldP.getCode());
+        if (stored == null || stored.getId() != oldP.getId()) {
+            return 0;
+        }
+        Product moved = new Product(stored);
+        moved.setName(newP.getName());
+        moved.setStock(newP.getStock());
+        moved.setPrice(newP.getPrice());
+        moved.setCategory(newP.getCategory());
+        //rows written by replicateBatch keep their version, so raise it here
+        moved.setVersion(stored.getVersion() + 1);
+        if (shards[from].replicateBatch(List.of(stored), List.of()) < 0) {
+            return 0;
+        }
+        if (shards[to].replicateBatch(List.of(), List.of(moved)) < 0) {
+            shards[from].replicateBatch(List.of(), List.of(stored));
+            return 0;
+        }
+        directory.put(Map.of(moved.getCode(), to));
+        return 1;
+    }
+
+    @Override
+    public Product selectWhereCode(String code) {
+        Integer shard = directory.lookup(code);
+        if (shard != null) {
+            Product prod = shards[shard].selectWhereCode(code);
+            if (prod != null) {
+                return prod;
+            }
+            directory.forget(code);
+        }
+        List<Product> found = onAll(i -> shards[i].selectWhereCode(code));
+        for (int i = 0; i < found.size(); i++) {
+            if (found.get(i) != null) {
+                directory.remember(code, i);
+                return found.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Product selectWhereCodeOnPrimary(String code) {
+        Integer shard = directory.lookup(code);
+        if (shard != null) {
+            Product prod = shards[shard].selectWhereCodeOnPrimary(code);
+            if (prod != null) {
+                return prod;
+            }
+            directory.forget(code);
+        }
+        List<Product> found = onAll(i -> shards[i].selectWhereCodeOnPrimary(code));
+        for (int i = 0; i < found.size(); i++) {
+            if (found.get(i) != null) {
+                directory.remember(code, i);
+                return found.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Product selectWhereName(String name) {
+        return firstNonNull(onAll(i -> shards[i].selectWhereName(name)));
+    }
+
+    @Override
+    public List<Product> selectWhereMinStock(int minStock) {
+        return concat(onAll(i -> shards[i].selectWhereMinStock(minStock)));
+    }
+
+    @Override
+    public List<Product> selectAll() {
+        return concat(onAll(i -> shards[i].selectAll()));
+    }
+
+    @Override
+    public List<Product> selectWhereCategory(Category category) {
+        return shards[map.shardOf(category.getId())].selectWhereCategory(category);
+    }
+
+    /**
+     * gets the products of a subtree of categories: the categories, whose
+     * closure table is in the main database, are found first, and then their
+     * products in the shards holding them
+     */
+    @Override
+    public List<Product> selectWhereSubtree(Category category) {
+        List<Long> ids = categoryDao.selectSubtreeIds(category);
+        return (ids != null) ? selectWhere(new ProductCriteria().inCategories(ids)) : new ArrayList<>();
+    }
+
+    /**
+     * finds the products that meet some criteria. Criteria on categories go
+     * to the shards of those categories only, each given its own categories;
+     * other criteria go to all shards. Each shard sorts and limits its rows,
+     * and the results are merged, sorted again and cut to the limit.
+     */
+    @Override
+    public List<Product> selectWhere(ProductCriteria criteria) {
+        List<List<Product>> partial;
+        if (criteria.getCategoryIds() != null) {
+            Map<Integer, List<Long>> groups = new LinkedHashMap<>();
+            for (long id : criteria.getCategoryIds()) {
+                groups.computeIfAbsent(map.shardOf(id), k -> new ArrayList<>()).add(id);
+            }
+            List<Integer> ids = new ArrayList<>(groups.keySet());
+            partial = onShards(ids, s -> shards[s].selectWhere(new ProductCriteria(criteria).inCategories(groups.get(s))));
+        } else {
+            partial = onAll(i -> shards[i].selectWhere(criteria));
+        }
+        List<Product> result = concat(partial);
+        if (partial.size() <= 1) {
+            return result;
+        }
+        result.sort(criteria.comparator());
+        int limit = criteria.getLimit();
+        return (limit > 0 && result.size() > limit) ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * adds up the change counters of all shards, which changes whenever one
+     * of them does
+     */
+    @Override
+    public long selectCatalogVersion() {
+        long result = 0;
+        for (Long version : onAll(i -> shards[i].selectCatalogVersion())) {
+            if (version == null || version < 0) {
+                return -1;
+            }
+            result += version;
+        }
+        return result;
+    }
+
+    /**
+     * merges the digests of all shards: a category is held by a single shard
+     */
+    @Override
+    public Map<Long, ProductDigest> selectCategoryDigests() {
+        Map<Long, ProductDigest> result = new HashMap<>();
+        for (Map<Long, ProductDigest> digests : onAll(i -> shards[i].selectCategoryDigests())) {
+            if (digests == null) {
+                return null;
+            }
+            result.putAll(digests);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Long, ProductDigest> selectBucketDigests(long categoryId, long fromBucket, long toBucket, int shift) {
+        return shards[map.shardOf(categoryId)].selectBucketDigests(categoryId, fromBucket, toBucket, shift);
+    }
+
+    @Override
+    public List<Product> selectBuckets(long categoryId, long fromBucket, long toBucket) {
+        return shards[map.shardOf(categoryId)].selectBuckets(categoryId, fromBucket, toBucket);
+    }
+
+    /**
+     * writes rows copied from another replica, each in the shard of its
+     * category, a transaction per shard
+     */
+    @Override
+    public int replicateBatch(List<Product> removed, List<Product> written) {
+        Map<Integer, List<Integer>> removedGroups = byShard(removed);
+        Map<Integer, List<Integer>> writtenGroups = byShard(written);
+        Set<Integer> ids = new HashSet<>(removedGroups.keySet());
+        ids.addAll(writtenGroups.keySet());
+        List<Integer> list = new ArrayList<>(ids);
+        List<Integer> partial = onShards(list, s -> shards[s].replicateBatch(
+                at(removed, removedGroups.getOrDefault(s, List.of())),
+                at(written, writtenGroups.getOrDefault(s, List.of()))));
+        if (partial.contains(null) || partial.contains(-1)) {
+            return -1;
+        }
+        List<String> codes = new ArrayList<>();
+        for (Product p : removed) {
+            codes.add(p.getCode());
+        }
+        //codes already placed in another shard by a previous batch stay there
+        Map<String, Integer> current = directory.lookup(codes);
+        List<String> gone = new ArrayList<>();
+        for (Product p : removed) {
+            Integer shard = current.get(p.getCode());
+            if (shard == null || shard == shardOf(p)) {
+                gone.add(p.getCode());
+            }
+        }
+        directory.remove(gone);
+        Map<String, Integer> placed = new HashMap<>();
+        for (Product p : written) {
+            placed.put(p.getCode(), shardOf(p));
+        }
+        directory.put(placed);
+        return sum(partial);
+    }
+
+    /**
+     * groups the positions of products in a list by shard
+     */
+    private Map<Integer, List<Integer>> byShard(List<Product> products) {
+        Map<Integer, List<Integer>> result = new HashMap<>();
+        for (int i = 0; i < products.size(); i++) {
+            result.computeIfAbsent(shardOf(products.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        return result;
+    }
+
+    private static List<Product> at(List<Product> products, List<Integer> positions) {
+        List<Product> result = new ArrayList<>(positions.size());
+        for (int p : positions) {
+            result.add(products.get(p));
+        }
+        return result;
+    }
+
+    @Override
+    public int[] insertBatch(List<Product> products) {
+        int[] result = new int[products.size()];
+        Map<Integer, List<Integer>> groups = byShard(products);
+        List<Integer> ids = new ArrayList<>(groups.keySet());
+        List<int[]> partial = onShards(ids, s -> shards[s].insertBatch(at(products, groups.get(s))));
+        Map<String, Integer> inserted = new HashMap<>();
+        for (int k = 0; k < ids.size(); k++) {
+            List<Integer> positions = groups.get(ids.get(k));
+            int[] r = partial.get(k);
+            for (int j = 0; j < positions.size() && r != null; j++) {
+                result[positions.get(j)] = r[j];
+                if (r[j] == 1) {
+                    inserted.put(products.get(positions.get(j)).getCode(), ids.get(k));
+                }
+            }
+        }
+        directory.put(inserted);
+        return result;
+    }
+
+    /**
+     * merges results of a batch sent to all shards: a row counts as done if
+     * any shard did it
+     */
+    private static int[] merge(List<int[]> partial, int size) {
+        int[] result = new int[size];
+        for (int[] r : partial) {
+            for (int j = 0; r != null && j < size; j++) {
+                result[j] = Math.max(result[j], r[j]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] updateBatch(List<Product> products) {
+        //products are identified by code, so each shard updates the ones it has
+        return merge(onAll(i -> shards[i].updateBatch(products)), products.size());
+    }
+
+    @Override
+    public int[] deleteBatch(List<Product> products) {
+        int[] result = merge(onAll(i -> shards[i].deleteBatch(products)), products.size());
+        List<String> deleted = new ArrayList<>();
+        for (int j = 0; j < result.length; j++) {
+            if (result[j] == 1) {
+                deleted.add(products.get(j).getCode());
+            }
+        }
+        directory.remove(deleted);
+        return result;
+    }
+
+    @Override
+    public Set<String> decrementStock(Map<String, Integer> quantities) {
+        //products are identified by code, so each shard updates the ones it has
+        List<Set<String>> done = onAll(i -> shards[i].decrementStock(quantities));
+        //codes of a shard that failed are left out, as if short of stock
+        Set<String> result = null;
+        for (Set<String> updated : done) {
+            if (updated != null) {
+                if (result == null) {
+                    result = new HashSet<>();
+                }
+                result.addAll(updated);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> selectExistingCodes(Collection<String> codes) {
+        Set<String> result = new HashSet<>();
+        for (Set<String> found : onAll(i -> shards[i].selectExistingCodes(codes))) {
+            if (found == null) {
+                return null;
+            }
+            result.addAll(found);
+        }
+        return result;
+    }
+
+    /**
+     * streams all products, shard after shard. Products are grouped by
+     * category within each shard, and so overall, since a category is held
+     * by a single shard; categories are taken from the main database, and
+     * shared by the products of the same category.
+     */
+    @Override
+    public long scanAll(boolean orderByCategory, Consumer<Product> consumer) {
+        Map<Long, Category> categories = new HashMap<>();
+        for (Category c : categoryDao.selectAll()) {
+            categories.put(c.getId(), c);
+        }
+        long count = 0;
+        for (ProductDao shard : shards) {
+            long n = shard.scanAll(orderByCategory, false, p -> {
+                Category c = categories.get(p.getCategory().getId());
+                if (c != null) {
+                    p.setCategory(c);
+                }
+                consumer.accept(p);
+            });
+            if (n < 0) {
+                return -1;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * upserts each product in the shard of its category. Products whose
+     * category moved them to another shard are first deleted from the old
+     * one, and counted as updated.
+     */
+    @Override
+    public SyncResult upsertBatch(List<Product> products) {
+        List<String> codes = new ArrayList<>();
+        for (Product p : products) {
+            codes.add(p.getCode());
+        }
+        Map<String, Integer> current = directory.lookup(codes);
+        Map<Integer, List<Product>> moved = new HashMap<>();
+        for (Product p : products) {
+            Integer old = current.get(p.getCode());
+            if (old != null && old != shardOf(p)) {
+                moved.computeIfAbsent(old, k -> new ArrayList<>()).add(p);
+            }
+        }
+        int movedCount = 0;
+        for (Map.Entry<Integer, List<Product>> e : moved.entrySet()) {
+            for (int r : shards[e.getKey()].deleteBatch(e.getValue())) {
+                movedCount += r;
+            }
+        }
+        Map<Integer, List<Integer>> groups = byShard(products);
+        List<Integer> ids = new ArrayList<>(groups.keySet());
+        List<SyncResult> partial = onShards(ids, s -> shards[s].upsertBatch(at(products, groups.get(s))));
+        SyncResult total = new SyncResult();
+        Map<String, Integer> written = new HashMap<>();
+        for (int k = 0; k < ids.size(); k++) {
+            SyncResult r = partial.get(k);
+            List<Integer> positions = groups.get(ids.get(k));
+            if (r == null) {
+                r = new SyncResult(0, 0, 0, positions.size());
+            }
+            total.add(r);
+            if (r.getRejected() == 0) {
+                for (int p : positions) {
+                    written.put(products.get(p).getCode(), ids.get(k));
+                }
+            }
+        }
+        directory.put(written);
+        if (movedCount == 0) {
+            return total;
+        }
+        int moves = Math.min(movedCount, total.getInserted());
+        return new SyncResult(total.getInserted() - moves, total.getUpdated() + moves,
+                total.getUnchanged(), total.getRejected());
+    }
+
+}
@@ -0,0 +1,467 @@
+package cat.proven.categprods.model.persist;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log of statements slower than a threshold. Connections opened by DbConnect
+ * are wrapped so that every statement is timed, from execution until its
+ * rows have been read, and statements over the threshold are written as a
+ * JSON line with:
+ * <ul>
+ * <li>time, sql and, unless redacted, bound parameters</li>
+ * <li>batch size, and rows returned or updated</li>
+ * <li>execution, fetch and total time in milliseconds</li>
+ * <li>optionally, the EXPLAIN output of the statement, captured only the
+ * first time each distinct statement is slow</li>
+ * </ul>
+ * The file is rotated when it grows over a maximum size: file.1 is the most
+ * recent rotated file, and the oldest one is deleted.
+ *
+ * The log is enabled by setting the system property categprods.slowlog to
+ * the path of the log file. Other properties: categprods.slowlog.threshold
+ * (milliseconds, default 100), categprods.slowlog.redact (true to hide
+ * parameter values), categprods.slowlog.explain (true to capture plans),
+ * categprods.slowlog.maxSize (bytes, default 10 MiB) and
+ * categprods.slowlog.maxFiles (default 5).
+ *
+ * @author ProvenSoft
+ */
+public final class SlowQueryLog {
+
+    private static volatile SlowQueryLog installed = fromSystemProperties();
+
+    private final Path file;
+    private final long thresholdNanos;
+    private final boolean redact;
+    private final boolean explain;
+    private final long maxBytes;
+    private final int maxFiles;
+    /**
+     * statements whose plan has already been captured
+     */
+    private final Set<String> explained;
+
+    private Writer out;
+    private long size;
+
+    /**
+     * creates a log
+     *
+     * @param file the file to append to
+     * @param thresholdMillis statements taking at least this time are logged
+     * @param redact true to write parameters as ? instead of their values
+     * @param explain true to capture query plans
+     * @param maxBytes size over which the file is rotated
+     * @param maxFiles number of files to keep, counting the current one
+     */
+    public SlowQueryLog(Path file, long thresholdMillis, boolean redact, boolean explain, long maxBytes, int maxFiles) {
+        this.file = file;
+        this.thresholdNanos = thresholdMillis * 1_000_000L;
+        this.redact = redact;
+        this.explain = explain;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.explained = ConcurrentHashMap.newKeySet();
+    }
+
+    private static SlowQueryLog fromSystemProperties() {
+        SlowQueryLog log = null;
+        String path = System.getProperty("categprods.slowlog");
+        if (path != null && !path.isEmpty()) {
+            log = new SlowQueryLog(Path.of(path),
+                    Long.getLong("categprods.slowlog.threshold", 100),
+                    Boolean.getBoolean("categprods.slowlog.redact"),
+                    Boolean.getBoolean("categprods.slowlog.explain"),
+                    Long.getLong("categprods.slowlog.maxSize", 10L * 1024 * 1024),
+                    Integer.getInteger("categprods.slowlog.maxFiles", 5));
+        }
+        return log;
+    }
+
+    /**
+     * sets the log used for connections opened from now on
+     *
+     * @param log the log, or null to disable logging
+     */
+    public static void install(SlowQueryLog log) {
+        installed = log;
+    }
+
+    /**
+     * @return the log in use, or null if disabled
+     */
+    public static SlowQueryLog getInstalled() {
+        return installed;
+    }
+
+    /**
+     * wraps a connection with the installed log, if any
+     *
+     * @param conn the connection to wrap
+     * @return the wrapped connection, or conn itself if logging is disabled
+     */
+    static Connection wrap(Connection conn) {
+        SlowQueryLog log = installed;
+        return (log == null) ? conn : log.proxy(conn);
+    }
+
+    Connection proxy(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(conn));
+    }
+
+    /* ==== Interception ==== */
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * wraps statements created by a connection, and completes them when the
+     * connection is closed, since DAOs often leave closing statements to the
+     * connection
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        private final Connection conn;
+        private final List<StatementHandler> statements;
+
+        ConnectionHandler(Connection conn) {
+            this.conn = conn;
+            this.statements = new ArrayList<>();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                for (StatementHandler s : statements) {
+                    s.complete();
+                }
+                statements.clear();
+            }
+            Object result = call(conn, method, args);
+            if (result instanceof Statement && ("prepareStatement".equals(name) || "createStatement".equals(name))) {
+                String sql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : null;
+                StatementHandler handler = new StatementHandler(conn, (Statement) result, sql);
+                statements.add(handler);
+                Class<?> type = (result instanceof PreparedStatement) ? PreparedStatement.class : Statement.class;
+                result = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * times executions of a statement and records its parameters
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final Connection conn;
+        private final Statement stmt;
+        private String sql;
+        private Object[] params;
+        private int paramCount;
+        private int batch;
+        //values of the last execution, until it is completed
+        private boolean pending;
+        private Object[] executedParams;
+        private int executedBatch;
+        private long execNanos;
+        private long fetchNanos;
+        private long rows;
+
+        StatementHandler(Connection conn, Statement stmt, String sql) {
+            this.conn = conn;
+            this.stmt = stmt;
+            this.sql = sql;
+            this.params = new Object[8];
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) {
+                return execute(name, method, args);
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                setParam((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+            } else if ("clearParameters".equals(name)) {
+                Arrays.fill(params, null);
+                paramCount = 0;
+            } else if ("addBatch".equals(name)) {
+                batch++;
+            } else if ("clearBatch".equals(name)) {
+                batch = 0;
+            } else if ("close".equals(name)) {
+                complete();
+            }
+            return call(stmt, method, args);
+        }
+
+        private Object execute(String name, Method method, Object[] args) throws Throwable {
+            complete();
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                sql = (String) args[0];
+            }
+            executedParams = Arrays.copyOf(params, paramCount);
+            executedBatch = batch;
+            batch = 0;
+            fetchNanos = 0;
+            rows = 0;
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = call(stmt, method, args);
+            } finally {
+                execNanos = System.nanoTime() - start;
+            }
+            pending = true;
+            if (result instanceof ResultSet) {
+                result = Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class}, new ResultSetHandler((ResultSet) result, this));
+            } else {
+                if (result instanceof int[]) {
+                    for (int n : (int[]) result) {
+                        rows += Math.max(n, 0);
+                    }
+                } else if (result instanceof long[]) {
+                    for (long n : (long[]) result) {
+                        rows += Math.max(n, 0);
+                    }
+                } else if (result instanceof Number) {
+                    rows = ((Number) result).longValue();
+                }
+                complete();
+            }
+            return result;
+        }
+
+        private void setParam(int index, Object value) {
+            if (index > params.length) {
+                params = Arrays.copyOf(params, Math.max(index, params.length * 2));
+            }
+            params[index - 1] = value;
+            paramCount = Math.max(paramCount, index);
+        }
+
+        /**
+         * logs the last execution if it was slow
+         */
+        void complete() {
+            if (pending) {
+                pending = false;
+                if (execNanos + fetchNanos >= thresholdNanos) {
+                    log(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * counts rows and time spent fetching them
+     */
+    private static class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet rs;
+        private final StatementHandler owner;
+
+        ResultSetHandler(ResultSet rs, StatementHandler owner) {
+            this.rs = rs;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("next".equals(name)) {
+                long start = System.nanoTime();
+                boolean more = (Boolean) call(rs, method, args);
+                owner.fetchNanos += System.nanoTime() - start;
+                if (more) {
+                    owner.rows++;
+                } else {
+                    owner.complete();
+                }
+                return more;
+            }
+            if ("close".equals(name)) {
+                owner.complete();
+            }
+            return call(rs, method, args);
+        }
+    }
+
+    /* ==== Output ==== */
+
+    private void log(StatementHandler s) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"time\":");
+        appendString(sb, Instant.now().toString());
+        sb.append(",\"sql\":");
+        appendString(sb, (s.sql == null) ? null : s.sql.strip().replaceAll("\\s+", " "));
+        sb.append(",\"params\":[");
+        for (int i = 0; i < s.executedParams.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendValue(sb, redact ? "?" : s.executedParams[i]);
+        }
+        sb.append(']');
+        sb.append(",\"batch\":").append(s.executedBatch);
+        sb.append(",\"rows\":").append(s.rows);
+        sb.append(String.format(Locale.ROOT, ",\"execMs\":%.3f,\"fetchMs\":%.3f,\"totalMs\":%.3f",
+                s.execNanos / 1e6, s.fetchNanos / 1e6, (s.execNanos + s.fetchNanos) / 1e6));
+        if (explain && s.sql != null && isExplainable(s.sql) && explained.add(s.sql)) {
+            sb.append(",\"plan\":");
+            appendPlan(sb, s.conn, s.sql, s.executedParams);
+        }
+        sb.append("}\n");
+        write(sb.toString());
+    }
+
+    private static boolean isExplainable(String sql) {
+        String verb = sql.strip().toLowerCase(Locale.ROOT);
+        return verb.startsWith("select") || verb.startsWith("update") || verb.startsWith("delete");
+    }
+
+    /**
+     * runs EXPLAIN with the same parameters and appends its rows as an array
+     * of objects
+     */
+    private void appendPlan(StringBuilder sb, Connection conn, String sql, Object[] values) {
+        try ( PreparedStatement st = conn.prepareStatement("explain " + sql)) {
+            int n = st.getParameterMetaData().getParameterCount();
+            for (int i = 0; i < n; i++) {
+                st.setObject(i + 1, (i < values.length) ? values[i] : null);
+            }
+            ResultSet rs = st.executeQuery();
+            ResultSetMetaData md = rs.getMetaData();
+            sb.append('[');
+            boolean first = true;
+            while (rs.next()) {
+                sb.append(first ? "{" : ",{");
+                first = false;
+                for (int c = 1; c <= md.getColumnCount(); c++) {
+                    if (c > 1) {
+                        sb.append(',');
+                    }
+                    appendString(sb, md.getColumnLabel(c));
+                    sb.append(':');
+                    appendString(sb, rs.getString(c));
+                }
+                sb.append('}');
+            }
+            sb.append(']');
+        } catch (SQLException ex) {
+            sb.setLength(sb.lastIndexOf(",\"plan\":") + 8);
+            appendString(sb, "unavailable: " + ex.getMessage());
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * appends a line to the file, rotating it first if it would grow over the
+     * maximum size
+     */
+    private synchronized void write(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (out == null) {
+                open();
+            }
+            if (size > 0 && size + bytes.length > maxBytes) {
+                rotate();
+            }
+            out.write(line);
+            out.flush();
+            size += bytes.length;
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private void open() throws IOException {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(rotated(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotated(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+}
@@ -0,0 +1,6 @@
+-- indexes for the lookups made by the DAOs, besides the primary keys and
+-- unique codes created by storedb.sql
+CREATE INDEX `idx_products_category` ON `products` (`category_id`);
+CREATE INDEX `idx_products_name` ON `products` (`name`);
+CREATE INDEX `idx_products_stock` ON `products` (`stock`);
+CREATE INDEX `idx_categories_name` ON `categories` (`name`);
@@ -0,0 +1,6 @@
+-- indexes of V001__indexes.sql on the products table alone, for shards,
+-- which have no categories table. Shards have no fk_category foreign key
+-- either, and so no index on category_id unless created here.
+CREATE INDEX `idx_products_category` ON `products` (`category_id`);
+CREATE INDEX `idx_products_name` ON `products` (`name`);
+CREATE INDEX `idx_products_stock` ON `products` (`stock`);
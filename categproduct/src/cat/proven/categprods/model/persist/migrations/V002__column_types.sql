@@ -0,0 +1,6 @@
+-- prices as exact fixed-point amounts instead of binary floating point, and
+-- stock never null
+UPDATE `products` SET `stock` = 0 WHERE `stock` IS NULL;
+ALTER TABLE `products`
+    MODIFY `stock` INT NOT NULL DEFAULT 0,
+    MODIFY `price` DECIMAL(12,2) NOT NULL DEFAULT 0.00;
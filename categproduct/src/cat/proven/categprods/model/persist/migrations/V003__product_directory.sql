@@ -0,0 +1,7 @@
+-- directory of product codes and the shard holding each product, kept by
+-- ShardedProductDao when products are sharded by category
+CREATE TABLE IF NOT EXISTS `product_directory` (
+    `code` VARCHAR(10) NOT NULL,
+    `shard` INT NOT NULL,
+    PRIMARY KEY (`code`)
+);
@@ -0,0 +1,2 @@
+-- index for product criteria that filter or sort by price
+CREATE INDEX `idx_products_price` ON `products` (`price`);
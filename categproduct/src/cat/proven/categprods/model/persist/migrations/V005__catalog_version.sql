@@ -0,0 +1,18 @@
+-- change counter of the products table, raised by triggers on every row
+-- inserted, updated or deleted, for caches to tell whether what they kept is
+-- still current. The counter is split in 16 rows, chosen by product id, so
+-- that concurrent writers do not queue on a single row; its value is the
+-- sum. Creating triggers needs the TRIGGER privilege.
+CREATE TABLE IF NOT EXISTS `catalog_version` (
+    `slot` INT NOT NULL,
+    `version` BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (`slot`)
+);
+INSERT IGNORE INTO `catalog_version` (`slot`) VALUES
+    (0), (1), (2), (3), (4), (5), (6), (7), (8), (9), (10), (11), (12), (13), (14), (15);
+CREATE TRIGGER `products_version_insert` AFTER INSERT ON `products` FOR EACH ROW
+    UPDATE `catalog_version` SET `version` = `version` + 1 WHERE `slot` = NEW.`id` % 16;
+CREATE TRIGGER `products_version_update` AFTER UPDATE ON `products` FOR EACH ROW
+    UPDATE `catalog_version` SET `version` = `version` + 1 WHERE `slot` = NEW.`id` % 16;
+CREATE TRIGGER `products_version_delete` AFTER DELETE ON `products` FOR EACH ROW
+    UPDATE `catalog_version` SET `version` = `version` + 1 WHERE `slot` = OLD.`id` % 16;
@@ -0,0 +1,44 @@
+-- row versions of products, and digests of the products of each category
+-- per bucket of 16 ids, for replicas to find the rows that differ without
+-- reading them all (see ProductDigest). A version is raised by every update
+-- that changes the row, unless the update sets it, as replicas copying rows
+-- do. A digest is the exclusive or of the hashes of the rows, the hash being
+-- the first 64 bits of the SHA-1 of id, code, name, stock, price in cents
+-- and version joined by '|', plus the number of rows; both are kept by
+-- triggers. Creating triggers needs the TRIGGER privilege.
+ALTER TABLE `products` ADD COLUMN `version` BIGINT NOT NULL DEFAULT 0;
+CREATE TABLE IF NOT EXISTS `product_digest` (
+    `category_id` INT NOT NULL,
+    `bucket` INT NOT NULL,
+    `hash` BIGINT UNSIGNED NOT NULL DEFAULT 0,
+    `row_count` INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (`category_id`, `bucket`)
+);
+DELETE FROM `product_digest`;
+INSERT INTO `product_digest` (`category_id`, `bucket`, `hash`, `row_count`)
+    SELECT IFNULL(`category_id`, 0), `id` DIV 16, BIT_XOR(CAST(CONV(LEFT(SHA1(CONCAT_WS('|',
+            `id`, `code`, `name`, `stock`, CAST(`price` * 100 AS SIGNED), `version`)), 16), 16, 10) AS UNSIGNED)),
+        COUNT(*)
+    FROM `products` GROUP BY IFNULL(`category_id`, 0), `id` DIV 16;
+CREATE TRIGGER `products_row_version` BEFORE UPDATE ON `products` FOR EACH ROW
+    SET NEW.`version` = IF(NEW.`version` <> OLD.`version`
+        OR (NEW.`code` <=> OLD.`code` AND NEW.`name` <=> OLD.`name` AND NEW.`stock` <=> OLD.`stock`
+            AND NEW.`price` <=> OLD.`price` AND NEW.`category_id` <=> OLD.`category_id`),
+        NEW.`version`, OLD.`version` + 1);
+CREATE TRIGGER `products_digest_insert` AFTER INSERT ON `products` FOR EACH ROW
+    INSERT INTO `product_digest` (`category_id`, `bucket`, `hash`, `row_count`) VALUES
+        (IFNULL(NEW.`category_id`, 0), NEW.`id` DIV 16, CAST(CONV(LEFT(SHA1(CONCAT_WS('|', NEW.`id`, NEW.`code`,
+            NEW.`name`, NEW.`stock`, CAST(NEW.`price` * 100 AS SIGNED), NEW.`version`)), 16), 16, 10) AS UNSIGNED), 1)
+    ON DUPLICATE KEY UPDATE `hash` = `hash` ^ VALUES(`hash`), `row_count` = `row_count` + VALUES(`row_count`);
+CREATE TRIGGER `products_digest_update` AFTER UPDATE ON `products` FOR EACH ROW
+    INSERT INTO `product_digest` (`category_id`, `bucket`, `hash`, `row_count`) VALUES
+        (IFNULL(OLD.`category_id`, 0), OLD.`id` DIV 16, CAST(CONV(LEFT(SHA1(CONCAT_WS('|', OLD.`id`, OLD.`code`,
+            OLD.`name`, OLD.`stock`, CAST(OLD.`price` * 100 AS SIGNED), OLD.`version`)), 16), 16, 10) AS UNSIGNED), -1),
+        (IFNULL(NEW.`category_id`, 0), NEW.`id` DIV 16, CAST(CONV(LEFT(SHA1(CONCAT_WS('|', NEW.`id`, NEW.`code`,
+            NEW.`name`, NEW.`stock`, CAST(NEW.`price` * 100 AS SIGNED), NEW.`version`)), 16), 16, 10) AS UNSIGNED), 1)
+    ON DUPLICATE KEY UPDATE `hash` = `hash` ^ VALUES(`hash`), `row_count` = `row_count` + VALUES(`row_count`);
+CREATE TRIGGER `products_digest_delete` AFTER DELETE ON `products` FOR EACH ROW
+    INSERT INTO `product_digest` (`category_id`, `bucket`, `hash`, `row_count`) VALUES
+        (IFNULL(OLD.`category_id`, 0), OLD.`id` DIV 16, CAST(CONV(LEFT(SHA1(CONCAT_WS('|', OLD.`id`, OLD.`code`,
+            OLD.`name`, OLD.`stock`, CAST(OLD.`price` * 100 AS SIGNED), OLD.`version`)), 16), 16, 10) AS UNSIGNED), -1)
+    ON DUPLICATE KEY UPDATE `hash` = `hash` ^ VALUES(`hash`), `row_count` = `row_count` + VALUES(`row_count`);
@@ -0,0 +1,21 @@
+-- orders placed at checkout and their lines, one per product, numbered in
+-- product code order. Lines keep the code and unit price of the product
+-- when sold, and no foreign key to products, so that orders outlive the
+-- products and their price changes.
+CREATE TABLE IF NOT EXISTS `orders` (
+    `id` INT NOT NULL AUTO_INCREMENT,
+    `created` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    `total` DECIMAL(14,2) NOT NULL,
+    PRIMARY KEY (`id`)
+);
+CREATE TABLE IF NOT EXISTS `order_lines` (
+    `order_id` INT NOT NULL,
+    `line` INT NOT NULL,
+    `product_id` INT NOT NULL,
+    `code` VARCHAR(10) NOT NULL,
+    `quantity` INT NOT NULL,
+    `price` DECIMAL(12,2) NOT NULL,
+    PRIMARY KEY (`order_id`, `line`),
+    KEY `order_lines_product` (`product_id`),
+    CONSTRAINT `fk_order` FOREIGN KEY (`order_id`) REFERENCES `orders` (`id`) ON DELETE CASCADE
+);
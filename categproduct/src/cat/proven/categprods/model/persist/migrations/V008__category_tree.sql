@@ -0,0 +1,46 @@
+-- categories as a tree: each category may have a parent, and category_tree
+-- holds a row for every category and each of its ancestors, itself
+-- included at depth 0 (a closure table), so that the products of a
+-- subtree are found with a single indexed join. Rows are added by a
+-- trigger when a category is inserted and rewritten by another when it is
+-- moved, moves into its own subtree being refused; removing a category is
+-- refused while it has children, and its rows go with it. Creating
+-- triggers needs the TRIGGER privilege.
+ALTER TABLE `categories`
+    ADD COLUMN `parent_id` INT NULL,
+    ADD CONSTRAINT `fk_parent` FOREIGN KEY (`parent_id`) REFERENCES `categories` (`id`) ON DELETE RESTRICT;
+CREATE TABLE IF NOT EXISTS `category_tree` (
+    `ancestor_id` INT NOT NULL,
+    `descendant_id` INT NOT NULL,
+    `depth` INT NOT NULL,
+    PRIMARY KEY (`ancestor_id`, `descendant_id`),
+    KEY `category_tree_descendant` (`descendant_id`),
+    CONSTRAINT `fk_ancestor` FOREIGN KEY (`ancestor_id`) REFERENCES `categories` (`id`) ON DELETE CASCADE,
+    CONSTRAINT `fk_descendant` FOREIGN KEY (`descendant_id`) REFERENCES `categories` (`id`) ON DELETE CASCADE
+);
+DELETE FROM `category_tree`;
+INSERT INTO `category_tree` (`ancestor_id`, `descendant_id`, `depth`)
+    SELECT `id`, `id`, 0 FROM `categories`;
+CREATE TRIGGER `categories_tree_insert` AFTER INSERT ON `categories` FOR EACH ROW
+    INSERT INTO `category_tree` (`ancestor_id`, `descendant_id`, `depth`)
+        SELECT `ancestor_id`, NEW.`id`, `depth` + 1 FROM `category_tree` WHERE `descendant_id` = NEW.`parent_id`
+        UNION ALL SELECT NEW.`id`, NEW.`id`, 0;
+DELIMITER $$
+CREATE TRIGGER `categories_tree_move` AFTER UPDATE ON `categories` FOR EACH ROW
+BEGIN
+    IF NOT (NEW.`parent_id` <=> OLD.`parent_id`) THEN
+        IF EXISTS (SELECT 1 FROM `category_tree` WHERE `ancestor_id` = NEW.`id` AND `descendant_id` = NEW.`parent_id`) THEN
+            SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = 'Category moved into its own subtree';
+        END IF;
+        -- paths from ancestors outside the subtree moved to the nodes in it
+        DELETE `t` FROM `category_tree` `t`
+            JOIN `category_tree` `s` ON `s`.`descendant_id` = `t`.`descendant_id`
+            LEFT JOIN `category_tree` `i` ON `i`.`ancestor_id` = `s`.`ancestor_id` AND `i`.`descendant_id` = `t`.`ancestor_id`
+            WHERE `s`.`ancestor_id` = NEW.`id` AND `i`.`ancestor_id` IS NULL;
+        INSERT INTO `category_tree` (`ancestor_id`, `descendant_id`, `depth`)
+            SELECT `p`.`ancestor_id`, `s`.`descendant_id`, `p`.`depth` + `s`.`depth` + 1
+            FROM `category_tree` `p` JOIN `category_tree` `s`
+            WHERE `p`.`descendant_id` = NEW.`parent_id` AND `s`.`ancestor_id` = NEW.`id`;
+    END IF;
+END$$
+DELIMITER ;
@@ -0,0 +1,371 @@
+package cat.proven.categprods.server;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Order;
+import cat.proven.categprods.model.OrderLine;
+import cat.proven.categprods.model.Product;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Minimal JSON writer that encodes directly into a reusable UTF-8 byte
+ * buffer. It keeps no intermediate strings, so one instance per worker thread
+ * can serialize any number of products and categories without garbage.
+ *
+ * @author ProvenSoft
+ */
+public final class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final int MAX_DEPTH = 32;
+
+    private byte[] buf;
+    private int len;
+    private OutputStream out;
+    /**
+     * for each nesting level, true if a value has already been written
+     */
+    private final boolean[] hasValue;
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter() {
+        this.buf = new byte[8192];
+        this.hasValue = new boolean[MAX_DEPTH];
+    }
+
+    /**
+     * clears the buffer and sets the stream where flushed data is sent
+     *
+     * @param out the destination stream, or null to only buffer
+     * @return this writer
+     */
+    public JsonWriter reset(OutputStream out) {
+        this.out = out;
+        this.len = 0;
+        this.depth = 0;
+        this.afterName = false;
+        this.hasValue[0] = false;
+        return this;
+    }
+
+    /**
+     * @return number of bytes currently buffered
+     */
+    public int size() {
+        return len;
+    }
+
+    /**
+     * writes buffered bytes to the given stream, without flushing it
+     *
+     * @param os the stream to write to
+     * @throws IOException on write error
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(buf, 0, len);
+    }
+
+    /**
+     * sends buffered bytes to the destination stream if more than the given
+     * number of bytes are pending
+     *
+     * @param threshold bytes to accumulate before sending
+     * @throws IOException on write error
+     */
+    public void flushIfOver(int threshold) throws IOException {
+        if (len >= threshold) {
+            flush();
+        }
+    }
+
+    /**
+     * sends buffered bytes to the destination stream
+     *
+     * @throws IOException on write error
+     */
+    public void flush() throws IOException {
+        if (out != null && len > 0) {
+            out.write(buf, 0, len);
+            len = 0;
+        }
+    }
+
+    /**
+     * ends a top level value with a line break, so that another top level
+     * value can follow (JSON lines)
+     *
+     * @return this writer
+     */
+    public JsonWriter endLine() {
+        put('\n');
+        depth = 0;
+        afterName = false;
+        hasValue[0] = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        put('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        put('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        put('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        put(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        beforeValue();
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        number(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        beforeValue();
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            number((long) value);
+            ascii(".0");
+        } else if (Double.isFinite(value)) {
+            ascii(Double.toString(value));
+        } else {
+            ascii("null");
+        }
+        return this;
+    }
+
+    /**
+     * writes a money amount as a decimal number with two decimals
+     *
+     * @param amount the amount, in minor units
+     * @return this writer
+     */
+    public JsonWriter money(long amount) {
+        beforeValue();
+        long abs = Math.abs(amount);
+        if (amount < 0) {
+            put('-');
+        }
+        number(abs / Money.UNIT);
+        put('.');
+        long cents = abs % Money.UNIT;
+        put((char) ('0' + cents / 10));
+        put((char) ('0' + cents % 10));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * writes a category as a JSON object
+     *
+     * @param c the category to write
+     * @return this writer
+     */
+    public JsonWriter category(Category c) {
+        if (c == null) {
+            return value((String) null);
+        }
+        beginObject();
+        name("id").value(c.getId());
+        name("code").value(c.getCode());
+        name("name").value(c.getName());
+        name("parentId").value(c.getParentId());
+        return endObject();
+    }
+
+    /**
+     * writes a product as a JSON object. Category is written as an id, or as
+     * a nested object when its data has been loaded.
+     *
+     * @param p the product to write
+     * @return this writer
+     */
+    public JsonWriter product(Product p) {
+        if (p == null) {
+            return value((String) null);
+        }
+        beginObject();
+        name("id").value(p.getId());
+        name("code").value(p.getCode());
+        name("name").value(p.getName());
+        name("stock").value(p.getStock());
+        name("price").money(p.getPrice());
+        Category c = p.getCategory();
+        if (c == null) {
+            name("categoryId").value((String) null);
+        } else if (c.getCode() == null) {
+            name("categoryId").value(c.getId());
+        } else {
+            name("category").category(c);
+        }
+        return endObject();
+    }
+
+    /**
+     * writes an order as a JSON object, with its lines
+     *
+     * @param o the order to write
+     * @return this writer
+     */
+    public JsonWriter order(Order o) {
+        if (o == null) {
+            return value((String) null);
+        }
+        beginObject();
+        name("id").value(o.getId());
+        name("total").money(o.getTotal());
+        name("lines").beginArray();
+        for (OrderLine line : o.getLines()) {
+            beginObject();
+            name("productId").value(line.getProductId());
+            name("code").value(line.getCode());
+            name("quantity").value(line.getQuantity());
+            name("price").money(line.getPrice());
+            endObject();
+        }
+        endArray();
+        return endObject();
+    }
+
+    /* ==== encoding helpers ==== */
+
+    private void push() {
+        depth++;
+        if (depth >= MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting too deep");
+        }
+        hasValue[depth] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else {
+            if (hasValue[depth]) {
+                put(',');
+            }
+            hasValue[depth] = true;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void ascii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void number(long v) {
+        if (v == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        //digits were written backwards
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    private void string(String s) {
+        int n = s.length();
+        //worst case: every char escaped as \\uXXXX
+        ensure(n * 6 + 2);
+        buf[len++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf[len++] = '\\';
+                buf[len++] = (byte) c;
+            } else if (c < 0x20) {
+                buf[len++] = '\\';
+                buf[len++] = 'u';
+                buf[len++] = '0';
+                buf[len++] = '0';
+                buf[len++] = HEX[c >> 4];
+                buf[len++] = HEX[c & 0xf];
+            } else if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xc0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                buf[len++] = (byte) (0xe0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[len++] = '"';
+    }
+
+}
@@ -0,0 +1,622 @@
+package cat.proven.categprods.server;
+
+import cat.proven.categprods.model.Category;
+import cat.proven.categprods.model.Money;
+import cat.proven.categprods.model.Order;
+import cat.proven.categprods.model.Product;
+import cat.proven.categprods.model.ProductCriteria;
+import cat.proven.categprods.model.StoreModel;
+import cat.proven.categprods.model.cache.HeavyHitters;
+import cat.proven.categprods.model.metrics.Metrics;
+import cat.proven.categprods.model.metrics.OpStats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP server exposing the store model as a JSON API. Each action
+ * command of the main menu is served at a path with the same name, for
+ * instance GET /product/code?code=P01 or POST /category/add with a form
+ * encoded body (code=C07&amp;name=category07).
+ *
+ * GET /metrics returns call counts, error counts and latency percentiles
+ * (in nanoseconds) of every model and data access operation, and GET
+ * /product/hot?n=20 the product codes looked up most often lately, with
+ * their estimated counts.
+ *
+ * Stock is held for checkout with POST /stock/reserve (code, quantity and
+ * optionally ttl, in seconds), which returns the id of the reservation, or
+ * -1, then POST /stock/confirm or /stock/release with the id; GET
+ * /stock/available?code=P01 returns the stock not held.
+ *
+ * POST /order/checkout places an order for the quantities of products given
+ * in items, as in items=P01:2,P03:1, and returns it with its id, total and
+ * lines, or 409 if a product is not found or its stock is not enough; GET
+ * /order/id?id=1 returns a placed order.
+ *
+ * Categories form a tree: POST /category/add takes an optional parentId,
+ * POST /category/move moves the category of the given code under the one
+ * of parentCode, or to the top level without it, GET
+ * /category/ancestors?code=C07 and /category/subtree?code=C01 list the
+ * ancestors and the subtree of a category, and GET /product/subtree?id=1
+ * lists the products of a category and of its descendants.
+ *
+ * GET /product/find combines filters on products, all of them optional:
+ * categories (ids separated by commas), minStock, maxStock, minPrice,
+ * maxPrice, prefix (of the name), sort (id, code, name, stock or price),
+ * desc (true or false) and limit, as in
+ * /product/find?categories=1,3&amp;maxPrice=20.00&amp;sort=price&amp;limit=10
+ *
+ * Reads that follow a change go to the primary database for a while (see
+ * DbConnect), so that they see it. The window belongs to the session named
+ * by the X-Session request header, e.g. a random token kept by the client,
+ * since its requests may run on any worker; requests without the header
+ * start with no window.
+ *
+ * List endpoints are streamed with chunked transfer encoding. Connections are
+ * kept alive by the underlying server, and requests are handled by a bounded
+ * pool of workers: when its queue is full the accepting thread runs the
+ * request itself, which throttles new connections.
+ *
+ * @author ProvenSoft
+ */
+public class StoreServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_WORKERS = 8;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * pending bytes to accumulate before sending a chunk
+     */
+    private static final int CHUNK_SIZE = 8192;
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    /**
+     * seconds a reservation of stock lasts unless told otherwise
+     */
+    private static final int DEFAULT_RESERVATION_SECONDS = 600;
+    /**
+     * request header naming the session of a client
+     */
+    private static final String SESSION_HEADER = "X-Session";
+    /**
+     * sessions kept before those whose window has ended are dropped
+     */
+    private static final int MAX_SESSIONS = 10_000;
+
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+    private final StoreModel model;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    /**
+     * end of the read your writes window of each session, in nanoTime
+     */
+    private final ConcurrentHashMap<String, Long> readWindows = new ConcurrentHashMap<>();
+
+    /**
+     * creates a server listening on loopback interface at the given port
+     *
+     * @param model the model to serve
+     * @param port the port to listen to (0 to choose a free one)
+     * @throws IOException if the port can not be bound
+     */
+    public StoreServer(StoreModel model, int port) throws IOException {
+        this(model, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * creates a server
+     *
+     * @param model the model to serve
+     * @param address the address to listen to
+     * @param numWorkers number of worker threads
+     * @param queueCapacity number of requests that can wait for a worker
+     * @throws IOException if the address can not be bound
+     */
+    public StoreServer(StoreModel model, InetSocketAddress address, int numWorkers, int queueCapacity) throws IOException {
+        this.model = model;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "store-http-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(workers);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * stops the server, waiting for running exchanges to finish
+     *
+     * @param delaySeconds maximum time to wait
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+    }
+
+    /**
+     * @return the port the server is listening to
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /* ==== Request dispatching ==== */
+
+    /**
+     * processes a request in the read your writes window of its session
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String session = exchange.getRequestHeaders().getFirst(SESSION_HEADER);
+        StoreModel.resumeReadWindow((session != null) ? readWindows.getOrDefault(session, 0L) : 0);
+        try {
+            dispatch(exchange);
+        } finally {
+            long until = StoreModel.takeReadWindow();
+            if (session != null) {
+                if (until != 0) {
+                    readWindows.put(session, until);
+                } else {
+                    readWindows.remove(session);
+                }
+                if (readWindows.size() > MAX_SESSIONS) {
+                    long now = System.nanoTime();
+                    readWindows.values().removeIf(u -> now - u >= 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * processes a request: the path gives the action command
+     */
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try ( exchange) {
+            String action = exchange.getRequestURI().getPath();
+            if (action.startsWith("/")) {
+                action = action.substring(1);
+            }
+            boolean post = "POST".equals(exchange.getRequestMethod());
+            Map<String, String> params = readParams(exchange, post);
+            JsonWriter json = WRITERS.get();
+            try {
+                switch (action) {
+                    case "category/all":
+                        sendList(exchange, json, model.findAllCategories(), false);
+                        break;
+                    case "category/code":
+                        sendCategory(exchange, json, model.findCategoryByCode(required(params, "code")));
+                        break;
+                    case "category/name":
+                        sendCategory(exchange, json, model.findCategoryByName(required(params, "name")));
+                        break;
+                    case "category/add":
+                        requirePost(post);
+                        sendResult(exchange, json, model.addCategory(new Category(0, required(params, "code"),
+                                required(params, "name"), params.containsKey("parentId")
+                                ? requiredLong(params, "parentId") : 0)));
+                        break;
+                    case "category/move":
+                        requirePost(post);
+                        sendResult(exchange, json, doMoveCategory(params));
+                        break;
+                    case "category/ancestors":
+                        sendList(exchange, json, model.findCategoryAncestors(
+                                model.findCategoryByCode(required(params, "code"))), false);
+                        break;
+                    case "category/subtree":
+                        sendList(exchange, json, model.findCategorySubtree(
+                                model.findCategoryByCode(required(params, "code"))), false);
+                        break;
+                    case "category/modify":
+                        requirePost(post);
+                        sendResult(exchange, json, doModifyCategory(params));
+                        break;
+                    case "category/remove":
+                        requirePost(post);
+                        sendResult(exchange, json, model.dropCategory(model.findCategoryByCode(required(params, "code"))));
+                        break;
+                    case "product/all":
+                        sendList(exchange, json, model.findAllProducts(), true);
+                        break;
+                    case "product/code":
+                        sendProduct(exchange, json, model.findProductByCode(required(params, "code")));
+                        break;
+                    case "product/name":
+                        sendProduct(exchange, json, model.findProductByName(required(params, "name")));
+                        break;
+                    case "product/minstock":
+                        sendList(exchange, json, model.findProductByMinStock(requiredPositiveInt(params, "minStock")), true);
+                        break;
+                    case "product/category":
+                        sendList(exchange, json, model.findProductsByCategory(
+                                new Category(requiredLong(params, "id"))), true);
+                        break;
+                    case "product/subtree":
+                        sendList(exchange, json, model.findProductsInSubtree(
+                                new Category(requiredLong(params, "id"))), true);
+                        break;
+                    case "product/find":
+                        sendList(exchange, json, model.findProducts(criteria(params)), true);
+                        break;
+                    case "product/add":
+                        requirePost(post);
+                        sendResult(exchange, json, model.addProduct(new Product(0, required(params, "code"),
+                                required(params, "name"), requiredInt(params, "stock"),
+                                requiredMoney(params, "price"), new Category(requiredLong(params, "categoryId")))));
+                        break;
+                    case "product/modify":
+                        requirePost(post);
+                        sendResult(exchange, json, doModifyProduct(params));
+                        break;
+                    case "product/remove":
+                        requirePost(post);
+                        sendResult(exchange, json, model.dropProduct(model.findProductByCode(required(params, "code"))));
+                        break;
+                    case "product/hot":
+                        sendHotProducts(exchange, json, params.containsKey("n") ? requiredInt(params, "n") : 20);
+                        break;
+                    case "stock/reserve":
+                        requirePost(post);
+                        sendResult(exchange, json, model.reserveStock(required(params, "code"),
+                                requiredInt(params, "quantity"), 1000L * (params.containsKey("ttl")
+                                ? requiredInt(params, "ttl") : DEFAULT_RESERVATION_SECONDS)));
+                        break;
+                    case "stock/confirm":
+                        requirePost(post);
+                        sendResult(exchange, json, model.confirmReservation(requiredLong(params, "id")) ? 1 : 0);
+                        break;
+                    case "stock/release":
+                        requirePost(post);
+                        sendResult(exchange, json, model.releaseReservation(requiredLong(params, "id")) ? 1 : 0);
+                        break;
+                    case "stock/available":
+                        sendResult(exchange, json, model.findAvailableStock(required(params, "code")));
+                        break;
+                    case "order/checkout":
+                        requirePost(post);
+                        sendOrder(exchange, json, model.checkout(basket(params)), 409, "Order not placed");
+                        break;
+                    case "order/id":
+                        sendOrder(exchange, json, model.findOrder(requiredLong(params, "id")), 404, "Order not found");
+                        break;
+                    case "metrics":
+                        sendMetrics(exchange, json);
+                        break;
+                    default:
+                        sendError(exchange, json, 404, "Unknown action: " + action);
+                        break;
+                }
+            } catch (BadRequestException ex) {
+                sendError(exchange, json, ex.status, ex.getMessage());
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, null, ex);
+            throw ex;
+        }
+    }
+
+    private int doModifyCategory(Map<String, String> params) throws BadRequestException {
+        int result = 0;
+        Category oldC = model.findCategoryByCode(required(params, "code"));
+        if (oldC != null) {
+            Category newC = new Category(oldC.getId(), required(params, "newCode"), required(params, "newName"));
+            result = model.modifyCategory(oldC, newC);
+        }
+        return result;
+    }
+
+    private int doMoveCategory(Map<String, String> params) throws BadRequestException {
+        int result = 0;
+        Category category = model.findCategoryByCode(required(params, "code"));
+        Category parent = params.containsKey("parentCode")
+                ? model.findCategoryByCode(required(params, "parentCode")) : null;
+        if ((category != null) && ((parent != null) || !params.containsKey("parentCode"))) {
+            result = model.moveCategory(category, parent);
+        }
+        return result;
+    }
+
+    private int doModifyProduct(Map<String, String> params) throws BadRequestException {
+        int result = 0;
+        Product oldP = model.findProductByCode(required(params, "code"));
+        if (oldP != null) {
+            Product newP = new Product(oldP.getId(), oldP.getCode(), required(params, "name"),
+                    requiredInt(params, "stock"), requiredMoney(params, "price"), oldP.getCategory());
+            result = model.modifyProduct(oldP, newP);
+        }
+        return result;
+    }
+
+    /**
+     * reads the quantities of products of an order, given as code:quantity
+     * pairs separated by commas
+     */
+    private static Map<String, Integer> basket(Map<String, String> params) throws BadRequestException {
+        Map<String, Integer> basket = new LinkedHashMap<>();
+        for (String item : required(params, "items").split(",")) {
+            String[] kv = item.split(":");
+            try {
+                if (kv.length != 2 || basket.merge(kv[0].trim(), Integer.parseInt(kv[1].trim()), Integer::sum) <= 0) {
+                    throw new BadRequestException(400, "Invalid parameter: items");
+                }
+            } catch (NumberFormatException ex) {
+                throw new BadRequestException(400, "Invalid parameter: items");
+            }
+        }
+        return basket;
+    }
+
+    /**
+     * builds product criteria from the parameters given
+     */
+    private static ProductCriteria criteria(Map<String, String> params) throws BadRequestException {
+        ProductCriteria criteria = new ProductCriteria();
+        if (params.containsKey("categories")) {
+            List<Long> ids = new ArrayList<>();
+            for (String id : required(params, "categories").split(",")) {
+                try {
+                    ids.add(Long.parseLong(id.strip()));
+                } catch (NumberFormatException ex) {
+                    throw new BadRequestException(400, "Invalid parameter: categories");
+                }
+            }
+            criteria.inCategories(ids);
+        }
+        criteria.stockBetween(params.containsKey("minStock") ? requiredInt(params, "minStock") : null,
+                params.containsKey("maxStock") ? requiredInt(params, "maxStock") : null);
+        criteria.priceBetween(params.containsKey("minPrice") ? requiredMoney(params, "minPrice") : null,
+                params.containsKey("maxPrice") ? requiredMoney(params, "maxPrice") : null);
+        criteria.nameStartsWith(params.get("prefix"));
+        if (params.containsKey("sort")) {
+            try {
+                criteria.orderBy(ProductCriteria.SortKey.valueOf(required(params, "sort").toUpperCase()),
+                        Boolean.parseBoolean(params.get("desc")));
+            } catch (IllegalArgumentException ex) {
+                throw new BadRequestException(400, "Invalid parameter: sort");
+            }
+        } else {
+            criteria.orderBy(ProductCriteria.SortKey.ID, Boolean.parseBoolean(params.get("desc")));
+        }
+        if (params.containsKey("limit")) {
+            criteria.limit(requiredInt(params, "limit"));
+        }
+        return criteria;
+    }
+
+    /* ==== Responses ==== */
+
+    private void sendProduct(HttpExchange exchange, JsonWriter json, Product p) throws IOException {
+        if (p != null) {
+            json.reset(null).product(p);
+            sendBuffered(exchange, json, 200);
+        } else {
+            sendError(exchange, json, 404, "Product not found");
+        }
+    }
+
+    private void sendOrder(HttpExchange exchange, JsonWriter json, Order o, int status, String message)
+            throws IOException {
+        if (o != null) {
+            json.reset(null).order(o);
+            sendBuffered(exchange, json, 200);
+        } else {
+            sendError(exchange, json, status, message);
+        }
+    }
+
+    private void sendCategory(HttpExchange exchange, JsonWriter json, Category c) throws IOException {
+        if (c != null) {
+            json.reset(null).category(c);
+            sendBuffered(exchange, json, 200);
+        } else {
+            sendError(exchange, json, 404, "Category not found");
+        }
+    }
+
+    private void sendResult(HttpExchange exchange, JsonWriter json, long result) throws IOException {
+        json.reset(null).beginObject().name("result").value(result).endObject();
+        sendBuffered(exchange, json, 200);
+    }
+
+    private void sendError(HttpExchange exchange, JsonWriter json, int status, String message) throws IOException {
+        json.reset(null).beginObject().name("error").value(message).endObject();
+        sendBuffered(exchange, json, status);
+    }
+
+    private void sendHotProducts(HttpExchange exchange, JsonWriter json, int n) throws IOException {
+        json.reset(null).beginArray();
+        for (HeavyHitters.Entry<String> e : model.findHotProducts(n)) {
+            json.beginObject().name("code").value(e.getKey()).name("count").value(e.getCount()).endObject();
+        }
+        json.endArray();
+        sendBuffered(exchange, json, 200);
+    }
+
+    private void sendMetrics(HttpExchange exchange, JsonWriter json) throws IOException {
+        json.reset(null).beginArray();
+        for (OpStats.Snapshot s : Metrics.snapshot()) {
+            json.beginObject();
+            json.name("operation").value(s.getName());
+            json.name("count").value(s.getCount());
+            json.name("errors").value(s.getErrors());
+            json.name("mean").value(s.getMean());
+            json.name("p50").value(s.getP50());
+            json.name("p90").value(s.getP90());
+            json.name("p99").value(s.getP99());
+            json.name("p999").value(s.getP999());
+            json.name("max").value(s.getMax());
+            json.endObject();
+        }
+        json.endArray();
+        sendBuffered(exchange, json, 200);
+    }
+
+    /**
+     * sends buffered json with a known content length
+     */
+    private void sendBuffered(HttpExchange exchange, JsonWriter json, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(status, json.size());
+        OutputStream body = exchange.getResponseBody();
+        json.writeTo(body);
+        body.flush();
+    }
+
+    /**
+     * streams a list as a json array in chunks
+     */
+    private <T> void sendList(HttpExchange exchange, JsonWriter json, List<T> data, boolean products) throws IOException {
+        if (data == null) {
+            sendError(exchange, json, 500, "No data has been obtained");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(200, 0);  //0 means chunked
+        OutputStream body = exchange.getResponseBody();
+        json.reset(body).beginArray();
+        for (T t : data) {
+            if (products) {
+                json.product((Product) t);
+            } else {
+                json.category((Category) t);
+            }
+            json.flushIfOver(CHUNK_SIZE);
+        }
+        json.endArray().flush();
+        body.flush();
+    }
+
+    /* ==== Request parameters ==== */
+
+    /**
+     * reads parameters from query string and, for POST requests, from the
+     * form encoded body. Body is always consumed so that the connection can
+     * be reused.
+     */
+    private static Map<String, String> readParams(HttpExchange exchange, boolean post) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        try ( InputStream in = exchange.getRequestBody()) {
+            if (post) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                in.transferTo(bytes);
+                parseForm(bytes.toString(StandardCharsets.UTF_8), params);
+            } else {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        int start = 0;
+        while (start <= form.length()) {
+            int end = form.indexOf('&', start);
+            if (end < 0) {
+                end = form.length();
+            }
+            int eq = form.indexOf('=', start);
+            if (eq > start && eq < end) {
+                params.put(URLDecoder.decode(form.substring(start, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(form.substring(eq + 1, end), StandardCharsets.UTF_8));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static void requirePost(boolean post) throws BadRequestException {
+        if (!post) {
+            throw new BadRequestException(405, "POST required");
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) throws BadRequestException {
+        String value = params.get(name);
+        if (value == null) {
+            throw new BadRequestException(400, "Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static int requiredInt(Map<String, String> params, String name) throws BadRequestException {
+        try {
+            return Integer.parseInt(required(params, name));
+        } catch (NumberFormatException ex) {
+            throw new BadRequestException(400, "Invalid parameter: " + name);
+        }
+    }
+
+    private static int requiredPositiveInt(Map<String, String> params, String name) throws BadRequestException {
+        int value = requiredInt(params, name);
+        if (value <= 0) {
+            throw new BadRequestException(400, "Invalid parameter: " + name);
+        }
+        return value;
+    }
+
+    private static long requiredLong(Map<String, String> params, String name) throws BadRequestException {
+        try {
+            return Long.parseLong(required(params, name));
+        } catch (NumberFormatException ex) {
+            throw new BadRequestException(400, "Invalid parameter: " + name);
+        }
+    }
+
+    private static long requiredMoney(Map<String, String> params, String name) throws BadRequestException {
+        try {
+            return Money.parse(required(params, name));
+        } catch (NumberFormatException ex) {
+            throw new BadRequestException(400, "Invalid parameter: " + name);
+        }
+    }
+
+    /**
+     * signals a request that can not be processed
+     */
+    private static class BadRequestException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        BadRequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+}
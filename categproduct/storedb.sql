@@ -2,21 +2,21 @@ CREATE USER 'storeusr'@'localhost' IDENTIFIED BY 'storepsw';
 CREATE DATABASE storedb
   DEFAULT CHARACTER SET utf8
   DEFAULT COLLATE utf8_general_ci;
-GRANT SELECT, INSERT, UPDATE, DELETE ON storedb.* TO 'storeusr'@'localhost';
+GRANT SELECT, INSERT, UPDATE, DELETE, CREATE, ALTER, INDEX, REFERENCES, TRIGGER ON storedb.* TO 'storeusr'@'localhost';
 USE storedb;
 CREATE TABLE `categories` (
-    `id` INT(4) NOT NULL AUTO_INCREMENT,
+    `id` INT NOT NULL AUTO_INCREMENT,
     `code` VARCHAR(10) NOT NULL UNIQUE,
     `name` VARCHAR(20) NOT NULL,
     PRIMARY KEY (`id`)
 );
 CREATE TABLE `products` (
-    `id` INT(4) NOT NULL AUTO_INCREMENT,
+    `id` INT NOT NULL AUTO_INCREMENT,
     `code` VARCHAR(10) NOT NULL UNIQUE,
     `name` VARCHAR(20) NOT NULL,
     `stock` INT DEFAULT 0,
     `price` DOUBLE DEFAULT 0.0,
-    `category_id` INT(4),
+    `category_id` INT,
     PRIMARY KEY (`id`)
 );
 ALTER TABLE `products` 